@@ -0,0 +1,116 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.aspect;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.gr.java_conf.fragile.commons.reflect.DynamicBeanFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * アスペクトを適用したメソッド呼び出しの計測.
+ * <pre>
+ * AspectHanderを経由した呼び出し(java.lang.reflect.Proxy)と
+ * AspectProxyGeneratorで生成したクラス、直接呼び出しを
+ * インターセプター数 0/1/3 で比較する
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AspectHanderBenchmark {
+
+    /** インターセプター数 */
+    @Param({"0", "1", "3"})
+    private int interceptors;
+
+    /** 直接呼び出し */
+    private Calculator direct;
+
+    /** アスペクト適用 */
+    private Calculator proxy;
+
+    /** アスペクト適用 [生成したクラス] */
+    private Calculator generated;
+
+    /** 引数 */
+    private int value = 7;
+
+    /**
+     * 初期化.
+     */
+    @Setup
+    public void setup() {
+
+        direct = new CalculatorImpl();
+
+        final AspectHander hander = new AspectHander(direct);
+        for (int i = 0; i < interceptors; i++) {
+            hander.addInterceptor("add", new NopInterceptor());
+        }
+        proxy = Calculator.class.cast(DynamicBeanFactory.proxyWrap(direct, hander));
+        generated = Calculator.class.cast(hander.newGeneratedProxy());
+    }
+
+// =============================================================================
+
+    @Benchmark
+    public int direct() {
+        return direct.add(value, 1);
+    }
+
+    @Benchmark
+    public int aspect() {
+        return proxy.add(value, 1);
+    }
+
+    @Benchmark
+    public int generated() {
+        return generated.add(value, 1);
+    }
+
+// =============================================================================
+
+    /**
+     * 呼び出すインターフェース.
+     */
+    public interface Calculator {
+        int add(int a, int b);
+    }
+
+    /**
+     * 実装.
+     */
+    public static class CalculatorImpl implements Calculator {
+        public int add(final int a, final int b) {
+            return a + b;
+        }
+    }
+
+    /**
+     * 何もしないインターセプター.
+     */
+    static class NopInterceptor implements Interceptor {
+        public Object[] before(final Object instance, final Object[] param) {
+            return param;
+        }
+        public Object after(final Object instance, final Object returnValue) {
+            return returnValue;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.container;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.gr.java_conf.fragile.commons.aspect.Interceptor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * コンポーネント取得の計測.
+ * <pre>
+ * singleton/create/aspect(singleton + インターセプター1つ)の
+ * getComponentを比較する 定義はbench-component.xml
+ * singletonは複数スレッドからの同時取得も計測する
+ * requestはスコープの開始、取得、終了(プールへの返却)までを計測する
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djp.gr.java_conf.fragile.commons.container.config=/bench-component.xml")
+public class ComponentFactoryBenchmark {
+
+    /** ファクトリ */
+    private ComponentFactory<Greeter> factory;
+
+    /**
+     * 初期化.
+     */
+    @Setup
+    public void setup() {
+        factory = ComponentFactory.createFactory(Greeter.class);
+    }
+
+// =============================================================================
+
+    @Benchmark
+    public Greeter singleton() {
+        return factory.getComponent(BenchBeanNames.SINGLETON_GREETER);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Greeter singleton4() {
+        return factory.getComponent(BenchBeanNames.SINGLETON_GREETER);
+    }
+
+    @Benchmark
+    public Greeter create() {
+        return factory.getComponent(BenchBeanNames.CREATE_GREETER);
+    }
+
+    @Benchmark
+    public Greeter aspect() {
+        return factory.getComponent(BenchBeanNames.ASPECT_GREETER);
+    }
+
+    @Benchmark
+    public Greeter request() {
+        ComponentScope.beginRequest(null);
+        try {
+            return factory.getComponent(BenchBeanNames.REQUEST_GREETER);
+        } finally {
+            ComponentScope.endRequest();
+        }
+    }
+
+    @Benchmark
+    public Greeter baseline() {
+        final GreeterImpl greeter = new GreeterImpl();
+        greeter.setSuffix("!");
+        return greeter;
+    }
+
+// =============================================================================
+
+    /**
+     * Bean名.
+     */
+    enum BenchBeanNames implements ComponentNameable {
+        SINGLETON_GREETER,
+        CREATE_GREETER,
+        ASPECT_GREETER,
+        REQUEST_GREETER;
+        public String getLabel() {
+            return this.name();
+        }
+    }
+
+    /**
+     * 取得するBeanの型.
+     */
+    public interface Greeter {
+        String greet(String name);
+    }
+
+    /**
+     * 実装.
+     */
+    public static class GreeterImpl implements Greeter {
+        private String suffix = null;
+        public void setSuffix(final String suffix) {
+            this.suffix = suffix;
+        }
+        public String greet(final String name) {
+            return name + suffix;
+        }
+    }
+
+    /**
+     * requestスコープで再利用する実装.
+     */
+    public static class ScopedGreeterImpl extends GreeterImpl implements ScopedComponent {
+        public void reset() {
+        }
+    }
+
+    /**
+     * 何もしないインターセプター.
+     */
+    public static class NopInterceptor implements Interceptor {
+        public Object[] before(final Object instance, final Object[] param) {
+            return param;
+        }
+        public Object after(final Object instance, final Object returnValue) {
+            return returnValue;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.container.config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * component.xmlの読み込みの計測.
+ * <pre>
+ * 生成したコンポーネント定義をDOM+XPath(XMLReader)とStAX(StAXXMLReader)、
+ * バイナリキャッシュ(XMLPropertiesCache 作成済みのキャッシュの読み込み)で比較する
+ * コンポーネント毎にインジェクション2つ、4つに1つはアスペクトを定義する
+ * DOMはコンポーネント毎のXPath評価が文書全体に比例するので10000件では1回数分かかる
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMLReaderBenchmark {
+
+    /** コンポーネント数 */
+    @Param({"100", "10000"})
+    private int components;
+
+    /** 定義 */
+    private byte[] xml;
+
+    /** キャッシュ */
+    private XMLPropertiesCache cache;
+
+    /**
+     * 初期化.
+     * @throws IOException 入出力例外
+     */
+    @Setup
+    public void setup() throws IOException {
+
+        xml = generate(components).getBytes(StandardCharsets.UTF_8);
+
+        final File directory = File.createTempFile("xml-cache", "");
+        directory.delete();
+        directory.deleteOnExit();
+        cache = new XMLPropertiesCache(directory);
+        cache.read(new BytesReader(), new XMLProperties());
+        for (final File file : directory.listFiles()) {
+            file.deleteOnExit();
+        }
+    }
+
+// =============================================================================
+
+    @Benchmark
+    public XMLProperties dom() {
+        return read(new XMLReader());
+    }
+
+    @Benchmark
+    public XMLProperties stax() {
+        return read(new StAXXMLReader());
+    }
+
+    @Benchmark
+    public XMLProperties cache() {
+        final XMLProperties properties = new XMLProperties();
+        cache.read(new BytesReader(), properties);
+        return properties;
+    }
+
+// =============================================================================
+
+    /**
+     * 読み込む.
+     * @param reader 読み出しクラス
+     * @return 値オブジェクト
+     */
+    private XMLProperties read(final XMLReader reader) {
+        final XMLProperties properties = new XMLProperties();
+        reader.read(properties, new ByteArrayInputStream(xml));
+        return properties;
+    }
+
+    /**
+     * 生成した定義を読み込む.
+     */
+    private class BytesReader extends StAXXMLReader {
+        @Override
+        protected String resolveConfigPath() {
+            return "/bench-" + components + ".xml";
+        }
+        @Override
+        protected InputStream getXmlInputStream(final String path) {
+            return new ByteArrayInputStream(xml);
+        }
+    }
+
+    /**
+     * 定義を生成する.
+     * @param size コンポーネント数
+     * @return XML
+     */
+    static String generate(final int size) {
+
+        final StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<container>\n");
+        for (int i = 0; i < size; i++) {
+            sb.append("    <component id='BEAN_").append(i)
+                .append("' create='").append(i % 2 == 0 ? "singleton" : "create")
+                .append("' type='bean' src='jp.example.Bean").append(i).append("Impl'>\n")
+                .append("        <injection>\n")
+                .append("            <method name=\"setFoo\" id='BEAN_").append((i + 1) % size).append("' />\n")
+                .append("            <method name=\"setBar\" id='BEAN_").append((i + 2) % size).append("' />\n")
+                .append("        </injection>\n");
+            if (i % 4 == 0) {
+                sb.append("        <aspect>\n")
+                    .append("            <method name=\"execute\" id='INTERCEPTOR' />\n")
+                    .append("        </aspect>\n");
+            }
+            sb.append("    </component>\n");
+        }
+        return sb.append("</container>\n").toString();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * InputStreamからバイト配列への変換の計測.
+ * <pre>
+ * legacyは従来のByteArrayOutputStreamを経由する実装
+ * unknownLengthはavailableが0を戻す入力
+ * transferはチャネルへの転送(transferReuseはバッファを再利用 legacyTransferは1KBの配列で書き込む従来の方法)
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IOUtilBenchmark {
+
+    /** 入力の大きさ */
+    @Param({"1024", "65536", "16777216"})
+    private int size;
+
+    /** 入力 */
+    private byte[] data;
+
+    /** 変換 */
+    private IOUtil ioUtil;
+
+    /** 転送に再利用するバッファ */
+    private final byte[] transferBuffer = new byte[8192];
+
+    /**
+     * 初期化.
+     */
+    @Setup
+    public void setup() {
+        data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ioUtil = new IOUtil();
+    }
+
+    @Benchmark
+    public byte[] toByteArray() throws IOException {
+        return ioUtil.toByteArray(new ByteArrayInputStream(data));
+    }
+
+    @Benchmark
+    public byte[] legacy() throws IOException {
+        return legacyToByteArray(new ByteArrayInputStream(data));
+    }
+
+    @Benchmark
+    public byte[] unknownLength() throws IOException {
+        return IOUtil.readAll(new UnknownLengthInputStream(new ByteArrayInputStream(data)));
+    }
+
+    @Benchmark
+    public byte[] legacyUnknownLength() throws IOException {
+        return legacyToByteArray(new UnknownLengthInputStream(new ByteArrayInputStream(data)));
+    }
+
+    @Benchmark
+    public byte[] readFully() throws IOException {
+        return IOUtil.readFully(new ByteArrayInputStream(data), size);
+    }
+
+    @Benchmark
+    public long transfer() throws IOException {
+        return IOUtil.transferTo(new ByteArrayInputStream(data), NullChannel.INSTANCE);
+    }
+
+    @Benchmark
+    public long transferReuse() throws IOException {
+        return IOUtil.transferTo(new ByteArrayInputStream(data), NullChannel.INSTANCE, transferBuffer);
+    }
+
+    @Benchmark
+    public long legacyTransfer() throws IOException {
+        final InputStream inputStream = new ByteArrayInputStream(data);
+        final byte[] buffer = new byte[1024];
+        long count = 0L;
+        int length;
+        while ((length = inputStream.read(buffer, 0, buffer.length)) != -1) {
+            count += NullChannel.INSTANCE.write(ByteBuffer.wrap(buffer, 0, length));
+        }
+        return count;
+    }
+
+    /**
+     * 従来のIOUtil#toByteArray.
+     * @param inputStream 入力
+     * @return バイト配列
+     * @throws IOException 例外
+     */
+    private static byte[] legacyToByteArray(final InputStream inputStream) throws IOException {
+
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] returnValue = null;
+        try {
+            final byte[] buffer = new byte[1024];
+            int length = 0;
+            while ((length = inputStream.read(buffer, 0, buffer.length)) != -1) {
+                byteArrayOutputStream.write(buffer, 0, length);
+            }
+            byteArrayOutputStream.flush();
+            returnValue = byteArrayOutputStream.toByteArray();
+        } finally {
+            byteArrayOutputStream.close();
+        }
+        return returnValue;
+    }
+
+    /**
+     * 長さが分からない入力.
+     */
+    static final class UnknownLengthInputStream extends FilterInputStream {
+        UnknownLengthInputStream(final InputStream in) {
+            super(in);
+        }
+        @Override
+        public int available() {
+            return 0;
+        }
+    }
+
+    /**
+     * 書き込みを捨てるチャネル.
+     */
+    static final class NullChannel implements WritableByteChannel {
+        static final NullChannel INSTANCE = new NullChannel();
+        public int write(final ByteBuffer src) {
+            final int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+        public boolean isOpen() {
+            return true;
+        }
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.reflect;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * クラス名からのインスタンス生成の計測.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DynamicBeanFactoryBenchmark {
+
+    /** 生成するクラス名 */
+    private String clazzName = SimpleBean.class.getName();
+
+    @Benchmark
+    public Object create() {
+        return DynamicBeanFactory.create(clazzName, Object.class);
+    }
+
+    @Benchmark
+    public Object loadInstance() {
+        return DynamicBeanFactory.loadInstance(SimpleBean.class);
+    }
+
+    @Benchmark
+    public Object baseline() {
+        return new SimpleBean();
+    }
+
+    /**
+     * 生成するクラス.
+     */
+    public static class SimpleBean {
+        private String value = null;
+        public String getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import jp.gr.java_conf.fragile.commons.collect.Collect.EachFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 実行中コマンド管理の比較.
+ * <pre>
+ * 従来の同期化したSetとCommandRegistryの登録、削除を
+ * 8/32/128スレッドで比較する
+ * 監視スレッドの走査はスナップショットとの比較
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandRegistryBenchmark {
+
+    /** 走査時に登録しておく数 */
+    private static final int IN_FLIGHT = 64;
+
+    /** 新実装 */
+    private CommandRegistry registry;
+
+    /** 従来実装 */
+    private Set<CommandExecutionable> executes;
+
+    /** 走査用 */
+    private CommandRegistry scanRegistry;
+
+    /** 走査用 */
+    private Set<CommandExecutionable> scanExecutes;
+
+    /**
+     * 初期化.
+     */
+    @Setup
+    public void setup() {
+
+        registry = new CommandRegistry(128);
+        executes = Collections.synchronizedSet(new HashSet<CommandExecutionable>());
+
+        scanRegistry = new CommandRegistry(IN_FLIGHT);
+        scanExecutes = Collections.synchronizedSet(new HashSet<CommandExecutionable>());
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            final CommandExecutionable command = new StubCommand();
+            scanRegistry.register(command);
+            scanExecutes.add(command);
+        }
+    }
+
+    /**
+     * スレッド毎のコマンド.
+     */
+    @State(Scope.Thread)
+    public static class ThreadCommand {
+        /** コマンド */
+        final CommandExecutionable command = new StubCommand();
+    }
+
+// =============================================================================
+
+    @Benchmark
+    @Threads(8)
+    public int registry008(final ThreadCommand tc) {
+        return registerUnregister(tc.command);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public int registry032(final ThreadCommand tc) {
+        return registerUnregister(tc.command);
+    }
+
+    @Benchmark
+    @Threads(128)
+    public int registry128(final ThreadCommand tc) {
+        return registerUnregister(tc.command);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean synchronizedSet008(final ThreadCommand tc) {
+        return addRemove(tc.command);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public boolean synchronizedSet032(final ThreadCommand tc) {
+        return addRemove(tc.command);
+    }
+
+    @Benchmark
+    @Threads(128)
+    public boolean synchronizedSet128(final ThreadCommand tc) {
+        return addRemove(tc.command);
+    }
+
+// =============================================================================
+
+    @Benchmark
+    public void scanRegistry(final Blackhole blackhole) {
+        scanRegistry.each(new EachFunction<CommandExecutionable>() {
+            public CommandExecutionable apply(final CommandExecutionable value) {
+                blackhole.consume(value.getStartTime());
+                return value;
+            }
+        });
+    }
+
+    @Benchmark
+    public void scanSnapShot(final Blackhole blackhole) {
+        final Set<CommandExecutionable> s = new HashSet<CommandExecutionable>();
+        s.addAll(scanExecutes);
+        for (final CommandExecutionable value : Collections.unmodifiableSet(s)) {
+            blackhole.consume(value.getStartTime());
+        }
+    }
+
+// =============================================================================
+
+    /**
+     * AbstractListenerCommand#runと同じ使い方.
+     * @param command コマンド
+     * @return スロット番号
+     */
+    private int registerUnregister(final CommandExecutionable command) {
+        final int slot = registry.register(command);
+        registry.unregister(command, slot);
+        return slot;
+    }
+
+    /**
+     * 従来のAbstractListenerCommand#runと同じ使い方.
+     * @param command コマンド
+     * @return 削除結果
+     */
+    private boolean addRemove(final CommandExecutionable command) {
+        executes.add(command);
+        return executes.remove(command);
+    }
+
+    /**
+     * 何もしないコマンド.
+     */
+    static class StubCommand implements CommandExecutionable {
+        public Socket getSocket() {
+            return null;
+        }
+        public long getStartTime() {
+            return 1L;
+        }
+        public void interrupt() {
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import jp.gr.java_conf.fragile.service.net.pool.ServerSocketExecutorFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 接続の受付からコマンド実行までの計測.
+ * <pre>
+ * ループバックで接続し1バイト送信して応答の1バイトを受信するまで
+ * ブロッキングモードとリアクターモードを比較する
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListenerAcceptBenchmark {
+
+    /** リアクターモード */
+    @Param({"false", "true"})
+    private boolean reactor;
+
+    /** リスナー */
+    private AbstractServerSocketListener listener;
+
+    /** リスナーのスレッド */
+    private Thread thread;
+
+    /** 待ち受けポート */
+    private int port;
+
+    /**
+     * 起動.
+     */
+    @Setup
+    public void setup() {
+
+        final ServerSocketExecutorFactory factory = new ServerSocketExecutorFactory();
+        factory.setExecutorCorePoolSize(8);
+        factory.setExecutorMaximumPoolSize(8);
+        factory.setExecutorPoolCapacity(1000);
+
+        listener = new EchoServerSocketListener();
+        listener.setBindAddress("127.0.0.1");
+        listener.setServerPort(0);
+        listener.setServerBackLog(1000);
+        listener.setServerTimeout(1000);
+        listener.setBlocking(false);
+        listener.setReactor(reactor);
+        listener.setStatisticsMBean(false);
+        listener.setExecutorFactory(factory);
+        listener.initialize();
+
+        thread = new Thread(listener, "ServerSocketListener");
+        thread.start();
+        port = listener.getLocalPort();
+    }
+
+    /**
+     * 停止.
+     */
+    @TearDown
+    public void tearDown() {
+        listener.stop(thread);
+    }
+
+// =============================================================================
+
+    @Benchmark
+    @Threads(1)
+    public int connect1() throws IOException {
+        return roundTrip();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int connect4() throws IOException {
+        return roundTrip();
+    }
+
+    /**
+     * 1接続で1往復する.
+     * @return 応答
+     * @throws IOException 通信異常
+     */
+    private int roundTrip() throws IOException {
+
+        final Socket socket = new Socket("127.0.0.1", port);
+        try {
+            socket.getOutputStream().write('?');
+            final InputStream in = socket.getInputStream();
+            return in.read();
+        } finally {
+            socket.close();
+        }
+    }
+
+// =============================================================================
+
+    /**
+     * 1バイト返すリスナー.
+     */
+    static class EchoServerSocketListener extends AbstractServerSocketListener {
+        @Override
+        protected AbstractListenerCommand createListenerCommand(final Socket socket) {
+            return new EchoListenerCommand();
+        }
+    }
+
+    /**
+     * 1バイト返して切断する.
+     */
+    static class EchoListenerCommand extends AbstractListenerCommand {
+        @Override
+        public void execute() {
+            try {
+                if (getRequest() == null) {
+                    // ブロッキングモードは自分で受信して閉じる
+                    getSocket().getInputStream().read();
+                    send(ByteBuffer.wrap(new byte[] {'!'}));
+                    getSocket().close();
+                    return;
+                }
+                send(ByteBuffer.wrap(new byte[] {'!'}));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        @Override
+        public void abort() {
+            try {
+                getSocket().close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
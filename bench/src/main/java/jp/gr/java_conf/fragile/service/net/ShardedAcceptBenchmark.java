@@ -0,0 +1,105 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import jp.gr.java_conf.fragile.service.net.pool.ServerSocketExecutorFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 受付スレッド数による接続受付数の計測.
+ * <pre>
+ * 8スレッドから短命な接続を繰り返し、受付スレッド数1/2/4の秒間接続数を比較する
+ * SO_REUSEPORTが使用できない環境では受付スレッドは1つのServerSocketChannelを共有する
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShardedAcceptBenchmark {
+
+    /** 受付スレッド数 */
+    @Param({"1", "2", "4"})
+    private int acceptors;
+
+    /** リスナー */
+    private AbstractServerSocketListener listener;
+
+    /** リスナーのスレッド */
+    private Thread thread;
+
+    /** 待ち受けポート */
+    private int port;
+
+    /**
+     * 起動.
+     */
+    @Setup
+    public void setup() {
+
+        final ServerSocketExecutorFactory factory = new ServerSocketExecutorFactory();
+        factory.setExecutorCorePoolSize(16);
+        factory.setExecutorMaximumPoolSize(16);
+        factory.setExecutorPoolCapacity(1000);
+
+        listener = new ListenerAcceptBenchmark.EchoServerSocketListener();
+        listener.setBindAddress("127.0.0.1");
+        listener.setServerPort(0);
+        listener.setServerBackLog(1000);
+        listener.setServerTimeout(1000);
+        listener.setBlocking(false);
+        listener.setAcceptorCount(acceptors);
+        listener.setStatisticsMBean(false);
+        listener.setExecutorFactory(factory);
+        listener.initialize();
+
+        thread = new Thread(listener, "ServerSocketListener");
+        thread.start();
+        port = listener.getLocalPort();
+    }
+
+    /**
+     * 停止.
+     */
+    @TearDown
+    public void tearDown() {
+        listener.stop(thread);
+    }
+
+// =============================================================================
+
+    @Benchmark
+    @Threads(8)
+    public int accept() throws IOException {
+
+        final Socket socket = new Socket("127.0.0.1", port);
+        try {
+            socket.getOutputStream().write('?');
+            final InputStream in = socket.getInputStream();
+            return in.read();
+        } finally {
+            socket.close();
+        }
+    }
+}
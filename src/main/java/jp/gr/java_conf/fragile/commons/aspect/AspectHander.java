@@ -3,11 +3,15 @@
  */
 package jp.gr.java_conf.fragile.commons.aspect;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import jp.gr.java_conf.fragile.commons.collect.Collect;
 import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
@@ -15,14 +19,34 @@ import jp.gr.java_conf.fragile.commons.reflect.DynamicBeanFactory;
 
 /**
  * Hander
+ * <pre>
+ * インターフェースのメソッドに対応する実装メソッドは
+ * 実装クラス単位に一度だけ解決してMethodHandleでキャッシュする
+ * インターセプターはメソッド毎に配列にして初回呼び出し時に束縛する
+ * </pre>
  */
 public class AspectHander implements InvocationHandler {
 
+    /** 引数なし */
+    private static final Object[] EMPTY_ARGS = new Object[0];
+
+    /** 実装メソッドのキャッシュ [実装クラス単位 インターフェースのメソッド → (Object, Object[])Object] */
+    private static final ClassValue<ConcurrentMap<Method, MethodHandle>> IMPL_METHODS
+        = new ClassValue<ConcurrentMap<Method, MethodHandle>>() {
+            @Override
+            protected ConcurrentMap<Method, MethodHandle> computeValue(final Class<?> type) {
+                return new ConcurrentHashMap<Method, MethodHandle>();
+            }
+        };
+
     /** 本体 */
-    private Object instance = null;
+    private final Object instance;
 
     /** 本体クラス */
-    private Class<?> clazz = null;
+    private final Class<?> clazz;
+
+    /** 束縛済みのメソッド */
+    private final ConcurrentMap<Method, BoundMethod> boundMethods = new ConcurrentHashMap<Method, BoundMethod>();
 
     /**
      * コンストラクタ.
@@ -38,6 +62,9 @@ public class AspectHander implements InvocationHandler {
 
     /**
      * インスペクターを追加する.
+     * <pre>
+     * 束縛済みのメソッドは破棄して次の呼び出しで束縛し直す
+     * </pre>
      * @param methodName
      * @param interceptor
      * @return 自インスタンス
@@ -50,10 +77,24 @@ public class AspectHander implements InvocationHandler {
             interceptors.put(methodName, list);
         }
         list.add(interceptor);
+        boundMethods.clear();
 
         return this;
     }
 
+    /**
+     * 生成したクラスのプロキシを戻す.
+     * <pre>
+     * java.lang.reflect.Proxyの代わりに使用する
+     * 生成後に追加したインスペクターは反映されない
+     * </pre>
+     * @return プロキシ 生成できない場合はnull
+     * @see AspectProxyGenerator
+     */
+    public Object newGeneratedProxy() {
+        return AspectProxyGenerator.newInstance(instance, interceptors);
+    }
+
     /**
      * メソッドを実行する.
      * @param proxy プロキシー
@@ -64,34 +105,75 @@ public class AspectHander implements InvocationHandler {
     @Override
     public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
 
-        final String methodName = method.getName();
-        Object[] param = args;
-        Method implMethod;
-        try {
-            implMethod = clazz.getDeclaredMethod(methodName, method.getParameterTypes());
-            DynamicBeanFactory.setAccessible(implMethod);
-        } catch (final NoSuchMethodException e) {
-            throw new FGRuntimeException(e);
+        BoundMethod boundMethod = boundMethods.get(method);
+        if (boundMethod == null) {
+            boundMethod = bind(method);
+            boundMethods.putIfAbsent(method, boundMethod);
         }
 
-        final List<Interceptor> interceptorList = interceptors.get(methodName);
-
         // 前処理
-        param = before(interceptorList, param);
+        Object[] param = before(boundMethod.interceptors, args);
+        if (param == null) {
+            param = EMPTY_ARGS;
+        }
+
+        // 例外はInvocationTargetExceptionで包まれずにそのまま投げられる
+        Object returnValue = (Object) boundMethod.handle.invokeExact(instance, param);
+
+        // 後処理
+        returnValue = after(boundMethod.interceptors, returnValue);
+
+        return returnValue;
+    }
+
+    /**
+     * 実装メソッドとインターセプターを束縛する.
+     * @param method インターフェースのメソッド
+     * @return 束縛したメソッド
+     */
+    private BoundMethod bind(final Method method) {
+
+        final List<Interceptor> interceptorList = interceptors.get(method.getName());
+        final Interceptor[] bound = interceptorList == null
+            ? new Interceptor[0] : interceptorList.toArray(new Interceptor[interceptorList.size()]);
+
+        return new BoundMethod(resolve(clazz, method), bound);
+    }
 
-        Object returnValue;
+    /**
+     * 実装メソッドを解決する.
+     * <pre>
+     * 実装クラス単位にキャッシュする
+     * 引数は配列で受け取り、プリミティブの戻り値はボクシングして戻す
+     * </pre>
+     * @param implClass 実装クラス
+     * @param method インターフェースのメソッド
+     * @return (Object, Object[])Object のMethodHandle
+     */
+    private static MethodHandle resolve(final Class<?> implClass, final Method method) {
+
+        final ConcurrentMap<Method, MethodHandle> cache = IMPL_METHODS.get(implClass);
+        MethodHandle handle = cache.get(method);
+        if (handle != null) {
+            return handle;
+        }
+
+        final Class<?>[] parameterTypes = method.getParameterTypes();
         try {
-            returnValue = implMethod.invoke(instance, param);
-        } catch (InvocationTargetException e) {
-            throw e.getTargetException();
-        } catch (Exception e) {
+            final Method implMethod = implClass.getDeclaredMethod(method.getName(), parameterTypes);
+            DynamicBeanFactory.setAccessible(implMethod);
+            handle = MethodHandles.lookup().unreflect(implMethod)
+                .asType(MethodType.genericMethodType(parameterTypes.length + 1))
+                .asSpreader(Object[].class, parameterTypes.length);
+        } catch (final NoSuchMethodException e) {
+            throw new FGRuntimeException(e);
+        } catch (final IllegalAccessException e) {
             throw new FGRuntimeException(e);
         }
 
-        // 後処理
-        returnValue = after(interceptorList, returnValue);
+        final MethodHandle current = cache.putIfAbsent(method, handle);
 
-        return returnValue;
+        return current != null ? current : handle;
     }
 
     /**
@@ -100,10 +182,7 @@ public class AspectHander implements InvocationHandler {
      * @param args 引数
      * @return 引数値
      */
-    private Object[] before(final List<Interceptor> interceptorList, final Object[] args) {
-
-        if (interceptorList == null || interceptorList.isEmpty())
-            return args;
+    private Object[] before(final Interceptor[] interceptorList, final Object[] args) {
 
         Object[] returnArg = args;
         for (final Interceptor interceptor : interceptorList)
@@ -118,10 +197,7 @@ public class AspectHander implements InvocationHandler {
      * @param returnValue メソッド戻り値
      * @return メソッド戻り値
      */
-    private Object after(final List<Interceptor> interceptorList, final Object returnValue) {
-
-        if (interceptorList == null || interceptorList.isEmpty())
-            return returnValue;
+    private Object after(final Interceptor[] interceptorList, final Object returnValue) {
 
         Object returnArg = returnValue;
         for (final Interceptor interceptor : interceptorList)
@@ -129,4 +205,26 @@ public class AspectHander implements InvocationHandler {
 
         return returnArg;
     }
+
+    /**
+     * 実装メソッドとインターセプターの組.
+     */
+    private static final class BoundMethod {
+
+        /** 実装メソッド */
+        private final MethodHandle handle;
+
+        /** インターセプター */
+        private final Interceptor[] interceptors;
+
+        /**
+         * コンストラクタ.
+         * @param handle 実装メソッド
+         * @param interceptors インターセプター
+         */
+        BoundMethod(final MethodHandle handle, final Interceptor[] interceptors) {
+            this.handle = handle;
+            this.interceptors = interceptors;
+        }
+    }
 }
@@ -0,0 +1,727 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.aspect;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.gr.java_conf.fragile.commons.collect.Collect;
+import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * アスペクトのプロキシクラス生成.
+ * <pre>
+ * java.lang.reflect.Proxyの代わりに実装クラスのインターフェースを実装したクラスを生成する
+ * 生成したクラスは本体のメソッドをインターフェース経由で直接呼び出すので
+ * リフレクションによる呼び出しと引数の配列化を行わない
+ * インターセプターのあるメソッドのみインターセプターの仕様に合わせて引数を配列にする
+ *
+ * 生成したクラスはインターフェースと同じパッケージに定義する(Java9以降)
+ * 定義できない場合で参照する型が全てpublicの場合は子クラスローダーに定義する
+ * どちらもできない場合はnullを戻すので呼び出し側でProxyを使用する
+ *
+ * 生成したクラスは実装クラスとインターセプターのあるメソッドの組み合わせ毎にキャッシュする
+ * インターセプターは生成時のものを保持するので、後から追加したものは反映されない
+ * </pre>
+ */
+public final class AspectProxyGenerator {
+
+    /** ロガー */
+    private static Logger log = LoggerFactory.getLogger(AspectProxyGenerator.class);
+
+    /** 生成するクラス名の接尾辞 */
+    private static final String PROXY_SUFFIX = "$$AspectProxy$";
+
+    /** 本体のフィールド名 */
+    private static final String TARGET_FIELD = "target";
+
+    /** インターセプターのフィールド名の接頭辞 */
+    private static final String INTERCEPTOR_FIELD = "interceptors";
+
+    /** コンストラクタの型 */
+    private static final MethodType CONSTRUCTOR_TYPE
+        = MethodType.methodType(Object.class, Object.class, Interceptor[][].class);
+
+    /** 生成できない場合の印 */
+    private static final Object UNSUPPORTED = new Object();
+
+    /** クラス名の連番 */
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    /** 生成したクラスのコンストラクタ [実装クラス単位 インターセプターのあるメソッド → MethodHandleかUNSUPPORTED] */
+    private static final ClassValue<ConcurrentMap<String, Object>> CONSTRUCTORS
+        = new ClassValue<ConcurrentMap<String, Object>>() {
+            @Override
+            protected ConcurrentMap<String, Object> computeValue(final Class<?> type) {
+                return new ConcurrentHashMap<String, Object>();
+            }
+        };
+
+    /** 子クラスローダー [親クラスローダー単位] */
+    private static final Map<ClassLoader, ProxyClassLoader> LOADERS = new WeakHashMap<ClassLoader, ProxyClassLoader>();
+
+    /** メソッドの並び順 */
+    private static final Comparator<Method> METHOD_ORDER = new Comparator<Method>() {
+        @Override
+        public int compare(final Method m1, final Method m2) {
+            return signature(m1).compareTo(signature(m2));
+        }
+    };
+
+    /**
+     * コンストラクタ.
+     */
+    private AspectProxyGenerator() {
+    }
+
+// =============================================================================
+
+    /**
+     * プロキシを生成する.
+     * @param instance 本体
+     * @param interceptors メソッド名毎のインターセプター
+     * @return プロキシ 生成できない場合はnull
+     */
+    public static Object newInstance(final Object instance, final Map<String, List<Interceptor>> interceptors) {
+
+        final Class<?> implClass = instance.getClass();
+        final Class<?>[] interfaces = implClass.getInterfaces();
+        if (interfaces.length == 0) {
+            return null;
+        }
+
+        final Method[] methods = proxyMethods(interfaces);
+        final boolean[] intercepted = new boolean[methods.length];
+        final List<Interceptor[]> table = Collect.newArrayList();
+        final StringBuilder key = new StringBuilder();
+        for (int i = 0; i < methods.length; i++) {
+            final List<Interceptor> list = interceptors.get(methods[i].getName());
+            if (list == null || list.isEmpty()) {
+                continue;
+            }
+            intercepted[i] = true;
+            table.add(list.toArray(new Interceptor[list.size()]));
+            key.append(i).append(',');
+        }
+
+        final Object constructor = constructor(implClass, interfaces, methods, intercepted, key.toString());
+        if (constructor == UNSUPPORTED) {
+            return null;
+        }
+
+        try {
+            return (Object) ((MethodHandle) constructor).invokeExact(instance,
+                table.toArray(new Interceptor[table.size()][]));
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Error e) {
+            throw e;
+        } catch (final Throwable e) {
+            throw new FGRuntimeException(e);
+        }
+    }
+
+    /**
+     * 前処理 [生成したクラスから呼ばれる].
+     * @param interceptors インターセプター
+     * @param args 引数
+     * @return 引数値
+     */
+    public static Object[] before(final Interceptor[] interceptors, final Object[] args) {
+
+        Object[] returnArg = args;
+        for (final Interceptor interceptor : interceptors)
+            returnArg = interceptor.before(interceptor, returnArg);
+
+        return returnArg;
+    }
+
+    /**
+     * 後処理 [生成したクラスから呼ばれる].
+     * @param interceptors インターセプター
+     * @param returnValue メソッド戻り値
+     * @return メソッド戻り値
+     */
+    public static Object after(final Interceptor[] interceptors, final Object returnValue) {
+
+        Object returnArg = returnValue;
+        for (final Interceptor interceptor : interceptors)
+            returnArg = interceptor.after(interceptor, returnArg);
+
+        return returnArg;
+    }
+
+// =============================================================================
+
+    /**
+     * 生成したクラスのコンストラクタを戻す.
+     * @param implClass 実装クラス
+     * @param interfaces インターフェース
+     * @param methods 実装するメソッド
+     * @param intercepted インターセプターのあるメソッド
+     * @param key キャッシュのキー
+     * @return (Object, Interceptor[][])Object のMethodHandle 生成できない場合はUNSUPPORTED
+     */
+    private static Object constructor(final Class<?> implClass, final Class<?>[] interfaces,
+            final Method[] methods, final boolean[] intercepted, final String key) {
+
+        final ConcurrentMap<String, Object> cache = CONSTRUCTORS.get(implClass);
+        Object constructor = cache.get(key);
+        if (constructor != null) {
+            return constructor;
+        }
+
+        final Class<?> proxyClass = define(interfaces, methods, intercepted);
+        if (proxyClass == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("AspectProxyGenerator unsupported: " + implClass.getName());
+            }
+            constructor = UNSUPPORTED;
+        } else {
+            try {
+                constructor = MethodHandles.publicLookup()
+                    .findConstructor(proxyClass, MethodType.methodType(void.class, Object.class, Interceptor[][].class))
+                    .asType(CONSTRUCTOR_TYPE);
+            } catch (final NoSuchMethodException e) {
+                throw new FGRuntimeException(e);
+            } catch (final IllegalAccessException e) {
+                throw new FGRuntimeException(e);
+            }
+        }
+
+        final Object current = cache.putIfAbsent(key, constructor);
+
+        return current != null ? current : constructor;
+    }
+
+    /**
+     * クラスを生成して定義する.
+     * @param interfaces インターフェース
+     * @param methods 実装するメソッド
+     * @param intercepted インターセプターのあるメソッド
+     * @return 生成したクラス 定義できない場合はnull
+     */
+    private static Class<?> define(final Class<?>[] interfaces, final Method[] methods, final boolean[] intercepted) {
+
+        // publicでないインターフェースがある場合はそのパッケージに定義する
+        Class<?> host = interfaces[0];
+        for (final Class<?> type : interfaces) {
+            if (!Modifier.isPublic(type.getModifiers())) {
+                if (Modifier.isPublic(host.getModifiers()) || samePackage(host, type)) {
+                    host = type;
+                } else {
+                    return null;
+                }
+            }
+        }
+
+        final List<Class<?>> types = referencedTypes(interfaces, methods);
+        final int sequence = SEQUENCE.incrementAndGet();
+
+        // インターフェースと同じパッケージに定義する
+        if (isAccessible(types, host.getClassLoader(), packageName(host))) {
+            final String name = host.getName() + PROXY_SUFFIX + sequence;
+            final Class<?> proxyClass = defineInPackage(host, generate(name, interfaces, methods, intercepted));
+            if (proxyClass != null) {
+                return proxyClass;
+            }
+        }
+
+        // 子クラスローダーに定義する
+        final ClassLoader parent = host.getClassLoader() != null
+            ? host.getClassLoader() : AspectProxyGenerator.class.getClassLoader();
+        if (isAccessible(types, parent, null)) {
+            final String name = packageName(AspectProxyGenerator.class) + "." + host.getSimpleName() + PROXY_SUFFIX + sequence;
+            return loader(parent).define(name, generate(name, interfaces, methods, intercepted));
+        }
+
+        return null;
+    }
+
+    /**
+     * インターフェースと同じパッケージに定義する.
+     * <pre>
+     * MethodHandles#privateLookupIn、Lookup#defineClassはJava9以降なのでリフレクションで呼び出す
+     * </pre>
+     * @param host インターフェース
+     * @param bytes クラスファイル
+     * @return 定義したクラス 定義できない場合はnull
+     */
+    private static Class<?> defineInPackage(final Class<?> host, final byte[] bytes) {
+
+        try {
+            final Method privateLookupIn = MethodHandles.class.getMethod(
+                "privateLookupIn", Class.class, MethodHandles.Lookup.class);
+            final Object lookup = privateLookupIn.invoke(null, host, MethodHandles.lookup());
+            final Method defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+            return (Class<?>) defineClass.invoke(lookup, bytes);
+        } catch (final NoSuchMethodException e) {
+            return null;
+        } catch (final IllegalAccessException e) {
+            return null;
+        } catch (final InvocationTargetException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("AspectProxyGenerator defineClass error: " + host.getName(), e.getCause());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 子クラスローダーを戻す.
+     * @param parent 親クラスローダー
+     * @return 子クラスローダー
+     */
+    private static ProxyClassLoader loader(final ClassLoader parent) {
+
+        synchronized (LOADERS) {
+            ProxyClassLoader loader = LOADERS.get(parent);
+            if (loader == null) {
+                loader = new ProxyClassLoader(parent);
+                LOADERS.put(parent, loader);
+            }
+            return loader;
+        }
+    }
+
+// =============================================================================
+// クラスファイルの生成
+// =============================================================================
+
+    /**
+     * クラスファイルを生成する.
+     * <pre>
+     * public final class XXX$$AspectProxy$N implements インターフェース {
+     *     private final Object target;
+     *     private final Interceptor[] interceptorsK; // インターセプターのあるメソッド毎
+     *     public XXX$$AspectProxy$N(Object target, Interceptor[][] interceptors);
+     * }
+     * </pre>
+     * @param name クラス名
+     * @param interfaces インターフェース
+     * @param methods 実装するメソッド
+     * @param intercepted インターセプターのあるメソッド
+     * @return クラスファイル
+     */
+    static byte[] generate(final String name, final Class<?>[] interfaces,
+            final Method[] methods, final boolean[] intercepted) {
+
+        final String thisName = name.replace('.', '/');
+        final String[] interfaceNames = new String[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceNames[i] = ClassFileWriter.internalName(interfaces[i]);
+        }
+
+        final ClassFileWriter writer = new ClassFileWriter(
+            Modifier.PUBLIC | Modifier.FINAL | ClassFileWriter.ACC_SUPER, thisName, "java/lang/Object", interfaceNames);
+
+        writer.field(Modifier.PRIVATE | Modifier.FINAL, TARGET_FIELD, "Ljava/lang/Object;");
+        for (int i = 0; i < methods.length; i++) {
+            if (intercepted[i]) {
+                writer.field(Modifier.PRIVATE | Modifier.FINAL, INTERCEPTOR_FIELD + i,
+                    ClassFileWriter.descriptor(Interceptor[].class));
+            }
+        }
+
+        generateConstructor(writer, thisName, methods, intercepted);
+        for (int i = 0; i < methods.length; i++) {
+            if (intercepted[i]) {
+                generateInterceptedMethod(writer, thisName, methods[i], INTERCEPTOR_FIELD + i);
+            } else {
+                generateMethod(writer, thisName, methods[i]);
+            }
+        }
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * コンストラクタを生成する.
+     * @param writer 出力先
+     * @param thisName 内部名
+     * @param methods 実装するメソッド
+     * @param intercepted インターセプターのあるメソッド
+     */
+    private static void generateConstructor(final ClassFileWriter writer, final String thisName,
+            final Method[] methods, final boolean[] intercepted) {
+
+        final ClassFileWriter.Code code = writer.method(Modifier.PUBLIC, "<init>",
+            ClassFileWriter.descriptor(void.class, Object.class, Interceptor[][].class), 3);
+
+        code.load(Object.class, 0)
+            .invoke(ClassFileWriter.INVOKESPECIAL, "java/lang/Object", "<init>", void.class);
+        code.load(Object.class, 0)
+            .load(Object.class, 1)
+            .putfield(thisName, TARGET_FIELD, "Ljava/lang/Object;");
+
+        int index = 0;
+        for (int i = 0; i < methods.length; i++) {
+            if (!intercepted[i]) {
+                continue;
+            }
+            code.load(Object.class, 0)
+                .load(Object.class, 2)
+                .push(index++)
+                .op(ClassFileWriter.AALOAD, -1)
+                .putfield(thisName, INTERCEPTOR_FIELD + i, ClassFileWriter.descriptor(Interceptor[].class));
+        }
+        code.returnValue(void.class);
+        code.end();
+    }
+
+    /**
+     * 本体を直接呼び出すメソッドを生成する.
+     * @param writer 出力先
+     * @param thisName 内部名
+     * @param method メソッド
+     */
+    private static void generateMethod(final ClassFileWriter writer, final String thisName, final Method method) {
+
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        final ClassFileWriter.Code code = writer.method(Modifier.PUBLIC, method.getName(),
+            ClassFileWriter.descriptor(method.getReturnType(), parameterTypes), 1 + parameterSize(parameterTypes));
+
+        loadTarget(writer, code, thisName, method);
+        int local = 1;
+        for (final Class<?> type : parameterTypes) {
+            code.load(type, local);
+            local += ClassFileWriter.size(type);
+        }
+        invokeTarget(code, method);
+        code.returnValue(method.getReturnType());
+        code.end();
+    }
+
+    /**
+     * インターセプターを呼び出すメソッドを生成する.
+     * <pre>
+     * Object[] args = AspectProxyGenerator.before(interceptorsK, new Object[] {引数...});
+     * Object r = ((インターフェース) target).method((型) args[0], ...);
+     * return (型) AspectProxyGenerator.after(interceptorsK, r);
+     * 引数なしの場合はProxyと同じくnullを渡す
+     * </pre>
+     * @param writer 出力先
+     * @param thisName 内部名
+     * @param method メソッド
+     * @param field インターセプターのフィールド名
+     */
+    private static void generateInterceptedMethod(final ClassFileWriter writer, final String thisName,
+            final Method method, final String field) {
+
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        final Class<?> returnType = method.getReturnType();
+        final String generator = ClassFileWriter.internalName(AspectProxyGenerator.class);
+        final ClassFileWriter.Code code = writer.method(Modifier.PUBLIC, method.getName(),
+            ClassFileWriter.descriptor(returnType, parameterTypes), 1 + parameterSize(parameterTypes));
+
+        // 前処理
+        code.load(Object.class, 0).getfield(thisName, field, Interceptor[].class);
+        if (parameterTypes.length == 0) {
+            code.op(ClassFileWriter.ACONST_NULL, 1);
+        } else {
+            code.push(parameterTypes.length)
+                .op(ClassFileWriter.ANEWARRAY, writer.classRef("java/lang/Object"), 0);
+            int local = 1;
+            for (int i = 0; i < parameterTypes.length; i++) {
+                code.op(ClassFileWriter.DUP, 1).push(i).load(parameterTypes[i], local);
+                box(code, parameterTypes[i]);
+                code.op(ClassFileWriter.AASTORE, -3);
+                local += ClassFileWriter.size(parameterTypes[i]);
+            }
+        }
+        code.invoke(ClassFileWriter.INVOKESTATIC, generator, "before", Object[].class, Interceptor[].class, Object[].class);
+        final int args = code.newLocal(1);
+        code.astore(args);
+
+        // 本体
+        loadTarget(writer, code, thisName, method);
+        for (int i = 0; i < parameterTypes.length; i++) {
+            code.load(Object.class, args).push(i).op(ClassFileWriter.AALOAD, -1);
+            unbox(writer, code, parameterTypes[i]);
+        }
+        invokeTarget(code, method);
+        if (returnType == void.class) {
+            code.op(ClassFileWriter.ACONST_NULL, 1);
+        } else {
+            box(code, returnType);
+        }
+        final int result = code.newLocal(1);
+        code.astore(result);
+
+        // 後処理
+        code.load(Object.class, 0).getfield(thisName, field, Interceptor[].class).load(Object.class, result);
+        code.invoke(ClassFileWriter.INVOKESTATIC, generator, "after", Object.class, Interceptor[].class, Object.class);
+        if (returnType == void.class) {
+            code.op(ClassFileWriter.POP, -1);
+        } else {
+            unbox(writer, code, returnType);
+        }
+        code.returnValue(returnType);
+        code.end();
+    }
+
+    /**
+     * 本体をインターフェースにキャストしてスタックに積む.
+     * @param writer 出力先
+     * @param code 命令
+     * @param thisName 内部名
+     * @param method メソッド
+     */
+    private static void loadTarget(final ClassFileWriter writer, final ClassFileWriter.Code code,
+            final String thisName, final Method method) {
+        code.load(Object.class, 0)
+            .getfield(thisName, TARGET_FIELD, Object.class)
+            .op(ClassFileWriter.CHECKCAST, writer.classRef(ClassFileWriter.internalName(method.getDeclaringClass())), 0);
+    }
+
+    /**
+     * 本体のメソッドを呼び出す.
+     * @param code 命令
+     * @param method メソッド
+     */
+    private static void invokeTarget(final ClassFileWriter.Code code, final Method method) {
+        code.invoke(ClassFileWriter.INVOKEINTERFACE, ClassFileWriter.internalName(method.getDeclaringClass()),
+            method.getName(), method.getReturnType(), method.getParameterTypes());
+    }
+
+    /**
+     * プリミティブをボクシングする.
+     * @param code 命令
+     * @param type 型
+     */
+    private static void box(final ClassFileWriter.Code code, final Class<?> type) {
+
+        if (!type.isPrimitive()) {
+            return;
+        }
+        final Class<?> wrapper = wrapper(type);
+        code.invoke(ClassFileWriter.INVOKESTATIC, ClassFileWriter.internalName(wrapper), "valueOf", wrapper, type);
+    }
+
+    /**
+     * 型をキャストする プリミティブの場合はアンボクシングする.
+     * @param writer 出力先
+     * @param code 命令
+     * @param type 型
+     */
+    private static void unbox(final ClassFileWriter writer, final ClassFileWriter.Code code, final Class<?> type) {
+
+        if (type == Object.class) {
+            return;
+        }
+        if (!type.isPrimitive()) {
+            code.op(ClassFileWriter.CHECKCAST, writer.classRef(ClassFileWriter.internalName(type)), 0);
+            return;
+        }
+        final String wrapper = ClassFileWriter.internalName(wrapper(type));
+        code.op(ClassFileWriter.CHECKCAST, writer.classRef(wrapper), 0)
+            .invoke(ClassFileWriter.INVOKEVIRTUAL, wrapper, type.getName() + "Value", type);
+    }
+
+// =============================================================================
+
+    /**
+     * 実装するメソッドを戻す.
+     * <pre>
+     * 名前と記述子で重複を除き、キャッシュのキーが一定になるように並べる
+     * </pre>
+     * @param interfaces インターフェース
+     * @return メソッド
+     */
+    private static Method[] proxyMethods(final Class<?>[] interfaces) {
+
+        final Map<String, Method> methods = Collect.newHashMap();
+        for (final Class<?> type : interfaces) {
+            for (final Method method : type.getMethods()) {
+                if (Modifier.isStatic(method.getModifiers())) {
+                    continue;
+                }
+                final String signature = signature(method);
+                if (!methods.containsKey(signature)) {
+                    methods.put(signature, method);
+                }
+            }
+        }
+
+        final Method[] returnValue = methods.values().toArray(new Method[methods.size()]);
+        Arrays.sort(returnValue, METHOD_ORDER);
+
+        return returnValue;
+    }
+
+    /**
+     * 生成したクラスが参照する型を戻す.
+     * @param interfaces インターフェース
+     * @param methods 実装するメソッド
+     * @return 型
+     */
+    private static List<Class<?>> referencedTypes(final Class<?>[] interfaces, final Method[] methods) {
+
+        final List<Class<?>> types = Collect.newArrayList();
+        types.add(Interceptor.class);
+        types.add(AspectProxyGenerator.class);
+        types.addAll(Arrays.asList(interfaces));
+        for (final Method method : methods) {
+            types.add(method.getDeclaringClass());
+            types.add(method.getReturnType());
+            types.addAll(Arrays.asList(method.getParameterTypes()));
+        }
+
+        return types;
+    }
+
+    /**
+     * 生成したクラスから型を参照できるか.
+     * @param types 型
+     * @param loader 定義するクラスローダー
+     * @param packageName 定義するパッケージ 子クラスローダーの場合はnull
+     * @return 全て参照できる場合はtrue
+     */
+    private static boolean isAccessible(final List<Class<?>> types, final ClassLoader loader, final String packageName) {
+
+        for (final Class<?> value : types) {
+            Class<?> type = value;
+            while (type.isArray()) {
+                type = type.getComponentType();
+            }
+            if (type.isPrimitive()) {
+                continue;
+            }
+            if (type.getClassLoader() == loader && packageName != null && packageName.equals(packageName(type))) {
+                continue;
+            }
+            if (!Modifier.isPublic(type.getModifiers()) || !isVisible(type, loader)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * クラスローダーから型が見えるか.
+     * @param type 型
+     * @param loader クラスローダー
+     * @return 見える場合はtrue
+     */
+    private static boolean isVisible(final Class<?> type, final ClassLoader loader) {
+
+        try {
+            return Class.forName(type.getName(), false, loader) == type;
+        } catch (final ClassNotFoundException e) {
+            return false;
+        } catch (final LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * 同じパッケージか.
+     * @param type1 型
+     * @param type2 型
+     * @return 同じパッケージの場合はtrue
+     */
+    private static boolean samePackage(final Class<?> type1, final Class<?> type2) {
+        return type1.getClassLoader() == type2.getClassLoader() && packageName(type1).equals(packageName(type2));
+    }
+
+    /**
+     * パッケージ名を戻す.
+     * @param type 型
+     * @return パッケージ名
+     */
+    private static String packageName(final Class<?> type) {
+        final String name = type.getName();
+        final int index = name.lastIndexOf('.');
+        return index < 0 ? "" : name.substring(0, index);
+    }
+
+    /**
+     * メソッドの名前と記述子.
+     * @param method メソッド
+     * @return 名前と記述子
+     */
+    private static String signature(final Method method) {
+        return method.getName() + ClassFileWriter.descriptor(method.getReturnType(), method.getParameterTypes());
+    }
+
+    /**
+     * 引数の大きさ.
+     * @param parameterTypes 引数の型
+     * @return 大きさ
+     */
+    private static int parameterSize(final Class<?>[] parameterTypes) {
+        int size = 0;
+        for (final Class<?> type : parameterTypes) {
+            size += ClassFileWriter.size(type);
+        }
+        return size;
+    }
+
+    /**
+     * ラッパークラスを戻す.
+     * @param type プリミティブの型
+     * @return ラッパークラス
+     */
+    private static Class<?> wrapper(final Class<?> type) {
+
+        if (type == int.class) {
+            return Integer.class;
+        } else if (type == long.class) {
+            return Long.class;
+        } else if (type == boolean.class) {
+            return Boolean.class;
+        } else if (type == byte.class) {
+            return Byte.class;
+        } else if (type == char.class) {
+            return Character.class;
+        } else if (type == short.class) {
+            return Short.class;
+        } else if (type == float.class) {
+            return Float.class;
+        }
+        return Double.class;
+    }
+
+// =============================================================================
+
+    /**
+     * 生成したクラスを定義する子クラスローダー.
+     */
+    private static final class ProxyClassLoader extends ClassLoader {
+
+        /**
+         * コンストラクタ.
+         * @param parent 親クラスローダー
+         */
+        ProxyClassLoader(final ClassLoader parent) {
+            super(parent);
+        }
+
+        /**
+         * クラスを定義する.
+         * @param name クラス名
+         * @param bytes クラスファイル
+         * @return クラス
+         */
+        Class<?> define(final String name, final byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
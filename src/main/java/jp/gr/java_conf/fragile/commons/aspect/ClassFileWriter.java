@@ -0,0 +1,715 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.aspect;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import jp.gr.java_conf.fragile.commons.collect.Collect;
+import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
+
+/**
+ * クラスファイルの出力(プロキシ生成用の最小限の実装).
+ * <pre>
+ * 分岐と例外ハンドラを持たないメソッドのみ出力するので
+ * StackMapTableは出力しない
+ * スタックの深さは命令毎の増減から求める
+ * </pre>
+ */
+final class ClassFileWriter {
+
+    /** アクセス修飾子 invokespecialの扱い */
+    static final int ACC_SUPER = 0x20;
+
+    /** クラスファイルのバージョン(Java7) */
+    private static final int VERSION = 51;
+
+    /** 定数 */
+    private static final int CONSTANT_UTF8 = 1;
+
+    /** 定数 */
+    private static final int CONSTANT_INTEGER = 3;
+
+    /** 定数 */
+    private static final int CONSTANT_CLASS = 7;
+
+    /** 定数 */
+    private static final int CONSTANT_FIELDREF = 9;
+
+    /** 定数 */
+    private static final int CONSTANT_METHODREF = 10;
+
+    /** 定数 */
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+
+    /** 定数 */
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+// =============================================================================
+// 命令
+// =============================================================================
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int LLOAD = 0x16;
+    static final int FLOAD = 0x17;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IRETURN = 0xac;
+    static final int LRETURN = 0xad;
+    static final int FRETURN = 0xae;
+    static final int DRETURN = 0xaf;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+    static final int WIDE = 0xc4;
+
+// =============================================================================
+
+    /** 定数プール */
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+
+    /** 定数プール */
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+
+    /** 定数プールの登録済み */
+    private final Map<String, Integer> poolIndex = Collect.newHashMap();
+
+    /** 定数プールの次の番号 */
+    private int poolCount = 1;
+
+    /** フィールド */
+    private final List<byte[]> fields = Collect.newArrayList();
+
+    /** メソッド */
+    private final List<byte[]> methods = Collect.newArrayList();
+
+    /** アクセス修飾子 */
+    private final int access;
+
+    /** クラス */
+    private final int thisClass;
+
+    /** 親クラス */
+    private final int superClass;
+
+    /** インターフェース */
+    private final int[] interfaces;
+
+// =============================================================================
+
+    /**
+     * コンストラクタ.
+     * @param access アクセス修飾子
+     * @param name クラスの内部名
+     * @param superName 親クラスの内部名
+     * @param interfaceNames インターフェースの内部名
+     */
+    ClassFileWriter(final int access, final String name, final String superName, final String[] interfaceNames) {
+        this.access = access;
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+        this.interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+// =============================================================================
+// 定数プール
+// =============================================================================
+
+    /**
+     * 文字列を登録する.
+     * @param value 値
+     * @return 番号
+     */
+    int utf8(final String value) {
+
+        final String key = "U" + value;
+        final Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index.intValue();
+        }
+        try {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        } catch (IOException e) {
+            throw new FGRuntimeException(e);
+        }
+        return register(key, 1);
+    }
+
+    /**
+     * 整数を登録する.
+     * @param value 値
+     * @return 番号
+     */
+    int integer(final int value) {
+
+        final String key = "I" + value;
+        final Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index.intValue();
+        }
+        try {
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new FGRuntimeException(e);
+        }
+        return register(key, 1);
+    }
+
+    /**
+     * クラスを登録する.
+     * @param internalName 内部名 [配列の場合は記述子]
+     * @return 番号
+     */
+    int classRef(final String internalName) {
+
+        final String key = "C" + internalName;
+        final Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index.intValue();
+        }
+        final int name = utf8(internalName);
+        write(CONSTANT_CLASS, name);
+        return register(key, 1);
+    }
+
+    /**
+     * フィールドを登録する.
+     * @param owner 内部名
+     * @param name 名前
+     * @param descriptor 記述子
+     * @return 番号
+     */
+    int fieldRef(final String owner, final String name, final String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    /**
+     * メソッドを登録する.
+     * @param owner 内部名
+     * @param name 名前
+     * @param descriptor 記述子
+     * @param isInterface インターフェースのメソッドの場合はtrue
+     * @return 番号
+     */
+    int methodRef(final String owner, final String name, final String descriptor, final boolean isInterface) {
+        return memberRef(isInterface ? CONSTANT_INTERFACE_METHODREF : CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    /**
+     * フィールド、メソッドを登録する.
+     * @param tag 種類
+     * @param owner 内部名
+     * @param name 名前
+     * @param descriptor 記述子
+     * @return 番号
+     */
+    private int memberRef(final int tag, final String owner, final String name, final String descriptor) {
+
+        final String key = tag + owner + "." + name + descriptor;
+        final Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index.intValue();
+        }
+        final int ownerIndex = classRef(owner);
+        final String ntKey = "N" + name + descriptor;
+        Integer nameAndType = poolIndex.get(ntKey);
+        if (nameAndType == null) {
+            final int n = utf8(name);
+            final int d = utf8(descriptor);
+            write(CONSTANT_NAME_AND_TYPE, n, d);
+            nameAndType = Integer.valueOf(register(ntKey, 1));
+        }
+        write(tag, ownerIndex, nameAndType.intValue());
+        return register(key, 1);
+    }
+
+    /**
+     * 定数を出力する.
+     * @param tag 種類
+     * @param values 参照する番号
+     */
+    private void write(final int tag, final int... values) {
+        try {
+            pool.writeByte(tag);
+            for (final int value : values) {
+                pool.writeShort(value);
+            }
+        } catch (IOException e) {
+            throw new FGRuntimeException(e);
+        }
+    }
+
+    /**
+     * 番号を割り当てる.
+     * @param key キー
+     * @param size 使用する数
+     * @return 番号
+     */
+    private int register(final String key, final int size) {
+        final int index = poolCount;
+        poolCount += size;
+        poolIndex.put(key, Integer.valueOf(index));
+        return index;
+    }
+
+// =============================================================================
+// フィールド、メソッド
+// =============================================================================
+
+    /**
+     * フィールドを追加する.
+     * @param fieldAccess アクセス修飾子
+     * @param name 名前
+     * @param descriptor 記述子
+     */
+    void field(final int fieldAccess, final String name, final String descriptor) {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(fieldAccess);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new FGRuntimeException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    /**
+     * メソッドを追加する.
+     * <pre>
+     * Code#endで追加される
+     * </pre>
+     * @param methodAccess アクセス修飾子
+     * @param name 名前
+     * @param descriptor 記述子
+     * @param locals 引数(thisを含む)の大きさ
+     * @return 命令の出力
+     */
+    Code method(final int methodAccess, final String name, final String descriptor, final int locals) {
+        return new Code(methodAccess, name, descriptor, locals);
+    }
+
+    /**
+     * クラスファイルを出力する.
+     * @return クラスファイル
+     */
+    byte[] toByteArray() {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            // Codeの属性名は先に登録する
+            utf8("Code");
+            pool.flush();
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (final int i : interfaces) {
+                out.writeShort(i);
+            }
+            out.writeShort(fields.size());
+            for (final byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (final byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new FGRuntimeException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+// =============================================================================
+
+    /**
+     * 型の記述子を戻す.
+     * @param type 型
+     * @return 記述子
+     */
+    static String descriptor(final Class<?> type) {
+
+        if (type == void.class) {
+            return "V";
+        }
+        if (type.isPrimitive()) {
+            return String.valueOf(primitiveCode(type));
+        }
+        if (type.isArray()) {
+            return internalName(type);
+        }
+        return "L" + internalName(type) + ";";
+    }
+
+    /**
+     * メソッドの記述子を戻す.
+     * @param returnType 戻り値の型
+     * @param parameterTypes 引数の型
+     * @return 記述子
+     */
+    static String descriptor(final Class<?> returnType, final Class<?>... parameterTypes) {
+
+        final StringBuilder sb = new StringBuilder("(");
+        for (final Class<?> type : parameterTypes) {
+            sb.append(descriptor(type));
+        }
+        return sb.append(')').append(descriptor(returnType)).toString();
+    }
+
+    /**
+     * 内部名を戻す.
+     * @param type 型
+     * @return 内部名 [配列の場合は記述子]
+     */
+    static String internalName(final Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+
+    /**
+     * スタック、ローカル変数で使用する大きさ.
+     * @param type 型
+     * @return 大きさ
+     */
+    static int size(final Class<?> type) {
+
+        if (type == void.class) {
+            return 0;
+        }
+        if (type == long.class || type == double.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    /**
+     * プリミティブの記述子.
+     * @param type 型
+     * @return 記述子
+     */
+    private static char primitiveCode(final Class<?> type) {
+
+        if (type == int.class) {
+            return 'I';
+        } else if (type == long.class) {
+            return 'J';
+        } else if (type == boolean.class) {
+            return 'Z';
+        } else if (type == byte.class) {
+            return 'B';
+        } else if (type == char.class) {
+            return 'C';
+        } else if (type == short.class) {
+            return 'S';
+        } else if (type == float.class) {
+            return 'F';
+        }
+        return 'D';
+    }
+
+// =============================================================================
+
+    /**
+     * メソッドの命令の出力.
+     */
+    final class Code {
+
+        /** アクセス修飾子 */
+        private final int methodAccess;
+
+        /** 名前 */
+        private final String name;
+
+        /** 記述子 */
+        private final String descriptor;
+
+        /** 命令 */
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        /** 現在のスタックの深さ */
+        private int stack = 0;
+
+        /** スタックの最大の深さ */
+        private int maxStack = 0;
+
+        /** ローカル変数の数 */
+        private int maxLocals;
+
+        /**
+         * コンストラクタ.
+         * @param methodAccess アクセス修飾子
+         * @param name 名前
+         * @param descriptor 記述子
+         * @param locals 引数(thisを含む)の大きさ
+         */
+        Code(final int methodAccess, final String name, final String descriptor, final int locals) {
+            this.methodAccess = methodAccess;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = locals;
+        }
+
+        /**
+         * ローカル変数を確保する.
+         * @param size 大きさ
+         * @return 番号
+         */
+        int newLocal(final int size) {
+            final int index = maxLocals;
+            maxLocals += size;
+            return index;
+        }
+
+        /**
+         * 命令を出力する.
+         * @param opcode 命令
+         * @param delta スタックの増減
+         * @return 自インスタンス
+         */
+        Code op(final int opcode, final int delta) {
+            bytes.write(opcode);
+            return stack(delta);
+        }
+
+        /**
+         * 定数プールを参照する命令を出力する.
+         * @param opcode 命令
+         * @param index 定数の番号
+         * @param delta スタックの増減
+         * @return 自インスタンス
+         */
+        Code op(final int opcode, final int index, final int delta) {
+            bytes.write(opcode);
+            u2(index);
+            return stack(delta);
+        }
+
+        /**
+         * 整数をスタックに積む.
+         * @param value 値
+         * @return 自インスタンス
+         */
+        Code push(final int value) {
+
+            if (value >= -1 && value <= 5) {
+                return op(ICONST_0 + value, 1);
+            }
+            if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                bytes.write(BIPUSH);
+                bytes.write(value);
+                return stack(1);
+            }
+            if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                bytes.write(SIPUSH);
+                u2(value);
+                return stack(1);
+            }
+            return op(LDC_W, integer(value), 1);
+        }
+
+        /**
+         * ローカル変数をスタックに積む.
+         * @param type 型
+         * @param index 番号
+         * @return 自インスタンス
+         */
+        Code load(final Class<?> type, final int index) {
+
+            int opcode = ALOAD;
+            if (type == long.class) {
+                opcode = LLOAD;
+            } else if (type == double.class) {
+                opcode = DLOAD;
+            } else if (type == float.class) {
+                opcode = FLOAD;
+            } else if (type.isPrimitive()) {
+                opcode = ILOAD;
+            }
+            local(opcode, index);
+            return stack(size(type));
+        }
+
+        /**
+         * スタックの参照をローカル変数に保存する.
+         * @param index 番号
+         * @return 自インスタンス
+         */
+        Code astore(final int index) {
+            local(ASTORE, index);
+            return stack(-1);
+        }
+
+        /**
+         * 値を戻す.
+         * @param type 型
+         * @return 自インスタンス
+         */
+        Code returnValue(final Class<?> type) {
+
+            if (type == void.class) {
+                return op(RETURN, 0);
+            } else if (type == long.class) {
+                return op(LRETURN, -2);
+            } else if (type == double.class) {
+                return op(DRETURN, -2);
+            } else if (type == float.class) {
+                return op(FRETURN, -1);
+            } else if (type.isPrimitive()) {
+                return op(IRETURN, -1);
+            }
+            return op(ARETURN, -1);
+        }
+
+        /**
+         * フィールドを取得する.
+         * @param owner 内部名
+         * @param fieldName 名前
+         * @param type 型
+         * @return 自インスタンス
+         */
+        Code getfield(final String owner, final String fieldName, final Class<?> type) {
+            return op(GETFIELD, fieldRef(owner, fieldName, descriptor(type)), size(type) - 1);
+        }
+
+        /**
+         * フィールドを設定する.
+         * @param owner 内部名
+         * @param fieldName 名前
+         * @param fieldDescriptor 記述子
+         * @return 自インスタンス
+         */
+        Code putfield(final String owner, final String fieldName, final String fieldDescriptor) {
+            return op(PUTFIELD, fieldRef(owner, fieldName, fieldDescriptor), -2);
+        }
+
+        /**
+         * メソッドを呼び出す.
+         * @param opcode 命令
+         * @param owner 内部名
+         * @param methodName 名前
+         * @param returnType 戻り値の型
+         * @param parameterTypes 引数の型
+         * @return 自インスタンス
+         */
+        Code invoke(final int opcode, final String owner, final String methodName,
+                final Class<?> returnType, final Class<?>... parameterTypes) {
+
+            int argSize = opcode == INVOKESTATIC ? 0 : 1;
+            for (final Class<?> type : parameterTypes) {
+                argSize += size(type);
+            }
+            final int index = methodRef(owner, methodName, descriptor(returnType, parameterTypes),
+                opcode == INVOKEINTERFACE);
+
+            bytes.write(opcode);
+            u2(index);
+            if (opcode == INVOKEINTERFACE) {
+                bytes.write(argSize);
+                bytes.write(0);
+            }
+            return stack(size(returnType) - argSize);
+        }
+
+        /**
+         * メソッドの出力を終える.
+         */
+        void end() {
+
+            final byte[] code = bytes.toByteArray();
+            final ByteArrayOutputStream method = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(method);
+            try {
+                out.writeShort(methodAccess);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(descriptor));
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + code.length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeShort(0);
+                out.writeShort(0);
+            } catch (IOException e) {
+                throw new FGRuntimeException(e);
+            }
+            methods.add(method.toByteArray());
+        }
+
+        /**
+         * ローカル変数の命令を出力する.
+         * @param opcode 命令
+         * @param index 番号
+         */
+        private void local(final int opcode, final int index) {
+
+            if (index > 0xff) {
+                bytes.write(WIDE);
+                bytes.write(opcode);
+                u2(index);
+                return;
+            }
+            bytes.write(opcode);
+            bytes.write(index);
+        }
+
+        /**
+         * 2バイト出力する.
+         * @param value 値
+         */
+        private void u2(final int value) {
+            bytes.write((value >>> 8) & 0xff);
+            bytes.write(value & 0xff);
+        }
+
+        /**
+         * スタックの深さを更新する.
+         * @param delta 増減
+         * @return 自インスタンス
+         */
+        private Code stack(final int delta) {
+            stack += delta;
+            maxStack = Math.max(maxStack, stack);
+            return this;
+        }
+    }
+}
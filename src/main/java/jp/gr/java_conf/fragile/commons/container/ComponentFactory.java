@@ -5,9 +5,11 @@ package jp.gr.java_conf.fragile.commons.container;
 
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -25,17 +27,36 @@ import jp.gr.java_conf.fragile.commons.container.config.XMLProperties;
 import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
 import jp.gr.java_conf.fragile.commons.reflect.DynamicBeanFactory;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * 簡易DIコンテナ.<br />
+ * <pre>
+ * Bean定義とキャッシュしたコンポーネントはコンテナの版(ContainerSnapshot)で管理する
+ * ファクトリは生成時の版を使用するので、reload中の処理は古い版で完了する
+ * </pre>
  * @param <T> 生成する型
  */
 public class ComponentFactory<T> {
 
+    /** ロガー */
+    private static Logger log = LoggerFactory.getLogger(ComponentFactory.class);
+
+    /** -Dのキー名 アスペクトのプロキシ方式 [generate:クラスを生成する それ以外:java.lang.reflect.Proxy] */
+    public static final String ASPECT_PROXY_KEY = "jp.gr.java_conf.fragile.commons.container.aspectProxy";
+
+    /** アスペクトのプロキシをクラス生成で作成する */
+    private static final boolean GENERATE_PROXY = "generate".equals(System.getProperty(ASPECT_PROXY_KEY));
+
     /** コンテキストはキャッシュする */
     private static Context context = null;
 
-    /** シングルトンキャッシュ */
-    private static final Map<String, Object> singleton = Collections.synchronizedMap(new HashMap<String, Object>());
+    /** 現在のコンテナの版 */
+    private static volatile ContainerSnapshot current = null;
+
+    /** 版の入れ替えのロック */
+    private static final Object SNAPSHOT_LOCK = new Object();
 
 // =========================================================
 
@@ -45,6 +66,9 @@ public class ComponentFactory<T> {
     /** プロパティを取得する */
     private XMLProperties properties = null;
 
+    /** コンテナの版 [シングルトン、生成手順のキャッシュ] */
+    private ContainerSnapshot snapshot = null;
+
     /**
      * トランザクション単位にJNDIのlookupはキャッシュする。<br />
      * ※ トランザクション単位なので、インスタンスフィールドとなります<br />
@@ -61,6 +85,22 @@ public class ComponentFactory<T> {
     protected ComponentFactory(final Class<T> clazz, final XMLProperties xmlProperties) {
         this.clazz = clazz;
         this.properties = xmlProperties;
+        this.snapshot = currentSnapshot();
+        // 現在の版と異なる定義の場合はキャッシュを共有しない
+        if (snapshot.getProperties() != xmlProperties) {
+            this.snapshot = new ContainerSnapshot(0L, xmlProperties);
+        }
+    }
+
+    /**
+     * コンストラクタ. 外部生成禁止
+     * @param clazz クラス
+     * @param snapshot コンテナの版
+     */
+    private ComponentFactory(final Class<T> clazz, final ContainerSnapshot snapshot) {
+        this.clazz = clazz;
+        this.properties = snapshot.getProperties();
+        this.snapshot = snapshot;
     }
 
 // =========================================================
@@ -86,7 +126,7 @@ public class ComponentFactory<T> {
             throw new FGRuntimeException("Not Interface:" + clazz);
         }
 
-        final ComponentFactory<T> instance = new ComponentFactory<T>(clazz, XMLProperties.getInstance());
+        final ComponentFactory<T> instance = new ComponentFactory<T>(clazz, currentSnapshot());
 
         if (context == null) {
             try {
@@ -100,6 +140,121 @@ public class ComponentFactory<T> {
         return instance;
     }
 
+    /**
+     * Bean定義を読み込み直す.
+     *
+     * <pre>
+     * 新しいBean定義を読み込んでからコンテナの版を入れ替える
+     * 定義が変わっていない生成済みのシングルトンは引き継ぐ
+     * 定義が変わったBeanと、それに依存するBeanは次回の取得時に生成し直す
+     * 入れ替え前に生成したファクトリは古い版を使い続ける
+     * 引き継がないMBeanは登録を解除する
+     * 読み込み中もリクエスト処理は現在の版で継続する(MBeanなど別スレッドから実行する)
+     * </pre>
+     * @return 新しい版番号
+     */
+    public static long reload() {
+
+        synchronized (SNAPSHOT_LOCK) {
+            return swapSnapshot(XMLProperties.reload()).getVersion();
+        }
+    }
+
+    /**
+     * 現在のコンテナの版番号.
+     * @return 版番号 未読み込みの場合は0
+     */
+    public static long getSnapshotVersion() {
+
+        final ContainerSnapshot snapshot = current;
+
+        return snapshot == null ? 0L : snapshot.getVersion();
+    }
+
+    /**
+     * 現在のコンテナの版を戻す.
+     * <pre>
+     * XMLProperties#initなどでBean定義が入れ替わった場合は次の版を作成する
+     * </pre>
+     * @return コンテナの版
+     */
+    private static ContainerSnapshot currentSnapshot() {
+
+        // reloadはBean定義を入れ替えてから版を入れ替えるので、この順で読む
+        final ContainerSnapshot snapshot = current;
+        if (snapshot != null && snapshot.getProperties() == XMLProperties.getLoadedInstance()) {
+            return snapshot;
+        }
+
+        synchronized (SNAPSHOT_LOCK) {
+            final XMLProperties xmlProperties = XMLProperties.getInstance();
+            if (current != null && current.getProperties() == xmlProperties) {
+                return current;
+            }
+            return swapSnapshot(xmlProperties);
+        }
+    }
+
+    /**
+     * コンテナの版を入れ替える [SNAPSHOT_LOCK内で呼ぶ].
+     * @param xmlProperties 新しいBean定義
+     * @return 新しい版
+     */
+    private static ContainerSnapshot swapSnapshot(final XMLProperties xmlProperties) {
+
+        final ContainerSnapshot previous = current;
+        if (previous == null) {
+            current = new ContainerSnapshot(1L, xmlProperties);
+            return current;
+        }
+
+        final ContainerSnapshot next = previous.next(xmlProperties);
+        final Map<String, SingletonHolder> retired = previous.retired(next);
+        for (final Map.Entry<String, SingletonHolder> entry : retired.entrySet()) {
+            final BeanMetaData beanMetaData = previous.getProperties().getBeanMetaData(entry.getKey());
+            if (beanMetaData.getCreate() == CreateTypes.MBEAN) {
+                unregisterMBean(entry.getValue().getValue());
+            }
+        }
+        current = next;
+
+        if (log.isInfoEnabled()) {
+            log.info("ComponentFactory snapshot version:" + next.getVersion()
+                + " retired:" + retired.keySet());
+        }
+
+        return next;
+    }
+
+    /**
+     * MBeanサーバから登録を解除する.
+     * <pre>
+     * 解除に失敗しても入れ替えは継続する
+     * </pre>
+     * @param mbean インスタンス
+     */
+    private static void unregisterMBean(final Object mbean) {
+
+        if (mbean == null)
+            return;
+        try {
+            final ObjectName name = new ObjectName(mbeanName(mbean));
+            final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            if (mbs.isRegistered(name))
+                mbs.unregisterMBean(name);
+        } catch (Exception e) {
+            log.warn("unregisterMBean error:" + mbean, e);
+        }
+    }
+
+    /**
+     * Bean定義を戻す.
+     * @return ファクトリが使用するBean定義
+     */
+    XMLProperties getProperties() {
+        return properties;
+    }
+
 // =========================================================
 
     /**
@@ -138,8 +293,12 @@ public class ComponentFactory<T> {
      *
      * <pre>
      * 再起処理しています。
-     * 循環参照した場合はスタックオーバーフローで落ちます
-     * ※ 循環参照チェックは実装しません
+     * キャッシュする生成方法の場合はDI、アスペクト適用後のインスタンスを
+     * Bean毎に一度だけ生成してキャッシュします
+     * 同じスレッドで生成中のBeanを参照した場合(循環参照)は例外となります
+     * ※ 別スレッドとの循環参照はチェックしません
+     * 毎回生成するBeanはBean定義を解析した生成手順を再利用します
+     * thread、connection、requestのBeanはComponentScopeから取得します
      * インジェクションに処理について<br />
      * <code>
      *  ComponentFactory&lt;Foo&gt; factory
@@ -155,8 +314,46 @@ public class ComponentFactory<T> {
         // 定義情報の取得
         final BeanMetaData beanMetaData = getBeanMetaData(beanID);
 
+        // スコープの間キャッシュする
+        if (beanMetaData.getCreate().isScoped()) {
+            return ComponentScope.lookup(this, beanMetaData);
+        }
+
+        if (!beanMetaData.getCreate().isCache()) {
+            if (!ComponentPlan.isCompilable(beanMetaData)) {
+                return buildComponent(beanMetaData);
+            }
+            return applyAspect(beanMetaData, getComponentPlan(beanMetaData).create(this));
+        }
+
+        // キャッシュから取得する
+        final ConcurrentMap<String, SingletonHolder> singleton = snapshot.getSingletons();
+        SingletonHolder holder = singleton.get(beanID);
+        if (holder == null) {
+            final SingletonHolder newHolder = new SingletonHolder();
+            holder = singleton.putIfAbsent(beanID, newHolder);
+            if (holder == null) {
+                holder = newHolder;
+            }
+        }
+
+        return holder.get(this, beanMetaData);
+    }
+
+    /**
+     * コンポーネントを生成する.
+     * <pre>
+     * インスタンスを取得してDI、アスペクトの適用を行う
+     * </pre>
+     * @param beanMetaData Bean定義
+     * @return インスタンス
+     */
+    protected Object buildComponent(final BeanMetaData beanMetaData) {
+
+        final String beanID = beanMetaData.getBeanID();
+
         // 定義されたクラスのインスタンスを取得
-        Object bean;
+        final Object bean;
         try {
             bean = getComponentInstance(beanMetaData);
         } catch (Exception e) {
@@ -166,19 +363,136 @@ public class ComponentFactory<T> {
         // インスタンスに対してsetterインジェクション
         doDISetters(beanMetaData.getInjections(), bean);
 
-        // アスペクトを設定してインスタンスを入れ替える(DIした後で行わないとだめ)
+        return applyAspect(beanMetaData, bean);
+    }
+
+    /**
+     * 生成手順を取得する.
+     * <pre>
+     * コンテナの版のBean定義毎に一度だけ解析する
+     * </pre>
+     * @param beanMetaData Bean定義
+     * @return 生成手順
+     */
+    private ComponentPlan getComponentPlan(final BeanMetaData beanMetaData) {
+
+        final String beanID = beanMetaData.getBeanID();
+        final ConcurrentMap<String, ComponentPlan> plans = snapshot.getPlans();
+        ComponentPlan plan = plans.get(beanID);
+        if (plan == null || plan.getBeanMetaData() != beanMetaData) {
+            plan = ComponentPlan.compile(beanMetaData);
+            plans.put(beanID, plan);
+        }
+
+        return plan;
+    }
+
+    /**
+     * スコープのBeanのプールを取得する.
+     * <pre>
+     * コンテナの版のBean定義毎に作成する
+     * インジェクションするBeanが全てキャッシュするBeanの場合は再利用時にインジェクションしない
+     * </pre>
+     * @param beanMetaData Bean定義
+     * @return プール
+     */
+    ComponentScope.ScopePool getScopePool(final BeanMetaData beanMetaData) {
+
+        final String beanID = beanMetaData.getBeanID();
+        final ConcurrentMap<String, ComponentScope.ScopePool> pools = snapshot.getScopePools();
+        ComponentScope.ScopePool pool = pools.get(beanID);
+        if (pool == null) {
+            boolean reinject = false;
+            for (final String dependency : beanMetaData.getDependencyIDs()) {
+                final BeanMetaData dependencyMetaData = properties.getBeanMetaData(dependency);
+                if (dependencyMetaData == null || !dependencyMetaData.getCreate().isCache()) {
+                    reinject = true;
+                    break;
+                }
+            }
+            final ComponentScope.ScopePool newPool = new ComponentScope.ScopePool(beanMetaData, reinject);
+            pool = pools.putIfAbsent(beanID, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * スコープのBeanのインスタンスを生成する.
+     * @param beanMetaData Bean定義
+     * @return インスタンス
+     */
+    Object newComponent(final BeanMetaData beanMetaData) {
+
+        if (ComponentPlan.isCompilable(beanMetaData)) {
+            return getComponentPlan(beanMetaData).newInstance();
+        }
+        try {
+            return getComponentInstance(beanMetaData);
+        } catch (Exception e) {
+            throw new FGRuntimeException("loadComponent error beanID:" + beanMetaData.getBeanID(), e);
+        }
+    }
+
+    /**
+     * スコープのBeanにインジェクションする.
+     * @param beanMetaData Bean定義
+     * @param bean インスタンス
+     */
+    void injectComponent(final BeanMetaData beanMetaData, final Object bean) {
+
+        if (ComponentPlan.isCompilable(beanMetaData)) {
+            getComponentPlan(beanMetaData).inject(this, bean);
+            return;
+        }
+        doDISetters(beanMetaData.getInjections(), bean);
+    }
+
+    /**
+     * アスペクトを設定してインスタンスを入れ替える.
+     * <pre>
+     * DIした後で行わないとだめ
+     * </pre>
+     * @param beanMetaData Bean定義
+     * @param bean インスタンス
+     * @return アスペクト定義がない場合はそのままのインスタンス
+     */
+    protected Object applyAspect(final BeanMetaData beanMetaData, final Object bean) {
+
         if (!beanMetaData.isAspect()) {
             return bean;
         }
 
         // インターフェースの場合のみアスペクト定義できる
         if (!clazz.isInterface())
-            throw new FGRuntimeException("Aspect Not Interface:" + beanID);
+            throw new FGRuntimeException("Aspect Not Interface:" + beanMetaData.getBeanID());
 
         // ラップする
-        bean = DynamicBeanFactory.proxyWrap(bean, createAspectHander(beanMetaData, bean));
+        return createAspectProxy(bean, createAspectHander(beanMetaData, bean));
+    }
+
+    /**
+     * アスペクトのプロキシを生成する.
+     * <pre>
+     * クラス生成で作成できない場合はjava.lang.reflect.Proxyを使用する
+     * </pre>
+     * @param bean インスタンス
+     * @param aspectHander ハンドラー
+     * @return プロキシ
+     */
+    protected Object createAspectProxy(final Object bean, final AspectHander aspectHander) {
 
-        return bean;
+        if (GENERATE_PROXY) {
+            final Object proxy = aspectHander.newGeneratedProxy();
+            if (proxy != null) {
+                return proxy;
+            }
+        }
+
+        return DynamicBeanFactory.proxyWrap(bean, aspectHander);
     }
 
     /**
@@ -229,32 +543,23 @@ public class ComponentFactory<T> {
 
     /**
      * ロードタイプを判定し、インスタンス生成を振り分ける。<br />
+     * <pre>
+     * キャッシュはloadComponentで行うので、キャッシュする生成方法の場合は
+     * Bean毎に一度だけ呼ばれる
+     * </pre>
      * @param beanMetaData ソース(クラス名 or jndi名)
      * @return インスタンス
      */
     protected Object getComponentInstance(final BeanMetaData beanMetaData) {
 
-        Object component = null;
-        final CreateTypes createTypes = beanMetaData.getCreate();
-        final String beanID = beanMetaData.getBeanID();
-
-        synchronized (ComponentFactory.class) {
-            // キャッシュから取得する
-            if (createTypes.isCache() && singleton.containsKey(beanID))
-                return singleton.get(beanID);
-
-            // インスタンスを取得する
-            component = loadInstance(beanMetaData);
+        // インスタンスを取得する
+        final Object component = loadInstance(beanMetaData);
 
-            // キャッシュ設定
-            if (createTypes.isCache())
-                singleton.put(beanID, component); // nullも含む
-
-            // MBEAN登録
-            if (createTypes == CreateTypes.MBEAN) {
-                registerMBean(component, createMBeanName(component));
-            }
+        // MBEAN登録
+        if (beanMetaData.getCreate() == CreateTypes.MBEAN) {
+            registerMBean(component, createMBeanName(component));
         }
+
         return component;
     }
 
@@ -381,6 +686,15 @@ public class ComponentFactory<T> {
      * @return 生成した名称
      */
     protected String createMBeanName(final Object mbean) {
+        return mbeanName(mbean);
+    }
+
+    /**
+     * MBeanの名称を生成する.
+     * @param mbean 　登録するインスタンス
+     * @return 生成した名称
+     */
+    private static String mbeanName(final Object mbean) {
 
         final Class<?> mbeanclazz = mbean.getClass();
         final Package pac = mbeanclazz.getPackage();
@@ -437,4 +751,142 @@ public class ComponentFactory<T> {
             throw new FGRuntimeException("doDISetter error:" + inMethodName + ":" + bean, e);
         }
     }
+
+// =========================================================
+
+    /**
+     * シングルトンの保持.
+     * <pre>
+     * 生成済みの場合はvolatileの読み出しのみで取得する
+     * 生成はBean毎のロックで一度だけ行い、失敗した場合は次の呼び出しで再度生成する
+     * 依存するBeanの生成は別のロックなので、生成中に依存Beanをロードできる
+     * 別スレッドと互いの生成を待つ場合は待ち先を辿って循環参照として検出する
+     * </pre>
+     */
+    static final class SingletonHolder {
+
+        /** 待ち合わせ中に循環参照を確認する間隔[ms] */
+        private static final long CIRCULAR_CHECK_INTERVAL = 10L;
+
+        /** 生成を待っているスレッドと待ち先 */
+        private static final ConcurrentMap<Thread, SingletonHolder> WAITING = new ConcurrentHashMap<Thread, SingletonHolder>();
+
+        /** 生成のロック */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /** 生成済み */
+        private volatile boolean initialized = false;
+
+        /** インスタンス [nullも含む initializedで公開する] */
+        private Object value = null;
+
+        /** 生成中のスレッド [待ち先を辿る際にロック外から参照する] */
+        private volatile Thread initializer = null;
+
+        /**
+         * 生成済みか.
+         * @return 生成済みの場合はtrue
+         */
+        boolean isInitialized() {
+            return initialized;
+        }
+
+        /**
+         * 生成済みのインスタンスを取得する.
+         * @return インスタンス 未生成の場合はnull
+         */
+        Object getValue() {
+            return initialized ? value : null;
+        }
+
+        /**
+         * インスタンスを取得する 未生成の場合は生成する.
+         * @param factory ファクトリ
+         * @param beanMetaData Bean定義
+         * @return インスタンス
+         */
+        Object get(final ComponentFactory<?> factory, final BeanMetaData beanMetaData) {
+
+            if (initialized) {
+                return value;
+            }
+
+            final Thread current = Thread.currentThread();
+            lock(current, beanMetaData);
+            try {
+                if (initialized) {
+                    return value;
+                }
+                if (initializer == current) {
+                    // 循環参照しています id[{0}]
+                    throw new FGRuntimeException("Circular reference beanID:" + beanMetaData.getBeanID());
+                }
+                initializer = current;
+                try {
+                    value = factory.buildComponent(beanMetaData);
+                    initialized = true;
+                } finally {
+                    initializer = null;
+                }
+                return value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 生成のロックを取得する.
+         * <pre>
+         * 別スレッドが生成中の場合は待ち先を登録し、間隔毎に循環参照を確認しながら待つ
+         * </pre>
+         * @param current 現在のスレッド
+         * @param beanMetaData Bean定義
+         */
+        private void lock(final Thread current, final BeanMetaData beanMetaData) {
+
+            if (lock.tryLock()) {
+                return;
+            }
+
+            WAITING.put(current, this);
+            try {
+                while (!lock.tryLock(CIRCULAR_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    if (isWaitingFor(current)) {
+                        // 別スレッドとの間で循環参照しています id[{0}]
+                        throw new FGRuntimeException("Circular reference beanID:" + beanMetaData.getBeanID());
+                    }
+                }
+            } catch (InterruptedException e) {
+                current.interrupt();
+                // 生成の待ち合わせが中断されました id[{0}]
+                throw new FGRuntimeException("Interrupted beanID:" + beanMetaData.getBeanID(), e);
+            } finally {
+                WAITING.remove(current);
+            }
+        }
+
+        /**
+         * 生成中のスレッドの待ち先を辿り、現在のスレッドに戻るか.
+         * @param current 現在のスレッド
+         * @return 互いの生成を待っている場合はtrue
+         */
+        private boolean isWaitingFor(final Thread current) {
+
+            SingletonHolder holder = this;
+            for (int i = WAITING.size(); i >= 0; i--) {
+                final Thread owner = holder.initializer;
+                if (owner == null) {
+                    return false;
+                }
+                if (owner == current) {
+                    return true;
+                }
+                holder = WAITING.get(owner);
+                if (holder == null) {
+                    return false;
+                }
+            }
+            return false;
+        }
+    }
 }
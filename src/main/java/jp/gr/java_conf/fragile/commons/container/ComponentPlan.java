@@ -0,0 +1,232 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.container;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+
+import jp.gr.java_conf.fragile.commons.collect.Collect;
+import jp.gr.java_conf.fragile.commons.container.config.BeanMetaData;
+import jp.gr.java_conf.fragile.commons.container.config.CreateTypes;
+import jp.gr.java_conf.fragile.commons.container.config.TypeTypes;
+import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
+import jp.gr.java_conf.fragile.commons.reflect.DynamicBeanFactory;
+
+/**
+ * コンポーネントの生成手順.
+ * <pre>
+ * 毎回生成するBeanについてBean定義を一度だけ解析し
+ * コンストラクタ、セッターのMethodHandleとインジェクションするBeanIDを保持する
+ * 生成時はクラスのロード、セッターの検索、BeanIDの分割を行わない
+ * </pre>
+ */
+final class ComponentPlan {
+
+    /** コンストラクタの型 */
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+    /** セッターの型 */
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    /** 解析したBean定義 */
+    private final BeanMetaData beanMetaData;
+
+    /** コンストラクタ ()Object */
+    private final MethodHandle constructor;
+
+    /** インジェクション */
+    private final Injection[] injections;
+
+    /**
+     * コンストラクタ.
+     * @param beanMetaData Bean定義
+     * @param constructor コンストラクタ
+     * @param injections インジェクション
+     */
+    private ComponentPlan(final BeanMetaData beanMetaData, final MethodHandle constructor, final Injection[] injections) {
+        this.beanMetaData = beanMetaData;
+        this.constructor = constructor;
+        this.injections = injections;
+    }
+
+// =========================================================
+
+    /**
+     * 生成手順を作成できるか.
+     * <pre>
+     * 毎回生成するBean、DAOのみ対象とする
+     * </pre>
+     * @param beanMetaData Bean定義
+     * @return 作成できる場合はtrue
+     */
+    static boolean isCompilable(final BeanMetaData beanMetaData) {
+
+        final CreateTypes createTypes = beanMetaData.getCreate();
+        final TypeTypes type = beanMetaData.getType();
+
+        return !createTypes.isCache() && createTypes != CreateTypes.JNDI
+            && (type == TypeTypes.BEAN || type == TypeTypes.DAO);
+    }
+
+    /**
+     * Bean定義を解析して生成手順を作成する.
+     * @param beanMetaData Bean定義
+     * @return 生成手順
+     */
+    static ComponentPlan compile(final BeanMetaData beanMetaData) {
+
+        final String src = beanMetaData.getSrc();
+        final Class<?> implClass;
+        final MethodHandle constructor;
+        try {
+            implClass = DynamicBeanFactory.forName(src);
+            final Constructor<?> implConstructor = implClass.getDeclaredConstructor();
+            DynamicBeanFactory.setAccessible(implConstructor);
+            constructor = MethodHandles.lookup().unreflectConstructor(implConstructor).asType(CONSTRUCTOR_TYPE);
+        } catch (Exception e) {
+            // インスタンス生成に失敗しました name[{0}]
+            throw new FGRuntimeException("createInstance Error:" + src, e);
+        }
+
+        final List<Injection> injections = Collect.newArrayList();
+        for (final Map.Entry<String, String> entry : beanMetaData.getInjections().entrySet()) {
+
+            final String inMethod = entry.getKey();
+            final String inBeanID = entry.getValue();
+            if (inBeanID == null || inMethod == null || inBeanID.length() == 0 || inMethod.length() == 0)
+                // Bean定義が不正です id[{0}] Method[{1}]
+                throw new FGRuntimeException("injections def error:" + inBeanID + ":" + inMethod + ":" + src);
+
+            final String[] beanIDs = inBeanID.split(",");
+            for (int i = 0; i < beanIDs.length; i++) {
+                beanIDs[i] = beanIDs[i].trim();
+            }
+            injections.add(new Injection(inMethod, resolveSetter(implClass, inMethod), beanIDs));
+        }
+
+        return new ComponentPlan(beanMetaData, constructor, injections.toArray(new Injection[injections.size()]));
+    }
+
+    /**
+     * セッターを解決する.
+     * <pre>
+     * ComponentFactory#doDISetterと同じく名前が一致する最初のpublicメソッドとする
+     * </pre>
+     * @param implClass 実装クラス
+     * @param inMethodName セッターメソッド名
+     * @return (Object, Object)void のMethodHandle 存在しない場合はnull
+     */
+    private static MethodHandle resolveSetter(final Class<?> implClass, final String inMethodName) {
+
+        for (final Method method : implClass.getMethods()) {
+            if (!inMethodName.equals(method.getName()))
+                continue;
+            try {
+                DynamicBeanFactory.setAccessible(method);
+                return MethodHandles.lookup().unreflect(method).asType(SETTER_TYPE);
+            } catch (Exception e) {
+                // セッター登録に失敗しました MethodName[{0}] bean[{1}]
+                throw new FGRuntimeException("doDISetter error:" + inMethodName + ":" + implClass, e);
+            }
+        }
+
+        return null;
+    }
+
+// =========================================================
+
+    /**
+     * 解析したBean定義を戻す.
+     * @return Bean定義
+     */
+    BeanMetaData getBeanMetaData() {
+        return beanMetaData;
+    }
+
+    /**
+     * インスタンスを生成してインジェクションする.
+     * @param factory インジェクションするコンポーネントのロードに使用する
+     * @return インスタンス
+     */
+    Object create(final ComponentFactory<?> factory) {
+
+        final Object bean = newInstance();
+        inject(factory, bean);
+
+        return bean;
+    }
+
+    /**
+     * インスタンスを生成する.
+     * @return インスタンス
+     */
+    Object newInstance() {
+
+        try {
+            return (Object) constructor.invokeExact();
+        } catch (Throwable e) {
+            throw new FGRuntimeException("loadComponent error beanID:" + beanMetaData.getBeanID(), e);
+        }
+    }
+
+    /**
+     * インジェクションする.
+     * <pre>
+     * スコープのBeanを再利用する場合はインジェクションのみやり直す
+     * </pre>
+     * @param factory インジェクションするコンポーネントのロードに使用する
+     * @param bean インスタンス
+     */
+    void inject(final ComponentFactory<?> factory, final Object bean) {
+
+        for (final Injection injection : injections) {
+            for (final String beanID : injection.beanIDs) {
+                // 再起ロードしてコンポーネントをセットする
+                final Object setObj = factory.loadComponent(beanID);
+                if (injection.setter == null)
+                    continue;
+                try {
+                    injection.setter.invokeExact(bean, setObj);
+                } catch (Throwable e) {
+                    // セッター登録に失敗しました MethodName[{0}] bean[{1}]
+                    throw new FGRuntimeException("doDISetter error:" + injection.methodName + ":" + bean, e);
+                }
+            }
+        }
+    }
+
+// =========================================================
+
+    /**
+     * セッター単位のインジェクション.
+     */
+    private static final class Injection {
+
+        /** セッターメソッド名 */
+        private final String methodName;
+
+        /** セッター (Object, Object)void 存在しない場合はnull */
+        private final MethodHandle setter;
+
+        /** インジェクションするBeanID */
+        private final String[] beanIDs;
+
+        /**
+         * コンストラクタ.
+         * @param methodName セッターメソッド名
+         * @param setter セッター
+         * @param beanIDs インジェクションするBeanID
+         */
+        Injection(final String methodName, final MethodHandle setter, final String[] beanIDs) {
+            this.methodName = methodName;
+            this.setter = setter;
+            this.beanIDs = beanIDs;
+        }
+    }
+}
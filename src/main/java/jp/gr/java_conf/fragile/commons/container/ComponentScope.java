@@ -0,0 +1,428 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.container;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.gr.java_conf.fragile.commons.container.config.BeanMetaData;
+import jp.gr.java_conf.fragile.commons.container.config.CreateTypes;
+import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * コンポーネントのスコープ.
+ * <pre>
+ * thread、connection、requestのBeanをスコープの間キャッシュする
+ * threadはスレッド毎、requestはbeginRequestからendRequestまで
+ * (スレッドを使い捨てる仮想スレッドではendThreadまで)
+ * connectionは接続毎に生成したスコープをbeginRequestで現在のスレッドに関連付ける
+ * スコープの終了時にScopedComponentを実装したBeanはresetしてプールに戻し
+ * 次のスコープではプールから取り出して、毎回生成するBeanやスコープのBeanを
+ * インジェクションしている場合はインジェクションのみやり直す
+ * thread、requestのスコープはスレッド毎に再利用するので、スコープ自身に残して
+ * 共有のプールを経由しない
+ * プールはコンテナの版毎なので、reload後は新しい定義で生成する
+ * ※ スコープは同時に1スレッドからのみ使用する事
+ *    (connectionは接続の要求を順に処理するスレッドから使用される)
+ * <code>
+ *  ComponentScope.beginRequest(connectionScope);
+ *  try {
+ *      ...
+ *  } finally {
+ *      ComponentScope.endRequest();
+ *  }
+ * </code>
+ * </pre>
+ */
+public final class ComponentScope {
+
+    /** ロガー */
+    private static Logger log = LoggerFactory.getLogger(ComponentScope.class);
+
+    /** -Dのキー名 Bean毎にプールするインスタンス数 */
+    public static final String POOL_SIZE_KEY = "jp.gr.java_conf.fragile.commons.container.scopePoolSize";
+
+    /** Bean毎にプールするインスタンス数 */
+    private static final int POOL_SIZE = Integer.getInteger(POOL_SIZE_KEY, 256).intValue();
+
+    /** threadスコープ */
+    private static final ThreadLocal<ComponentScope> THREAD_SCOPE = new ThreadLocal<ComponentScope>() {
+        @Override
+        protected ComponentScope initialValue() {
+            return new ComponentScope(true);
+        }
+    };
+
+    /** requestスコープ [スレッド毎に再利用する] */
+    private static final ThreadLocal<ComponentScope> REQUEST_SCOPE = new ThreadLocal<ComponentScope>() {
+        @Override
+        protected ComponentScope initialValue() {
+            return new ComponentScope(true);
+        }
+    };
+
+    /** 現在のスレッドに関連付けたconnectionスコープ */
+    private static final ThreadLocal<ComponentScope> CONNECTION_SCOPE = new ThreadLocal<ComponentScope>();
+
+// =========================================================
+
+    /** 初期の保持数 */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /** スコープ内のインスタンス [Bean数は少ないので配列で保持する 使用するまで生成しない] */
+    private Slot[] slots = null;
+
+    /** スコープ内のインスタンス数 */
+    private int count = 0;
+
+    /** requestスコープの開始中 */
+    private boolean active = false;
+
+    /** 終了時にresetしたインスタンスを残して再利用する */
+    private final boolean retain;
+
+    /**
+     * コンストラクタ.
+     * <pre>
+     * connectionスコープを生成する場合に使用する
+     * </pre>
+     */
+    public ComponentScope() {
+        this(false);
+    }
+
+    /**
+     * コンストラクタ.
+     * @param retain 終了時にresetしたインスタンスを残して再利用する
+     */
+    private ComponentScope(final boolean retain) {
+        this.retain = retain;
+    }
+
+// =========================================================
+
+    /**
+     * requestスコープを開始する.
+     * <pre>
+     * 終了していないrequestスコープがある場合は終了してから開始する
+     * </pre>
+     * @param connection 関連付けるconnectionスコープ [無い場合はnull]
+     */
+    public static void beginRequest(final ComponentScope connection) {
+
+        final ComponentScope request = REQUEST_SCOPE.get();
+        if (request.active) {
+            if (log.isWarnEnabled()) {
+                log.warn("request scope not ended:" + Thread.currentThread().getName());
+            }
+            request.close();
+        }
+        request.active = true;
+        CONNECTION_SCOPE.set(connection);
+    }
+
+    /**
+     * requestスコープを終了する.
+     * <pre>
+     * requestスコープのBeanを戻し、connectionスコープの関連付けを解除する
+     * 開始していない場合は何もしない
+     * </pre>
+     */
+    public static void endRequest() {
+
+        final ComponentScope request = REQUEST_SCOPE.get();
+        if (!request.active) {
+            return;
+        }
+        request.active = false;
+        request.close();
+        CONNECTION_SCOPE.set(null);
+    }
+
+    /**
+     * threadスコープを終了する.
+     * <pre>
+     * スレッドの終了時などに呼び出す 次に参照した場合は生成し直す
+     * requestスコープが再利用のために残したインスタンスも共有のプールに戻す
+     * ThreadLocalはスレッドと共に破棄されるので、呼び出さずにスレッドが終了すると
+     * インスタンスはプールに戻らない
+     * </pre>
+     */
+    public static void endThread() {
+
+        THREAD_SCOPE.get().close(false);
+        THREAD_SCOPE.remove();
+        REQUEST_SCOPE.get().close(false);
+        REQUEST_SCOPE.remove();
+    }
+
+    /**
+     * スコープを終了する.
+     * <pre>
+     * ScopedComponentを実装したBeanはresetしてプールに戻す
+     * 終了後に同じスコープを使用した場合はプールから取得し直す
+     * </pre>
+     */
+    public void close() {
+        close(retain);
+    }
+
+    /**
+     * スコープを終了する.
+     * @param keep resetしたインスタンスを残して次のスコープで再利用する
+     */
+    private void close(final boolean keep) {
+
+        int i = 0;
+        while (i < count) {
+            final Slot slot = slots[i];
+            if (!keep) {
+                slot.pool.release(slot);
+                remove(i);
+            } else if (!slot.idle && !slot.pool.reset(slot)) {
+                remove(i);
+            } else {
+                i++;
+            }
+        }
+    }
+
+// =========================================================
+
+    /**
+     * 現在のスコープからコンポーネントを取得する.
+     * @param factory ファクトリ
+     * @param beanMetaData Bean定義
+     * @return コンポーネント
+     */
+    static Object lookup(final ComponentFactory<?> factory, final BeanMetaData beanMetaData) {
+
+        final CreateTypes createTypes = beanMetaData.getCreate();
+        final ComponentScope scope;
+        switch (createTypes) {
+        case THREAD:
+            scope = THREAD_SCOPE.get();
+            break;
+        case CONNECTION:
+            scope = CONNECTION_SCOPE.get();
+            break;
+        case REQUEST:
+            final ComponentScope request = REQUEST_SCOPE.get();
+            scope = request.active ? request : null;
+            break;
+        default:
+            scope = null;
+            break;
+        }
+
+        if (scope == null) {
+            // スコープが開始されていません
+            throw new FGRuntimeException("No active scope:" + createTypes.getLabel()
+                + " beanID:" + beanMetaData.getBeanID());
+        }
+
+        return scope.get(factory, beanMetaData);
+    }
+
+    /**
+     * スコープ内のコンポーネントを取得する 無い場合はプールから取得する.
+     * <pre>
+     * Bean定義はコンテナの版毎に生成されるので、同じ定義の場合は同じ版のインスタンス
+     * </pre>
+     * @param factory ファクトリ
+     * @param beanMetaData Bean定義
+     * @return コンポーネント
+     */
+    private Object get(final ComponentFactory<?> factory, final BeanMetaData beanMetaData) {
+
+        final String beanID = beanMetaData.getBeanID();
+        for (int i = 0; i < count; i++) {
+            final Slot slot = slots[i];
+            if (!beanID.equals(slot.pool.beanMetaData.getBeanID())) {
+                continue;
+            }
+            if (slot.pool.beanMetaData == beanMetaData) {
+                if (slot.idle) {
+                    // 前回のスコープでresetしたインスタンス
+                    slot.pool.reuse(factory, slot);
+                }
+                return slot.component;
+            }
+            // reloadで定義が入れ替わった
+            remove(i);
+            slot.pool.release(slot);
+            break;
+        }
+
+        final Slot slot = factory.getScopePool(beanMetaData).borrow(factory);
+        if (slots == null) {
+            slots = new Slot[INITIAL_CAPACITY];
+        } else if (count == slots.length) {
+            slots = Arrays.copyOf(slots, count * 2);
+        }
+        slots[count++] = slot;
+
+        return slot.component;
+    }
+
+    /**
+     * スコープ内のインスタンスを外す.
+     * <pre>
+     * 末尾と入れ替えるので順序は保持しない
+     * </pre>
+     * @param index 位置
+     */
+    private void remove(final int index) {
+
+        count--;
+        slots[index] = slots[count];
+        slots[count] = null;
+    }
+
+// =========================================================
+
+    /**
+     * スコープ内のインスタンス.
+     */
+    private static final class Slot {
+
+        /** 取得元のプール */
+        private final ScopePool pool;
+
+        /** インスタンス */
+        private final Object bean;
+
+        /** アスペクト適用後のインスタンス */
+        private final Object component;
+
+        /** 初期化 [ScopedComponentを実装していない場合はnull 型判定は生成時に一度だけ行う] */
+        private final ScopedComponent resettable;
+
+        /** reset済みで未使用 */
+        private boolean idle = false;
+
+        /**
+         * コンストラクタ.
+         * @param pool 取得元のプール
+         * @param bean インスタンス
+         * @param component アスペクト適用後のインスタンス
+         */
+        Slot(final ScopePool pool, final Object bean, final Object component) {
+            this.pool = pool;
+            this.bean = bean;
+            this.component = component;
+            this.resettable = bean instanceof ScopedComponent ? ScopedComponent.class.cast(bean) : null;
+        }
+    }
+
+    /**
+     * Bean毎のプール.
+     * <pre>
+     * コンテナの版毎に作成する
+     * </pre>
+     */
+    static final class ScopePool {
+
+        /** Bean定義 */
+        private final BeanMetaData beanMetaData;
+
+        /** 再利用時にインジェクションし直す */
+        private final boolean reinject;
+
+        /** プールしたインスタンス */
+        private final Queue<Slot> queue = new ConcurrentLinkedQueue<Slot>();
+
+        /** プールしたインスタンス数 */
+        private final AtomicInteger size = new AtomicInteger();
+
+        /**
+         * コンストラクタ.
+         * @param beanMetaData Bean定義
+         * @param reinject 再利用時にインジェクションし直す
+         */
+        ScopePool(final BeanMetaData beanMetaData, final boolean reinject) {
+            this.beanMetaData = beanMetaData;
+            this.reinject = reinject;
+        }
+
+        /**
+         * プールから取得する 無い場合は生成する.
+         * @param factory ファクトリ
+         * @return インスタンス
+         */
+        private Slot borrow(final ComponentFactory<?> factory) {
+
+            final Slot slot = queue.poll();
+            if (slot != null) {
+                size.decrementAndGet();
+                reuse(factory, slot);
+                return slot;
+            }
+
+            final Object bean = factory.newComponent(beanMetaData);
+            factory.injectComponent(beanMetaData, bean);
+
+            return new Slot(this, bean, factory.applyAspect(beanMetaData, bean));
+        }
+
+        /**
+         * resetしたインスタンスを再利用する.
+         * @param factory ファクトリ
+         * @param slot インスタンス
+         */
+        private void reuse(final ComponentFactory<?> factory, final Slot slot) {
+
+            if (reinject) {
+                factory.injectComponent(beanMetaData, slot.bean);
+            }
+            slot.idle = false;
+        }
+
+        /**
+         * プールに戻す.
+         * <pre>
+         * ScopedComponentを実装していない場合、上限を超える場合は破棄する
+         * </pre>
+         * @param slot インスタンス
+         */
+        private void release(final Slot slot) {
+
+            if (!slot.idle && !reset(slot)) {
+                return;
+            }
+            if (size.incrementAndGet() > POOL_SIZE) {
+                size.decrementAndGet();
+                return;
+            }
+            queue.offer(slot);
+        }
+
+        /**
+         * 再利用できるように初期化する.
+         * @param slot インスタンス
+         * @return 再利用できる場合はtrue
+         */
+        private boolean reset(final Slot slot) {
+
+            if (slot.resettable == null) {
+                return false;
+            }
+            try {
+                slot.resettable.reset();
+            } catch (RuntimeException e) {
+                // 初期化できないインスタンスは再利用しない
+                log.warn("ScopedComponent#reset error beanID:" + beanMetaData.getBeanID(), e);
+                return false;
+            }
+            slot.idle = true;
+
+            return true;
+        }
+    }
+}
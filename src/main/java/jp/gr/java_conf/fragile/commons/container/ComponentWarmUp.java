@@ -0,0 +1,271 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.container;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.gr.java_conf.fragile.commons.collect.Collect;
+import jp.gr.java_conf.fragile.commons.container.config.BeanMetaData;
+import jp.gr.java_conf.fragile.commons.container.config.XMLProperties;
+import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * コンテナの事前初期化.
+ *
+ * <pre>
+ * サービス起動時に任意で実行する
+ * XML定義を読み込み、キャッシュするBean(singleton/mbean/aspect)を全て生成する
+ * インジェクション、アスペクト定義から依存関係のグラフを作り
+ * 依存するBeanが生成済みになったBeanから並列に生成する
+ * 毎回生成するBeanを経由した依存も辿る
+ * 循環参照しているBeanは生成しない(初回取得時に例外となる)
+ * <code>
+ *  final Map&lt;String, Long&gt; times = new ComponentWarmUp().execute();
+ * </code>
+ * </pre>
+ */
+public final class ComponentWarmUp {
+
+    /** ロガー */
+    private static Logger log = LoggerFactory.getLogger(ComponentWarmUp.class);
+
+    /** 並列数 [0以下の場合はCPU数] */
+    private int parallelism = 0;
+
+    /** 待ち合わせの上限(ミリ秒) */
+    private long timeout = 60000L;
+
+// =========================================================
+
+    /**
+     * 並列数を設定する.
+     * @param parallelism 並列数 [0以下の場合はCPU数]
+     */
+    public void setParallelism(final int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 待ち合わせの上限を設定する.
+     * @param timeout ミリ秒
+     */
+    public void setTimeout(final long timeout) {
+        this.timeout = timeout;
+    }
+
+// =========================================================
+
+    /**
+     * 事前初期化する.
+     * @return BeanID毎の生成時間(マイクロ秒) 生成が終わった順
+     */
+    public Map<String, Long> execute() {
+
+        final long start = System.nanoTime();
+        final ComponentFactory<WarmUpComponent> factory = ComponentFactory.createFactory(WarmUpComponent.class);
+        final XMLProperties properties = factory.getProperties();
+
+        // 依存関係のグラフを作る
+        final Map<String, Node> nodes = Collect.newHashMap();
+        for (final String beanID : properties.getBeanIDs()) {
+            final BeanMetaData beanMetaData = properties.getBeanMetaData(beanID);
+            if (beanMetaData.getCreate().isCache()) {
+                nodes.put(beanID, new Node(beanID));
+            }
+        }
+        for (final Node node : nodes.values()) {
+            for (final String dependency : cachedDependencies(properties, node.beanID, nodes.keySet())) {
+                nodes.get(dependency).dependents.add(node);
+                node.pending.incrementAndGet();
+            }
+        }
+
+        final Map<String, Long> times = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+        final Map<String, Throwable> errors = new ConcurrentHashMap<String, Throwable>();
+        final CountDownLatch latch = new CountDownLatch(nodes.size());
+        final ForkJoinPool pool = new ForkJoinPool(
+            parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        try {
+            for (final Node node : nodes.values()) {
+                if (node.pending.get() == 0) {
+                    pool.execute(new WarmUpTask(pool, factory, node, times, errors, latch));
+                }
+            }
+            if (!latch.await(timeout, TimeUnit.MILLISECONDS) && log.isWarnEnabled()) {
+                // 循環参照しているBeanは生成されない
+                log.warn("ComponentWarmUp not initialized:" + (nodes.size() - times.size() - errors.size()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FGRuntimeException("ComponentWarmUp interrupted", e);
+        } finally {
+            pool.shutdown();
+        }
+
+        if (log.isInfoEnabled()) {
+            log.info("ComponentWarmUp beans:" + times.size() + " time:"
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        }
+
+        if (!errors.isEmpty()) {
+            // 事前初期化に失敗しました [{0}]
+            throw new FGRuntimeException("ComponentWarmUp error:" + errors.keySet(), errors.values().iterator().next());
+        }
+
+        synchronized (times) {
+            return new LinkedHashMap<String, Long>(times);
+        }
+    }
+
+    /**
+     * キャッシュするBeanへの依存を戻す.
+     * <pre>
+     * 毎回生成するBeanは生成時にロードされるので、その先を辿る
+     * </pre>
+     * @param properties XML定義
+     * @param beanID BeanID
+     * @param cached キャッシュするBeanID
+     * @return 依存するキャッシュするBeanID
+     */
+    private static Set<String> cachedDependencies(final XMLProperties properties, final String beanID,
+            final Set<String> cached) {
+
+        final Set<String> returnValue = Collect.newHashSet();
+        final Set<String> visited = Collect.newHashSet();
+        final List<String> stack = Collect.newArrayList(properties.getBeanMetaData(beanID).getDependencyIDs());
+        while (!stack.isEmpty()) {
+            final String dependency = stack.remove(stack.size() - 1);
+            if (!visited.add(dependency)) {
+                continue;
+            }
+            if (cached.contains(dependency)) {
+                returnValue.add(dependency);
+                continue;
+            }
+            final BeanMetaData beanMetaData = properties.getBeanMetaData(dependency);
+            if (beanMetaData != null) {
+                stack.addAll(beanMetaData.getDependencyIDs());
+            }
+        }
+        returnValue.remove(beanID);
+
+        return returnValue;
+    }
+
+// =========================================================
+
+    /**
+     * 取得する型 [生成したBeanは使用しない].
+     */
+    private interface WarmUpComponent {
+    }
+
+    /**
+     * 依存関係のグラフの節.
+     */
+    private static final class Node {
+
+        /** BeanID */
+        private final String beanID;
+
+        /** 未生成の依存Bean数 */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        /** このBeanに依存するBean */
+        private final List<Node> dependents = Collect.newArrayList();
+
+        /**
+         * コンストラクタ.
+         * @param beanID BeanID
+         */
+        Node(final String beanID) {
+            this.beanID = beanID;
+        }
+    }
+
+    /**
+     * Bean生成.
+     * <pre>
+     * 生成後に依存するBeanの未生成数を減らし、0になったものを実行する
+     * </pre>
+     */
+    private static final class WarmUpTask implements Runnable {
+
+        /** 実行先 */
+        private final ForkJoinPool pool;
+
+        /** ファクトリ */
+        private final ComponentFactory<?> factory;
+
+        /** 生成するBean */
+        private final Node node;
+
+        /** 生成時間 */
+        private final Map<String, Long> times;
+
+        /** 例外 */
+        private final Map<String, Throwable> errors;
+
+        /** 完了 */
+        private final CountDownLatch latch;
+
+        /**
+         * コンストラクタ.
+         * @param pool 実行先
+         * @param factory ファクトリ
+         * @param node 生成するBean
+         * @param times 生成時間
+         * @param errors 例外
+         * @param latch 完了
+         */
+        WarmUpTask(final ForkJoinPool pool, final ComponentFactory<?> factory, final Node node,
+                final Map<String, Long> times, final Map<String, Throwable> errors, final CountDownLatch latch) {
+            this.pool = pool;
+            this.factory = factory;
+            this.node = node;
+            this.times = times;
+            this.errors = errors;
+            this.latch = latch;
+        }
+
+        /**
+         * 生成する.
+         */
+        @Override
+        public void run() {
+
+            try {
+                final long start = System.nanoTime();
+                factory.loadComponent(node.beanID);
+                final long time = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                times.put(node.beanID, Long.valueOf(time));
+                if (log.isInfoEnabled()) {
+                    log.info("ComponentWarmUp beanID:" + node.beanID + " time:" + time + "us");
+                }
+            } catch (RuntimeException e) {
+                errors.put(node.beanID, e);
+                log.error("ComponentWarmUp error beanID:" + node.beanID, e);
+            } finally {
+                for (final Node dependent : node.dependents) {
+                    if (dependent.pending.decrementAndGet() == 0) {
+                        pool.execute(new WarmUpTask(pool, factory, dependent, times, errors, latch));
+                    }
+                }
+                latch.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.container;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jp.gr.java_conf.fragile.commons.collect.Collect;
+import jp.gr.java_conf.fragile.commons.container.config.BeanMetaData;
+import jp.gr.java_conf.fragile.commons.container.config.XMLProperties;
+
+/**
+ * コンテナの版.
+ * <pre>
+ * Bean定義とキャッシュしたコンポーネント、生成手順の組
+ * ファクトリは生成時の版を使い続けるので、定義の入れ替え中の処理は古い版で完了する
+ * 新しい版には定義が変わっていない生成済みのシングルトンを引き継ぐ
+ * 定義が変わったBeanと、それに依存するBeanは新しい版で生成し直す
+ * スコープのBeanのプールは引き継がない
+ * </pre>
+ */
+final class ContainerSnapshot {
+
+    /** 版番号 */
+    private final long version;
+
+    /** Bean定義 */
+    private final XMLProperties properties;
+
+    /** シングルトンキャッシュ */
+    private final ConcurrentMap<String, ComponentFactory.SingletonHolder> singletons
+        = new ConcurrentHashMap<String, ComponentFactory.SingletonHolder>();
+
+    /** 生成手順キャッシュ [毎回生成するBean] */
+    private final ConcurrentMap<String, ComponentPlan> plans = new ConcurrentHashMap<String, ComponentPlan>();
+
+    /** スコープのBeanのプール */
+    private final ConcurrentMap<String, ComponentScope.ScopePool> scopePools
+        = new ConcurrentHashMap<String, ComponentScope.ScopePool>();
+
+    /**
+     * コンストラクタ.
+     * @param version 版番号
+     * @param properties Bean定義
+     */
+    ContainerSnapshot(final long version, final XMLProperties properties) {
+        this.version = version;
+        this.properties = properties;
+    }
+
+// =========================================================
+
+    /**
+     * 版番号.
+     * @return 版番号
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Bean定義.
+     * @return Bean定義
+     */
+    XMLProperties getProperties() {
+        return properties;
+    }
+
+    /**
+     * シングルトンキャッシュ.
+     * @return シングルトンキャッシュ
+     */
+    ConcurrentMap<String, ComponentFactory.SingletonHolder> getSingletons() {
+        return singletons;
+    }
+
+    /**
+     * 生成手順キャッシュ.
+     * @return 生成手順キャッシュ
+     */
+    ConcurrentMap<String, ComponentPlan> getPlans() {
+        return plans;
+    }
+
+    /**
+     * スコープのBeanのプール.
+     * @return プール
+     */
+    ConcurrentMap<String, ComponentScope.ScopePool> getScopePools() {
+        return scopePools;
+    }
+
+// =========================================================
+
+    /**
+     * 次の版を作成する.
+     * @param nextProperties 新しいBean定義
+     * @return 次の版
+     */
+    ContainerSnapshot next(final XMLProperties nextProperties) {
+
+        final ContainerSnapshot next = new ContainerSnapshot(version + 1, nextProperties);
+        final Set<String> changed = changedBeanIDs(nextProperties);
+        for (final Map.Entry<String, ComponentFactory.SingletonHolder> entry : singletons.entrySet()) {
+            if (!changed.contains(entry.getKey()) && entry.getValue().isInitialized()) {
+                next.singletons.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * 次の版に引き継がないシングルトンを戻す.
+     * @param next 次の版
+     * @return BeanIDと生成済みのシングルトン
+     */
+    Map<String, ComponentFactory.SingletonHolder> retired(final ContainerSnapshot next) {
+
+        final Map<String, ComponentFactory.SingletonHolder> returnValue = Collect.newHashMap();
+        for (final Map.Entry<String, ComponentFactory.SingletonHolder> entry : singletons.entrySet()) {
+            if (entry.getValue().isInitialized() && next.singletons.get(entry.getKey()) != entry.getValue()) {
+                returnValue.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return returnValue;
+    }
+
+    /**
+     * 定義が変わったBeanIDを戻す.
+     * <pre>
+     * 追加、削除、変更されたBeanと、それらに依存するBean(推移的)
+     * </pre>
+     * @param nextProperties 新しいBean定義
+     * @return BeanID
+     */
+    private Set<String> changedBeanIDs(final XMLProperties nextProperties) {
+
+        final Set<String> changed = Collect.newHashSet();
+        for (final String beanID : properties.getBeanIDs()) {
+            if (!properties.getBeanMetaData(beanID).equals(nextProperties.getBeanMetaData(beanID))) {
+                changed.add(beanID);
+            }
+        }
+        for (final String beanID : nextProperties.getBeanIDs()) {
+            if (properties.getBeanMetaData(beanID) == null) {
+                changed.add(beanID);
+            }
+        }
+
+        // 依存先が変わったBeanも変更とする
+        boolean modified = !changed.isEmpty();
+        while (modified) {
+            modified = false;
+            for (final String beanID : nextProperties.getBeanIDs()) {
+                if (changed.contains(beanID)) {
+                    continue;
+                }
+                final BeanMetaData beanMetaData = nextProperties.getBeanMetaData(beanID);
+                for (final String dependency : beanMetaData.getDependencyIDs()) {
+                    if (changed.contains(dependency)) {
+                        changed.add(beanID);
+                        modified = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return changed;
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.container;
+
+/**
+ * スコープ単位のコンポーネント.
+ * <pre>
+ * thread、connection、requestのBeanが実装すると、スコープの終了時に
+ * resetを呼び出してプールに戻し、次のスコープで再利用する
+ * 実装しない場合はスコープの終了時に破棄する
+ * </pre>
+ */
+public interface ScopedComponent {
+
+    /**
+     * 状態を初期化する.
+     * <pre>
+     * スコープの終了時に呼ばれる
+     * インジェクションされた参照は残す事
+     * (毎回生成するBeanやスコープのBeanをインジェクションしている場合は再利用時に設定し直す)
+     * </pre>
+     */
+    void reset();
+}
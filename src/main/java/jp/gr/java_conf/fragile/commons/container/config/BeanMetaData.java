@@ -5,6 +5,7 @@ package jp.gr.java_conf.fragile.commons.container.config;
 
 import java.io.Serializable;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import jp.gr.java_conf.fragile.commons.collect.Collect;
@@ -178,6 +179,82 @@ public class BeanMetaData implements Serializable {
     public boolean isAspect() {
         return !aspect.isEmpty();
     }
+
+    /**
+     * 依存するBeanID.
+     * <pre>
+     * インジェクション、アスペクトのカンマ区切りのBeanIDを分割して戻す
+     * </pre>
+     * @return BeanID
+     */
+    public List<String> getDependencyIDs() {
+
+        final List<String> ids = Collect.newArrayList();
+        for (final String value : injection.values())
+            splitIDs(value, ids);
+        for (final String value : aspect.values())
+            splitIDs(value, ids);
+
+        return ids;
+    }
+
+    /**
+     * カンマ区切りのBeanIDを分割する.
+     * @param value カンマ区切りのBeanID
+     * @param ids 追加先
+     */
+    private static void splitIDs(final String value, final List<String> ids) {
+
+        if (value == null)
+            return;
+        for (final String id : value.split(",")) {
+            if (id.trim().length() > 0)
+                ids.add(id.trim());
+        }
+    }
+// =================================================
+
+    /**
+     * 定義内容が同じか判定する.
+     * @param obj 比較対象
+     * @return 定義内容が同じ場合はtrue
+     */
+    @java.lang.Override
+    public boolean equals(final Object obj) {
+
+        if (this == obj)
+            return true;
+        if (!(obj instanceof BeanMetaData))
+            return false;
+
+        final BeanMetaData other = BeanMetaData.class.cast(obj);
+        return equals(beanID, other.beanID)
+            && createTypes == other.createTypes
+            && typeTypes == other.typeTypes
+            && equals(src, other.src)
+            && injection.equals(other.injection)
+            && aspect.equals(other.aspect);
+    }
+
+    /**
+     * ハッシュ値.
+     * @return ハッシュ値
+     */
+    @java.lang.Override
+    public int hashCode() {
+        return beanID == null ? 0 : beanID.hashCode();
+    }
+
+    /**
+     * null可の比較.
+     * @param o1 比較対象
+     * @param o2 比較対象
+     * @return 同じ場合はtrue
+     */
+    private static boolean equals(final Object o1, final Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
 // =================================================
 
     /**
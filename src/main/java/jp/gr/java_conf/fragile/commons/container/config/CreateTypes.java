@@ -21,6 +21,12 @@ public enum CreateTypes {
     ASPECT("aspect", true),
     /** Beanのタイプ属性 */
     JNDI("jndi", false),
+    /** Beanのタイプ属性 スレッド単位にキャッシュする */
+    THREAD("thread", false, true),
+    /** Beanのタイプ属性 接続(AbstractListenerCommand)単位にキャッシュする */
+    CONNECTION("connection", false, true),
+    /** Beanのタイプ属性 要求単位にキャッシュする */
+    REQUEST("request", false, true),
     ;
 
     /** 値 */
@@ -28,14 +34,28 @@ public enum CreateTypes {
 
     private final boolean cache;
 
+    /** スコープ単位のインスタンスキャッシュ */
+    private final boolean scoped;
+
     /**
      * コンストラクタ.
      * @param attribute 名称
      * @param cache インスタンスキャッシュ
      */
     private CreateTypes(final String attribute, final boolean cache) {
+        this(attribute, cache, false);
+    }
+
+    /**
+     * コンストラクタ.
+     * @param attribute 名称
+     * @param cache インスタンスキャッシュ
+     * @param scoped スコープ単位のインスタンスキャッシュ
+     */
+    private CreateTypes(final String attribute, final boolean cache, final boolean scoped) {
         this.attribute = attribute;
         this.cache = cache;
+        this.scoped = scoped;
     }
 
     /**
@@ -54,6 +74,14 @@ public enum CreateTypes {
         return cache;
     }
 
+    /**
+     * スコープ判定.
+     * @return true = スコープ(thread、connection、request)単位にキャッシュする
+     */
+    public boolean isScoped() {
+        return scoped;
+    }
+
     /**
      * 定数変換.
      * @param value 文字列
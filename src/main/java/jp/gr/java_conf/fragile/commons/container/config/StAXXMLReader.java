@@ -0,0 +1,169 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.container.config;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
+
+/**
+ * XML定義値読み出しクラス(StAX).<br />
+ * <pre>
+ * DOMを構築せずに1回の走査でBean定義情報を生成する
+ * 解析結果はXMLReaderと同じ
+ * /container/component、./injection/method、./aspect/methodの
+ * 位置関係は要素の深さで判定する
+ * </pre>
+ */
+class StAXXMLReader extends XMLReader {
+
+    /** タグ名 */
+    protected static final String TAG_CONTAINER = "container";
+
+    /** タグ名 */
+    protected static final String TAG_COMPONENT = "component";
+
+    /** 要素の深さ */
+    private static final int DEPTH_CONTAINER = 1;
+
+    /** 要素の深さ */
+    private static final int DEPTH_COMPONENT = 2;
+
+    /** 要素の深さ */
+    private static final int DEPTH_SECTION = 3;
+
+    /** 要素の深さ */
+    private static final int DEPTH_METHOD = 4;
+
+    /** ファクトリ */
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+//  =========================================================================
+
+    /**
+     * XMLを読み込む.
+     * <pre>
+     * パラメータのXMLPropertiesに設定する。
+     * ストリームはクローズしない
+     * </pre>
+     * @param xmlProperties 値オブジェクト
+     * @param inputStream XML
+     */
+    @Override
+    public void read(final XMLProperties xmlProperties, final InputStream inputStream) {
+
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.createXMLStreamReader(inputStream);
+            loadContainer(xmlProperties, reader);
+        } catch (XMLStreamException e) {
+            // XMLの解析に失敗しました
+            throw new FGRuntimeException(e);
+        } finally {
+            closeReader(reader);
+        }
+    }
+
+    /**
+     * コンテナタグ情報を取得する.
+     * @param xmlProperties 設定する値オブジェクト
+     * @param reader XML
+     * @throws XMLStreamException 解析例外
+     */
+    protected void loadContainer(final XMLProperties xmlProperties, final XMLStreamReader reader) throws XMLStreamException {
+
+        int depth = 0;
+        boolean container = false;
+        BeanMetaData beanMetaData = null;
+        String section = null;
+
+        while (reader.hasNext()) {
+
+            final int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == DEPTH_COMPONENT && beanMetaData != null) {
+                    xmlProperties.putBeanMetaData(beanMetaData.getBeanID(), beanMetaData);
+                    beanMetaData = null;
+                } else if (depth == DEPTH_SECTION) {
+                    section = null;
+                }
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+
+            depth++;
+            final String name = reader.getLocalName();
+            if (depth == DEPTH_CONTAINER) {
+                container = TAG_CONTAINER.equals(name);
+            } else if (depth == DEPTH_COMPONENT && container && TAG_COMPONENT.equals(name)) {
+                beanMetaData = new BeanMetaData()
+                    .setBeanID(attribute(reader, ATTR_BEANID))
+                    .setCreate(attribute(reader, ATTR_CREATE))
+                    .setSrc(attribute(reader, ATTR_SRC))
+                    .setType(attribute(reader, ATTR_TYPE));
+            } else if (depth == DEPTH_SECTION && beanMetaData != null
+                    && (TAG_INJECTION.equals(name) || TAG_ASPECT.equals(name))) {
+                section = name;
+            } else if (depth == DEPTH_METHOD && section != null && TAG_METHOD.equals(name)) {
+                loadContainerMethod(reader, beanMetaData, section);
+            }
+        }
+    }
+
+    /**
+     * セッター情報を解析して設定する.
+     * @param reader XML
+     * @param beanMetaData Bean定義情報
+     * @param tag 解析中のタグ
+     */
+    protected void loadContainerMethod(final XMLStreamReader reader, final BeanMetaData beanMetaData, final String tag) {
+
+        final String name = attribute(reader, ATTR_METHOD_NAME);
+        final String id = attribute(reader, ATTR_METHOD_ID);
+
+        if (TAG_INJECTION.equals(tag))
+            beanMetaData.putInjections(name, id);
+
+        if (TAG_ASPECT.equals(tag))
+            beanMetaData.putAspects(name, id);
+    }
+
+    /**
+     * 属性値を取得する.
+     * <pre>
+     * DOMと同じく属性が無い場合は空文字とする
+     * </pre>
+     * @param reader XML
+     * @param name 属性名
+     * @return 属性値
+     */
+    private static String attribute(final XMLStreamReader reader, final String name) {
+
+        final String value = reader.getAttributeValue(null, name);
+
+        return value == null ? "" : value;
+    }
+
+    /**
+     * リーダーをクローズする.
+     * @param reader XML
+     */
+    private static void closeReader(final XMLStreamReader reader) {
+
+        try {
+            if (reader != null) reader.close();
+        } catch (XMLStreamException e) {
+            // 入力ファイルのクローズに失敗しました
+            throw new FGRuntimeException(e);
+        }
+    }
+}
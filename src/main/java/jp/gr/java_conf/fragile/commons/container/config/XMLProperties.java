@@ -3,8 +3,10 @@
  */
 package jp.gr.java_conf.fragile.commons.container.config;
 
+import java.io.File;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 import jp.gr.java_conf.fragile.commons.collect.Collect;
 import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
@@ -15,10 +17,10 @@ import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
 public final class XMLProperties {
 
     /** シングルトン */
-    private static XMLProperties instance;
+    private static volatile XMLProperties instance;
 
     /** 保持する */
-    private static final XMLReader reader = new XMLReader();
+    private static final XMLReader reader = XMLReader.newReader();
 
 // =============================================================================
 
@@ -27,8 +29,9 @@ public final class XMLProperties {
 
     /**
      * コンストラクタ。<br />
+     * パッケージ内の読み出しクラスの試験用に公開する
      */
-    private XMLProperties() {
+    XMLProperties() {
     }
 
 // =============================================================================
@@ -36,6 +39,7 @@ public final class XMLProperties {
     /**
      * 初期化する.<br />
      * MBeanから実行する
+     * 次のgetInstanceで読み込み直す
      */
     public static void init() {
         instance = null;
@@ -45,28 +49,71 @@ public final class XMLProperties {
      * シングルトン取得。<br />
      * <pre>
      * インスタンスが存在しない場合はXMLReaderで値を設定する。
-     * サービス起動のmainスレッドで読み込むので特に同期化は行わない
+     * 読み込みは1スレッドのみで行う
      * </pre>
      * @return インスタンス
      */
     public static XMLProperties getInstance() {
 
-        if (instance != null)
+        final XMLProperties current = instance;
+        if (current != null)
+            return current;
+
+        synchronized (XMLProperties.class) {
+            if (instance == null)
+                instance = load();
             return instance;
+        }
+    }
+
+    /**
+     * 読み込み済みのシングルトン取得。<br />
+     * @return インスタンス 未読み込み、init後はnull
+     */
+    public static XMLProperties getLoadedInstance() {
+        return instance;
+    }
+
+    /**
+     * 読み込み直す。<br />
+     * <pre>
+     * 新しいインスタンスに読み込んでから入れ替えるので
+     * 読み込み中もgetInstanceは現在のインスタンスを戻す
+     * </pre>
+     * @return 新しいインスタンス
+     */
+    public static XMLProperties reload() {
+
+        final XMLProperties properties = load();
+        synchronized (XMLProperties.class) {
+            instance = properties;
+        }
+
+        return properties;
+    }
+
+    /**
+     * XMLを読み込む。<br />
+     * @return 新しいインスタンス
+     */
+    private static XMLProperties load() {
 
         final XMLProperties properties = new XMLProperties();
 
         try {
-            reader.read(properties);
+            // キャッシュのディレクトリが指定されている場合はバイナリキャッシュを使用する
+            final String cacheDirectory = System.getProperty(XMLPropertiesCache.CACHE_DIR_KEY);
+            if (cacheDirectory != null) {
+                new XMLPropertiesCache(new File(cacheDirectory)).read(reader, properties);
+            } else {
+                reader.read(properties);
+            }
         } catch (Exception e) {
             // XML定義読み出しに失敗しました
             throw new FGRuntimeException("XMLReader error", e);
         }
 
-        if (instance == null) // 同期化してないので保険
-            instance = properties;
-
-        return instance;
+        return properties;
     }
 
 //  =========================================================================
@@ -92,6 +139,14 @@ public final class XMLProperties {
         }
     }
 
+    /**
+     * 定義されている全てのBeanIDを戻す.<br />
+     * @return 不変セット
+     */
+    public Set<String> getBeanIDs() {
+        return Collections.unmodifiableSet(beanMetaDatas.keySet());
+    }
+
     /**
      * 不変マップにして戻す.
      * @return マップ
@@ -0,0 +1,332 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.container.config;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
+import jp.gr.java_conf.fragile.commons.io.IOUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * XML定義値のバイナリキャッシュ.<br />
+ * <pre>
+ * 解析したBean定義情報をXMLのチェックサムをキーにしたファイルに保存し
+ * 次回以降の起動ではファイルをメモリマップして読み込む
+ * XMLが変更された場合はチェックサムが変わるので解析し直して保存する
+ * キャッシュのディレクトリを-Dで指定した場合のみ使用する
+ * ビルド時に作成する場合はmainを実行する
+ *
+ * 形式
+ *   int マジック, int バージョン, long チェックサム, int XMLの長さ, int Bean数
+ *   Bean毎 文字列 BeanID, 生成方法, タイプ, ソース
+ *          int インジェクション数, 文字列 メソッド名, BeanID ...
+ *          int アスペクト数, 文字列 メソッド名, BeanID ...
+ *   文字列 int 長さ(nullは-1), UTF-8
+ * </pre>
+ */
+public final class XMLPropertiesCache {
+
+    /** ログ出力クラス定義 */
+    private static Logger log = LoggerFactory.getLogger(XMLPropertiesCache.class);
+
+    /** -Dのキー名 キャッシュのディレクトリ */
+    public static final String CACHE_DIR_KEY = "jp.gr.java_conf.fragile.commons.container.cache";
+
+    /** マジック */
+    private static final int MAGIC = 0x46474331;
+
+    /** バージョン */
+    private static final int VERSION = 1;
+
+    /** ファイルの拡張子 */
+    private static final String SUFFIX = ".bin";
+
+    /** 文字コード */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** キャッシュのディレクトリ */
+    private final File directory;
+
+    /**
+     * コンストラクタ.
+     * @param directory キャッシュのディレクトリ
+     */
+    public XMLPropertiesCache(final File directory) {
+        this.directory = directory;
+    }
+
+// =============================================================================
+
+    /**
+     * キャッシュを作成する.<br />
+     * <pre>
+     * 引数 キャッシュのディレクトリ
+     * XMLのパスは実行時と同じく-Dで指定する
+     * </pre>
+     * @param args 引数
+     */
+    public static void main(final String[] args) {
+
+        if (args.length < 1) {
+            System.err.println("usage: XMLPropertiesCache cacheDirectory");
+            return;
+        }
+        new XMLPropertiesCache(new File(args[0])).read(XMLReader.newReader(), new XMLProperties());
+    }
+
+    /**
+     * XMLを読み込む.
+     * <pre>
+     * キャッシュがある場合はキャッシュから、無い場合はXMLを解析してキャッシュを保存する
+     * </pre>
+     * @param reader XML読み出しクラス
+     * @param xmlProperties 値オブジェクト
+     */
+    public void read(final XMLReader reader, final XMLProperties xmlProperties) {
+
+        final String configPath = reader.resolveConfigPath();
+        final byte[] xml;
+        final InputStream inputStream = reader.getXmlInputStream(configPath);
+        try {
+            xml = IOUtil.readAll(inputStream);
+        } catch (IOException e) {
+            // 定義ファイルの読み込みに失敗しました path[{0}]
+            throw new FGRuntimeException(configPath, e);
+        } finally {
+            reader.closeStream(inputStream);
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(xml, 0, xml.length);
+        final long checksum = crc.getValue();
+        final File file = new File(directory, cacheName(configPath) + "-" + Long.toHexString(checksum) + SUFFIX);
+
+        if (file.isFile() && load(file, checksum, xml.length, xmlProperties)) {
+            if (log.isDebugEnabled()) {
+                log.debug("XMLPropertiesCache load:" + file);
+            }
+            return;
+        }
+
+        reader.read(xmlProperties, new ByteArrayInputStream(xml));
+        save(file, configPath, checksum, xml.length, xmlProperties);
+    }
+
+// =============================================================================
+
+    /**
+     * キャッシュを読み込む.
+     * @param file キャッシュ
+     * @param checksum XMLのチェックサム
+     * @param length XMLの長さ
+     * @param xmlProperties 値オブジェクト
+     * @return 読み込めた場合はtrue
+     */
+    private boolean load(final File file, final long checksum, final int length, final XMLProperties xmlProperties) {
+
+        try {
+            final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                        || buffer.getLong() != checksum || buffer.getInt() != length) {
+                    return false;
+                }
+
+                // 途中で失敗した場合に備えて一時的な値オブジェクトに読み込む
+                final XMLProperties loaded = new XMLProperties();
+                final int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    final BeanMetaData beanMetaData = new BeanMetaData()
+                        .setBeanID(getString(buffer))
+                        .setCreate(getString(buffer))
+                        .setType(getString(buffer))
+                        .setSrc(getString(buffer));
+                    final int injections = buffer.getInt();
+                    for (int j = 0; j < injections; j++) {
+                        beanMetaData.putInjections(getString(buffer), getString(buffer));
+                    }
+                    final int aspects = buffer.getInt();
+                    for (int j = 0; j < aspects; j++) {
+                        beanMetaData.putAspects(getString(buffer), getString(buffer));
+                    }
+                    loaded.putBeanMetaData(beanMetaData.getBeanID(), beanMetaData);
+                }
+
+                for (final Map.Entry<String, BeanMetaData> entry : loaded.getBeanMetaDatas().entrySet()) {
+                    xmlProperties.putBeanMetaData(entry.getKey(), entry.getValue());
+                }
+                return true;
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.warn("XMLPropertiesCache load error:" + file, e);
+        } catch (RuntimeException e) {
+            // 壊れている場合はXMLを解析し直す
+            log.warn("XMLPropertiesCache broken:" + file, e);
+        }
+
+        return false;
+    }
+
+    /**
+     * キャッシュを保存する.
+     * <pre>
+     * 一時ファイルに書き込んでから置き換える
+     * 同じXMLの古いチェックサムのキャッシュは削除する
+     * 保存に失敗しても解析結果は使用できるので例外にはしない
+     * 置き換えられなかった一時ファイルは削除する
+     * </pre>
+     * @param file キャッシュ
+     * @param configPath コンフィグパス
+     * @param checksum XMLのチェックサム
+     * @param length XMLの長さ
+     * @param xmlProperties 値オブジェクト
+     */
+    private void save(final File file, final String configPath, final long checksum, final int length,
+            final XMLProperties xmlProperties) {
+
+        File temp = null;
+        boolean moved = false;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("mkdirs error:" + directory);
+            }
+            temp = File.createTempFile(file.getName(), ".tmp", directory);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                final Map<String, BeanMetaData> beanMetaDatas = xmlProperties.getBeanMetaDatas();
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(checksum);
+                out.writeInt(length);
+                out.writeInt(beanMetaDatas.size());
+                for (final BeanMetaData beanMetaData : beanMetaDatas.values()) {
+                    putString(out, beanMetaData.getBeanID());
+                    putString(out, beanMetaData.getCreate().getLabel());
+                    putString(out, beanMetaData.getType().getLabel());
+                    putString(out, beanMetaData.getSrc());
+                    putMap(out, beanMetaData.getInjections());
+                    putMap(out, beanMetaData.getAspects());
+                }
+            } finally {
+                out.close();
+            }
+
+            deleteOldCaches(cacheName(configPath), file);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+            if (log.isDebugEnabled()) {
+                log.debug("XMLPropertiesCache save:" + file);
+            }
+        } catch (IOException e) {
+            log.warn("XMLPropertiesCache save error:" + file, e);
+        } finally {
+            if (temp != null && !moved && !temp.delete() && temp.exists()) {
+                log.warn("XMLPropertiesCache temp delete error:" + temp);
+            }
+        }
+    }
+
+    /**
+     * 古いチェックサムのキャッシュを削除する.
+     * @param name キャッシュ名
+     * @param file 保存するキャッシュ
+     * @throws IOException 入出力例外
+     */
+    private void deleteOldCaches(final String name, final File file) throws IOException {
+
+        final DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath(), name + "-*" + SUFFIX);
+        try {
+            for (final Path path : stream) {
+                if (!path.getFileName().toString().equals(file.getName())) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+// =============================================================================
+
+    /**
+     * キャッシュ名.
+     * @param configPath コンフィグパス
+     * @return パスの記号を置き換えた名前
+     */
+    private static String cacheName(final String configPath) {
+        return configPath.replaceAll("[^A-Za-z0-9_.]", "_");
+    }
+
+    /**
+     * 文字列を読み込む.
+     * @param buffer キャッシュ
+     * @return 文字列
+     */
+    private static String getString(final ByteBuffer buffer) {
+
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * 文字列を書き込む.
+     * @param out 出力先
+     * @param value 文字列
+     * @throws IOException 入出力例外
+     */
+    private static void putString(final DataOutputStream out, final String value) throws IOException {
+
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * メソッド名とBeanIDを書き込む.
+     * @param out 出力先
+     * @param map メソッド名とBeanID
+     * @throws IOException 入出力例外
+     */
+    private static void putMap(final DataOutputStream out, final Map<String, String> map) throws IOException {
+
+        out.writeInt(map.size());
+        for (final Map.Entry<String, String> entry : map.entrySet()) {
+            putString(out, entry.getKey());
+            putString(out, entry.getValue());
+        }
+    }
+}
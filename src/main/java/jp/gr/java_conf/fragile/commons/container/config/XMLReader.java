@@ -24,6 +24,10 @@ import org.w3c.dom.NodeList;
 
 /**
  * XML定義値読み出しクラス.<br />
+ * <pre>
+ * DOMで読み込みXPathで解析する
+ * 既定ではStAXで読み込むStAXXMLReaderを使用する
+ * </pre>
  */
 class XMLReader {
 
@@ -33,6 +37,9 @@ class XMLReader {
     /** -Dのキー名 */
     public static final String CONFIG_PSTH_KEY = "jp.gr.java_conf.fragile.commons.container.config";
 
+    /** -Dのキー名 読み込み方式 [dom:DOM+XPath それ以外:StAX] */
+    public static final String READER_KEY = "jp.gr.java_conf.fragile.commons.container.reader";
+
     /** XMLファイルパス */
     public static final String FILE_PATH = "/component.xml";
 
@@ -95,6 +102,19 @@ class XMLReader {
         XMLReader.configPath = configPath;
     }
 
+    /**
+     * 読み込み方式に応じたインスタンスを生成する.<br />
+     * @return 読み出しクラス
+     */
+    static XMLReader newReader() {
+
+        if ("dom".equals(System.getProperty(READER_KEY))) {
+            return new XMLReader();
+        }
+
+        return new StAXXMLReader();
+    }
+
 //  =========================================================================
 
     /**
@@ -106,7 +126,26 @@ class XMLReader {
      */
     public void read(final XMLProperties xmlProperties) {
 
-        root = getRootDocument();
+        final InputStream inputStream = getXmlInputStream(resolveConfigPath());
+        try {
+            read(xmlProperties, inputStream);
+        } finally {
+            closeStream(inputStream);
+        }
+    }
+
+    /**
+     * XMLを読み込む.
+     * <pre>
+     * パラメータのXMLPropertiesに設定する。
+     * ストリームはクローズしない
+     * </pre>
+     * @param xmlProperties 値オブジェクト
+     * @param inputStream XML
+     */
+    public void read(final XMLProperties xmlProperties, final InputStream inputStream) {
+
+        root = getRootDocument(inputStream);
         xpath = XPathFactory.newInstance().newXPath();
 
         try {
@@ -200,8 +239,22 @@ class XMLReader {
      */
     protected Document getRootDocument() {
 
+        final InputStream inputStream = getXmlInputStream(resolveConfigPath());
+        try {
+            return getRootDocument(inputStream);
+        } finally {
+            closeStream(inputStream);
+        }
+    }
+
+    /**
+     * ドキュメントの生成。<br />
+     * @param inputStream XML
+     * @return ドキュメント
+     */
+    protected Document getRootDocument(final InputStream inputStream) {
+
         Document document = null;
-        InputStream inputStream = null;
 
         try {
             final DocumentBuilderFactory documentBuilderFactory
@@ -209,20 +262,8 @@ class XMLReader {
             documentBuilderFactory.setNamespaceAware(true);
             final DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
 
-            // MBean経由で設定されている場合は設定値を使用する
-            if (configPath == null) {
-                // 初回に初期化して設定値を設定する
-                // -Dにパスが定義されている場合には指定値を使用する
-                // 設定が無い場合は初期値を使用する
-                configPath = System.getProperty(CONFIG_PSTH_KEY, FILE_PATH);
-            }
-
-            inputStream = getXmlInputStream(configPath);
             document = documentBuilder.parse(inputStream);
-
-            closeStream(inputStream);
         } catch (Exception e) {
-            closeStream(inputStream);
             // DOMの生成に失敗しました
             throw new FGRuntimeException(e);
         }
@@ -230,6 +271,23 @@ class XMLReader {
         return document;
     }
 
+    /**
+     * 読み込むコンフィグパスを戻す.<br />
+     * @return コンフィグパス
+     */
+    protected String resolveConfigPath() {
+
+        // MBean経由で設定されている場合は設定値を使用する
+        if (configPath == null) {
+            // 初回に初期化して設定値を設定する
+            // -Dにパスが定義されている場合には指定値を使用する
+            // 設定が無い場合は初期値を使用する
+            configPath = System.getProperty(CONFIG_PSTH_KEY, FILE_PATH);
+        }
+
+        return configPath;
+    }
+
     /**
      * ストリームをクローズする。<br />
      * @param inputStream クロースするストリーム
@@ -0,0 +1,541 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.io;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ダイレクトバッファのプール.
+ * <pre>
+ * 2のべき乗のサイズクラス毎にバッファを再利用する
+ * 取得と返却はまずスレッド毎のキャッシュで行い、溢れた分と不足分は共有領域とやり取りする
+ * 仮想スレッドはコマンド毎に終了するのでスレッド毎のキャッシュを使用しない
+ * 終了したスレッドのキャッシュは共有領域が空になった時に共有領域へ戻す
+ * 共有領域が空の場合はまとめて確保した領域を分割して補充するので
+ * allocateDirectの呼び出しはサイズクラス毎にチャンク単位になる
+ * ヒープのバッファと違いチャネルの読み書きでJDK内部の一時バッファへのコピーが発生しない
+ * 最大サイズを超える要求はプールせずに都度確保する
+ *
+ * デバッグ時にシステムプロパティ
+ * jp.gr.java_conf.fragile.commons.io.bufferLeakDetection=true を指定すると
+ * 返却されずに回収されたバッファを取得時のスタックトレース付きで警告する
+ * (取得毎にスタックトレースを取るので本番では指定しない事)
+ * </pre>
+ */
+public final class DirectBufferPool {
+
+    /** ロガー */
+    private static Logger log = LoggerFactory.getLogger(DirectBufferPool.class);
+
+    /** リーク検出を有効にするシステムプロパティ */
+    public static final String LEAK_DETECTION_KEY = "jp.gr.java_conf.fragile.commons.io.bufferLeakDetection";
+
+    /** まとめて確保する大きさ */
+    private static final int CHUNK_SIZE = 65536;
+
+    /** 共通のプール */
+    private static final DirectBufferPool DEFAULT = new DirectBufferPool(512, 65536, 256, 16);
+
+    /** Thread#isVirtual [Java21未満はnull] */
+    private static final Method IS_VIRTUAL = findIsVirtual();
+
+// =============================================================================
+
+    /** 最小サイズクラスのビット数 */
+    private final int minShift;
+
+    /** プールする最大サイズ */
+    private final int maxSize;
+
+    /** スレッド毎のキャッシュ数(サイズクラス毎) */
+    private final int threadCacheSize;
+
+    /** サイズクラス毎の共有領域 */
+    private final ArrayBlockingQueue<ByteBuffer>[] arenas;
+
+    /** キャッシュしないスレッドのキャッシュ [全スレッドで共有する 数が0なので更新されない] */
+    private final ThreadCache noCache;
+
+    /** スレッド毎のキャッシュ */
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            final Thread thread = Thread.currentThread();
+            if (threadCacheSize == 0 || isVirtual(thread)) {
+                return noCache;
+            }
+            final ThreadCache cache = new ThreadCache(arenas.length, threadCacheSize, thread);
+            caches.add(cache);
+            return cache;
+        }
+    };
+
+    /** 使用中のスレッド毎のキャッシュ [終了したスレッドの分を回収する] */
+    private final Queue<ThreadCache> caches = new ConcurrentLinkedQueue<ThreadCache>();
+
+    /** 確保したダイレクトメモリのバイト数 */
+    private final AtomicLong allocatedCapacity = new AtomicLong();
+
+    /** リーク検出 */
+    private final boolean leakDetection;
+
+    /** 貸出中のバッファ [リーク検出時のみ] */
+    private final ConcurrentMap<LeakTracker, Boolean> trackers;
+
+    /** 返却されずに回収されたバッファ [リーク検出時のみ] */
+    private final ReferenceQueue<ByteBuffer> collected;
+
+    /** 検出したリーク数 */
+    private final AtomicLong leakCount = new AtomicLong();
+
+// =============================================================================
+
+    /**
+     * 共通のプールを戻す.
+     * <pre>
+     * 512バイトから64KBまでをプールする
+     * </pre>
+     * @return プール
+     */
+    public static DirectBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * コンストラクタ.
+     * @param minSize 最小のサイズクラス [2のべき乗に切り上げる]
+     * @param maxSize プールする最大サイズ [2のべき乗に切り上げる]
+     * @param arenaCapacity 共有領域に保持する数(サイズクラス毎)
+     * @param threadCacheSize スレッド毎にキャッシュする数(サイズクラス毎)
+     */
+    public DirectBufferPool(final int minSize, final int maxSize, final int arenaCapacity, final int threadCacheSize) {
+
+        this.minShift = shift(Math.max(minSize, 1));
+        this.maxSize = 1 << Math.max(shift(Math.max(maxSize, 1)), minShift);
+        this.threadCacheSize = Math.max(threadCacheSize, 0);
+        this.arenas = createArenas(shift(this.maxSize) - minShift + 1, Math.max(arenaCapacity, 1));
+        this.noCache = new ThreadCache(arenas.length, 0, null);
+
+        this.leakDetection = Boolean.getBoolean(LEAK_DETECTION_KEY);
+        if (leakDetection) {
+            trackers = new ConcurrentHashMap<LeakTracker, Boolean>();
+            collected = new ReferenceQueue<ByteBuffer>();
+        } else {
+            trackers = null;
+            collected = null;
+        }
+    }
+
+// =============================================================================
+
+    /**
+     * バッファを取得する.
+     * <pre>
+     * 容量は要求サイズをサイズクラスに切り上げた大きさになる
+     * position=0、limit=capacityの状態で戻す 内容は初期化しない
+     * 使用後はreleaseで返却してください
+     * </pre>
+     * @param size 必要なバイト数
+     * @return ダイレクトバッファ
+     */
+    public ByteBuffer acquire(final int size) {
+
+        if (leakDetection) {
+            reportLeaks();
+        }
+
+        if (size > maxSize) {
+            // プールしない
+            return track(ByteBuffer.allocateDirect(size));
+        }
+
+        final int index = index(size);
+        ByteBuffer buffer = threadCache.get().pop(index);
+        if (buffer == null) {
+            buffer = arenas[index].poll();
+        }
+        if (buffer == null && reclaim()) {
+            buffer = arenas[index].poll();
+        }
+        if (buffer == null) {
+            buffer = allocate(index);
+        }
+        buffer.clear();
+
+        return track(buffer);
+    }
+
+    /**
+     * バッファを返却する.
+     * <pre>
+     * 返却後のバッファは使用しない事
+     * ヒープのバッファ、サイズクラス外のバッファは破棄する
+     * </pre>
+     * @param buffer acquireで取得したバッファ [nullの場合は何もしない]
+     */
+    public void release(final ByteBuffer buffer) {
+
+        if (buffer == null) {
+            return;
+        }
+
+        if (leakDetection && trackers.remove(new LeakTracker(buffer)) == null) {
+            // 二重返却をプールに戻すと別の利用者とバッファを共有してしまう
+            log.warn("ByteBuffer released twice or not acquired from this pool", new IllegalStateException());
+            return;
+        }
+
+        final int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity > maxSize || Integer.bitCount(capacity) != 1
+                || capacity < (1 << minShift)) {
+            return;
+        }
+
+        final int index = index(capacity);
+        if (threadCache.get().push(index, buffer)) {
+            return;
+        }
+        // 共有領域も一杯の場合はGCに任せる
+        arenas[index].offer(buffer);
+    }
+
+    /**
+     * 現在のスレッドではスレッド毎のキャッシュを使用しない.
+     * <pre>
+     * キャッシュしていたバッファは共有領域に戻す
+     * 返却だけを行うスレッド(リアクターモードのセレクタのスレッドなど)で呼び出す
+     * キャッシュすると取得に使われないバッファがスレッドに溜まる
+     * </pre>
+     */
+    public void disableThreadCache() {
+
+        final ThreadCache cache = threadCache.get();
+        threadCache.set(noCache);
+        if (caches.remove(cache)) {
+            cache.drain(arenas);
+        }
+    }
+
+    /**
+     * 確保したダイレクトメモリのバイト数を戻す.
+     * @return バイト数 [プールしないサイズの分は含まない]
+     */
+    public long getAllocatedCapacity() {
+        return allocatedCapacity.get();
+    }
+
+    /**
+     * 検出したリーク数を戻す.
+     * @return リーク数 [リーク検出が無効の場合は0]
+     */
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
+// =============================================================================
+
+    /**
+     * チャンクを確保して分割し、1つを戻して残りを共有領域に入れる.
+     * @param index サイズクラス
+     * @return バッファ
+     */
+    private ByteBuffer allocate(final int index) {
+
+        final int size = 1 << (index + minShift);
+        final int count = Math.max(CHUNK_SIZE / size, 1);
+        final ByteBuffer chunk = ByteBuffer.allocateDirect(size * count);
+        allocatedCapacity.addAndGet(chunk.capacity());
+
+        ByteBuffer first = null;
+        for (int i = 0; i < count; i++) {
+            chunk.limit(size * (i + 1));
+            chunk.position(size * i);
+            final ByteBuffer buffer = chunk.slice();
+            if (first == null) {
+                first = buffer;
+            } else if (!arenas[index].offer(buffer)) {
+                break;
+            }
+        }
+
+        return first;
+    }
+
+    /**
+     * 終了したスレッドのキャッシュを共有領域に戻す.
+     * <pre>
+     * キューから外せたスレッドだけが戻すので同じキャッシュを二重に戻す事は無い
+     * 終了したスレッドはキャッシュを更新しない
+     * </pre>
+     * @return 戻した場合はtrue
+     */
+    private boolean reclaim() {
+
+        boolean reclaimed = false;
+        for (final ThreadCache cache : caches) {
+            if (!cache.isAlive() && caches.remove(cache)) {
+                cache.drain(arenas);
+                reclaimed = true;
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * リーク検出に登録する.
+     * @param buffer バッファ
+     * @return buffer
+     */
+    private ByteBuffer track(final ByteBuffer buffer) {
+
+        if (leakDetection) {
+            trackers.put(new LeakTracker(buffer, collected), Boolean.TRUE);
+        }
+        return buffer;
+    }
+
+    /**
+     * 返却されずに回収されたバッファを警告する.
+     */
+    private void reportLeaks() {
+
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) collected.poll()) != null) {
+            if (trackers.remove(tracker) != null) {
+                leakCount.incrementAndGet();
+                log.warn("ByteBuffer leak: capacity=" + tracker.capacity, tracker.allocation);
+            }
+        }
+    }
+
+    /**
+     * サイズクラスを求める.
+     * @param size サイズ
+     * @return サイズクラスの添字
+     */
+    private int index(final int size) {
+        return Math.max(shift(size) - minShift, 0);
+    }
+
+    /**
+     * サイズクラス毎の共有領域を生成する.
+     * @param count サイズクラスの数
+     * @param capacity 保持する数
+     * @return 共有領域
+     */
+    @SuppressWarnings("unchecked")
+    private static ArrayBlockingQueue<ByteBuffer>[] createArenas(final int count, final int capacity) {
+
+        // ジェネリクスの配列は生成できないので非境界ワイルドカードの配列をキャストする
+        final ArrayBlockingQueue<ByteBuffer>[] arenas = (ArrayBlockingQueue<ByteBuffer>[]) new ArrayBlockingQueue<?>[count];
+        for (int i = 0; i < count; i++) {
+            arenas[i] = new ArrayBlockingQueue<ByteBuffer>(capacity);
+        }
+        return arenas;
+    }
+
+    /**
+     * 仮想スレッドか判定する.
+     * @param thread スレッド
+     * @return 仮想スレッドの場合はtrue
+     */
+    private static boolean isVirtual(final Thread thread) {
+
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return Boolean.TRUE.equals(IS_VIRTUAL.invoke(thread));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Thread#isVirtualを取得する.
+     * @return メソッド [Java21未満はnull]
+     */
+    private static Method findIsVirtual() {
+
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 2のべき乗に切り上げたビット数を求める.
+     * @param size サイズ [1以上]
+     * @return ビット数
+     */
+    private static int shift(final int size) {
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+// =============================================================================
+
+    /**
+     * スレッド毎のキャッシュ.
+     */
+    private static final class ThreadCache {
+
+        /** サイズクラス毎のスタック */
+        private final ByteBuffer[][] stacks;
+
+        /** サイズクラス毎の数 */
+        private final int[] counts;
+
+        /** 所有するスレッド [スレッドの回収を妨げないよう弱参照] */
+        private final WeakReference<Thread> owner;
+
+        /**
+         * コンストラクタ.
+         * @param classes サイズクラス数
+         * @param size キャッシュする数
+         * @param owner 所有するスレッド [キャッシュしない場合はnull]
+         */
+        ThreadCache(final int classes, final int size, final Thread owner) {
+            this.stacks = new ByteBuffer[classes][size];
+            this.counts = new int[classes];
+            this.owner = new WeakReference<Thread>(owner);
+        }
+
+        /**
+         * 所有するスレッドが動作中か.
+         * @return 動作中の場合はtrue
+         */
+        boolean isAlive() {
+            final Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+
+        /**
+         * 全て共有領域に戻す.
+         * <pre>
+         * 共有領域が一杯の場合はGCに任せる
+         * </pre>
+         * @param arenas サイズクラス毎の共有領域
+         */
+        void drain(final ArrayBlockingQueue<ByteBuffer>[] arenas) {
+
+            for (int i = 0; i < stacks.length; i++) {
+                ByteBuffer buffer;
+                while ((buffer = pop(i)) != null) {
+                    arenas[i].offer(buffer);
+                }
+            }
+        }
+
+        /**
+         * 取り出す.
+         * @param index サイズクラス
+         * @return バッファ 無い場合はnull
+         */
+        ByteBuffer pop(final int index) {
+
+            final int count = counts[index];
+            if (count == 0) {
+                return null;
+            }
+            final ByteBuffer[] stack = stacks[index];
+            final ByteBuffer buffer = stack[count - 1];
+            stack[count - 1] = null;
+            counts[index] = count - 1;
+
+            return buffer;
+        }
+
+        /**
+         * 入れる.
+         * @param index サイズクラス
+         * @param buffer バッファ
+         * @return 一杯の場合はfalse
+         */
+        boolean push(final int index, final ByteBuffer buffer) {
+
+            final int count = counts[index];
+            final ByteBuffer[] stack = stacks[index];
+            if (count == stack.length) {
+                return false;
+            }
+            stack[count] = buffer;
+            counts[index] = count + 1;
+
+            return true;
+        }
+    }
+
+    /**
+     * 貸出中のバッファ.
+     * <pre>
+     * バッファへの参照は弱参照なので返却されずに参照が無くなると回収キューに入る
+     * 同一性はバッファの同一性で判定する
+     * </pre>
+     */
+    private static final class LeakTracker extends WeakReference<ByteBuffer> {
+
+        /** バッファの識別ハッシュ */
+        private final int hash;
+
+        /** 容量 */
+        private final int capacity;
+
+        /** 取得時のスタックトレース [検索用はnull] */
+        private final Throwable allocation;
+
+        /**
+         * 登録用のコンストラクタ.
+         * @param buffer バッファ
+         * @param queue 回収キュー
+         */
+        LeakTracker(final ByteBuffer buffer, final ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+            this.capacity = buffer.capacity();
+            this.allocation = new Throwable("ByteBuffer acquired");
+        }
+
+        /**
+         * 検索用のコンストラクタ.
+         * @param buffer バッファ
+         */
+        LeakTracker(final ByteBuffer buffer) {
+            super(buffer);
+            this.hash = System.identityHashCode(buffer);
+            this.capacity = buffer.capacity();
+            this.allocation = null;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof LeakTracker)) {
+                return false;
+            }
+            final ByteBuffer buffer = get();
+            return buffer != null && buffer == LeakTracker.class.cast(obj).get();
+        }
+    }
+}
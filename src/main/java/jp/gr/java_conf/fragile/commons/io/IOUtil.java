@@ -3,39 +3,304 @@
  */
 package jp.gr.java_conf.fragile.commons.io;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * io関連のユーティリティー
+ * <pre>
+ * 読み込み先は呼び出し側のバッファ(DirectBufferPoolから借りたバッファなど)を使用し
+ * 中間のByteArrayOutputStreamを経由しない
+ * 長さが分かっている場合はreadFully(InputStream, int)で1回だけ確保する
+ * </pre>
  */
 public class IOUtil {
 
     /** バッファサイズ */
     private static final int BUFFER_SIZE = 1024;
 
+    /** 転送バッファサイズ */
+    private static final int TRANSFER_SIZE = 8192;
+
+    /** 確保できる配列の最大長 */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
     /**
      * InputStreamをbyte[]に変換する.
+     * <pre>
+     * readAllと同じ
+     * </pre>
      * @param inputStream 入力
      * @return バイト配列
      * @throws IOException　例外
      */
     public byte[] toByteArray(final InputStream inputStream) throws IOException {
+        return readAll(inputStream);
+    }
+
+// =============================================================================
+
+    /**
+     * 終端まで読み込む.
+     * <pre>
+     * availableを初期サイズ(不明な場合は1KB)として配列に直接読み込み、不足した場合は倍に拡張する
+     * 配列が丁度埋まって終端に達した場合は切り詰めのコピーをしない
+     * </pre>
+     * @param inputStream 入力 [閉じない]
+     * @return バイト配列
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public static byte[] readAll(final InputStream inputStream) throws IOException {
+
+        final int available = inputStream.available();
+        byte[] b = new byte[available > 0 ? available : BUFFER_SIZE];
+        int position = 0;
+
+        while (true) {
+
+            if (position == b.length) {
+                // 終端か確認してから拡張する
+                final int next = inputStream.read();
+                if (next == -1) {
+                    return b;
+                }
+                b = grow(b);
+                b[position++] = (byte) next;
+            }
+
+            final int length = inputStream.read(b, position, b.length - position);
+            if (length == -1) {
+                break;
+            }
+            position += length;
+        }
+
+        if (position == b.length) {
+            return b;
+        }
+        final byte[] returnValue = new byte[position];
+        System.arraycopy(b, 0, returnValue, 0, position);
+
+        return returnValue;
+    }
+
+    /**
+     * 長さが分かっているデータを読み込む.
+     * <pre>
+     * 配列はlengthで1回だけ確保する
+     * </pre>
+     * @param inputStream 入力 [閉じない]
+     * @param length 長さ
+     * @return バイト配列
+     * @throws IOException 読み込みに失敗した場合
+     * @throws EOFException length分を読み込む前に終端に達した場合
+     */
+    public static byte[] readFully(final InputStream inputStream, final int length) throws IOException {
+
+        final byte[] b = new byte[length];
+        readFully(inputStream, b, 0, length);
+
+        return b;
+    }
+
+    /**
+     * 呼び出し側のバッファに指定の長さを読み込む.
+     * @param inputStream 入力 [閉じない]
+     * @param b 読み込み先
+     * @param offset 開始位置
+     * @param length 長さ
+     * @throws IOException 読み込みに失敗した場合
+     * @throws EOFException length分を読み込む前に終端に達した場合
+     */
+    public static void readFully(final InputStream inputStream, final byte[] b, final int offset, final int length)
+        throws IOException {
+
+        final int read = read(inputStream, b, offset, length);
+        if (read < length) {
+            throw new EOFException("expected:" + length + " read:" + Math.max(read, 0));
+        }
+    }
+
+    /**
+     * 呼び出し側のバッファが一杯になるか終端まで読み込む.
+     * @param inputStream 入力 [閉じない]
+     * @param b 読み込み先
+     * @param offset 開始位置
+     * @param length 最大長
+     * @return 読み込んだバイト数 読み込む前に終端に達した場合は-1
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public static int read(final InputStream inputStream, final byte[] b, final int offset, final int length)
+        throws IOException {
+
+        int position = 0;
+        while (position < length) {
+            final int read = inputStream.read(b, offset + position, length - position);
+            if (read == -1) {
+                return position == 0 && length > 0 ? -1 : position;
+            }
+            position += read;
+        }
+
+        return position;
+    }
+
+    /**
+     * バッファが一杯になるか終端まで読み込む.
+     * <pre>
+     * DirectBufferPoolから借りたバッファに読み込む場合などに使用する
+     * </pre>
+     * @param channel 入力 [閉じない]
+     * @param buffer 読み込み先 [positionからlimitまで]
+     * @return 読み込んだバイト数 読み込む前に終端に達した場合は-1
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public static int read(final ReadableByteChannel channel, final ByteBuffer buffer) throws IOException {
+
+        int position = 0;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer);
+            if (read == -1) {
+                return position == 0 ? -1 : position;
+            }
+            position += read;
+        }
+
+        return position;
+    }
+
+    /**
+     * 複数のバッファに分散して読み込む.
+     * <pre>
+     * ヘッダと本体を別のバッファに読み込む場合などに使用する
+     * 全てのバッファが一杯になるか終端まで読み込む
+     * </pre>
+     * @param channel 入力 [閉じない]
+     * @param buffers 読み込み先 [各positionからlimitまで]
+     * @return 読み込んだバイト数 読み込む前に終端に達した場合は-1
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public static long read(final ScatteringByteChannel channel, final ByteBuffer[] buffers) throws IOException {
+
+        long position = 0L;
+        int offset = 0;
+        while (true) {
+            while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                offset++;
+            }
+            if (offset == buffers.length) {
+                return position;
+            }
+            final long read = channel.read(buffers, offset, buffers.length - offset);
+            if (read == -1L) {
+                return position == 0L ? -1L : position;
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * 終端までチャネルに転送する.
+     * <pre>
+     * FileInputStreamの場合はFileChannel#transferToでヒープを経由せずに転送する
+     * それ以外はavailableを目安にした大きさ(最大8KB)のバッファで転送する
+     * </pre>
+     * @param inputStream 入力 [閉じない]
+     * @param channel 出力 [ブロッキングモード 閉じない]
+     * @return 転送したバイト数
+     * @throws IOException 入出力に失敗した場合
+     */
+    public static long transferTo(final InputStream inputStream, final WritableByteChannel channel)
+        throws IOException {
+
+        if (inputStream instanceof FileInputStream) {
+            return transferTo(FileInputStream.class.cast(inputStream).getChannel(), channel);
+        }
 
-        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        byte[] returnValue = null;
-        try {
-            final byte[] buffer = new byte[BUFFER_SIZE];
-            int length = 0;
-            while ((length = inputStream.read(buffer, 0, buffer.length)) != -1) {
-                byteArrayOutputStream.write(buffer, 0, length);
+        final int available = inputStream.available();
+        final int size = available > 0 ? Math.min(available, TRANSFER_SIZE) : TRANSFER_SIZE;
+        return transferTo(inputStream, channel, new byte[size]);
+    }
+
+    /**
+     * 呼び出し側のバッファで終端までチャネルに転送する.
+     * <pre>
+     * 繰り返し転送する場合にバッファを再利用する
+     * </pre>
+     * @param inputStream 入力 [閉じない]
+     * @param channel 出力 [ブロッキングモード 閉じない]
+     * @param buffer 転送に使用するバッファ
+     * @return 転送したバイト数
+     * @throws IOException 入出力に失敗した場合
+     */
+    public static long transferTo(final InputStream inputStream, final WritableByteChannel channel,
+            final byte[] buffer) throws IOException {
+
+        final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long count = 0L;
+        int length;
+        while ((length = inputStream.read(buffer, 0, buffer.length)) != -1) {
+            wrapped.limit(length);
+            wrapped.position(0);
+            while (wrapped.hasRemaining()) {
+                count += channel.write(wrapped);
             }
-            byteArrayOutputStream.flush();
-            returnValue = byteArrayOutputStream.toByteArray();
-        } finally {
-            byteArrayOutputStream.close();
         }
+
+        return count;
+    }
+
+    /**
+     * ファイルの現在位置から終端までチャネルに転送する.
+     * <pre>
+     * 転送後はファイルの位置を終端に進める
+     * </pre>
+     * @param fileChannel 入力 [閉じない]
+     * @param channel 出力 [ブロッキングモード 閉じない]
+     * @return 転送したバイト数
+     * @throws IOException 入出力に失敗した場合
+     * @throws EOFException 転送中にファイルが短くなった場合
+     */
+    private static long transferTo(final FileChannel fileChannel, final WritableByteChannel channel)
+        throws IOException {
+
+        final long start = fileChannel.position();
+        final long end = fileChannel.size();
+        long position = start;
+        while (position < end) {
+            final long length = fileChannel.transferTo(position, end - position, channel);
+            if (length == 0L && position >= fileChannel.size()) {
+                // 開始時の終端まで転送できないので空回りさせない
+                throw new EOFException("expected:" + (end - start) + " read:" + (position - start));
+            }
+            position += length;
+        }
+        fileChannel.position(position);
+
+        return position - start;
+    }
+
+    /**
+     * 配列を倍に拡張する.
+     * @param b 配列
+     * @return 拡張した配列
+     */
+    private static byte[] grow(final byte[] b) {
+
+        if (b.length >= MAX_ARRAY_SIZE) {
+            throw new OutOfMemoryError("Required array size too large");
+        }
+        final int length = (int) Math.min(Math.max(b.length * 2L, BUFFER_SIZE), MAX_ARRAY_SIZE);
+        final byte[] returnValue = new byte[length];
+        System.arraycopy(b, 0, returnValue, 0, b.length);
+
         return returnValue;
     }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.commons.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 応答時間の度数分布(HdrHistogram形式).
+ * <pre>
+ * 2のべき乗毎の区間を32に分割して記録するので
+ * 値の大きさによらず誤差は約3%以内になる
+ * 記録はスレッドIDで選んだ領域にロックなしで加算し
+ * 集計時に全領域を合算して0に戻す
+ * 仮想スレッドでも領域が増え続けないように
+ * スレッド毎ではなくCPU数程度の領域に分散する
+ * </pre>
+ */
+public final class LatencyHistogram {
+
+    /** 区間の分割数のビット数 */
+    private static final int SUB_BITS = 5;
+
+    /** 区間の分割数 */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /** 記録できる最大値 */
+    private static final long MAX_VALUE = (1L << 36) - 1L;
+
+    /** 添字の数 */
+    private static final int SIZE = index(MAX_VALUE) + 1;
+
+    /** 領域数の上限 */
+    private static final int MAX_STRIPES = 64;
+
+// =============================================================================
+
+    /** 記録領域 */
+    private final AtomicLongArray[] stripes;
+
+    /** 領域番号のマスク */
+    private final int mask;
+
+// =============================================================================
+
+    /**
+     * コンストラクタ.
+     */
+    public LatencyHistogram() {
+
+        int size = 1;
+        final int cpu = Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES);
+        while (size < cpu) {
+            size <<= 1;
+        }
+        this.stripes = new AtomicLongArray[size];
+        this.mask = size - 1;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new AtomicLongArray(SIZE);
+        }
+    }
+
+    /**
+     * 記録する.
+     * @param value 値 [負の値は0、上限を超える値は上限として記録する]
+     */
+    public void record(final long value) {
+
+        final long v = Math.min(Math.max(value, 0L), MAX_VALUE);
+        final long id = Thread.currentThread().getId();
+        final int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        stripes[(h ^ (h >>> 16)) & mask].incrementAndGet(index(v));
+    }
+
+    /**
+     * 集計して0に戻す.
+     * <pre>
+     * 集計中に記録された値は今回か次回のどちらかに含まれる
+     * </pre>
+     * @return 集計結果
+     */
+    public Snapshot getSnapshotAndReset() {
+
+        final long[] counts = new long[SIZE];
+        for (final AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < SIZE; i++) {
+                if (stripe.get(i) != 0L) {
+                    counts[i] += stripe.getAndSet(i, 0L);
+                }
+            }
+        }
+
+        return new Snapshot(counts);
+    }
+
+    /**
+     * 値の添字を求める.
+     * @param value 値
+     * @return 添字
+     */
+    private static int index(final long value) {
+
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * 添字の区間の最大値を求める.
+     * @param index 添字
+     * @return 値
+     */
+    private static long highestValue(final int index) {
+
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_COUNT - 1;
+        final long lowest = ((long) (SUB_COUNT + index % SUB_COUNT)) << shift;
+        return lowest + (1L << shift) - 1L;
+    }
+
+// =============================================================================
+
+    /**
+     * 集計結果.
+     */
+    public static final class Snapshot {
+
+        /** 件数 */
+        private final long[] counts;
+
+        /** 総件数 */
+        private final long totalCount;
+
+        /**
+         * コンストラクタ.
+         * @param counts 件数
+         */
+        Snapshot(final long[] counts) {
+
+            long total = 0L;
+            for (final long count : counts) {
+                total += count;
+            }
+            this.counts = counts;
+            this.totalCount = total;
+        }
+
+        /**
+         * 総件数を戻す.
+         * @return 件数
+         */
+        public long getCount() {
+            return totalCount;
+        }
+
+        /**
+         * 百分位の値を戻す.
+         * @param percentile 百分位 [例 99.9]
+         * @return 値 記録が無い場合は0
+         */
+        public long getValueAtPercentile(final double percentile) {
+
+            if (totalCount == 0L) {
+                return 0L;
+            }
+
+            final double p = Math.min(Math.max(percentile, 0D), 100D);
+            final long rank = Math.max((long) Math.ceil(p / 100D * totalCount), 1L);
+            long sum = 0L;
+            for (int i = 0; i < counts.length; i++) {
+                sum += counts[i];
+                if (sum >= rank) {
+                    return highestValue(i);
+                }
+            }
+
+            return getMax();
+        }
+
+        /**
+         * 最大値を戻す.
+         * @return 値 記録が無い場合は0
+         */
+        public long getMax() {
+
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0L) {
+                    return highestValue(i);
+                }
+            }
+
+            return 0L;
+        }
+    }
+}
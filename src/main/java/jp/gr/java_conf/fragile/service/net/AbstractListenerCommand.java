@@ -3,10 +3,23 @@
  */
 package jp.gr.java_conf.fragile.service.net;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import jp.gr.java_conf.fragile.commons.container.ComponentScope;
 import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
+import jp.gr.java_conf.fragile.commons.io.DirectBufferPool;
+import jp.gr.java_conf.fragile.service.net.codec.FrameCodec;
+import jp.gr.java_conf.fragile.service.net.codec.FrameException;
 import jp.gr.java_conf.fragile.service.net.pool.ServerSocketPoolThread;
 
 import org.slf4j.Logger;
@@ -14,12 +27,24 @@ import org.slf4j.LoggerFactory;
 
 /**
  * 受信時のコマンド. <br />
+ * <pre>
+ * リスナーのcommandPoolSizeを設定した場合は実行と接続の終了後にresetを呼び出して
+ * プールに戻し、次の接続で再利用する
+ * 再利用する場合はソケットをgetSocketで取得し、接続毎の状態はresetで初期化してください
+ * 読み書き用のバッファはallocateBufferでダイレクトバッファのプールから借り
+ * 実行と接続の終了後に返却される
+ * createFrameCodecを実装した場合はreadFrameで受信をフレーム単位に分割して読み込み
+ * sendFrameでフレーム化して送信する
+ * </pre>
  */
 public abstract class AbstractListenerCommand implements Runnable, CommandExecutionable {
 
     /** ロガー */
     private static Logger log = LoggerFactory.getLogger(AbstractListenerCommand.class);
 
+    /** ブロッキングモードの受信バッファの初期サイズ */
+    private static final int FRAME_BUFFER_SIZE = 1024;
+
 // =============================================================================
 
     /** ソケット */
@@ -28,14 +53,98 @@ public abstract class AbstractListenerCommand implements Runnable, CommandExecut
     /** スレッド開始時間 */
     private long startTime = 0L;
 
+    /** 実行キューに渡した時間 */
+    private long submitTime = 0L;
+
     /** 実行中のスレッド */
-    private Thread runThread = null;
+    private volatile Thread runThread = null;
+
+    /** 実行回数 [期限切れの停止要求がどの実行に対するものか判定する] */
+    private long runCount = 0L;
+
+    /** 実行の開始、終了と期限切れの停止要求の排他 */
+    private final Object runLock = new Object();
 
     /** タイムアウトした場合にtrueにする */
-    private boolean isTimeout = false;
+    private volatile boolean isTimeout = false;
+
+    /** コマンドの期限 [期限なしの場合はLong.MAX_VALUE] */
+    private long deadline = Long.MAX_VALUE;
 
     /** 現在実行中のスレッド */
-    private Set<CommandExecutionable> executes;
+    private CommandRegistry executes;
+
+    /** 実行中コマンド管理のスロット番号 */
+    private int executesSlot = CommandRegistry.OVERFLOW;
+
+    /** タイムアウト監視 */
+    private CommandTimeoutWheel timeoutWheel = null;
+
+    /** コマンドの実行タイムアウト */
+    private long commandTimeout = Long.MAX_VALUE;
+
+    /** タイムアウト監視に登録した期限 */
+    private CommandTimeoutWheel.Timeout timeout = null;
+
+    /** リアクターモードの接続 [ブロッキングモードの場合はnull] */
+    private ReactorConnection connection = null;
+
+    /** リアクターモードで受信した要求 */
+    private ByteBuffer request = null;
+
+    /** 応答時間の記録 */
+    private ListenerStatistics statistics = null;
+
+    /** 受付時刻(ナノ秒) */
+    private long acceptNanos = 0L;
+
+    /** 実行キューに渡した時刻(ナノ秒) */
+    private long dispatchNanos = 0L;
+
+    /** connectionスコープ [最初の実行時に生成する] */
+    private ComponentScope connectionScope = null;
+
+    /** 再利用する場合のプール [再利用しない場合はnull] */
+    private ListenerCommandPool commandPool = null;
+
+    /** 実行中と接続中の参照数 [0になったらプールに戻す] */
+    private final AtomicInteger references = new AtomicInteger();
+
+    /** リアクターモードの接続が開いている */
+    private boolean connectionOpen = false;
+
+    /** 再利用できる [タイムアウトした場合は監視スレッドから参照される可能性があるので再利用しない] */
+    private boolean recyclable = true;
+
+    /** バッファのプール [設定されていない場合は共通のプール] */
+    private DirectBufferPool bufferPool = null;
+
+    /** 借りているバッファ */
+    private ByteBuffer[] borrowed = null;
+
+    /** 借りているバッファの数 */
+    private int borrowedCount = 0;
+
+    /** フレームの分割 [createFrameCodecがnullを戻した場合はnull] */
+    private FrameCodec frameCodec = null;
+
+    /** createFrameCodecを呼び出した */
+    private boolean frameCodecCreated = false;
+
+    /** ブロッキングモードの受信バッファ [positionからlimitまでが未処理] */
+    private ByteBuffer frameBuffer = null;
+
+    /** ブロッキングモードで相手が送信を終了した */
+    private boolean frameEndOfStream = false;
+
+    /** リアクターモードで受信した要求をreadFrameで戻した */
+    private boolean requestRead = false;
+
+    /** リアクターモードのkeep-aliveで応答の送信後に接続を閉じる */
+    private boolean closeAfterResponse = false;
+
+    /** 実行キューに渡した回数 [keep-aliveの場合は要求数] */
+    private int dispatchCount = 0;
 
 // =============================================================================
 
@@ -67,33 +176,743 @@ public abstract class AbstractListenerCommand implements Runnable, CommandExecut
         return startTime;
     }
 
+    /**
+     * 実行キューに渡した時間を戻す.
+     * <pre>
+     * getStartTimeとの差がキュー待ち時間
+     * </pre>
+     * @return 受付ミリ秒 設定されていない場合は0
+     */
+    public final long getSubmitTime() {
+        return submitTime;
+    }
+
+    /**
+     * 実行キューに渡した時間を設定する.
+     * <pre>
+     * 実行キューから呼ばれる
+     * </pre>
+     * @param submitTime 受付ミリ秒
+     */
+    public final void setSubmitTime(final long submitTime) {
+        this.submitTime = submitTime;
+    }
+
     /**
      * 現在実行中スレッド管理.
      * @param executes
      */
-    public final void setExecutes(final Set<CommandExecutionable> executes) {
+    public final void setExecutes(final CommandRegistry executes) {
         this.executes = executes;
     }
 
+    /**
+     * タイムアウト監視を設定する.
+     * <pre>
+     * 監視しない場合はリスナーの実行タイムアウトを適用しない
+     * </pre>
+     * @param timeoutWheel タイムアウト監視 [監視しない場合はnull]
+     * @param commandTimeout コマンドの実行タイムアウト
+     */
+    final void setTimeoutWheel(final CommandTimeoutWheel timeoutWheel, final long commandTimeout) {
+        this.timeoutWheel = timeoutWheel;
+        this.commandTimeout = timeoutWheel != null ? commandTimeout : Long.MAX_VALUE;
+    }
+
+    /**
+     * 応答時間の記録を設定する.
+     * @param statistics 応答時間の記録
+     * @param acceptNanos 受付時刻(ナノ秒)
+     */
+    final void setStatistics(final ListenerStatistics statistics, final long acceptNanos) {
+        this.statistics = statistics;
+        this.acceptNanos = acceptNanos;
+    }
+
+    /**
+     * 実行キューに渡す直前に呼ばれる.
+     */
+    final void dispatched() {
+
+        dispatchNanos = System.nanoTime();
+        // keep-aliveの2件目以降の要求は受付からの時間ではない
+        if (statistics != null && ++dispatchCount == 1) {
+            statistics.recordAcceptToDispatch(dispatchNanos - acceptNanos);
+        }
+    }
+
+    /**
+     * リアクターモードで接続を閉じた時に呼ばれる.
+     */
+    final void closed() {
+
+        if (!connectionOpen) {
+            return;
+        }
+        connectionOpen = false;
+
+        closeConnectionScope();
+
+        if (statistics != null && acceptNanos != 0L) {
+            statistics.recordConnection(System.nanoTime() - acceptNanos);
+            acceptNanos = 0L;
+        }
+
+        recycle();
+    }
+
+    /**
+     * リアクターモードの接続を設定する.
+     * @param connection 接続
+     */
+    final void setConnection(final ReactorConnection connection) {
+        this.connection = connection;
+        this.connectionOpen = true;
+        references.incrementAndGet();
+    }
+
+    /**
+     * 再利用する場合のプールを設定する.
+     * @param commandPool プール
+     */
+    final void setCommandPool(final ListenerCommandPool commandPool) {
+        this.commandPool = commandPool;
+    }
+
+    /**
+     * バッファのプールを設定する.
+     * @param bufferPool プール [nullの場合は共通のプール]
+     */
+    final void setBufferPool(final DirectBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * 参照を外し、実行と接続が終了していればバッファを返却してプールに戻す.
+     * <pre>
+     * submitTimeは次の受付で上書きする
+     * (実行キューは開始時に控えた値を使うので、プールに戻した後は参照しない)
+     * </pre>
+     */
+    private void recycle() {
+
+        if (references.decrementAndGet() != 0) {
+            return;
+        }
+
+        // リアクターモードの送信キューにあったバッファも送信済み
+        releaseBuffers();
+
+        if (commandPool == null || !recyclable) {
+            return;
+        }
+
+        socket = null;
+        startTime = 0L;
+        isTimeout = false;
+        deadline = Long.MAX_VALUE;
+        executesSlot = CommandRegistry.OVERFLOW;
+        timeout = null;
+        connection = null;
+        request = null;
+        requestRead = false;
+        closeAfterResponse = false;
+        dispatchCount = 0;
+        frameBuffer = null;
+        frameEndOfStream = false;
+        if (frameCodec != null) {
+            frameCodec.reset();
+        }
+        statistics = null;
+        acceptNanos = 0L;
+        dispatchNanos = 0L;
+
+        try {
+            reset();
+        } catch (RuntimeException e) {
+            // 初期化できないコマンドは再利用しない
+            log.warn("AbstractListenerCommand#reset error", e);
+            return;
+        }
+
+        commandPool.release(this);
+    }
+
+    /**
+     * 借りているバッファを全て返却する.
+     */
+    private void releaseBuffers() {
+
+        if (borrowedCount == 0) {
+            return;
+        }
+        final DirectBufferPool pool = bufferPool != null ? bufferPool : DirectBufferPool.getDefault();
+        for (int i = 0; i < borrowedCount; i++) {
+            pool.release(borrowed[i]);
+            borrowed[i] = null;
+        }
+        borrowedCount = 0;
+    }
+
+    /**
+     * 読み書き用のバッファを借りる.
+     * <pre>
+     * リスナーのバッファプールからダイレクトバッファを取得する
+     * チャネルの読み書きでヒープのバッファのようなJDK内部のコピーが発生しない
+     * 容量は要求サイズ以上(サイズクラスに切り上げ)で、内容は初期化されていない
+     * 実行と接続が終了した後(リアクターモードの場合は送信も完了した後)にまとめて返却するので
+     * 返却は不要 終了後は参照しない事
+     * </pre>
+     * @param size 必要なバイト数
+     * @return position=0、limit=capacityのダイレクトバッファ
+     */
+    protected final ByteBuffer allocateBuffer(final int size) {
+
+        final DirectBufferPool pool = bufferPool != null ? bufferPool : DirectBufferPool.getDefault();
+        final ByteBuffer buffer = pool.acquire(size);
+
+        if (borrowed == null) {
+            borrowed = new ByteBuffer[4];
+        } else if (borrowedCount == borrowed.length) {
+            final ByteBuffer[] b = new ByteBuffer[borrowed.length * 2];
+            System.arraycopy(borrowed, 0, b, 0, borrowedCount);
+            borrowed = b;
+        }
+        borrowed[borrowedCount++] = buffer;
+
+        return buffer;
+    }
+
+    /**
+     * リアクターモードで受信した要求を設定する.
+     * @param request 要求
+     */
+    final void setRequest(final ByteBuffer request) {
+        this.request = request;
+        this.requestRead = false;
+        this.closeAfterResponse = false;
+    }
+
+    /**
+     * リアクターモードのkeep-aliveで応答の送信を終えた時に呼ばれる.
+     * <pre>
+     * 次の要求の実行前にセレクタのスレッドから呼ばれるので
+     * この要求で借りたバッファを返却する
+     * </pre>
+     */
+    final void responded() {
+        releaseBuffers();
+    }
+
+    /**
+     * 応答の送信後に接続を閉じる.
+     * <pre>
+     * リアクターモードのkeep-aliveで、この要求を最後にする場合にexecute内から呼び出す
+     * (終了要求を受信した場合、相手にエラーを応答した場合など)
+     * keep-aliveでない場合は常に応答毎に閉じる
+     * ブロッキングモードの場合はソケットを閉じるまでがコマンドの処理なので使用しない
+     * </pre>
+     */
+    public final void closeAfterResponse() {
+        this.closeAfterResponse = true;
+    }
+
+    /**
+     * 応答の送信後に接続を閉じるか判定する.
+     * @return 閉じる場合はtrue
+     */
+    final boolean isCloseAfterResponse() {
+        return closeAfterResponse;
+    }
+
+    /**
+     * リアクターモードで受信した1要求分のデータを戻す.
+     * <pre>
+     * getRequestLengthで判定された長さのデータです
+     * ブロッキングモードの場合はnullを戻すのでSocketから読み込んでください
+     * </pre>
+     * @return 要求データ
+     */
+    public final ByteBuffer getRequest() {
+        return request;
+    }
+
+    /**
+     * 応答を送信する.
+     * <pre>
+     * リアクターモードの場合は送信キューに積みexecute終了後にセレクタのスレッドで送信する
+     * ※ バッファは送信完了まで変更しないでください
+     * ブロッキングモードの場合はその場でソケットに書き込む
+     * </pre>
+     * @param buffer 送信データ
+     * @throws IOException 送信に失敗した場合
+     */
+    public final void send(final ByteBuffer buffer) throws IOException {
+
+        if (connection != null) {
+            connection.send(buffer);
+            return;
+        }
+
+        final SocketChannel socketChannel = socket.getChannel();
+        if (socketChannel != null && socketChannel.isBlocking()) {
+            while (buffer.hasRemaining()) {
+                socketChannel.write(buffer);
+            }
+            return;
+        }
+
+        final OutputStream outputStream = socket.getOutputStream();
+        if (buffer.hasArray()) {
+            outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        final byte[] b = new byte[buffer.remaining()];
+        buffer.get(b);
+        outputStream.write(b);
+    }
+
+    /**
+     * フレームの分割を戻す.
+     * <pre>
+     * 最初の呼び出し時にcreateFrameCodecで生成する
+     * </pre>
+     * @return フレームの分割 [使用しない場合はnull]
+     */
+    public final FrameCodec getFrameCodec() {
+
+        if (!frameCodecCreated) {
+            frameCodec = createFrameCodec();
+            frameCodecCreated = true;
+        }
+        return frameCodec;
+    }
+
+    /**
+     * 次のフレームの本文を読み込む.
+     * <pre>
+     * リアクターモードの場合は受信したフレームを1回だけ戻す
+     * ブロッキングモードの場合はソケットから読み込み、フレームが揃うまでブロックする
+     * 1回の受信に複数のフレームが含まれる場合は残りを次の呼び出しで戻すので
+     * nullを戻すまで繰り返し呼び出すと1接続で複数の要求を処理できる
+     * 本文は受信バッファのビューなので次のreadFrameまで有効
+     * 受信バッファはallocateBufferで借り、最大長まで倍に拡張する
+     * </pre>
+     * @return 本文 相手が送信を終了した場合はnull
+     * @throws IOException 受信に失敗した場合
+     * @throws FrameException 不正なフレーム、最大長を超える場合
+     */
+    protected final ByteBuffer readFrame() throws IOException {
+
+        final FrameCodec codec = getFrameCodec();
+        if (codec == null) {
+            throw new FGRuntimeException("createFrameCodec is not implemented");
+        }
+
+        if (connection != null) {
+            if (requestRead || request == null) {
+                return null;
+            }
+            requestRead = true;
+            return codec.payload(request);
+        }
+
+        if (frameBuffer == null) {
+            frameBuffer = allocateBuffer(FRAME_BUFFER_SIZE);
+            frameBuffer.flip();
+        }
+
+        while (true) {
+
+            final int length = frameEndOfStream ? codec.decodeLast(frameBuffer) : codec.decode(frameBuffer);
+            if (length > 0) {
+                final ByteBuffer frame = frameBuffer.duplicate();
+                frame.limit(frame.position() + length);
+                frameBuffer.position(frame.limit());
+                return codec.payload(frame.slice());
+            }
+            if (frameEndOfStream) {
+                if (frameBuffer.hasRemaining() && log.isDebugEnabled()) {
+                    log.debug("incomplete frame discarded:" + frameBuffer.remaining());
+                }
+                return null;
+            }
+
+            frameBuffer.compact();
+            if (!frameBuffer.hasRemaining()) {
+                final ByteBuffer buffer = allocateBuffer(frameBuffer.capacity() * 2);
+                frameBuffer.flip();
+                buffer.put(frameBuffer);
+                frameBuffer = buffer;
+            }
+            final int read = readChannel().read(frameBuffer);
+            frameBuffer.flip();
+            if (read < 0) {
+                frameEndOfStream = true;
+            }
+        }
+    }
+
+    /**
+     * ブロッキングモードの受信チャネルを戻す.
+     * @return チャネル
+     * @throws IOException ストリームを取得できない場合
+     */
+    private ReadableByteChannel readChannel() throws IOException {
+
+        final SocketChannel socketChannel = socket.getChannel();
+        if (socketChannel != null && socketChannel.isBlocking()) {
+            return socketChannel;
+        }
+        return Channels.newChannel(socket.getInputStream());
+    }
+
+    /**
+     * 本文をフレーム化して送信する.
+     * <pre>
+     * FrameCodecのheader、trailerを本文の前後に付けて送信する
+     * 本文はコピーしない ブロッキングモードの場合はまとめて書き込む
+     * createFrameCodecを実装していない場合はsendと同じ
+     * </pre>
+     * @param payload 本文
+     * @throws IOException 送信に失敗した場合
+     */
+    public final void sendFrame(final ByteBuffer payload) throws IOException {
+
+        final FrameCodec codec = getFrameCodec();
+        if (codec == null) {
+            send(payload);
+            return;
+        }
+
+        final ByteBuffer header = codec.header(payload);
+        final ByteBuffer trailer = codec.trailer(payload);
+
+        final SocketChannel socketChannel = connection == null ? socket.getChannel() : null;
+        if (socketChannel != null && socketChannel.isBlocking()) {
+            final ByteBuffer[] buffers = frame(header, payload, trailer);
+            final ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                socketChannel.write(buffers);
+            }
+            return;
+        }
+
+        if (header != null) {
+            send(header);
+        }
+        send(payload);
+        if (trailer != null) {
+            send(trailer);
+        }
+    }
+
+    /**
+     * nullを除いて送信順に並べる.
+     * @param header ヘッダ
+     * @param payload 本文
+     * @param trailer 後ろに付けるデータ
+     * @return 送信データ
+     */
+    private static ByteBuffer[] frame(final ByteBuffer header, final ByteBuffer payload, final ByteBuffer trailer) {
+
+        if (header == null && trailer == null) {
+            return new ByteBuffer[] {payload};
+        }
+        if (header == null) {
+            return new ByteBuffer[] {payload, trailer};
+        }
+        if (trailer == null) {
+            return new ByteBuffer[] {header, payload};
+        }
+        return new ByteBuffer[] {header, payload, trailer};
+    }
+
+    /**
+     * ファイルを応答として送信する.
+     * <pre>
+     * sendFile(FileChannel, long, long)でファイル全体を送信する
+     * </pre>
+     * @param file ファイル
+     * @throws IOException ファイルを開けない場合、送信に失敗した場合
+     */
+    public final void sendFile(final File file) throws IOException {
+
+        final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        boolean handedOver = false;
+        try {
+            final long size = fileChannel.size();
+            // 以降はsendFileが閉じる
+            handedOver = true;
+            sendFile(fileChannel, 0L, size);
+        } finally {
+            if (!handedOver) {
+                fileChannel.close();
+            }
+        }
+    }
+
+    /**
+     * ファイルの範囲を応答として送信する.
+     * <pre>
+     * FileChannel#transferTo(sendfile)でヒープを経由せずにSocketChannelへ送信し
+     * transferToが失敗した場合はマップしたバッファを書き込む
+     * 大きな静的ファイルをヒープに読み込まずに送信する場合に使用する
+     * リアクターモードの場合はsendと同じ送信キューに積み、順番に送信する
+     * ブロッキングモードの場合はその場で送信する
+     * ファイルのチャネルは送信完了後(リアクターモードで送信前に切断された場合は接続終了時)に閉じる
+     * 送信キューに積む前に失敗した場合はその場で閉じる
+     * </pre>
+     * @param fileChannel ファイル [以降は閉じるまでコマンドが管理する]
+     * @param position 開始位置
+     * @param count バイト数 [ファイルの終わりまでに切り詰める]
+     * @throws IOException 送信に失敗した場合
+     */
+    public final void sendFile(final FileChannel fileChannel, final long position, final long count)
+        throws IOException {
+
+        final FileRegion region;
+        boolean handedOver = false;
+        try {
+            final long length = Math.max(Math.min(count, fileChannel.size() - position), 0L);
+            region = new FileRegion(fileChannel, position, length);
+            if (connection != null) {
+                connection.send(region);
+                handedOver = true;
+                return;
+            }
+            // 以降は送信後に閉じる
+            handedOver = true;
+        } finally {
+            if (!handedOver) {
+                fileChannel.close();
+            }
+        }
+
+        try {
+            final SocketChannel socketChannel = socket.getChannel();
+            if (socketChannel != null && socketChannel.isBlocking()) {
+                region.writeFully(socketChannel);
+                return;
+            }
+            region.writeFully(Channels.newChannel(socket.getOutputStream()));
+        } finally {
+            region.close();
+        }
+    }
+
+    /**
+     * 受付不可時の処理を行う.
+     * <pre>
+     * abortを実行し、リアクターモードの場合は
+     * abortで送信された応答を送信した後に接続を閉じる
+     * ブロッキングモードの場合は実行を待たずにプールに戻す
+     * RejectedExecutionHandlerから呼ばれる
+     * </pre>
+     */
+    public final void reject() {
+
+        try {
+            abort();
+        } finally {
+            if (connection != null) {
+                // 受付不可の場合はkeep-aliveでも閉じる
+                closeAfterResponse = true;
+                connection.completed();
+            } else {
+                // 実行されないので終了を待たずに接続を終了してプールに戻す
+                // (受付スレッドからの参照として数えてから外す)
+                closeConnectionScope();
+                references.incrementAndGet();
+                recycle();
+            }
+        }
+    }
+
     /**
      * 強制終了する場合に割り込みを上げる.
      */
     public final void interrupt() {
 
+        final Thread thread = runThread;
+
         // 開始していない
-        if (runThread == null)
+        if (thread == null)
             return;
 
         // 自スレッドよりの呼び出しは却下
-        if (runThread == Thread.currentThread())
+        if (thread == Thread.currentThread())
             return;
 
+        isTimeout = true;
+
+        // ソケットの読み込みでブロックしている場合は割り込みでは戻らないので閉じる
+        closeSocket();
+
         // 割り込みを上げる
         synchronized (AbstractListenerCommand.class) {
-            runThread.interrupt();
+            thread.interrupt();
         }
+    }
 
-        isTimeout = true;
+    /**
+     * 期限を登録した実行が続いている場合のみ割り込みを上げる.
+     * <pre>
+     * 監視スレッドが期限切れにしてから割り込むまでの間に実行が終了し
+     * keep-aliveの次の要求を実行している場合は割り込まない
+     * </pre>
+     * @param run 期限を登録した実行の実行回数
+     */
+    private void interrupt(final long run) {
+
+        synchronized (runLock) {
+            if (run == runCount) {
+                interrupt();
+            }
+        }
+    }
+
+    /**
+     * コマンドの期限を設定する.
+     * <pre>
+     * 電文ヘッダなどからコマンド毎に期限を決める場合にexecute内から呼び出す
+     * listenerのwatcherCommandTimeoutによる期限は置き換える
+     * 期限を過ぎるとソケットを閉じて割り込みを上げ
+     * runはCommandTimeoutExceptionを投げる
+     * ※ 期限の監視精度はlistenerのwatcherDelay 精度の範囲内で期限後に終了した場合は正常終了となる
+     * ※ 監視しない場合(listenerのwatcherDelayが-1、初期値)はcheckDeadlineでのみ期限を確認する
+     * </pre>
+     * @param deadline 期限(ミリ秒時刻)
+     */
+    public final void setDeadline(final long deadline) {
+
+        this.deadline = deadline;
+
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        if (timeoutWheel != null && deadline != Long.MAX_VALUE) {
+            timeout = timeoutWheel.schedule(new RunInterrupter(runCount), deadline);
+        }
+    }
+
+    /**
+     * コマンドの期限を開始時間からの時間で設定する.
+     * @param timeout 開始時間からのミリ秒 Long.MAX_VALUEの場合は期限なし
+     */
+    public final void setTimeout(final long timeout) {
+
+        if (timeout == Long.MAX_VALUE) {
+            setDeadline(Long.MAX_VALUE);
+            return;
+        }
+        setDeadline(startTime + timeout);
+    }
+
+    /**
+     * コマンドの期限を戻す.
+     * @return 期限(ミリ秒時刻) 期限なしの場合はLong.MAX_VALUE
+     */
+    public final long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * 期限までの残り時間を戻す.
+     * <pre>
+     * 他サーバへの問い合わせのタイムアウトなどに使用する
+     * </pre>
+     * @return 残りミリ秒 期限なしの場合はLong.MAX_VALUE 過ぎている場合は0
+     */
+    public final long getRemainingTime() {
+
+        if (deadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(deadline - System.currentTimeMillis(), 0L);
+    }
+
+    /**
+     * 期限を過ぎていないか確認する.
+     * <pre>
+     * 処理の区切りで呼び出すと監視の精度によらず期限切れを検出できる
+     * </pre>
+     * @throws CommandTimeoutException 期限を過ぎている場合
+     */
+    public final void checkDeadline() {
+
+        if (isTimeout || System.currentTimeMillis() > deadline) {
+            isTimeout = true;
+            throw new CommandTimeoutException("deadline:" + deadline);
+        }
+    }
+
+    /**
+     * タイムアウト監視に登録した期限を取り消す.
+     * <pre>
+     * 取り消せなかった場合は監視スレッドから参照される可能性があるので再利用しない
+     * </pre>
+     * @return 取り消せた場合、登録していない場合はtrue 既に期限切れの場合はfalse
+     */
+    private boolean cancelTimeout() {
+
+        if (timeout == null) {
+            return true;
+        }
+        final boolean cancelled = timeout.cancel();
+        timeout = null;
+        if (!cancelled) {
+            recyclable = false;
+        }
+        return cancelled;
+    }
+
+    /**
+     * connectionスコープを戻す.
+     * <pre>
+     * connectionのBeanは接続の間キャッシュされる(リアクターモードでは複数の要求で共有される)
+     * requestのBeanはexecute毎
+     * </pre>
+     * @return connectionスコープ
+     */
+    public final ComponentScope getConnectionScope() {
+
+        if (connectionScope == null) {
+            connectionScope = new ComponentScope();
+        }
+        return connectionScope;
+    }
+
+    /**
+     * connectionスコープを終了する.
+     */
+    private void closeConnectionScope() {
+
+        if (connectionScope != null) {
+            connectionScope.close();
+        }
+    }
+
+    /**
+     * ソケットを閉じる.
+     * <pre>
+     * リアクターモードの場合はチャネルを閉じるとセレクタの登録も取り消される
+     * </pre>
+     */
+    private void closeSocket() {
+
+        if (socket == null || socket.isClosed()) {
+            return;
+        }
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 基本的に例外は発生しない
+            log.debug("Socket#close error", e);
+        }
     }
 
 // =============================================================================
@@ -103,8 +922,15 @@ public abstract class AbstractListenerCommand implements Runnable, CommandExecut
      */
     public final void run() {
 
+        // 終了時にプールに戻す
+        references.incrementAndGet();
+
         // 開始時間を設定
         startTime = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        if (statistics != null) {
+            statistics.recordQueueWait(startNanos - dispatchNanos);
+        }
 
         if (log.isTraceEnabled()) {
             log.trace("start:" + startTime);
@@ -115,17 +941,33 @@ public abstract class AbstractListenerCommand implements Runnable, CommandExecut
         try {
 
             // 外部割り込み用
-            runThread = Thread.currentThread();
-            serverSocketPoolThread = ServerSocketPoolThread.class.cast(runThread);
-            serverSocketPoolThread.setListenerCommand(this);
+            synchronized (runLock) {
+                runCount++;
+                runThread = Thread.currentThread();
+            }
+            if (runThread instanceof ServerSocketPoolThread) {
+                // 仮想スレッドで実行する場合はプールのスレッドではない
+                serverSocketPoolThread = ServerSocketPoolThread.class.cast(runThread);
+                serverSocketPoolThread.setListenerCommand(this);
+            }
 
-            executes.add(this);
+            executesSlot = executes.register(this);
+
+            // 期限を登録し終了時に取り消す
+            isTimeout = false;
+            setTimeout(commandTimeout);
+
+            // execute中はconnection、requestスコープのコンポーネントを使用できる
+            ComponentScope.beginRequest(getConnectionScope());
 
             // 処理実行
             execute();
 
-            // Threadは再利用されるはずなので初期化
-            serverSocketPoolThread.setListenerCommand(null);
+            // 監視スレッドが期限切れにした場合のみ例外にする
+            // (ソケットを閉じているので応答は送信できていない)
+            if (!cancelTimeout() || isTimeout) {
+                throw new CommandTimeoutException("deadline:" + deadline);
+            }
 
             if (log.isTraceEnabled()) {
                 log.trace("end:" + (System.currentTimeMillis() - startTime));
@@ -135,6 +977,10 @@ public abstract class AbstractListenerCommand implements Runnable, CommandExecut
 
         } catch (Exception e) {
 
+            if (e instanceof CommandTimeoutException) {
+                throw CommandTimeoutException.class.cast(e);
+            }
+
             if (isTimeout) {
                 throw new CommandTimeoutException(e);
             }
@@ -145,12 +991,41 @@ public abstract class AbstractListenerCommand implements Runnable, CommandExecut
 
             throw new FGRuntimeException(e);
         } finally {
+            ComponentScope.endRequest();
+            if (serverSocketPoolThread == null) {
+                // 仮想スレッドはコマンド毎に使い捨てるのでthreadスコープを終了してプールに戻す
+                ComponentScope.endThread();
+            }
+
             // 再利用されるので初期化する
-            runThread = null;
+            synchronized (runLock) {
+                runThread = null;
+            }
             if (serverSocketPoolThread != null) {
                 serverSocketPoolThread.setListenerCommand(null);
             }
-            executes.remove(this);
+            executes.unregister(this, executesSlot);
+            cancelTimeout();
+            if (isTimeout) {
+                recyclable = false;
+            }
+            if (statistics != null) {
+                final long endNanos = System.nanoTime();
+                statistics.recordExecute(endNanos - startNanos);
+                if (connection == null) {
+                    // ブロッキングモードはコマンドの終了までを接続時間とする
+                    statistics.recordConnection(endNanos - acceptNanos);
+                }
+            }
+            if (connection == null) {
+                // ブロッキングモードはコマンドの終了までを接続とする
+                closeConnectionScope();
+            }
+            if (connection != null) {
+                // 応答の送信はセレクタのスレッドに任せる
+                connection.completed();
+            }
+            recycle();
         }
     }
 
@@ -167,4 +1042,100 @@ public abstract class AbstractListenerCommand implements Runnable, CommandExecut
      */
     public abstract void abort();
 
+    /**
+     * 再利用する前に接続毎の状態を初期化する.
+     * <pre>
+     * リスナーのcommandPoolSizeを設定した場合に、実行と接続の終了後に呼ばれる
+     * ソケット、期限などの共通の状態は初期化済み
+     * 初期実装は何もしない
+     * </pre>
+     */
+    protected void reset() {
+    }
+
+    /**
+     * フレームの分割を生成する.
+     * <pre>
+     * 長さヘッダ、区切り文字、固定長などでフレームを分割する場合に
+     * jp.gr.java_conf.fragile.service.net.codecの実装を接続毎に生成して戻してください
+     * 生成したインスタンスはコマンドを再利用する間使用する
+     * 初期実装はnull(分割しない)
+     * </pre>
+     * @return フレームの分割
+     */
+    protected FrameCodec createFrameCodec() {
+        return null;
+    }
+
+    /**
+     * リアクターモードで1要求分の受信が揃ったか判定する.
+     * <pre>
+     * セレクタのスレッドから受信の都度呼ばれるので処理をブロックしない事
+     * createFrameCodecを実装した場合はFrameCodec#decodeで判定します
+     * それ以外で電文長ヘッダや終端文字で判定する場合にオーバーライドしてください
+     * 初期実装は受信済みのデータを全て1要求とします
+     * 相手が送信を終了した場合は残りのデータを1要求とします
+     * </pre>
+     * @param buffer 受信済みデータ(positionから読み出し可能 変更しない事)
+     * @return 要求の長さ 揃っていない場合は-1
+     */
+    protected int getRequestLength(final ByteBuffer buffer) {
+
+        final FrameCodec codec = getFrameCodec();
+        if (codec != null) {
+            return codec.decode(buffer);
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        return buffer.remaining();
+    }
+
+    /**
+     * リアクターモードで相手が送信を終了した場合に残りのデータから要求の長さを判定する.
+     * @param buffer 受信済みデータ(positionから読み出し可能 変更しない事)
+     * @return 要求の長さ 無い場合は-1
+     */
+    final int getLastRequestLength(final ByteBuffer buffer) {
+
+        final FrameCodec codec = getFrameCodec();
+        if (codec != null) {
+            return codec.decodeLast(buffer);
+        }
+        return buffer.remaining();
+    }
+
+// =============================================================================
+
+    /**
+     * タイムアウト監視に登録する実行毎の停止要求先.
+     * <pre>
+     * 期限切れの停止要求を期限を登録した実行に限定する
+     * </pre>
+     */
+    private final class RunInterrupter implements CommandExecutionable {
+
+        /** 期限を登録した実行の実行回数 */
+        private final long run;
+
+        /**
+         * コンストラクタ.
+         * @param run 実行回数
+         */
+        RunInterrupter(final long run) {
+            this.run = run;
+        }
+
+        public Socket getSocket() {
+            return AbstractListenerCommand.this.getSocket();
+        }
+
+        public long getStartTime() {
+            return AbstractListenerCommand.this.getStartTime();
+        }
+
+        public void interrupt() {
+            AbstractListenerCommand.this.interrupt(run);
+        }
+    }
 }
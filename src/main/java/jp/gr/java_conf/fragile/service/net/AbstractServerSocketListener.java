@@ -4,12 +4,14 @@
 package jp.gr.java_conf.fragile.service.net;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketOption;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -22,8 +24,15 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.ObjectName;
+
+import jp.gr.java_conf.fragile.commons.collect.Collect.EachFunction;
+import jp.gr.java_conf.fragile.commons.io.DirectBufferPool;
 import jp.gr.java_conf.fragile.commons.util.AbstractWorker;
+import jp.gr.java_conf.fragile.service.net.pool.CoDelBlockingQueue;
+import jp.gr.java_conf.fragile.service.net.pool.LimitedThreadPoolExecutor;
 import jp.gr.java_conf.fragile.service.net.pool.ServerSocketExecutorFactory;
 
 import org.slf4j.Logger;
@@ -50,6 +59,9 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
     /** 処理スレッド監視 */
     private ScheduledExecutorService watcherService = null;
 
+    /** タイムアウト監視 */
+    private CommandTimeoutWheel timeoutWheel = null;
+
     /** 処理スレッド監視 */
 //    private ScheduledFuture<?> watcherServiceFuture = null;
 
@@ -63,7 +75,28 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
     private Selector serverSelector = null;
 
     /** 現在実行中のスレッド */
-    private Set<CommandExecutionable> executes;
+    private CommandRegistry executes;
+
+    /** リアクターモードのセレクタ */
+    private ReactorSelector[] reactors = null;
+
+    /** 次に接続を渡すセレクタ */
+    private final AtomicInteger reactorIndex = new AtomicInteger();
+
+    /** 追加の受付スレッド */
+    private ServerSocketAcceptor[] acceptors = null;
+
+    /** SO_REUSEPORTでバインドした場合にtrueにする */
+    private boolean reusePortBound = false;
+
+    /** 応答時間の記録 */
+    private final ListenerStatistics statistics = new ListenerStatistics();
+
+    /** 応答時間の記録を登録したMBean名 */
+    private ObjectName statisticsName = null;
+
+    /** 再利用するコマンドのプール [再利用しない場合はnull] */
+    private ListenerCommandPool commandPool = null;
 
 // =======================================================================
 
@@ -85,9 +118,45 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
     /** コマンドの実行タイムアウト */
     private long watcherCommandTimeout = Long.MAX_VALUE;
 
-    /** コマンド監視待機時間 */
+    /** コマンド監視待機時間 [-1、Long.MAX_VALUEの場合は監視しない] */
     private long watcherDelay = Long.MAX_VALUE;
 
+    /** タイムアウト監視のバケット数 */
+    private int watcherWheelSize = 512;
+
+    /** リアクターモード */
+    private boolean reactor = false;
+
+    /** リアクターモードのセレクタスレッド数 */
+    private int reactorCount = 1;
+
+    /** リアクターモードの受信バッファ初期サイズ */
+    private int reactorBufferSize = 1024;
+
+    /** リアクターモードの受信最大長 */
+    private int reactorMaxRequestSize = 1048576;
+
+    /** リアクターモードで1要求の受信を待つ時間 [0以下の場合は制限しない] */
+    private long reactorReadTimeout = 30000L;
+
+    /** リアクターモードで接続を維持する要求待ちの時間 [0の場合は応答毎に閉じる] */
+    private long reactorKeepAliveTimeout = 0L;
+
+    /** 受付スレッド数 */
+    private int acceptorCount = 1;
+
+    /** 受付スレッド毎にSO_REUSEPORTでバインドする */
+    private boolean reusePort = true;
+
+    /** 応答時間の記録をMBeanサーバに登録する */
+    private boolean statisticsMBean = true;
+
+    /** 再利用するコマンドの最大数 */
+    private int commandPoolSize = 0;
+
+    /** コマンドに貸すバッファのプール [nullの場合は共通のプール] */
+    private DirectBufferPool bufferPool = null;
+
 //  =======================================================================
 
     /**
@@ -148,12 +217,155 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
 
     /**
      * コマンド監視待機時間 に設定する.
+     * <pre>
+     * ミリ秒 この間隔で期限切れのコマンドに停止要求をする(タイミングホイールの精度)
+     * -1、Long.MAX_VALUE(初期値)の場合は監視しない
+     * 監視しない場合はwatcherCommandTimeoutとコマンドの期限で停止要求をしない
+     * </pre>
      * @param watcherDelay コマンド監視待機時間
      */
     public final void setWatcherDelay(final long watcherDelay) {
         this.watcherDelay = watcherDelay;
     }
 
+    /**
+     * タイムアウト監視のバケット数 に設定する.
+     * <pre>
+     * watcherDelay * watcherWheelSize が1周の時間となる
+     * 1周を超える期限は周回数で管理する
+     * </pre>
+     * @param watcherWheelSize タイムアウト監視のバケット数
+     */
+    public final void setWatcherWheelSize(final int watcherWheelSize) {
+        this.watcherWheelSize = watcherWheelSize;
+    }
+
+    /**
+     * リアクターモード に設定する.
+     * <pre>
+     * trueの場合は受信した接続をノンブロックでセレクタに登録し
+     * 1要求分の受信が揃った時点でコマンドをスレッドプールに渡す
+     * コマンドはgetRequestで要求を取得しsendで応答してください
+     * </pre>
+     * @param reactor リアクターモード
+     */
+    public final void setReactor(final boolean reactor) {
+        this.reactor = reactor;
+    }
+
+    /**
+     * リアクターモードのセレクタスレッド数 に設定する.
+     * @param reactorCount リアクターモードのセレクタスレッド数
+     */
+    public final void setReactorCount(final int reactorCount) {
+        this.reactorCount = reactorCount;
+    }
+
+    /**
+     * リアクターモードの受信バッファ初期サイズ に設定する.
+     * @param reactorBufferSize リアクターモードの受信バッファ初期サイズ
+     */
+    public final void setReactorBufferSize(final int reactorBufferSize) {
+        this.reactorBufferSize = reactorBufferSize;
+    }
+
+    /**
+     * リアクターモードの受信最大長 に設定する.
+     * @param reactorMaxRequestSize リアクターモードの受信最大長
+     */
+    public final void setReactorMaxRequestSize(final int reactorMaxRequestSize) {
+        this.reactorMaxRequestSize = reactorMaxRequestSize;
+    }
+
+    /**
+     * リアクターモードで1要求の受信を待つ時間 に設定する.
+     * <pre>
+     * 接続後または前の応答後から1要求分が揃うまでの時間で、受信の途中でも延長しない
+     * 期限を過ぎた接続はセレクタのスレッドで閉じ、受信バッファを解放する
+     * 0以下の場合は制限しない
+     * </pre>
+     * @param reactorReadTimeout 受信を待つミリ秒
+     */
+    public final void setReactorReadTimeout(final long reactorReadTimeout) {
+        this.reactorReadTimeout = reactorReadTimeout;
+    }
+
+    /**
+     * リアクターモードで接続を維持する要求待ちの時間 に設定する.
+     * <pre>
+     * 1以上の場合は応答の送信後も接続を閉じずにセレクタで次の要求を待つ(keep-alive)
+     * 受信済みの次の要求がある場合(パイプライン)は続けて実行する
+     * 1接続の要求は1つずつ実行するので応答の順序は要求の順序になる
+     * 要求待ちの接続はプールのスレッドを使用せず、指定時間受信が無い場合にセレクタのスレッドで閉じる
+     * 次の要求の受信が始まった後はreactorReadTimeoutを適用する
+     * コマンドはAbstractListenerCommand#closeAfterResponseで応答後に閉じる事ができる
+     * 0の場合は応答毎に接続を閉じる
+     * </pre>
+     * @param reactorKeepAliveTimeout 要求待ちのミリ秒
+     */
+    public final void setReactorKeepAliveTimeout(final long reactorKeepAliveTimeout) {
+        this.reactorKeepAliveTimeout = reactorKeepAliveTimeout;
+    }
+
+    /**
+     * 受付スレッド数 に設定する.
+     * <pre>
+     * 2以上の場合は受付スレッド毎にセレクタを持ち並行してacceptする
+     * 0以下の場合はCPUコア数とする
+     * </pre>
+     * @param acceptorCount 受付スレッド数
+     */
+    public final void setAcceptorCount(final int acceptorCount) {
+        this.acceptorCount = acceptorCount;
+    }
+
+    /**
+     * 受付スレッド毎にSO_REUSEPORTでバインドする に設定する.
+     * <pre>
+     * OSが対応していない場合は1つのサーバソケットを各受付スレッドで共有する
+     * </pre>
+     * @param reusePort 受付スレッド毎にSO_REUSEPORTでバインドする
+     */
+    public final void setReusePort(final boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * 応答時間の記録をMBeanサーバに登録する に設定する.
+     * <pre>
+     * 登録名は jp.gr.java_conf.fragile.service.net:type=ListenerStatistics,port=待ち受けポート
+     * </pre>
+     * @param statisticsMBean 登録する場合はtrue
+     */
+    public final void setStatisticsMBean(final boolean statisticsMBean) {
+        this.statisticsMBean = statisticsMBean;
+    }
+
+    /**
+     * 再利用するコマンドの最大数 に設定する.
+     * <pre>
+     * 1以上の場合はコマンドの実行と接続の終了後にAbstractListenerCommand#resetを呼び出して
+     * プールに戻し、次の接続ではcreateListenerCommandを呼ばずに再利用する
+     * 0の場合は接続毎に生成する
+     * </pre>
+     * @param commandPoolSize 再利用するコマンドの最大数
+     */
+    public final void setCommandPoolSize(final int commandPoolSize) {
+        this.commandPoolSize = commandPoolSize;
+    }
+
+    /**
+     * コマンドに貸すバッファのプール に設定する.
+     * <pre>
+     * AbstractListenerCommand#allocateBufferで使用する
+     * 設定しない場合はDirectBufferPool#getDefaultを使用する
+     * </pre>
+     * @param bufferPool バッファのプール
+     */
+    public final void setBufferPool(final DirectBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
 // =============================================================================
 
     /**
@@ -177,24 +389,42 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
             throw new RuntimeException(e);
         }
 
-        serverSocket = createServerSocket();
+        final int acceptorSize = acceptorCount > 0 ? acceptorCount : Runtime.getRuntime().availableProcessors();
+
+        serverSocket = createServerSocket(serverSelector, serverPort, acceptorSize > 1 && reusePort);
 
         threadPoolExecutor = serverSocketExecutorFactory.createExecutor();
 
-        if (watcherDelay != -1) {
+        if (acceptorSize > 1) {
+            acceptors = createAcceptors(acceptorSize - 1);
+        }
+
+        if (reactor) {
+            reactors = createReactors();
+        }
+
+        // プールの最大スレッド数を同時実行数とする
+        executes = new CommandRegistry(threadPoolExecutor.getMaximumPoolSize());
+
+        if (watcherDelay > 0L && watcherDelay != Long.MAX_VALUE) {
             // スレッド監視(監視スレッドの監視はしません)
             watcherService = Executors.newSingleThreadScheduledExecutor();
-            final PoolThreadWatcher psw = new PoolThreadWatcher(this, watcherCommandTimeout);
+            timeoutWheel = new CommandTimeoutWheel(watcherDelay, watcherWheelSize, System.currentTimeMillis());
 
 //        watcherServiceFuture =
-            watcherService.scheduleWithFixedDelay(psw, 0L,
+            watcherService.scheduleAtFixedRate(timeoutWheel, watcherDelay,
                     watcherDelay, TimeUnit.MILLISECONDS);
         }
 
         exceptionHandler = new AbortExceptionHandler(this);
 
-        final Set<CommandExecutionable> s = new HashSet<CommandExecutionable>();
-        executes = Collections.synchronizedSet(s);
+        if (statisticsMBean) {
+            registerStatistics();
+        }
+
+        if (commandPoolSize > 0) {
+            commandPool = new ListenerCommandPool(commandPoolSize);
+        }
     }
 
     /**
@@ -224,12 +454,37 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
         }
     }
 
+    /**
+     * リアクターモードのセレクタスレッドと追加の受付スレッドを開始する.
+     */
+    @java.lang.Override
+    protected final void startUp() {
+
+        if (reactors != null) {
+            for (int i = 0; i < reactors.length; i++) {
+                final Thread thread = new Thread(reactors[i], "ServerSocketReactor-" + i);
+                thread.setUncaughtExceptionHandler(exceptionHandler);
+                thread.start();
+            }
+        }
+
+        if (acceptors != null) {
+            for (int i = 0; i < acceptors.length; i++) {
+                final Thread thread = new Thread(acceptors[i], "ServerSocketAcceptor-" + (i + 1));
+                thread.setUncaughtExceptionHandler(exceptionHandler);
+                thread.start();
+            }
+        }
+    }
+
     /**
      * スレッドfinallyの実装を行う.
      */
     @java.lang.Override
     protected final void shutdown() {
 
+        stopAcceptors();
+        stopReactors();
         threadPoolExecutor = null;
         closeServerSocket();
         serverSocket = null;
@@ -238,8 +493,11 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
             watcherService.shutdown();
             watcherService = null;
         }
+        timeoutWheel = null;
         exceptionHandler = null;
         executes = null;
+        commandPool = null;
+        unregisterStatistics();
     }
 
     /**
@@ -252,7 +510,12 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
     public final Set<CommandExecutionable> getExecutesSnapShot() {
 
         final Set<CommandExecutionable> s = new HashSet<CommandExecutionable>();
-        s.addAll(executes);
+        executes.each(new EachFunction<CommandExecutionable>() {
+            public CommandExecutionable apply(final CommandExecutionable value) {
+                s.add(value);
+                return value;
+            }
+        });
 
         return Collections.unmodifiableSet(s);
     }
@@ -291,14 +554,30 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
             // キーの削除
             selectedKeys.remove(selectionKey);
 
-            // 無いと思うが判断する
-            if (!selectionKey.isAcceptable()) {
-                continue;
-            }
+            accept(selectionKey);
+        }
+    }
+
+    /**
+     * 接続を受け付けてコマンドを実行する.
+     * <pre>
+     * 受付スレッドを複数にした場合は各受付スレッドからも呼ばれる
+     * 接続が集中した場合に備えて受付待ちが無くなるまでacceptする
+     * </pre>
+     * @param selectionKey 受付可能なキー
+     */
+    final void accept(final SelectionKey selectionKey) {
+
+        // 無いと思うが判断する
+        if (!selectionKey.isValid() || !selectionKey.isAcceptable()) {
+            return;
+        }
 
-            // KEYからチャネルを取得する
-            final SelectableChannel selectableChannel = selectionKey.channel();
-            final ServerSocketChannel serverSocketChannel = ServerSocketChannel.class.cast(selectableChannel);
+        // KEYからチャネルを取得する
+        final SelectableChannel selectableChannel = selectionKey.channel();
+        final ServerSocketChannel serverSocketChannel = ServerSocketChannel.class.cast(selectableChannel);
+
+        while (true) {
 
             SocketChannel socketChannel = null;
 
@@ -318,26 +597,279 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
             }
 
             if (socketChannel == null) {
-                continue;
+                // 受付待ちが無い(他の受付スレッドが受け付けた場合も含む)
+                return;
             }
 
+            final long acceptNanos = System.nanoTime();
+
             // 呼び出しているメソッドでの例外は無い ノンブロックの場合はスレッドの中で何とかしてください
-            final AbstractListenerCommand command = createListenerCommand(socketChannel.socket());
+            final Socket socket = socketChannel.socket();
+            final AbstractListenerCommand command = obtainListenerCommand(socket);
+            command.setSocket(socket);
             command.setExecutes(executes); // 実行中スレッド管理プール
+            command.setTimeoutWheel(timeoutWheel, watcherCommandTimeout);
+            command.setStatistics(statistics, acceptNanos);
+            command.setBufferPool(bufferPool);
+
+            if (reactor) {
+                // 受信が揃うまではセレクタで待つ
+                registerReactor(socketChannel, command);
+                continue;
+            }
 
             // RejectedExecutionException はHandlerが在るので発生しない
             // シャットダウン中の接続はRejectedExecutionHandlerでクローズされる
+            command.dispatched();
             threadPoolExecutor.execute(command);
         }
     }
 
+    /**
+     * コマンドを取得する.
+     * <pre>
+     * 再利用する場合はプールから取得し、無い場合は生成する
+     * </pre>
+     * @param socket ソケット
+     * @return コマンド
+     */
+    private AbstractListenerCommand obtainListenerCommand(final Socket socket) {
+
+        final ListenerCommandPool pool = commandPool;
+        if (pool != null) {
+            final AbstractListenerCommand command = pool.acquire();
+            if (command != null) {
+                return command;
+            }
+        }
+
+        final AbstractListenerCommand command = createListenerCommand(socket);
+        command.setCommandPool(pool);
+
+        return command;
+    }
+
+    /**
+     * リアクターモードのセレクタを生成する.
+     * @return セレクタ
+     */
+    private ReactorSelector[] createReactors() {
+
+        final ReactorSelector[] selectors = new ReactorSelector[Math.max(reactorCount, 1)];
+        final DirectBufferPool pool = bufferPool != null ? bufferPool : DirectBufferPool.getDefault();
+        try {
+            for (int i = 0; i < selectors.length; i++) {
+                selectors[i] = new ReactorSelector(threadPoolExecutor, pool, serverTimeout, reactorReadTimeout,
+                        reactorKeepAliveTimeout);
+            }
+        } catch (IOException e) {
+            // Selector#openに失敗しました
+            log.error("Selector#open error", e);
+            throw new RuntimeException(e);
+        }
+
+        return selectors;
+    }
+
+    /**
+     * 接続をリアクターモードのセレクタに登録する.
+     * <pre>
+     * セレクタはラウンドロビンで選択する
+     * </pre>
+     * @param socketChannel 接続
+     * @param command コマンド
+     */
+    private void registerReactor(final SocketChannel socketChannel, final AbstractListenerCommand command) {
+
+        try {
+            socketChannel.configureBlocking(false);
+        } catch (IOException e) {
+            // ノンブロックモードの設定に失敗しました 処理は続行します
+            log.error("SocketChannel.configureBlocking error", e);
+            try {
+                socketChannel.close();
+            } catch (IOException ex) {
+                log.debug("SocketChannel.close error", ex);
+            }
+            return;
+        }
+
+        final int index = (reactorIndex.getAndIncrement() & Integer.MAX_VALUE) % reactors.length;
+        final ReactorSelector reactorSelector = reactors[index];
+
+        final ReactorConnection connection = new ReactorConnection(reactorSelector, socketChannel, command,
+                reactorBufferSize, reactorMaxRequestSize);
+        command.setConnection(connection);
+        reactorSelector.register(connection);
+    }
+
+    /**
+     * リアクターモードのセレクタスレッドを停止する.
+     * <pre>
+     * セレクタスレッドの障害ハンドラからも呼ばれるので停止は待たない
+     * </pre>
+     */
+    private void stopReactors() {
+
+        final ReactorSelector[] selectors = reactors;
+        reactors = null;
+
+        if (selectors == null) {
+            return;
+        }
+
+        for (final ReactorSelector reactorSelector : selectors) {
+            reactorSelector.terminate();
+        }
+    }
+
+    /**
+     * 追加の受付スレッドを生成する.
+     * <pre>
+     * SO_REUSEPORTでバインドできた場合は受付スレッド毎にサーバソケットを生成し
+     * OSに接続を振り分けさせる
+     * できない場合はサーバソケットを共有し各受付スレッドのセレクタに登録する
+     * </pre>
+     * @param size 生成数
+     * @return 受付スレッド
+     */
+    private ServerSocketAcceptor[] createAcceptors(final int size) {
+
+        final ServerSocketAcceptor[] workers = new ServerSocketAcceptor[size];
+        final int localPort = serverSocket.getLocalPort();
+
+        try {
+            for (int i = 0; i < size; i++) {
+                final Selector selector = Selector.open();
+                if (reusePortBound) {
+                    final ServerSocket server = createServerSocket(selector, localPort, true);
+                    workers[i] = new ServerSocketAcceptor(this, selector, server, serverTimeout);
+                } else {
+                    serverSocket.getChannel().register(selector, SelectionKey.OP_ACCEPT);
+                    workers[i] = new ServerSocketAcceptor(this, selector, null, serverTimeout);
+                }
+            }
+        } catch (IOException e) {
+            // Selector#openに失敗しました
+            log.error("Selector#open error", e);
+            throw new RuntimeException(e);
+        }
+
+        return workers;
+    }
+
+    /**
+     * 追加の受付スレッドを停止する.
+     * <pre>
+     * 受付スレッドの障害ハンドラからも呼ばれるので停止は待たない
+     * </pre>
+     */
+    private void stopAcceptors() {
+
+        final ServerSocketAcceptor[] workers = acceptors;
+        acceptors = null;
+
+        if (workers == null) {
+            return;
+        }
+
+        for (final ServerSocketAcceptor acceptor : workers) {
+            acceptor.terminate();
+        }
+    }
+
+    /**
+     * バインドしたポートを戻す.
+     * <pre>
+     * ポートに0を設定した場合に割り当てられたポートを確認する
+     * </pre>
+     * @return ポート 開いていない場合は-1
+     */
+    public final int getLocalPort() {
+        if (serverSocket == null) {
+            return -1;
+        }
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * 応答時間の記録を戻す.
+     * @return 応答時間の記録
+     */
+    public final ListenerStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * 応答時間の記録をMBeanサーバに登録する.
+     * <pre>
+     * 監視用なので登録に失敗しても処理は続行する
+     * </pre>
+     */
+    private void registerStatistics() {
+
+        try {
+            final ObjectName name = new ObjectName(ListenerStatistics.class.getPackage().getName()
+                + ":type=ListenerStatistics,port=" + getLocalPort());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, name);
+            statisticsName = name;
+        } catch (Exception e) {
+            // MBeanサーバへの登録に失敗しました
+            log.warn("registerMBean error", e);
+        }
+    }
+
+    /**
+     * 応答時間の記録をMBeanサーバから削除する.
+     */
+    private void unregisterStatistics() {
+
+        if (statisticsName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(statisticsName);
+        } catch (Exception e) {
+            // MBeanサーバからの削除に失敗しました
+            log.warn("unregisterMBean error", e);
+        }
+        statisticsName = null;
+    }
+
+    /**
+     * SO_REUSEPORTを設定する.
+     * <pre>
+     * SocketOptionの定数はJava9からなので対応している名称から検索する
+     * </pre>
+     * @param serverSocketChannel バインド前のチャネル
+     * @return 設定できた場合はtrue
+     * @throws IOException 設定に失敗した場合
+     */
+    private static boolean setReusePortOption(final ServerSocketChannel serverSocketChannel) throws IOException {
+
+        for (final SocketOption<?> option : serverSocketChannel.supportedOptions()) {
+            if (!"SO_REUSEPORT".equals(option.name())) {
+                continue;
+            }
+            @SuppressWarnings("unchecked")
+            final SocketOption<Boolean> reusePortOption = (SocketOption<Boolean>) option;
+            serverSocketChannel.setOption(reusePortOption, Boolean.TRUE);
+            return true;
+        }
+
+        return false;
+    }
+
     /**
      * サーバソケットの生成を行う.
      * <pre>
      * </pre>
+     * @param selector 登録するセレクタ
+     * @param port バインドのポート
+     * @param reuse SO_REUSEPORTでバインドする
      * @return ソケットサーバ
      */
-    private ServerSocket createServerSocket() {
+    private ServerSocket createServerSocket(final Selector selector, final int port, final boolean reuse) {
 
         if (log.isTraceEnabled()) {
             log.trace("START");
@@ -355,10 +887,15 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
             }
 
             // 非同期接続でも対応できるようにしておく
-            final SocketAddress socketAddress = new InetSocketAddress(inetAddress, serverPort);
+            final SocketAddress socketAddress = new InetSocketAddress(inetAddress, port);
             final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
             server = serverSocketChannel.socket();
 
+            // 受付スレッド毎にバインドする場合
+            if (reuse) {
+                reusePortBound = setReusePortOption(serverSocketChannel);
+            }
+
             // 生成
             server.bind(socketAddress, serverBackLog);
 
@@ -369,7 +906,7 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
             serverSocketChannel.configureBlocking(blocking);
 
             // セレクターを設定する
-            final SelectionKey selectionKey = serverSocketChannel.register(serverSelector, SelectionKey.OP_ACCEPT);
+            final SelectionKey selectionKey = serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
 
             // 受信登録を行う
             selectionKey.interestOps(SelectionKey.OP_ACCEPT);
@@ -464,6 +1001,50 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
         return threadPoolExecutor.getTaskCount();
     }
 
+    /**
+     * 現在の同時実行数の上限を返します。<br />
+     * @return 上限 制限していない場合は-1
+     */
+    public final int getConcurrencyLimit() {
+        if (!(threadPoolExecutor instanceof LimitedThreadPoolExecutor)) {
+            return -1;
+        }
+        return LimitedThreadPoolExecutor.class.cast(threadPoolExecutor).getConcurrencyLimit();
+    }
+
+    /**
+     * 同時実行数の上限を超えて受付不可とした数を返します。<br />
+     * @return 受付不可とした数 制限していない場合は-1
+     */
+    public final long getLimitRejectedCount() {
+        if (!(threadPoolExecutor instanceof LimitedThreadPoolExecutor)) {
+            return -1;
+        }
+        return LimitedThreadPoolExecutor.class.cast(threadPoolExecutor).getLimitRejectedCount();
+    }
+
+    /**
+     * キュー待ち時間の度数分布を返します。<br />
+     * @return 添字iは2^(i-1)以上2^iミリ秒未満の件数 CoDelを使用していない場合はnull
+     */
+    public final long[] getQueueSojournHistogram() {
+        if (threadPoolExecutor == null || !(threadPoolExecutor.getQueue() instanceof CoDelBlockingQueue)) {
+            return null;
+        }
+        return CoDelBlockingQueue.class.cast(threadPoolExecutor.getQueue()).getSojournHistogram();
+    }
+
+    /**
+     * キュー待ち時間により破棄した数を返します。<br />
+     * @return 破棄した数 CoDelを使用していない場合は-1
+     */
+    public final long getQueueDropCount() {
+        if (threadPoolExecutor == null || !(threadPoolExecutor.getQueue() instanceof CoDelBlockingQueue)) {
+            return -1;
+        }
+        return CoDelBlockingQueue.class.cast(threadPoolExecutor.getQueue()).getDropCount();
+    }
+
     /**
      * スレッド障害ハンドラ.
      */
@@ -500,6 +1081,10 @@ public abstract class AbstractServerSocketListener extends AbstractWorker {
 
     /**
      * 決して例外を起こしてはならない
+     * <pre>
+     * commandPoolSizeを設定した場合は再利用されるので
+     * コマンドはsocketを保持せずにgetSocketを使用してください
+     * </pre>
      */
     protected abstract AbstractListenerCommand createListenerCommand(final Socket socket);
 
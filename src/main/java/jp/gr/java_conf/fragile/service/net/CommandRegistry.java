@@ -0,0 +1,124 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import jp.gr.java_conf.fragile.commons.collect.Collect.EachFunction;
+
+/**
+ * 実行中コマンドの管理.
+ * <pre>
+ * 同期化したSetでは全スレッドが1つのモニタで競合するので
+ * スロット配列にCASで登録する
+ * 登録位置は実行スレッドのIDから求めるので
+ * プールのスレッドは毎回同じスロットを使い競合しない
+ * 登録時に戻したスロット番号で削除するので登録、削除ともO(1)
+ * スロットが全て埋まっている場合は並行Setに登録する
+ * </pre>
+ */
+public final class CommandRegistry {
+
+    /** スロット数の上限 */
+    private static final int MAX_CAPACITY = 1 << 16;
+
+    /** 並行Setに登録した場合のスロット番号 */
+    public static final int OVERFLOW = -1;
+
+    /** スロット */
+    private final AtomicReferenceArray<CommandExecutionable> slots;
+
+    /** スロット番号のマスク */
+    private final int mask;
+
+    /** スロットが埋まっている場合の登録先 */
+    private final Set<CommandExecutionable> overflow
+        = Collections.newSetFromMap(new ConcurrentHashMap<CommandExecutionable, Boolean>());
+
+    /**
+     * コンストラクタ.
+     * @param concurrency 想定する同時実行数
+     */
+    public CommandRegistry(final int concurrency) {
+
+        int capacity = 1;
+        final int size = Math.min(Math.max(concurrency, 1), MAX_CAPACITY / 2) * 2;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<CommandExecutionable>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * 登録する.
+     * @param command コマンド
+     * @return スロット番号 削除時に指定する
+     */
+    public int register(final CommandExecutionable command) {
+
+        final int start = hash(Thread.currentThread().getId());
+        for (int i = 0; i <= mask; i++) {
+            final int index = (start + i) & mask;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, command)) {
+                return index;
+            }
+        }
+
+        overflow.add(command);
+        return OVERFLOW;
+    }
+
+    /**
+     * 削除する.
+     * @param command コマンド
+     * @param slot 登録時のスロット番号
+     */
+    public void unregister(final CommandExecutionable command, final int slot) {
+
+        if (slot == OVERFLOW) {
+            overflow.remove(command);
+            return;
+        }
+        slots.compareAndSet(slot, command, null);
+    }
+
+    /**
+     * 実行中のコマンドを走査する.
+     * <pre>
+     * 管理ツールなどから呼ばれる スナップショットは取らないので
+     * 走査中に登録、削除されたコマンドは含まれない場合がある
+     * </pre>
+     * @param function コールバック
+     */
+    public void each(final EachFunction<CommandExecutionable> function) {
+
+        for (int i = 0; i <= mask; i++) {
+            final CommandExecutionable command = slots.get(i);
+            if (command != null) {
+                function.apply(command);
+            }
+        }
+
+        if (overflow.isEmpty()) {
+            return;
+        }
+        for (final CommandExecutionable command : overflow) {
+            function.apply(command);
+        }
+    }
+
+    /**
+     * スレッドIDを分散させる.
+     * @param id スレッドID
+     * @return スロット番号
+     */
+    private int hash(final long id) {
+        final int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
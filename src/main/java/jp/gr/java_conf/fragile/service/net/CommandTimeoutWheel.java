@@ -0,0 +1,318 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * コマンドのタイムアウト監視(ハッシュ化タイミングホイール).
+ * <pre>
+ * 実行中の全コマンドを定期的に走査するのではなく
+ * コマンドの開始時に期限をホイールに登録し、終了時に取り消す
+ * 監視スレッドは経過したtickのバケットだけを処理するので
+ * 処理量は期限切れのコマンド数に比例する
+ * 期限はコマンド毎に指定できる
+ * 登録と取り消しはキューに積み、ホイールの操作は監視スレッドのみが行う
+ * </pre>
+ */
+class CommandTimeoutWheel implements Runnable {
+
+    /** ロガー */
+    private static Logger log = LoggerFactory.getLogger(CommandTimeoutWheel.class);
+
+    /** 状態 登録中 */
+    private static final int ST_INIT = 0;
+
+    /** 状態 取り消し */
+    private static final int ST_CANCELLED = 1;
+
+    /** 状態 期限切れ */
+    private static final int ST_EXPIRED = 2;
+
+// =============================================================================
+
+    /** 1tickのミリ秒 */
+    private final long tickDuration;
+
+    /** バケット */
+    private final Bucket[] wheel;
+
+    /** バケット番号のマスク */
+    private final int mask;
+
+    /** 開始時刻 */
+    private final long startTime;
+
+    /** 登録待ち */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+    /** 取り消し待ち */
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+    /** 次に処理するtick [監視スレッドのみ参照] */
+    private long currentTick = 0L;
+
+// =============================================================================
+
+    /**
+     * コンストラクタ.
+     * @param tickDuration 1tickのミリ秒(タイムアウトの精度)
+     * @param wheelSize バケット数
+     * @param startTime 開始時刻
+     */
+    CommandTimeoutWheel(final long tickDuration, final int wheelSize, final long startTime) {
+
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+
+        this.tickDuration = Math.max(tickDuration, 1L);
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        this.startTime = startTime;
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+    }
+
+// =============================================================================
+
+    /**
+     * 期限を登録する.
+     * @param command コマンド
+     * @param deadline 期限(ミリ秒時刻)
+     * @return 取り消し用
+     */
+    Timeout schedule(final CommandExecutionable command, final long deadline) {
+
+        final Timeout timeout = new Timeout(this, command, deadline);
+        pending.add(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * 期限切れのコマンドに停止要求をする.
+     * <pre>
+     * 監視スレッドから定期的に呼ばれる
+     * </pre>
+     */
+    public void run() {
+
+        try {
+            expire(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            // 監視を止めない
+            log.error("CommandTimeoutWheel error", e);
+        }
+    }
+
+    /**
+     * 指定時刻までのtickを処理する.
+     * @param now 現在時刻
+     */
+    void expire(final long now) {
+
+        transferCancelled();
+        transferPending();
+
+        // 経過し終わったtickのみ処理するのでバケット内の期限は全て過ぎている
+        final long targetTick = (now - startTime) / tickDuration;
+        while (currentTick < targetTick) {
+            wheel[(int) (currentTick & mask)].expire();
+            currentTick++;
+        }
+    }
+
+    /**
+     * 取り消されたものをバケットから外す.
+     */
+    private void transferCancelled() {
+
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * 登録待ちをバケットに入れる.
+     */
+    private void transferPending() {
+
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+
+            if (timeout.state.get() != ST_INIT) {
+                continue;
+            }
+
+            // 過ぎている場合は次に処理するtickに入れる
+            final long deadlineTick = Math.max((timeout.deadline - startTime) / tickDuration, currentTick);
+            timeout.rounds = (deadlineTick - currentTick) / wheel.length;
+            wheel[(int) (deadlineTick & mask)].add(timeout);
+        }
+    }
+
+// =============================================================================
+
+    /**
+     * 登録した期限.
+     */
+    static final class Timeout {
+
+        /** ホイール */
+        private final CommandTimeoutWheel timer;
+
+        /** コマンド */
+        private final CommandExecutionable command;
+
+        /** 期限 */
+        private final long deadline;
+
+        /** 状態 */
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+        /** 残り周回数 [監視スレッドのみ参照] */
+        private long rounds = 0L;
+
+        /** 登録されているバケット [監視スレッドのみ参照] */
+        private Bucket bucket = null;
+
+        /** 前 [監視スレッドのみ参照] */
+        private Timeout prev = null;
+
+        /** 次 [監視スレッドのみ参照] */
+        private Timeout next = null;
+
+        /**
+         * コンストラクタ.
+         * @param timer ホイール
+         * @param command コマンド
+         * @param deadline 期限
+         */
+        Timeout(final CommandTimeoutWheel timer, final CommandExecutionable command, final long deadline) {
+            this.timer = timer;
+            this.command = command;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 期限を戻す.
+         * @return 期限(ミリ秒時刻)
+         */
+        long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * 期限切れ判定.
+         * @return 期限切れで停止要求した場合はtrue
+         */
+        boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+        /**
+         * 取り消す.
+         * @return 取り消せた場合はtrue 既に期限切れの場合はfalse
+         */
+        boolean cancel() {
+
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            timer.cancelled.add(this);
+
+            return true;
+        }
+
+        /**
+         * 期限切れにして停止要求をする.
+         */
+        private void expire() {
+
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            command.interrupt();
+        }
+    }
+
+    /**
+     * バケット(双方向リスト).
+     */
+    private static final class Bucket {
+
+        /** 先頭 */
+        private Timeout head = null;
+
+        /** 末尾 */
+        private Timeout tail = null;
+
+        /**
+         * 追加する.
+         * @param timeout 期限
+         */
+        void add(final Timeout timeout) {
+
+            timeout.bucket = this;
+            if (head == null) {
+                head = timeout;
+                tail = timeout;
+                return;
+            }
+            tail.next = timeout;
+            timeout.prev = tail;
+            tail = timeout;
+        }
+
+        /**
+         * 周回数が0のものを期限切れにする.
+         */
+        void expire() {
+
+            Timeout timeout = head;
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.rounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        /**
+         * 外す.
+         * @param timeout 期限
+         */
+        void remove(final Timeout timeout) {
+
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
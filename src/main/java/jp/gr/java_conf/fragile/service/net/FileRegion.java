@@ -0,0 +1,141 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 送信するファイルの範囲.
+ * <pre>
+ * SocketChannelへはFileChannel#transferTo(sendfile)でヒープを経由せずに送信する
+ * transferToが失敗した場合とSocketChannel以外へはマップしたバッファを書き込む
+ * ノンブロックのチャネルには送信できた分だけ進めるので
+ * 残りがある間は送信可能になる度に呼び出す
+ * 送信完了後または接続終了時にファイルを閉じる
+ * 送信中にファイルが終了位置より短くなった場合はEOFExceptionにする
+ * </pre>
+ */
+final class FileRegion {
+
+    /** ロガー */
+    private static Logger log = LoggerFactory.getLogger(FileRegion.class);
+
+    /** 一度にマップする大きさ */
+    private static final long MAP_SIZE = 8L * 1024L * 1024L;
+
+// =============================================================================
+
+    /** ファイル */
+    private final FileChannel file;
+
+    /** 次に送信する位置 [マップ中はマップした範囲の後] */
+    private long position;
+
+    /** 終了位置 */
+    private final long end;
+
+    /** マップしたバッファ */
+    private MappedByteBuffer mapped = null;
+
+    /** transferToを使用しない場合にtrueにする */
+    private boolean mapping = false;
+
+// =============================================================================
+
+    /**
+     * コンストラクタ.
+     * @param file ファイル
+     * @param position 開始位置
+     * @param count バイト数
+     */
+    FileRegion(final FileChannel file, final long position, final long count) {
+        this.file = file;
+        this.position = position;
+        this.end = position + count;
+    }
+
+// =============================================================================
+
+    /**
+     * 送信が残っているか判定する.
+     * @return 残っている場合はtrue
+     */
+    boolean hasRemaining() {
+        return position < end || (mapped != null && mapped.hasRemaining());
+    }
+
+    /**
+     * 送信できるだけ送信する.
+     * @param target 送信先
+     * @return 送信したバイト数
+     * @throws IOException 送信に失敗した場合
+     * @throws EOFException ファイルが終了位置より短くなった場合
+     */
+    long write(final WritableByteChannel target) throws IOException {
+
+        if (!mapping && target instanceof SocketChannel) {
+            long length = -1L;
+            try {
+                length = file.transferTo(position, end - position, target);
+            } catch (IOException e) {
+                if (!file.isOpen() || !target.isOpen()) {
+                    throw e;
+                }
+                // sendfileを使用できない場合はマップしたバッファで送信する
+                log.debug("FileChannel#transferTo error", e);
+            }
+            if (length >= 0L) {
+                // 送信バッファが一杯の場合と区別しないと送信可能になる度に空回りする
+                if (length == 0L && position >= file.size()) {
+                    throw new EOFException("file truncated position:" + position + " end:" + end);
+                }
+                position += length;
+                return length;
+            }
+        }
+        mapping = true;
+
+        if (mapped == null || !mapped.hasRemaining()) {
+            final long size = Math.min(end - position, MAP_SIZE);
+            mapped = file.map(FileChannel.MapMode.READ_ONLY, position, size);
+            position += size;
+        }
+        return target.write(mapped);
+    }
+
+    /**
+     * ブロッキングのチャネルに全て送信する.
+     * @param target 送信先
+     * @throws IOException 送信に失敗した場合
+     * @throws EOFException ファイルが終了位置より短くなった場合
+     */
+    void writeFully(final WritableByteChannel target) throws IOException {
+
+        while (hasRemaining()) {
+            write(target);
+        }
+    }
+
+    /**
+     * ファイルを閉じる.
+     */
+    void close() {
+
+        mapped = null;
+        try {
+            file.close();
+        } catch (IOException e) {
+            // 基本的に例外は発生しない
+            log.debug("FileChannel#close error", e);
+        }
+    }
+}
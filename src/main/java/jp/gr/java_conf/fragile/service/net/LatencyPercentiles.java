@@ -0,0 +1,127 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+import java.beans.ConstructorProperties;
+
+import jp.gr.java_conf.fragile.commons.util.LatencyHistogram;
+
+/**
+ * 応答時間の百分位.
+ * <pre>
+ * MXBeanの属性として参照する 単位はマイクロ秒
+ * </pre>
+ */
+public final class LatencyPercentiles {
+
+    /** 件数 */
+    private final long count;
+
+    /** 50% */
+    private final long p50;
+
+    /** 90% */
+    private final long p90;
+
+    /** 99% */
+    private final long p99;
+
+    /** 99.9% */
+    private final long p999;
+
+    /** 最大 */
+    private final long max;
+
+    /**
+     * コンストラクタ.
+     * @param count 件数
+     * @param p50 50%
+     * @param p90 90%
+     * @param p99 99%
+     * @param p999 99.9%
+     * @param max 最大
+     */
+    @ConstructorProperties({"count", "p50", "p90", "p99", "p999", "max"})
+    public LatencyPercentiles(final long count, final long p50, final long p90, final long p99,
+            final long p999, final long max) {
+        this.count = count;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    /**
+     * 度数分布の集計結果から生成する.
+     * @param snapshot 集計結果
+     * @return 生成して戻す
+     */
+    static LatencyPercentiles valueOf(final LatencyHistogram.Snapshot snapshot) {
+        return new LatencyPercentiles(
+            snapshot.getCount(),
+            snapshot.getValueAtPercentile(50D),
+            snapshot.getValueAtPercentile(90D),
+            snapshot.getValueAtPercentile(99D),
+            snapshot.getValueAtPercentile(99.9D),
+            snapshot.getMax());
+    }
+
+    /**
+     * 件数を戻す.
+     * @return 件数
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * 50%の値を戻す.
+     * @return マイクロ秒
+     */
+    public long getP50() {
+        return p50;
+    }
+
+    /**
+     * 90%の値を戻す.
+     * @return マイクロ秒
+     */
+    public long getP90() {
+        return p90;
+    }
+
+    /**
+     * 99%の値を戻す.
+     * @return マイクロ秒
+     */
+    public long getP99() {
+        return p99;
+    }
+
+    /**
+     * 99.9%の値を戻す.
+     * @return マイクロ秒
+     */
+    public long getP999() {
+        return p999;
+    }
+
+    /**
+     * 最大値を戻す.
+     * @return マイクロ秒
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @java.lang.Override
+    public String toString() {
+        return "count=" + count + " p50=" + p50 + " p90=" + p90 + " p99=" + p99
+            + " p999=" + p999 + " max=" + max;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 再利用するコマンドのプール.
+ * <pre>
+ * 取得は受付スレッド、返却は処理スレッドまたはセレクタのスレッドから行われるので
+ * スレッド毎のキャッシュではなくスロット配列にCASで出し入れする
+ * 探索の開始位置は呼び出しスレッドのIDから求めるので、返却するスレッド同士は
+ * 別のスロットから探索し競合しない
+ * 空きが無い場合は返却せずに破棄し、取得できない場合は新規に生成させる
+ * </pre>
+ */
+final class ListenerCommandPool {
+
+    /** スロット */
+    private final AtomicReferenceArray<AbstractListenerCommand> slots;
+
+    /** スロット番号のマスク */
+    private final int mask;
+
+    /**
+     * コンストラクタ.
+     * @param capacity プールする最大数
+     */
+    ListenerCommandPool(final int capacity) {
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<AbstractListenerCommand>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * 取得する.
+     * @return コマンド 無い場合はnull
+     */
+    AbstractListenerCommand acquire() {
+
+        final int start = hash(Thread.currentThread().getId());
+        for (int i = 0; i <= mask; i++) {
+            final int index = (start + i) & mask;
+            final AbstractListenerCommand command = slots.get(index);
+            if (command != null && slots.compareAndSet(index, command, null)) {
+                return command;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 返却する.
+     * @param command 初期化済みのコマンド
+     * @return 返却できた場合はtrue 空きが無い場合はfalse
+     */
+    boolean release(final AbstractListenerCommand command) {
+
+        final int start = hash(Thread.currentThread().getId());
+        for (int i = 0; i <= mask; i++) {
+            final int index = (start + i) & mask;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, command)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * スレッドIDを分散させる.
+     * @param id スレッドID
+     * @return スロット番号
+     */
+    private int hash(final long id) {
+        final int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
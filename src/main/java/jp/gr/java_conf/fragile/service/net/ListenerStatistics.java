@@ -0,0 +1,97 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+import jp.gr.java_conf.fragile.commons.util.LatencyHistogram;
+
+/**
+ * リスナーの応答時間の記録.
+ * <pre>
+ * コマンドとリアクターの接続からナノ秒で通知され
+ * マイクロ秒で度数分布に記録する
+ * </pre>
+ */
+public final class ListenerStatistics implements ListenerStatisticsMXBean {
+
+    /** ナノ秒からマイクロ秒 */
+    private static final long NANOS_PER_MICRO = 1000L;
+
+// =============================================================================
+
+    /** 受付から実行キューに渡すまで */
+    private final LatencyHistogram acceptToDispatch = new LatencyHistogram();
+
+    /** 実行キューの待ち */
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    /** execute */
+    private final LatencyHistogram execute = new LatencyHistogram();
+
+    /** 受付から切断まで */
+    private final LatencyHistogram connection = new LatencyHistogram();
+
+// =============================================================================
+
+    /**
+     * 受付から実行キューに渡すまでの時間を記録する.
+     * @param nanos ナノ秒
+     */
+    void recordAcceptToDispatch(final long nanos) {
+        acceptToDispatch.record(nanos / NANOS_PER_MICRO);
+    }
+
+    /**
+     * 実行キューで待った時間を記録する.
+     * @param nanos ナノ秒
+     */
+    void recordQueueWait(final long nanos) {
+        queueWait.record(nanos / NANOS_PER_MICRO);
+    }
+
+    /**
+     * executeの実行時間を記録する.
+     * @param nanos ナノ秒
+     */
+    void recordExecute(final long nanos) {
+        execute.record(nanos / NANOS_PER_MICRO);
+    }
+
+    /**
+     * 受付から切断までの時間を記録する.
+     * @param nanos ナノ秒
+     */
+    void recordConnection(final long nanos) {
+        connection.record(nanos / NANOS_PER_MICRO);
+    }
+
+// =============================================================================
+
+    /**
+     * {@inheritDoc}
+     */
+    public LatencyPercentiles getAcceptToDispatch() {
+        return LatencyPercentiles.valueOf(acceptToDispatch.getSnapshotAndReset());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public LatencyPercentiles getQueueWait() {
+        return LatencyPercentiles.valueOf(queueWait.getSnapshotAndReset());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public LatencyPercentiles getExecute() {
+        return LatencyPercentiles.valueOf(execute.getSnapshotAndReset());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public LatencyPercentiles getConnection() {
+        return LatencyPercentiles.valueOf(connection.getSnapshotAndReset());
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+/**
+ * リスナーの応答時間の監視用インターフェース.
+ * <pre>
+ * 各属性は参照した時点で0に戻す(前回参照からの集計)
+ * 単位はマイクロ秒
+ * </pre>
+ */
+public interface ListenerStatisticsMXBean {
+
+    /**
+     * 受付からコマンドを実行キューに渡すまでの時間.
+     * <pre>
+     * リアクターモードの場合は1要求分の受信を待つ時間を含む
+     * </pre>
+     * @return 百分位
+     */
+    LatencyPercentiles getAcceptToDispatch();
+
+    /**
+     * 実行キューで待った時間.
+     * @return 百分位
+     */
+    LatencyPercentiles getQueueWait();
+
+    /**
+     * executeの実行時間.
+     * @return 百分位
+     */
+    LatencyPercentiles getExecute();
+
+    /**
+     * 受付から接続を閉じるまでの時間.
+     * <pre>
+     * ブロッキングモードの場合はコマンドの終了まで
+     * </pre>
+     * @return 百分位
+     */
+    LatencyPercentiles getConnection();
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * リアクターモードの接続単位の状態.
+ * <pre>
+ * 受信バッファと送信キューを保持する
+ * 送信キューにはByteBufferとFileRegionを積む
+ * keep-aliveの場合は応答の送信後に受信済みの次の要求を処理し、無ければ受信を待つ
+ * コマンド実行中以外はセレクタのスレッドからのみ操作される
+ * コマンドへの受け渡しはReactorSelector#invokeLaterを経由するので同期化はしない
+ * セレクタの停止時に実行中のコマンドの接続はコマンドの終了後に閉じる
+ * タイムアウトしたコマンドは監視スレッドからチャネルを閉じるので
+ * セレクションキーはいつ取り消されても良いように操作する
+ * </pre>
+ */
+class ReactorConnection {
+
+    /** ロガー */
+    private static Logger log = LoggerFactory.getLogger(ReactorConnection.class);
+
+    /** まとめて送信するバッファの最大数 */
+    private static final int GATHER_SIZE = 16;
+
+// =============================================================================
+
+    /** 監視しているセレクタ */
+    private final ReactorSelector reactor;
+
+    /** チャネル */
+    private final SocketChannel channel;
+
+    /** コマンド */
+    private final AbstractListenerCommand command;
+
+    /** 受信できる最大長 */
+    private final int maxRequestSize;
+
+    /** セレクションキー */
+    private SelectionKey selectionKey = null;
+
+    /** 受信バッファ */
+    private ByteBuffer readBuffer;
+
+    /** 送信キュー [ByteBufferまたはFileRegion] */
+    private final LinkedList<Object> writeQueue = new LinkedList<Object>();
+
+    /** まとめて送信するバッファ */
+    private final ByteBuffer[] gather = new ByteBuffer[GATHER_SIZE];
+
+    /** 相手が送信を終了した場合にtrueにする */
+    private boolean endOfStream = false;
+
+    /** 応答を送信した場合にtrueにする */
+    private boolean responded = false;
+
+    /** コマンドを実行中の場合にtrue [セレクタのスレッドのみ参照] */
+    private boolean dispatched = false;
+
+    /** 要求待ちの期限 [セレクタのスレッドのみ参照] */
+    long idleDeadline = 0L;
+
+    /** 入っている要求待ちのリスト [セレクタのスレッドのみ参照] */
+    ReactorSelector.IdleList idleList = null;
+
+    /** 要求待ちのリストの前 [セレクタのスレッドのみ参照] */
+    ReactorConnection idlePrev = null;
+
+    /** 要求待ちのリストの次 [セレクタのスレッドのみ参照] */
+    ReactorConnection idleNext = null;
+
+// =============================================================================
+
+    /**
+     * コンストラクタ.
+     * @param reactor 監視するセレクタ
+     * @param channel チャネル(ノンブロック)
+     * @param command コマンド
+     * @param bufferSize 受信バッファの初期サイズ
+     * @param maxRequestSize 受信できる最大長
+     */
+    ReactorConnection(final ReactorSelector reactor, final SocketChannel channel,
+            final AbstractListenerCommand command, final int bufferSize, final int maxRequestSize) {
+        this.reactor = reactor;
+        this.channel = channel;
+        this.command = command;
+        this.maxRequestSize = maxRequestSize;
+        this.readBuffer = ByteBuffer.allocate(bufferSize);
+    }
+
+// =============================================================================
+
+    /**
+     * セレクタに受信を登録する.
+     * <pre>
+     * セレクタのスレッドから呼ばれる
+     * </pre>
+     * @param selector セレクタ
+     */
+    void register(final Selector selector) {
+
+        try {
+            selectionKey = channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (ClosedChannelException e) {
+            // 登録前に切断されました
+            log.debug("SocketChannel.register error", e);
+            close();
+            return;
+        } catch (ClosedSelectorException e) {
+            // 登録前にセレクタが停止しました
+            log.debug("SocketChannel.register error", e);
+            close();
+            return;
+        }
+        reactor.park(this, false);
+    }
+
+    /**
+     * 受信可能時に呼ばれる.
+     * <pre>
+     * 1要求分が揃った場合はコマンドをスレッドプールに渡す
+     * </pre>
+     */
+    void read() {
+
+        int length;
+        try {
+            if (!readBuffer.hasRemaining()) {
+                expand();
+            }
+            length = channel.read(readBuffer);
+        } catch (IOException e) {
+            // 受信に失敗しました 接続を閉じます
+            log.debug("SocketChannel.read error", e);
+            close();
+            return;
+        }
+
+        if (length < 0) {
+            endOfStream = true;
+        }
+
+        readBuffer.flip();
+        process();
+    }
+
+    /**
+     * 受信済みのデータから1要求を取り出してコマンドをスレッドプールに渡す.
+     * <pre>
+     * 揃っていない場合は受信を待つ
+     * 受信バッファは読み出し可能な状態で呼び出す
+     * </pre>
+     */
+    private void process() {
+
+        int requestLength;
+        try {
+            requestLength = command.getRequestLength(readBuffer);
+            if (requestLength < 0 && endOfStream) {
+                requestLength = Math.max(command.getLastRequestLength(readBuffer), 0);
+            }
+        } catch (RuntimeException e) {
+            // 不正な要求です 接続を閉じます
+            log.warn("invalid request", e);
+            close();
+            return;
+        }
+
+        if (requestLength < 0) {
+            readBuffer.compact();
+            if (readBuffer.position() >= maxRequestSize) {
+                // 要求が大きすぎます
+                log.warn("request too large:" + readBuffer.position());
+                close();
+                return;
+            }
+            // 受信が始まったら1要求分が揃うまでの期限にする
+            if (!interestOps(SelectionKey.OP_READ)) {
+                return;
+            }
+            reactor.park(this, responded && readBuffer.position() == 0);
+            return;
+        }
+
+        if (requestLength == 0) {
+            // 受信データ無しで切断された
+            close();
+            return;
+        }
+
+        // コピーせずに受信バッファの一部をそのまま渡す
+        // 応答が終わるまで受信を止めるので上書きされる事は無い
+        final ByteBuffer request = readBuffer.duplicate();
+        request.limit(request.position() + requestLength);
+        command.setRequest(request.slice());
+        readBuffer.position(readBuffer.position() + requestLength);
+
+        if (!interestOps(0)) {
+            return;
+        }
+        reactor.unpark(this);
+        dispatched = true;
+        reactor.dispatch(command);
+    }
+
+    /**
+     * 送信可能時に呼ばれる.
+     * <pre>
+     * 送信キューが空になったら接続を閉じる
+     * keep-aliveの場合は次の要求を処理する
+     * </pre>
+     */
+    void write() {
+
+        try {
+            while (!writeQueue.isEmpty()) {
+                final Object data = writeQueue.getFirst();
+                if (data instanceof FileRegion) {
+                    final FileRegion region = FileRegion.class.cast(data);
+                    region.write(channel);
+                    if (region.hasRemaining()) {
+                        // 送信バッファが一杯なので次の通知を待つ
+                        interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    region.close();
+                    writeQueue.removeFirst();
+                } else if (!writeBuffers()) {
+                    // 送信バッファが一杯なので次の通知を待つ
+                    interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // 送信に失敗しました 接続を閉じます
+            log.debug("SocketChannel.write error", e);
+            close();
+            return;
+        }
+
+        if (!reactor.isKeepAlive() || command.isCloseAfterResponse()) {
+            close();
+            return;
+        }
+
+        // 応答が終わったので要求のバッファを返却し、受信バッファの処理済みの要求を詰める
+        command.responded();
+        responded = true;
+        readBuffer.compact();
+        readBuffer.flip();
+        process();
+    }
+
+    /**
+     * 監視する操作を変更する.
+     * <pre>
+     * 監視スレッドがチャネルを閉じてセレクションキーが取り消されていた場合は接続を閉じる
+     * </pre>
+     * @param ops 操作
+     * @return 変更できた場合はtrue
+     */
+    private boolean interestOps(final int ops) {
+
+        try {
+            if (selectionKey.isValid()) {
+                selectionKey.interestOps(ops);
+                return true;
+            }
+        } catch (CancelledKeyException e) {
+            // isValidの確認後に取り消された
+            log.debug("SelectionKey cancelled", e);
+        }
+        close();
+        return false;
+    }
+
+    /**
+     * 送信キューの先頭から連続するByteBufferをまとめて送信する.
+     * <pre>
+     * フレームのヘッダ、本文、区切り文字などを1回の書き込みで送信する
+     * </pre>
+     * @return 全て送信できた場合はtrue
+     * @throws IOException 送信に失敗した場合
+     */
+    private boolean writeBuffers() throws IOException {
+
+        int count = 0;
+        for (final Object data : writeQueue) {
+            if (count == gather.length || !(data instanceof ByteBuffer)) {
+                break;
+            }
+            gather[count++] = ByteBuffer.class.cast(data);
+        }
+
+        try {
+            channel.write(gather, 0, count);
+            for (int i = 0; i < count; i++) {
+                if (gather[i].hasRemaining()) {
+                    return false;
+                }
+                writeQueue.removeFirst();
+            }
+        } finally {
+            for (int i = 0; i < count; i++) {
+                gather[i] = null;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * 応答を送信キューに積む.
+     * <pre>
+     * コマンドのスレッドから呼ばれる
+     * </pre>
+     * @param buffer 送信データ
+     */
+    void send(final ByteBuffer buffer) {
+        writeQueue.add(buffer);
+    }
+
+    /**
+     * ファイルの範囲を送信キューに積む.
+     * <pre>
+     * コマンドのスレッドから呼ばれる
+     * </pre>
+     * @param region ファイルの範囲
+     */
+    void send(final FileRegion region) {
+        writeQueue.add(region);
+    }
+
+    /**
+     * コマンドの終了時に呼ばれる.
+     * <pre>
+     * 送信はセレクタのスレッドで行う
+     * 送信可能の通知を待たずに送信し、送信しきれない場合のみ通知を待つ
+     * </pre>
+     */
+    void completed() {
+
+        reactor.invokeLater(new Runnable() {
+            public void run() {
+                dispatched = false;
+                if (selectionKey == null || !selectionKey.isValid()) {
+                    close();
+                    return;
+                }
+                write();
+            }
+        });
+    }
+
+    /**
+     * コマンドを実行中か.
+     * <pre>
+     * セレクタのスレッドから呼ばれる
+     * </pre>
+     * @return 実行中の場合はtrue
+     */
+    boolean isDispatched() {
+        return dispatched;
+    }
+
+    /**
+     * 接続を閉じる.
+     */
+    void close() {
+
+        reactor.unpark(this);
+
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 基本的に例外は発生しない
+            log.debug("SocketChannel.close error", e);
+        }
+
+        // 送信できなかったファイルを閉じる
+        while (!writeQueue.isEmpty()) {
+            final Object data = writeQueue.removeFirst();
+            if (data instanceof FileRegion) {
+                FileRegion.class.cast(data).close();
+            }
+        }
+
+        command.closed();
+    }
+
+    /**
+     * 受信バッファを拡張する.
+     */
+    private void expand() {
+
+        final int size = Math.min(readBuffer.capacity() * 2, maxRequestSize);
+        if (size <= readBuffer.capacity()) {
+            return;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        readBuffer.flip();
+        buffer.put(readBuffer);
+        readBuffer = buffer;
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import jp.gr.java_conf.fragile.commons.io.DirectBufferPool;
+import jp.gr.java_conf.fragile.commons.util.AbstractWorker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * リアクターモードのセレクタスレッド.
+ * <pre>
+ * 受信済みの接続をノンブロックで監視し
+ * 1要求分のデータが揃った時点でコマンドをスレッドプールに渡す
+ * 応答の送信もこのスレッドで行うので
+ * 低速な端末がプールのスレッドを占有する事は無い
+ * 要求を待っている接続は受信中とkeep-aliveの要求待ちのリストで管理し
+ * 先頭から期限切れの接続を閉じる(リスト毎に待ち時間は同じなので待ち始めた順が期限順になる)
+ * </pre>
+ */
+class ReactorSelector extends AbstractWorker {
+
+    /** ロガー */
+    private static Logger log = LoggerFactory.getLogger(ReactorSelector.class);
+
+// =============================================================================
+
+    /** セレクター */
+    private final Selector selector;
+
+    /** 実行キュー */
+    private final ThreadPoolExecutor threadPoolExecutor;
+
+    /** コマンドのバッファのプール [このスレッドでは返却だけを行う] */
+    private final DirectBufferPool bufferPool;
+
+    /** selectのタイムアウト */
+    private final long selectTimeout;
+
+    /** セレクタのスレッドで実行する処理 */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /** 要求待ちの時間 [0の場合は応答毎に閉じる] */
+    private final long keepAliveTimeout;
+
+    /** 1要求の受信中の接続 [セレクタのスレッドのみ参照] */
+    private final IdleList reading;
+
+    /** keep-aliveで次の要求を待つ接続 [セレクタのスレッドのみ参照] */
+    private final IdleList waiting;
+
+    /** セレクタのスレッドが終了処理を終えた場合にtrue [以降の処理は依頼したスレッドで実行する] */
+    private volatile boolean terminated = false;
+
+// =============================================================================
+
+    /**
+     * コンストラクタ.
+     * @param threadPoolExecutor 実行キュー
+     * @param bufferPool コマンドのバッファのプール
+     * @param selectTimeout selectのタイムアウト
+     * @param readTimeout 1要求の受信を待つ時間 [0以下の場合は制限しない]
+     * @param keepAliveTimeout 要求待ちの時間 [0の場合は応答毎に閉じる]
+     * @throws IOException Selector#openに失敗した場合
+     */
+    ReactorSelector(final ThreadPoolExecutor threadPoolExecutor, final DirectBufferPool bufferPool,
+            final long selectTimeout, final long readTimeout, final long keepAliveTimeout) throws IOException {
+        this.threadPoolExecutor = threadPoolExecutor;
+        this.bufferPool = bufferPool;
+        this.selectTimeout = selectTimeout;
+        this.keepAliveTimeout = Math.max(keepAliveTimeout, 0L);
+        this.reading = new IdleList(readTimeout, "read timeout");
+        this.waiting = new IdleList(this.keepAliveTimeout, "keep-alive timeout");
+        this.selector = Selector.open();
+    }
+
+// =============================================================================
+
+    /**
+     * 接続を監視対象に追加する.
+     * @param connection 接続
+     */
+    void register(final ReactorConnection connection) {
+
+        invokeLater(new Runnable() {
+            public void run() {
+                connection.register(selector);
+            }
+        });
+    }
+
+    /**
+     * セレクタのスレッドで処理を実行する.
+     * <pre>
+     * セレクタのスレッドが終了した後は依頼したスレッドで実行する
+     * </pre>
+     * @param task 処理
+     */
+    void invokeLater(final Runnable task) {
+
+        tasks.add(task);
+        if (terminated) {
+            runTasks();
+            return;
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * 依頼された処理を全て実行する.
+     */
+    private void runTasks() {
+
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * コマンドをスレッドプールに渡す.
+     * <pre>
+     * RejectedExecutionException はHandlerが在るので発生しない
+     * </pre>
+     * @param command コマンド
+     */
+    void dispatch(final AbstractListenerCommand command) {
+        command.dispatched();
+        threadPoolExecutor.execute(command);
+    }
+
+    /**
+     * keep-aliveか判定する.
+     * @return 応答の送信後も接続を維持する場合はtrue
+     */
+    boolean isKeepAlive() {
+        return keepAliveTimeout > 0L;
+    }
+
+    /**
+     * 要求待ちのリストの末尾に入れる.
+     * <pre>
+     * 受信中の接続はreadTimeout、受信データの無いkeep-aliveの接続はkeepAliveTimeoutで閉じる
+     * 既に同じリストに入っている場合は期限を延ばさない
+     * セレクタのスレッドから呼ばれる
+     * </pre>
+     * @param connection 接続
+     * @param idle 応答後に受信データが無い場合はtrue
+     */
+    void park(final ReactorConnection connection, final boolean idle) {
+
+        final IdleList list = idle ? waiting : reading;
+        if (connection.idleList == list) {
+            return;
+        }
+        unpark(connection);
+        list.add(connection, System.currentTimeMillis());
+    }
+
+    /**
+     * 要求待ちのリストから外す.
+     * <pre>
+     * セレクタのスレッドから呼ばれる
+     * </pre>
+     * @param connection 接続
+     */
+    void unpark(final ReactorConnection connection) {
+
+        if (connection.idleList != null) {
+            connection.idleList.remove(connection);
+        }
+    }
+
+    /**
+     * selectのタイムアウトを求める.
+     * <pre>
+     * 要求待ちの接続がある場合は最も近い期限までとする
+     * </pre>
+     * @return タイムアウト
+     */
+    private long nextSelectTimeout() {
+
+        final long deadline = Math.min(reading.nextDeadline(), waiting.nextDeadline());
+        if (deadline == Long.MAX_VALUE) {
+            return selectTimeout;
+        }
+        final long remaining = Math.max(deadline - System.currentTimeMillis(), 1L);
+        return selectTimeout > 0L ? Math.min(selectTimeout, remaining) : remaining;
+    }
+
+    /**
+     * 停止を要求する.
+     * <pre>
+     * 停止は待たない 監視中の接続はセレクタのスレッドで閉じられる
+     * </pre>
+     */
+    void terminate() {
+        stop();
+        selector.wakeup();
+    }
+
+    /**
+     * セレクタのスレッドではバッファをキャッシュしない.
+     * <pre>
+     * 送信を完了したコマンドのバッファを返却するだけで取得はしないので
+     * スレッド毎のキャッシュに入れると再利用されずに溜まる
+     * </pre>
+     */
+    @java.lang.Override
+    protected void startUp() {
+        bufferPool.disableThreadCache();
+    }
+
+    /**
+     * 受信と送信の待ちを行う.
+     */
+    @java.lang.Override
+    protected void work() {
+
+        try {
+            selector.select(nextSelectTimeout());
+        } catch (IOException e) {
+            // selectでIOExceptionが発生しました 処理は続行します
+            log.error("Selector.select error", e);
+            return;
+        }
+
+        runTasks();
+
+        final Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        for (final SelectionKey selectionKey : selectedKeys) {
+
+            final ReactorConnection connection = ReactorConnection.class.cast(selectionKey.attachment());
+
+            try {
+                if (!selectionKey.isValid()) {
+                    connection.close();
+                    continue;
+                }
+
+                if (selectionKey.isReadable()) {
+                    connection.read();
+                } else if (selectionKey.isWritable()) {
+                    connection.write();
+                }
+            } catch (CancelledKeyException e) {
+                // タイムアウトしたコマンドの監視スレッドがチャネルを閉じた
+                log.debug("SelectionKey cancelled", e);
+                connection.close();
+            }
+        }
+        selectedKeys.clear();
+
+        final long now = System.currentTimeMillis();
+        reading.expire(now);
+        waiting.expire(now);
+    }
+
+    /**
+     * 監視中の接続を全て閉じる.
+     * <pre>
+     * コマンドを実行中の接続は送信キューとスコープをコマンドが使用しているので
+     * ここでは閉じずにコマンドの終了時(completed)に閉じる
+     * </pre>
+     */
+    @java.lang.Override
+    protected void shutdown() {
+
+        // 登録待ちの接続も登録してから閉じる
+        runTasks();
+
+        for (final SelectionKey selectionKey : selector.keys()) {
+            final ReactorConnection connection = ReactorConnection.class.cast(selectionKey.attachment());
+            if (!connection.isDispatched()) {
+                connection.close();
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Selector#closeに失敗しました
+            log.error("Selector#close error", e);
+        }
+
+        // 以降に依頼された処理は依頼したスレッドで実行する
+        terminated = true;
+        runTasks();
+    }
+
+// =============================================================================
+
+    /**
+     * 要求待ちの接続のリスト(双方向リスト).
+     * <pre>
+     * 待ち時間はリスト内で同じなので末尾に追加すれば期限順になる
+     * </pre>
+     */
+    static final class IdleList {
+
+        /** 待ち時間 [0以下の場合は入れない] */
+        private final long timeout;
+
+        /** 期限切れ時のログ */
+        private final String reason;
+
+        /** 先頭(期限が最も近い) */
+        private ReactorConnection head = null;
+
+        /** 末尾 */
+        private ReactorConnection tail = null;
+
+        /**
+         * コンストラクタ.
+         * @param timeout 待ち時間
+         * @param reason 期限切れ時のログ
+         */
+        IdleList(final long timeout, final String reason) {
+            this.timeout = timeout;
+            this.reason = reason;
+        }
+
+        /**
+         * 末尾に追加する.
+         * @param connection 接続
+         * @param now 現在時刻
+         */
+        void add(final ReactorConnection connection, final long now) {
+
+            if (timeout <= 0L) {
+                return;
+            }
+            connection.idleDeadline = now + timeout;
+            connection.idleList = this;
+            if (tail == null) {
+                head = connection;
+                tail = connection;
+                return;
+            }
+            tail.idleNext = connection;
+            connection.idlePrev = tail;
+            tail = connection;
+        }
+
+        /**
+         * 外す.
+         * @param connection 接続
+         */
+        void remove(final ReactorConnection connection) {
+
+            if (connection.idlePrev != null) {
+                connection.idlePrev.idleNext = connection.idleNext;
+            } else {
+                head = connection.idleNext;
+            }
+            if (connection.idleNext != null) {
+                connection.idleNext.idlePrev = connection.idlePrev;
+            } else {
+                tail = connection.idlePrev;
+            }
+            connection.idlePrev = null;
+            connection.idleNext = null;
+            connection.idleList = null;
+        }
+
+        /**
+         * 最も近い期限を戻す.
+         * @return 期限 空の場合はLong.MAX_VALUE
+         */
+        long nextDeadline() {
+            return head == null ? Long.MAX_VALUE : head.idleDeadline;
+        }
+
+        /**
+         * 期限を過ぎた接続を閉じる.
+         * @param now 現在時刻
+         */
+        void expire(final long now) {
+
+            while (head != null && head.idleDeadline <= now) {
+                final ReactorConnection connection = head;
+                remove(connection);
+                if (log.isDebugEnabled()) {
+                    log.debug(reason);
+                }
+                connection.close();
+            }
+        }
+    }
+}
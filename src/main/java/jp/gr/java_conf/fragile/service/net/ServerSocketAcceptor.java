@@ -0,0 +1,115 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+import jp.gr.java_conf.fragile.commons.util.AbstractWorker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 追加の受付スレッド.
+ * <pre>
+ * 接続が集中した場合にacceptを1スレッドで行うと詰まるので
+ * 受付スレッド毎にセレクタを持ち並行して受け付ける
+ * 受け付けた接続の処理はリスナーに委譲する
+ * </pre>
+ */
+class ServerSocketAcceptor extends AbstractWorker {
+
+    /** ロガー */
+    private static Logger log = LoggerFactory.getLogger(ServerSocketAcceptor.class);
+
+// =============================================================================
+
+    /** リスナー */
+    private final AbstractServerSocketListener listener;
+
+    /** セレクター */
+    private final Selector selector;
+
+    /** SO_REUSEPORTで個別にバインドしたサーバソケット [共有する場合はnull] */
+    private final ServerSocket serverSocket;
+
+    /** selectのタイムアウト */
+    private final long selectTimeout;
+
+// =============================================================================
+
+    /**
+     * コンストラクタ.
+     * @param listener リスナー
+     * @param selector サーバソケットを登録済みのセレクタ
+     * @param serverSocket 個別にバインドしたサーバソケット [共有する場合はnull]
+     * @param selectTimeout selectのタイムアウト
+     */
+    ServerSocketAcceptor(final AbstractServerSocketListener listener, final Selector selector,
+            final ServerSocket serverSocket, final long selectTimeout) {
+        this.listener = listener;
+        this.selector = selector;
+        this.serverSocket = serverSocket;
+        this.selectTimeout = selectTimeout;
+    }
+
+// =============================================================================
+
+    /**
+     * 停止を要求する.
+     * <pre>
+     * 停止は待たない
+     * </pre>
+     */
+    void terminate() {
+        stop();
+        selector.wakeup();
+    }
+
+    /**
+     * 受付待ちを行う.
+     */
+    @java.lang.Override
+    protected void work() {
+
+        try {
+            final int r = selector.select(selectTimeout);
+            if (r <= 0) {
+                return;
+            }
+        } catch (IOException e) {
+            // selectでIOExceptionが発生しました 処理は続行します
+            log.error("Selector.select error", e);
+            return;
+        }
+
+        final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            final SelectionKey selectionKey = iterator.next();
+            iterator.remove();
+            listener.accept(selectionKey);
+        }
+    }
+
+    /**
+     * セレクタと個別にバインドしたサーバソケットを閉じる.
+     */
+    @java.lang.Override
+    protected void shutdown() {
+
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            // ServerSocket#closeに失敗しました
+            log.error("ServerSocket#close error", e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 区切り文字で終わるフレーム.
+ * <pre>
+ * 区切り文字が揃っていない場合は探索済みの位置を覚えておき
+ * 次の受信では続きから探索するので受信の都度先頭から探し直さない
+ * 本文は区切り文字を除いた部分 送信時は本文の後に区切り文字を付ける
+ * 相手が送信を終了した場合は区切り文字の無い残りのデータも1フレームとする
+ * </pre>
+ */
+public class DelimiterFrameCodec extends FrameCodec {
+
+    /** 区切り文字 */
+    private final byte[] delimiter;
+
+    /** 区切り文字(送信用) */
+    private final ByteBuffer delimiterBuffer;
+
+    /** 本文の最大長 */
+    private final int maxPayloadLength;
+
+    /** フレームの先頭から探索済みの長さ */
+    private int searched = 0;
+
+    /**
+     * コンストラクタ.
+     * @param delimiter 区切り文字
+     * @param maxPayloadLength 本文の最大長
+     */
+    public DelimiterFrameCodec(final byte[] delimiter, final int maxPayloadLength) {
+
+        if (delimiter == null || delimiter.length == 0) {
+            throw new IllegalArgumentException("delimiter is empty");
+        }
+        this.delimiter = delimiter.clone();
+        this.delimiterBuffer = ByteBuffer.wrap(this.delimiter).asReadOnlyBuffer();
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    /**
+     * 行区切り(CRLF)のフレームを生成する.
+     * @param maxPayloadLength 本文の最大長
+     * @return CRLFで区切るフレーム
+     */
+    public static DelimiterFrameCodec crlf(final int maxPayloadLength) {
+        return new DelimiterFrameCodec(new byte[] {'\r', '\n'}, maxPayloadLength);
+    }
+
+    @Override
+    public int decode(final ByteBuffer buffer) {
+
+        final int start = buffer.position();
+        final int limit = buffer.limit() - delimiter.length;
+        final byte first = delimiter[0];
+
+        for (int i = start + searched; i <= limit; i++) {
+            if (buffer.get(i) == first && matches(buffer, i)) {
+                searched = 0;
+                return i - start + delimiter.length;
+            }
+        }
+
+        final int length = buffer.remaining();
+        if (length - delimiter.length >= maxPayloadLength) {
+            throw new FrameException("frame too large:" + length);
+        }
+        // 区切り文字の途中までが受信済みの場合があるので重なる分は次回も探索する
+        searched = Math.max(length - delimiter.length + 1, 0);
+
+        return -1;
+    }
+
+    @Override
+    public int decodeLast(final ByteBuffer buffer) {
+
+        final int length = decode(buffer);
+        if (length >= 0 || !buffer.hasRemaining()) {
+            return length;
+        }
+        searched = 0;
+
+        return buffer.remaining();
+    }
+
+    @Override
+    public ByteBuffer payload(final ByteBuffer frame) {
+
+        final int end = frame.limit() - delimiter.length;
+        if (end < frame.position() || !matches(frame, end)) {
+            // 終了時の区切り文字の無いフレーム
+            return frame;
+        }
+        final ByteBuffer payload = frame.duplicate();
+        payload.limit(end);
+        return payload.slice();
+    }
+
+    @Override
+    public ByteBuffer trailer(final ByteBuffer payload) {
+        return delimiterBuffer.duplicate();
+    }
+
+    @Override
+    public void reset() {
+        searched = 0;
+    }
+
+    /**
+     * 区切り文字と一致するか判定する.
+     * @param buffer データ
+     * @param index 位置
+     * @return 一致する場合はtrue
+     */
+    private boolean matches(final ByteBuffer buffer, final int index) {
+
+        for (int i = 1; i < delimiter.length; i++) {
+            if (buffer.get(index + i) != delimiter[i]) {
+                return false;
+            }
+        }
+        return buffer.get(index) == delimiter[0];
+    }
+
+}
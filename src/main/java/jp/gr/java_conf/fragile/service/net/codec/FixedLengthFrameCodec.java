@@ -0,0 +1,36 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 固定長のフレーム.
+ * <pre>
+ * 送信時は本文をそのまま送信する
+ * </pre>
+ */
+public class FixedLengthFrameCodec extends FrameCodec {
+
+    /** フレームの長さ */
+    private final int frameLength;
+
+    /**
+     * コンストラクタ.
+     * @param frameLength フレームの長さ
+     */
+    public FixedLengthFrameCodec(final int frameLength) {
+
+        if (frameLength <= 0) {
+            throw new IllegalArgumentException("frameLength:" + frameLength);
+        }
+        this.frameLength = frameLength;
+    }
+
+    @Override
+    public int decode(final ByteBuffer buffer) {
+        return buffer.remaining() >= frameLength ? frameLength : -1;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 受信データのフレーム分割と送信データのフレーム化.
+ * <pre>
+ * 受信済みのデータからフレームの境界を判定し、本文は受信バッファのビューとして取り出すので
+ * フレーム毎のコピーは発生しない
+ * 送信時は本文の前後に付けるデータ(長さヘッダ、区切り文字)を本文とは別のバッファで戻す
+ * 判定途中の状態を持つ場合があるので接続毎にインスタンスを生成する
+ * AbstractListenerCommand#createFrameCodecで生成してください
+ * </pre>
+ */
+public abstract class FrameCodec {
+
+    /**
+     * 先頭のフレームの長さを判定する.
+     * <pre>
+     * 受信の都度呼ばれるので処理をブロックしない事
+     * 揃っていない場合は次の受信で同じ位置から再度呼ばれる
+     * </pre>
+     * @param buffer 受信済みデータ(positionから読み出し可能 変更しない事)
+     * @return ヘッダ、区切り文字を含むフレームの長さ 揃っていない場合は-1
+     * @throws FrameException 不正なフレーム、最大長を超える場合
+     */
+    public abstract int decode(ByteBuffer buffer);
+
+    /**
+     * 相手が送信を終了した場合に残りのデータからフレームの長さを判定する.
+     * <pre>
+     * 初期実装はdecodeと同じで、揃っていない残りのデータは捨てる
+     * </pre>
+     * @param buffer 受信済みデータ(positionから読み出し可能 変更しない事)
+     * @return フレームの長さ 無い場合は-1
+     * @throws FrameException 不正なフレームの場合
+     */
+    public int decodeLast(final ByteBuffer buffer) {
+        return decode(buffer);
+    }
+
+    /**
+     * フレームから本文を取り出す.
+     * <pre>
+     * 初期実装はフレームをそのまま戻す
+     * </pre>
+     * @param frame decodeで判定した長さのフレーム(position=0)
+     * @return 本文(frameのビュー)
+     */
+    public ByteBuffer payload(final ByteBuffer frame) {
+        return frame;
+    }
+
+    /**
+     * 本文の前に送信するデータを戻す.
+     * <pre>
+     * フレーム化できない本文の場合はFrameExceptionを投げる
+     * 初期実装はnull
+     * </pre>
+     * @param payload 本文(positionからlimitまで 変更しない事)
+     * @return 送信データ 無い場合はnull
+     */
+    public ByteBuffer header(final ByteBuffer payload) {
+        return null;
+    }
+
+    /**
+     * 本文の後に送信するデータを戻す.
+     * <pre>
+     * 初期実装はnull
+     * </pre>
+     * @param payload 本文(positionからlimitまで 変更しない事)
+     * @return 送信データ 無い場合はnull
+     */
+    public ByteBuffer trailer(final ByteBuffer payload) {
+        return null;
+    }
+
+    /**
+     * 接続毎の状態を初期化する.
+     * <pre>
+     * コマンドを再利用する場合に呼ばれる
+     * 初期実装は何もしない
+     * </pre>
+     */
+    public void reset() {
+    }
+
+}
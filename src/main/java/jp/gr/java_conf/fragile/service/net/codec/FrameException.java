@@ -0,0 +1,22 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net.codec;
+
+/**
+ * 不正なフレーム、最大長を超えるフレームを受信した場合に投げる.
+ */
+public class FrameException extends RuntimeException {
+
+    /** serialVersionUID */
+    private static final long serialVersionUID = 3902716460374928517L;
+
+    /**
+     * コンストラクタ.
+     * @param message
+     */
+    public FrameException(final String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 長さヘッダ付きのフレーム.
+ * <pre>
+ * 先頭の1、2、4バイトのビッグエンディアン符号なし整数を本文の長さとする
+ * 送信時は本文の長さのヘッダを付ける
+ * 本文の最大長はヘッダで表せる値までに切り詰め、超える本文は受信、送信とも例外にする
+ * </pre>
+ */
+public class LengthFieldFrameCodec extends FrameCodec {
+
+    /** ヘッダの長さ */
+    private final int lengthFieldSize;
+
+    /** 本文の最大長 */
+    private final int maxPayloadLength;
+
+    /**
+     * コンストラクタ.
+     * @param lengthFieldSize ヘッダの長さ [1、2、4]
+     * @param maxPayloadLength 本文の最大長 [ヘッダで表せる値を超える場合は切り詰める]
+     */
+    public LengthFieldFrameCodec(final int lengthFieldSize, final int maxPayloadLength) {
+
+        if (lengthFieldSize != 1 && lengthFieldSize != 2 && lengthFieldSize != 4) {
+            throw new IllegalArgumentException("lengthFieldSize:" + lengthFieldSize);
+        }
+        this.lengthFieldSize = lengthFieldSize;
+        final long maxLength = lengthFieldSize == 4 ? Integer.MAX_VALUE - lengthFieldSize
+            : (1L << (lengthFieldSize * 8)) - 1L;
+        this.maxPayloadLength = (int) Math.min(maxPayloadLength, maxLength);
+    }
+
+    @Override
+    public int decode(final ByteBuffer buffer) {
+
+        if (buffer.remaining() < lengthFieldSize) {
+            return -1;
+        }
+
+        final long length = getLength(buffer, buffer.position());
+        if (length > maxPayloadLength) {
+            throw new FrameException("frame too large:" + length);
+        }
+
+        final int frameLength = lengthFieldSize + (int) length;
+        return buffer.remaining() >= frameLength ? frameLength : -1;
+    }
+
+    @Override
+    public ByteBuffer payload(final ByteBuffer frame) {
+
+        final ByteBuffer payload = frame.duplicate();
+        payload.position(frame.position() + lengthFieldSize);
+        return payload.slice();
+    }
+
+    @Override
+    public ByteBuffer header(final ByteBuffer payload) {
+
+        final int length = payload.remaining();
+        if (length > maxPayloadLength) {
+            // 切り詰めたヘッダを送ると相手がフレームを区切れなくなる
+            throw new FrameException("frame too large:" + length);
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(lengthFieldSize);
+        switch (lengthFieldSize) {
+        case 1:
+            header.put((byte) length);
+            break;
+        case 2:
+            header.putShort((short) length);
+            break;
+        default:
+            header.putInt(length);
+            break;
+        }
+        header.flip();
+
+        return header;
+    }
+
+    /**
+     * ヘッダの値を読み出す.
+     * @param buffer 受信済みデータ
+     * @param index ヘッダの位置
+     * @return 本文の長さ
+     */
+    private long getLength(final ByteBuffer buffer, final int index) {
+
+        switch (lengthFieldSize) {
+        case 1:
+            return buffer.get(index) & 0xFFL;
+        case 2:
+            return buffer.getShort(index) & 0xFFFFL;
+        default:
+            return buffer.getInt(index) & 0xFFFFFFFFL;
+        }
+    }
+
+}
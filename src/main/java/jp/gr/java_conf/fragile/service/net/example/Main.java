@@ -55,6 +55,10 @@ public class Main {
             serverSocketListener.setBlocking(false);
             serverSocketListener.setWatcherCommandTimeout(600000);
             serverSocketListener.setWatcherDelay(9223372036854775807L);
+            serverSocketListener.setCommandPoolSize(20);
+            // 接続を維持して1接続で複数の要求を受け付ける
+            serverSocketListener.setReactor(true);
+            serverSocketListener.setReactorKeepAliveTimeout(30000L);
             serverSocketListener.setExecutorFactory(serverSocketExecutorFactory);
 
 
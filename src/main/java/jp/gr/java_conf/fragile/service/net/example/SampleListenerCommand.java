@@ -5,28 +5,42 @@ package jp.gr.java_conf.fragile.service.net.example;
 
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import jp.gr.java_conf.fragile.service.net.AbstractListenerCommand;
+import jp.gr.java_conf.fragile.service.net.codec.DelimiterFrameCodec;
+import jp.gr.java_conf.fragile.service.net.codec.FrameCodec;
 
 
 /**
  * サーバソケットの端末接続単位の処理スレッド.
+ * <pre>
+ * 再利用されるのでソケットはgetSocketで取得する
+ * 要求はCRLF区切りの行で、1接続で複数行を受け付けて行毎にOKを応答する
+ * リアクターモードのkeep-aliveでは1行毎に実行され、接続はセレクタで維持される
+ * QUITを受信した場合は応答後に接続を閉じる
+ * </pre>
  */
 class SampleListenerCommand extends AbstractListenerCommand {
 
-    /** ソケット */
-    private Socket socket = null;
+    /** 文字コード */
+    private static final Charset CHARSET = Charset.forName("Windows-31J");
 
-    /**
-     * コンストラクタ
-     * @param socket
-     */
-    public SampleListenerCommand(final Socket socket) {
+    /** 応答 */
+    private static final byte[] OK = "OK".getBytes(CHARSET);
 
-        this.socket = socket;
+    /** 受付不可の応答 */
+    private static final byte[] EXIT = "EXIT".getBytes(CHARSET);
 
-        return;
-    }
+    /** 終了要求 */
+    private static final String QUIT = "QUIT";
+
+    /** 1行の最大長 */
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    /** 受信した件数 */
+    private int received = 0;
 
 
     /**
@@ -40,7 +54,8 @@ class SampleListenerCommand extends AbstractListenerCommand {
     public void abort() {
 
         try {
-            socket.getOutputStream().write("EXIT\r\n".getBytes("Windows-31J"));
+            // リアクターモードではソケットのストリームは使用できないのでsendで送信する
+            sendFrame(ByteBuffer.wrap(EXIT));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -55,25 +70,53 @@ class SampleListenerCommand extends AbstractListenerCommand {
     @Override
     public void execute() {
 
+        final Socket socket = getSocket();
         try {
-            final byte[] b = new byte[1024];
-            final int len = socket.getInputStream().read(b);
-            socket.shutdownInput();
-
             InetAddress inetAddress = socket.getInetAddress();
             socket.getLocalPort();
 
+            // 相手が送信を終了するまで行毎に処理する(リアクターモードは1行)
+            ByteBuffer frame;
+            while ((frame = readFrame()) != null) {
+
+                String s = CHARSET.decode(frame).toString();
 
-            String s = new String(b, 0, len, "Windows-31J");
+                received++;
+                System.out.println(inetAddress + "/data:" + s + " received:" + received);
 
-            System.out.println(inetAddress + "/data:" + s);
+                sendFrame(ByteBuffer.wrap(OK));
 
-            socket.getOutputStream().write("OK\r\n".getBytes("Windows-31J"));
-            socket.shutdownOutput();
+                if (QUIT.equals(s)) {
+                    closeAfterResponse();
+                    break;
+                }
+            }
+
+            if (getRequest() == null) {
+                // ブロッキングモードはコマンドの終了で接続を閉じる
+                socket.close();
+            }
 
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * CRLF区切りの行に分割する.
+     * @return フレームの分割
+     */
+    @Override
+    protected FrameCodec createFrameCodec() {
+        return DelimiterFrameCodec.crlf(MAX_LINE_LENGTH);
+    }
+
+    /**
+     * 再利用する前の初期化.
+     */
+    @Override
+    protected void reset() {
+        received = 0;
+    }
+
 }
@@ -22,7 +22,7 @@ public class SampleServerSocketListener extends AbstractServerSocketListener {
     @Override
     protected AbstractListenerCommand createListenerCommand(final Socket socket) {
 
-        return new SampleListenerCommand(socket);
+        return new SampleListenerCommand();
     }
 
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net.pool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * キュー待ち時間と応答時間による適応型の同時実行数の制限(AIMD).
+ * <pre>
+ * キューで待った時間が目標を超えた場合は上限を乗算で減らし
+ * 応答時間が最小の応答時間の2倍かつ目標時間以上に伸びた場合も同様に減らす(Vegas)
+ * (キューに入る前の、実行中のリソースの待ちで伸びる場合を検出する)
+ * 目標以内で上限近くまで使われている場合は上限を加算で増やす
+ * 過負荷時はキューが埋まる前に受付を断るので
+ * 受け付けたコマンドの応答時間が伸び続けることはない
+ * 減らすのは目標時間に1回までとし、キューに残っている分で減らし過ぎない
+ * 最小の応答時間は処理内容の変化に追従するため一定の実行数毎に測り直す
+ * </pre>
+ */
+class AdaptiveConcurrencyLimiter implements ConcurrencyLimiter {
+
+    /** ロガー */
+    private static Logger log = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    /** 減らす場合の割合 */
+    private static final double BACKOFF_RATIO = 0.9D;
+
+    /** 最小の応答時間の何倍を超えたら減らすか */
+    private static final long LATENCY_TOLERANCE = 2L;
+
+    /** 最小の応答時間を測り直す実行数 */
+    private static final int MIN_LATENCY_WINDOW = 1000;
+
+// =============================================================================
+
+    /** 上限の最小値 */
+    private final int minLimit;
+
+    /** 上限の最大値 */
+    private final int maxLimit;
+
+    /** キュー待ち時間の目標(ミリ秒) */
+    private final long queueDelayTarget;
+
+    /** 現在の上限 [Double#doubleToLongBits] */
+    private final AtomicLong limit;
+
+    /** 受付済みで終了していない数 */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** 最後に減らした時刻 */
+    private final AtomicLong lastBackoff = new AtomicLong();
+
+    /** 最小の応答時間(ミリ秒) */
+    private final AtomicLong minLatency = new AtomicLong(Long.MAX_VALUE);
+
+    /** 応答時間の標本数 */
+    private final AtomicInteger samples = new AtomicInteger();
+
+// =============================================================================
+
+    /**
+     * コンストラクタ.
+     * <pre>
+     * 初期値は最大値とし、過負荷を検出した場合に減らす
+     * </pre>
+     * @param minLimit 上限の最小値
+     * @param maxLimit 上限の最大値
+     * @param queueDelayTarget キュー待ち時間の目標(ミリ秒)
+     */
+    AdaptiveConcurrencyLimiter(final int minLimit, final int maxLimit, final long queueDelayTarget) {
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        this.queueDelayTarget = Math.max(queueDelayTarget, 1L);
+        this.limit = new AtomicLong(Double.doubleToLongBits(this.maxLimit));
+    }
+
+// =============================================================================
+
+    /**
+     * 上限以内であれば許可を取る.
+     * @return 上限を超える場合はfalse
+     */
+    public boolean tryAcquire() {
+
+        final int current = getLimit();
+        for (;;) {
+            final int n = inFlight.get();
+            if (n >= current) {
+                return false;
+            }
+            if (inFlight.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * キュー待ち時間が目標を超えた場合は上限を減らす.
+     * @param queueDelay キューで待った時間(ミリ秒)
+     */
+    public void onStart(final long queueDelay) {
+
+        if (queueDelay <= queueDelayTarget) {
+            return;
+        }
+        backoff("queueDelay", queueDelay);
+    }
+
+    /**
+     * 許可を戻し、応答時間が伸びている場合は上限を減らす.
+     * <pre>
+     * 伸びていない場合で上限近くまで使われていた場合は上限を増やす
+     * 1周分の実行で1増える
+     * </pre>
+     * @param latency 受付から終了までの時間(ミリ秒)
+     */
+    public void release(final long latency) {
+
+        final int n = inFlight.getAndDecrement();
+
+        final long min = sampleMinLatency(latency);
+        if (latency - min > queueDelayTarget && latency > min * LATENCY_TOLERANCE) {
+            // 実行中に待たされている
+            backoff("latency", latency);
+            return;
+        }
+
+        final double current = Double.longBitsToDouble(limit.get());
+        if (n * 2 < current || current >= maxLimit) {
+            // 余裕がある場合は増やさない
+            return;
+        }
+        if (System.currentTimeMillis() - lastBackoff.get() < queueDelayTarget) {
+            // 減らした直後
+            return;
+        }
+        update(1D, 1D / current);
+    }
+
+    /**
+     * 許可を戻す.
+     */
+    public void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * 現在の上限を戻す.
+     * @return 上限
+     */
+    public int getLimit() {
+        return (int) Double.longBitsToDouble(limit.get());
+    }
+
+    /**
+     * 受付済みで終了していない数を戻す.
+     * @return 数
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * 目標時間に1回まで上限を減らす.
+     * @param reason ログ出力用の理由
+     * @param value ログ出力用の時間(ミリ秒)
+     */
+    private void backoff(final String reason, final long value) {
+
+        final long now = System.currentTimeMillis();
+        final long last = lastBackoff.get();
+        if (now - last < queueDelayTarget || !lastBackoff.compareAndSet(last, now)) {
+            // 目標時間内に減らしている
+            return;
+        }
+
+        final double next = update(BACKOFF_RATIO, 0D);
+        if (log.isDebugEnabled()) {
+            log.debug(reason + "[" + value + "] limit[" + next + "]");
+        }
+    }
+
+    /**
+     * 最小の応答時間を更新して戻す.
+     * @param latency 応答時間(ミリ秒)
+     * @return 最小の応答時間(ミリ秒)
+     */
+    private long sampleMinLatency(final long latency) {
+
+        if (samples.incrementAndGet() % MIN_LATENCY_WINDOW == 0) {
+            // 測り直す
+            minLatency.set(latency);
+            return latency;
+        }
+        for (;;) {
+            final long min = minLatency.get();
+            if (latency >= min) {
+                return min;
+            }
+            if (minLatency.compareAndSet(min, latency)) {
+                return latency;
+            }
+        }
+    }
+
+    /**
+     * 上限を更新する.
+     * @param ratio 乗算する値
+     * @param delta 加算する値
+     * @return 更新後の上限
+     */
+    private double update(final double ratio, final double delta) {
+
+        for (;;) {
+            final long bits = limit.get();
+            final double next = Math.min(Math.max(Double.longBitsToDouble(bits) * ratio + delta, minLimit), maxLimit);
+            if (limit.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                return next;
+            }
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net.pool;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jp.gr.java_conf.fragile.service.net.AbstractListenerCommand;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * キュー待ち時間で破棄する実行キュー(CoDel).
+ * <pre>
+ * 投入時刻を記録し、取り出し時のキュー待ち時間(sojourn)が
+ * interval以上続けてtargetを超えている場合に先頭から破棄する
+ * 破棄している間はinterval/sqrt(破棄数)毎に破棄し
+ * 待ち時間がtargetを下回るかキューが空になったら破棄をやめる
+ * 相手が諦めた後に実行するのを避け、一時的な突発は破棄せずに吸収する
+ * 破棄したコマンドは実行キューのRejectedExecutionHandlerに渡すので
+ * RejectedPolicyからAbstractListenerCommand#abortが呼ばれる
+ * キュー待ち時間は2のべき乗ミリ秒毎の度数分布で記録する
+ * </pre>
+ */
+public class CoDelBlockingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /** ロガー */
+    private static Logger log = LoggerFactory.getLogger(CoDelBlockingQueue.class);
+
+    /** 度数分布の区間数 */
+    private static final int HISTOGRAM_SIZE = 32;
+
+    /** 破棄数を引き継ぐ期間(intervalの倍数) */
+    private static final long DROP_MEMORY = 8L;
+
+// =============================================================================
+
+    /** キュー */
+    private final BlockingQueue<Entry> queue;
+
+    /** 目標のキュー待ち時間(ナノ秒) */
+    private final long target;
+
+    /** 判定期間(ナノ秒) */
+    private final long interval;
+
+    /** 破棄したコマンドを渡す実行キュー */
+    private volatile ThreadPoolExecutor executor = null;
+
+    /** キュー待ち時間の度数分布 [iは2^(i-1)以上2^iミリ秒未満] */
+    private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_SIZE);
+
+    /** 破棄した数 */
+    private final AtomicLong dropCount = new AtomicLong();
+
+    /** targetを超え続けた場合に破棄を開始する時刻 [0は超えていない] */
+    private long firstAboveTime = 0L;
+
+    /** 次に破棄する時刻 */
+    private long dropNext = 0L;
+
+    /** 今回の破棄状態での破棄数 */
+    private int count = 0;
+
+    /** 破棄状態 */
+    private boolean dropping = false;
+
+// =============================================================================
+
+    /**
+     * コンストラクタ.
+     * @param capacity キューの容量
+     * @param target 目標のキュー待ち時間(ミリ秒)
+     * @param interval 判定期間(ミリ秒)
+     */
+    public CoDelBlockingQueue(final int capacity, final long target, final long interval) {
+        this.queue = new ArrayBlockingQueue<Entry>(capacity);
+        this.target = TimeUnit.MILLISECONDS.toNanos(target);
+        this.interval = TimeUnit.MILLISECONDS.toNanos(Math.max(interval, 1L));
+    }
+
+    /**
+     * 破棄したコマンドを渡す実行キューを設定する.
+     * <pre>
+     * 設定しない場合はAbstractListenerCommand#rejectを直接呼び出す
+     * </pre>
+     * @param executor 実行キュー
+     */
+    public final void setExecutor(final ThreadPoolExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * キュー待ち時間の度数分布を戻す.
+     * @return 添字iは2^(i-1)以上2^iミリ秒未満の件数 [0は1ミリ秒未満]
+     */
+    public final long[] getSojournHistogram() {
+
+        final long[] values = new long[HISTOGRAM_SIZE];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = histogram.get(i);
+        }
+        return values;
+    }
+
+    /**
+     * 破棄した数を戻す.
+     * @return 破棄数
+     */
+    public final long getDropCount() {
+        return dropCount.get();
+    }
+
+// =============================================================================
+// 投入
+// =============================================================================
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean offer(final Runnable e) {
+        return queue.offer(new Entry(e));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean offer(final Runnable e, final long timeout, final TimeUnit unit) throws InterruptedException {
+        return queue.offer(new Entry(e), timeout, unit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void put(final Runnable e) throws InterruptedException {
+        queue.put(new Entry(e));
+    }
+
+// =============================================================================
+// 取り出し
+// =============================================================================
+
+    /**
+     * {@inheritDoc}
+     */
+    public Runnable poll() {
+
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            final Runnable command = admit(entry);
+            if (command != null) {
+                return command;
+            }
+        }
+        resetAbove();
+
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Runnable poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (;;) {
+            final Entry entry = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (entry == null) {
+                resetAbove();
+                return null;
+            }
+            final Runnable command = admit(entry);
+            if (command != null) {
+                return command;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Runnable take() throws InterruptedException {
+
+        for (;;) {
+            final Runnable command = admit(queue.take());
+            if (command != null) {
+                return command;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Runnable peek() {
+
+        final Entry entry = queue.peek();
+        if (entry == null) {
+            return null;
+        }
+        return entry.command;
+    }
+
+    /**
+     * 破棄せずに取り出す.
+     * <pre>
+     * ThreadPoolExecutor#shutdownNowから呼ばれる
+     * </pre>
+     * @param c 取り出し先
+     * @return 取り出した数
+     */
+    public int drainTo(final Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 破棄せずに取り出す.
+     * @param c 取り出し先
+     * @param maxElements 最大数
+     * @return 取り出した数
+     */
+    public int drainTo(final Collection<? super Runnable> c, final int maxElements) {
+
+        final List<Entry> entries = new ArrayList<Entry>();
+        final int n = queue.drainTo(entries, maxElements);
+        for (final Entry entry : entries) {
+            c.add(entry.command);
+        }
+        return n;
+    }
+
+// =============================================================================
+
+    /**
+     * {@inheritDoc}
+     */
+    public Iterator<Runnable> iterator() {
+
+        final Iterator<Entry> iterator = queue.iterator();
+
+        return new Iterator<Runnable>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+            public Runnable next() {
+                return iterator.next().command;
+            }
+            public void remove() {
+                iterator.remove();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @java.lang.Override
+    public void clear() {
+        queue.clear();
+    }
+
+// =============================================================================
+
+    /**
+     * 取り出したコマンドを実行するか判定し、破棄する場合は受付不可処理をする.
+     * @param entry 取り出したもの
+     * @return 実行する場合はコマンド 破棄した場合はnull
+     */
+    private Runnable admit(final Entry entry) {
+
+        final long now = System.nanoTime();
+        final long sojourn = now - entry.enqueueTime;
+        record(sojourn);
+
+        if (!shouldDrop(sojourn, now, queue.isEmpty())) {
+            return entry.command;
+        }
+
+        dropCount.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("drop sojourn[" + TimeUnit.NANOSECONDS.toMillis(sojourn) + "]");
+        }
+        drop(entry.command);
+
+        return null;
+    }
+
+    /**
+     * CoDelの制御則.
+     * @param sojourn キュー待ち時間
+     * @param now 現在時刻
+     * @param empty 取り出した後にキューが空の場合はtrue
+     * @return 破棄する場合はtrue
+     */
+    private synchronized boolean shouldDrop(final long sojourn, final long now, final boolean empty) {
+
+        boolean okToDrop = false;
+        if (sojourn < target || empty) {
+            firstAboveTime = 0L;
+        } else if (firstAboveTime == 0L) {
+            // interval以上超え続けたら破棄する
+            firstAboveTime = now + interval;
+        } else if (now - firstAboveTime >= 0L) {
+            okToDrop = true;
+        }
+
+        if (dropping) {
+            if (!okToDrop) {
+                dropping = false;
+                return false;
+            }
+            if (now - dropNext >= 0L) {
+                count++;
+                dropNext = controlLaw(dropNext);
+                return true;
+            }
+            return false;
+        }
+
+        if (!okToDrop) {
+            return false;
+        }
+
+        // 直前の破棄状態から間もない場合は破棄の間隔を引き継ぐ
+        dropping = true;
+        count = (count > 2 && now - dropNext < interval * DROP_MEMORY) ? count - 2 : 1;
+        dropNext = controlLaw(now);
+
+        return true;
+    }
+
+    /**
+     * キューが空になった場合は破棄の判定を初期化する.
+     */
+    private synchronized void resetAbove() {
+        firstAboveTime = 0L;
+        dropping = false;
+    }
+
+    /**
+     * 次に破棄する時刻を求める.
+     * @param time 基準時刻
+     * @return 次に破棄する時刻
+     */
+    private long controlLaw(final long time) {
+        return time + (long) (interval / Math.sqrt(count));
+    }
+
+    /**
+     * キュー待ち時間を度数分布に記録する.
+     * @param sojourn キュー待ち時間(ナノ秒)
+     */
+    private void record(final long sojourn) {
+
+        final long millis = TimeUnit.NANOSECONDS.toMillis(Math.max(sojourn, 0L));
+        final int index = Math.min(64 - Long.numberOfLeadingZeros(millis), HISTOGRAM_SIZE - 1);
+        histogram.incrementAndGet(index);
+    }
+
+    /**
+     * 破棄したコマンドの受付不可処理をする.
+     * @param command コマンド
+     */
+    private void drop(final Runnable command) {
+
+        final ThreadPoolExecutor e = executor;
+        if (e != null) {
+            e.getRejectedExecutionHandler().rejectedExecution(command, e);
+            return;
+        }
+        if (command instanceof AbstractListenerCommand) {
+            AbstractListenerCommand.class.cast(command).reject();
+        }
+    }
+
+// =============================================================================
+
+    /**
+     * 投入時刻を付けたコマンド.
+     */
+    private static final class Entry {
+
+        /** コマンド */
+        private final Runnable command;
+
+        /** 投入時刻(ナノ秒) */
+        private final long enqueueTime;
+
+        /**
+         * コンストラクタ.
+         * @param command コマンド
+         */
+        Entry(final Runnable command) {
+            if (command == null) {
+                throw new NullPointerException();
+            }
+            this.command = command;
+            this.enqueueTime = System.nanoTime();
+        }
+    }
+}
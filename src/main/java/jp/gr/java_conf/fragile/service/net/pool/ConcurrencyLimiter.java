@@ -0,0 +1,49 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net.pool;
+
+/**
+ * 実行キューの同時実行数の制限.
+ * <pre>
+ * LimitedThreadPoolExecutorが受付時に許可を取り
+ * 実行終了時または受付不可時に戻す
+ * </pre>
+ */
+public interface ConcurrencyLimiter {
+
+    /**
+     * 許可を取る.
+     * @return 上限を超える場合はfalse
+     */
+    boolean tryAcquire();
+
+    /**
+     * 実行開始時に呼ばれる.
+     * @param queueDelay キューで待った時間(ミリ秒)
+     */
+    void onStart(long queueDelay);
+
+    /**
+     * 実行終了時に許可を戻す.
+     * @param latency 受付から終了までの時間(ミリ秒)
+     */
+    void release(long latency);
+
+    /**
+     * 実行されなかった場合に許可を戻す.
+     */
+    void cancel();
+
+    /**
+     * 現在の上限を戻す.
+     * @return 上限
+     */
+    int getLimit();
+
+    /**
+     * 受付済みで終了していない数を戻す.
+     * @return 数
+     */
+    int getInFlight();
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net.pool;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * 固定の同時実行数の制限.
+ */
+class FixedConcurrencyLimiter implements ConcurrencyLimiter {
+
+    /** 許可 */
+    private final Semaphore permits;
+
+    /** 上限 */
+    private final int limit;
+
+    /**
+     * コンストラクタ.
+     * @param limit 上限
+     */
+    FixedConcurrencyLimiter(final int limit) {
+        this.permits = new Semaphore(limit);
+        this.limit = limit;
+    }
+
+    /**
+     * 許可を取る.
+     * @return 上限を超える場合はfalse
+     */
+    public boolean tryAcquire() {
+        return permits.tryAcquire();
+    }
+
+    /**
+     * 何もしない.
+     * @param queueDelay キューで待った時間(ミリ秒)
+     */
+    public void onStart(final long queueDelay) {
+        return;
+    }
+
+    /**
+     * 許可を戻す.
+     * @param latency 受付から終了までの時間(ミリ秒)
+     */
+    public void release(final long latency) {
+        permits.release();
+    }
+
+    /**
+     * 許可を戻す.
+     */
+    public void cancel() {
+        permits.release();
+    }
+
+    /**
+     * 上限を戻す.
+     * @return 上限
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * 受付済みで終了していない数を戻す.
+     * @return 数
+     */
+    public int getInFlight() {
+        return limit - permits.availablePermits();
+    }
+}
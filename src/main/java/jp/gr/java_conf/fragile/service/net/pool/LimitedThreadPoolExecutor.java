@@ -0,0 +1,205 @@
+/*
+ * Copyright(C) 2009 syuu256\gmail.com. All Rights Reserved.
+ */
+package jp.gr.java_conf.fragile.service.net.pool;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.gr.java_conf.fragile.service.net.AbstractListenerCommand;
+
+/**
+ * 同時実行数を制限する実行キュー.
+ * <pre>
+ * キューに入れる前にConcurrencyLimiterの許可を取り
+ * 上限を超えた場合はRejectedExecutionHandlerを呼び出すので
+ * RejectedPolicy(abort)の動作はキューが埋まった場合と同じになる
+ * コマンドの受付時間を設定し、キュー待ち時間と応答時間をLimiterに通知する
+ * コマンドは実行の終了時にプールに戻り、afterExecuteの前に別の接続で
+ * 再利用される事があるので、受付時間は開始時に実行スレッドに控える
+ * MBeanでの監視用にThreadPoolExecutorを継承しています
+ * </pre>
+ */
+public class LimitedThreadPoolExecutor extends ThreadPoolExecutor {
+
+    /** 同時実行数の制限 */
+    private final ConcurrencyLimiter limiter;
+
+    /** 同時実行数の上限の最大値 */
+    private final int maximumLimit;
+
+    /** 受付不可時のハンドラ */
+    private final RejectedExecutionHandler rejectedHandler;
+
+    /** 上限を超えて受付不可とした数 */
+    private final AtomicLong limitRejectedCount = new AtomicLong();
+
+    /** 実行中のコマンドの受付時間 [0は受付時間なし] */
+    private final ThreadLocal<long[]> submitTimes = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * コンストラクタ.
+     * @param corePoolSize 常に処理待ちのスレッド数
+     * @param maximumPoolSize 最大スレッド数
+     * @param keepAliveTime 処理待ちスレッドを破棄するまでの時間
+     * @param unit 時間の単位
+     * @param workQueue キュー
+     * @param threadFactory スレッド生成
+     * @param handler 受付不可時のハンドラ
+     * @param limiter 同時実行数の制限
+     */
+    LimitedThreadPoolExecutor(final int corePoolSize, final int maximumPoolSize, final long keepAliveTime,
+            final TimeUnit unit, final BlockingQueue<Runnable> workQueue, final ThreadFactory threadFactory,
+            final RejectedExecutionHandler handler, final ConcurrencyLimiter limiter) {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory,
+                new ReleaseRejectedHandler(handler, limiter));
+        this.limiter = limiter;
+        this.maximumLimit = limiter.getLimit();
+        this.rejectedHandler = handler;
+    }
+
+    /**
+     * 同時実行数の上限以内であれば実行する.
+     * @param command コマンド
+     */
+    @java.lang.Override
+    public void execute(final Runnable command) {
+
+        if (!limiter.tryAcquire()) {
+            // 上限を超えた
+            limitRejectedCount.incrementAndGet();
+            rejectedHandler.rejectedExecution(command, this);
+            return;
+        }
+
+        if (command instanceof AbstractListenerCommand) {
+            AbstractListenerCommand.class.cast(command).setSubmitTime(System.currentTimeMillis());
+        }
+
+        super.execute(command);
+    }
+
+    /**
+     * キュー待ち時間を通知する.
+     * @param t 実行スレッド
+     * @param r コマンド
+     */
+    @java.lang.Override
+    protected void beforeExecute(final Thread t, final Runnable r) {
+        super.beforeExecute(t, r);
+
+        long submitTime = 0L;
+        if (r instanceof AbstractListenerCommand) {
+            submitTime = AbstractListenerCommand.class.cast(r).getSubmitTime();
+        }
+        submitTimes.get()[0] = submitTime;
+        limiter.onStart(elapsed(submitTime));
+    }
+
+    /**
+     * 実行が終わったら許可を戻す.
+     * @param r コマンド
+     * @param t 例外
+     */
+    @java.lang.Override
+    protected void afterExecute(final Runnable r, final Throwable t) {
+        // コマンドは再利用されている事があるので開始時に控えた受付時間を使う
+        limiter.release(elapsed(submitTimes.get()[0]));
+        super.afterExecute(r, t);
+    }
+
+    /**
+     * 許可されるスレッドの最大数を返します.
+     * <pre>
+     * スレッド数を制限しない場合は同時実行数の上限の最大値を戻す
+     * </pre>
+     * @return スレッドの最大数
+     */
+    @java.lang.Override
+    public int getMaximumPoolSize() {
+
+        final int maximumPoolSize = super.getMaximumPoolSize();
+        if (maximumPoolSize == Integer.MAX_VALUE) {
+            return maximumLimit;
+        }
+        return maximumPoolSize;
+    }
+
+    /**
+     * 現在の同時実行数の上限を戻す.
+     * @return 上限
+     */
+    public int getConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    /**
+     * 受付済みで終了していない数を戻す.
+     * @return 数
+     */
+    public int getInFlightCount() {
+        return limiter.getInFlight();
+    }
+
+    /**
+     * 上限を超えて受付不可とした数を戻す.
+     * @return 数
+     */
+    public long getLimitRejectedCount() {
+        return limitRejectedCount.get();
+    }
+
+    /**
+     * 受付からの経過時間を戻す.
+     * @param submitTime 受付ミリ秒 [受付時間がない場合は0]
+     * @return ミリ秒 受付時間がない場合は0
+     */
+    private static long elapsed(final long submitTime) {
+
+        if (submitTime == 0L) {
+            return 0L;
+        }
+        return System.currentTimeMillis() - submitTime;
+    }
+
+    /**
+     * キューに入れられなかった場合に許可を戻すハンドラ.
+     */
+    private static class ReleaseRejectedHandler implements RejectedExecutionHandler {
+
+        /** 委譲先 */
+        private final RejectedExecutionHandler handler;
+
+        /** 同時実行数の制限 */
+        private final ConcurrencyLimiter limiter;
+
+        /**
+         * コンストラクタ.
+         * @param handler 委譲先
+         * @param limiter 同時実行数の制限
+         */
+        ReleaseRejectedHandler(final RejectedExecutionHandler handler, final ConcurrencyLimiter limiter) {
+            this.handler = handler;
+            this.limiter = limiter;
+        }
+
+        /**
+         * 許可を戻して委譲する.
+         * @param run コマンド
+         * @param executor 実行キュー
+         */
+        public void rejectedExecution(final Runnable run, final ThreadPoolExecutor executor) {
+            limiter.cancel();
+            handler.rejectedExecution(run, executor);
+        }
+    }
+}
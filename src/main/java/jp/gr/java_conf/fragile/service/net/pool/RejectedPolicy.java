@@ -46,7 +46,7 @@ class RejectedPolicy implements RejectedExecutionHandler {
                 return;
             }
             final AbstractListenerCommand command = AbstractListenerCommand.class.cast(run);
-            command.abort();
+            command.reject();
 
         } catch (Throwable e) {
             // 受付不可処理で例外が発生しました IP[{0}]
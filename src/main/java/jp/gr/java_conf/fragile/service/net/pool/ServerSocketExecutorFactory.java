@@ -3,9 +3,12 @@
  */
 package jp.gr.java_conf.fragile.service.net.pool;
 
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.reflect.Method;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -49,6 +52,30 @@ public class ServerSocketExecutorFactory {
     /** キューの容量(待ち行列数). */
     private int executorPoolCapacity = 60;
 
+    /** コマンド毎に仮想スレッドで実行する. */
+    private boolean executorVirtualThread = false;
+
+    /** 仮想スレッドで実行する場合の同時実行数. */
+    private int executorConcurrencyLimit = 10000;
+
+    /** 同時実行数の上限をキュー待ち時間で調整する. */
+    private boolean executorAdaptiveLimit = false;
+
+    /** 調整する場合の同時実行数の上限の最小値. */
+    private int executorMinLimit = 1;
+
+    /** 調整する場合のキュー待ち時間の目標(ミリ秒). */
+    private long executorQueueDelayTarget = 50L;
+
+    /** キュー待ち時間で破棄するキュー(CoDel)を使用する. */
+    private boolean executorQueueCoDel = false;
+
+    /** CoDelの目標のキュー待ち時間(ミリ秒). */
+    private long executorCoDelTarget = 5L;
+
+    /** CoDelの判定期間(ミリ秒). */
+    private long executorCoDelInterval = 100L;
+
 //  ============================================================================
 
     /**
@@ -63,6 +90,10 @@ public class ServerSocketExecutorFactory {
             log.trace("START");
         }
 
+        if (executorVirtualThread) {
+            return createThreadPerCommandExecutor();
+        }
+
         final int capacity = executorPoolCapacity;
         final int corePoolSize = executorCorePoolSize;
         final int maximumPoolSize = executorMaximumPoolSize;
@@ -73,20 +104,41 @@ public class ServerSocketExecutorFactory {
             log.debug("corePoolSize[" + corePoolSize + "] ");
             log.debug("maximumPoolSize[" + maximumPoolSize + "] ");
             log.debug("keepAliveTime[" + keepAliveTime + "] ");
+            log.debug("adaptiveLimit[" + executorAdaptiveLimit + "] ");
         }
 
         ThreadPoolExecutor executor = null;
 
         try {
 
-            executor = new ThreadPoolExecutor(
-                corePoolSize,
-                maximumPoolSize,
-                keepAliveTime,
-                getTimeUnit(),
-                createQueue(capacity),
-                createThreadFactory(getThreadGroup()),
-                createRejectedExecutionHandler());
+            final BlockingQueue<Runnable> queue = createQueue(capacity);
+
+            if (executorAdaptiveLimit) {
+                // キューが埋まる前に受付を断る
+                executor = new LimitedThreadPoolExecutor(
+                    corePoolSize,
+                    maximumPoolSize,
+                    keepAliveTime,
+                    getTimeUnit(),
+                    queue,
+                    createThreadFactory(getThreadGroup()),
+                    createRejectedExecutionHandler(),
+                    createAdaptiveLimiter(maximumPoolSize + capacity));
+            } else {
+                executor = new ThreadPoolExecutor(
+                    corePoolSize,
+                    maximumPoolSize,
+                    keepAliveTime,
+                    getTimeUnit(),
+                    queue,
+                    createThreadFactory(getThreadGroup()),
+                    createRejectedExecutionHandler());
+            }
+
+            if (queue instanceof CoDelBlockingQueue) {
+                // 破棄したコマンドはリジェクトハンドラに渡す
+                CoDelBlockingQueue.class.cast(queue).setExecutor(executor);
+            }
 
         } catch (Exception e) {
             // ThreadPoolExecutorの生成に失敗しました
@@ -100,6 +152,71 @@ public class ServerSocketExecutorFactory {
         return executor;
     }
 
+    /**
+     * コマンド毎に仮想スレッドで実行する ThreadPoolExecutorを生成する.
+     * <pre>
+     * キューに溜めずにコマンド毎にスレッドを生成し、終了したスレッドは再利用せずに破棄する
+     * (SynchronousQueueで受け渡し、keepAliveTimeを0にするので待機するスレッドは残らない)
+     * スレッド毎のキャッシュ(threadスコープなど)もコマンド毎になる
+     * 同時実行数はセマフォで制限する
+     * executorAdaptiveLimitの場合はexecutorConcurrencyLimitを最大値として調整する
+     * executorCorePoolSize、executorMaximumPoolSize、executorPoolCapacity、
+     * executorKeepAliveTimeは使用しない
+     * </pre>
+     * @return 生成して戻す
+     */
+    private ThreadPoolExecutor createThreadPerCommandExecutor() {
+
+        final int concurrencyLimit = executorConcurrencyLimit;
+
+        if (log.isDebugEnabled()) {
+            log.debug("concurrencyLimit[" + concurrencyLimit + "] ");
+        }
+
+        ThreadPoolExecutor executor = null;
+
+        try {
+
+            final ConcurrencyLimiter limiter = executorAdaptiveLimit
+                ? createAdaptiveLimiter(concurrencyLimit) : new FixedConcurrencyLimiter(concurrencyLimit);
+
+            executor = new LimitedThreadPoolExecutor(
+                0,
+                Integer.MAX_VALUE,
+                0L,
+                getTimeUnit(),
+                new SynchronousQueue<Runnable>(),
+                createVirtualThreadFactory(getThreadGroup()),
+                createRejectedExecutionHandler(),
+                limiter);
+
+        } catch (Exception e) {
+            // ThreadPoolExecutorの生成に失敗しました
+            // concurrencyLimit[{0}]
+            log.error("ThreadPoolExecutor create error", e);
+
+            throw new RuntimeException(e);
+        }
+
+        return executor;
+    }
+
+    /**
+     * 適応型の同時実行数の制限を生成する.
+     * @param maxLimit 上限の最大値
+     * @return 生成して戻す
+     */
+    private ConcurrencyLimiter createAdaptiveLimiter(final int maxLimit) {
+
+        if (log.isDebugEnabled()) {
+            log.debug("minLimit[" + executorMinLimit + "] ");
+            log.debug("maxLimit[" + maxLimit + "] ");
+            log.debug("queueDelayTarget[" + executorQueueDelayTarget + "] ");
+        }
+
+        return new AdaptiveConcurrencyLimiter(executorMinLimit, maxLimit, executorQueueDelayTarget);
+    }
+
     /**
      * スレッドグループをを設定.
      * @param threadGroup スレッドグループ
@@ -140,6 +257,82 @@ public class ServerSocketExecutorFactory {
         this.executorMaximumPoolSize = executorMaximumPoolSize;
     }
 
+    /**
+     * コマンド毎に仮想スレッドで実行する.
+     * <pre>
+     * 仮想スレッドが使用できないJVMの場合はコマンド毎に通常のスレッドで実行する
+     * </pre>
+     * @param executorVirtualThread 仮想スレッドで実行する場合はtrue
+     */
+    public final void setExecutorVirtualThread(final boolean executorVirtualThread) {
+        this.executorVirtualThread = executorVirtualThread;
+    }
+
+    /**
+     * 仮想スレッドで実行する場合の同時実行数.
+     * @param executorConcurrencyLimit 同時実行数 超えた場合はリジェクト
+     */
+    public final void setExecutorConcurrencyLimit(final int executorConcurrencyLimit) {
+        this.executorConcurrencyLimit = executorConcurrencyLimit;
+    }
+
+    /**
+     * 同時実行数の上限をキュー待ち時間で調整する.
+     * <pre>
+     * キュー待ち時間が目標を超えると上限を減らし、キューが埋まる前に受付を断る
+     * 上限の最大値はexecutorMaximumPoolSize + executorPoolCapacity
+     * 仮想スレッドで実行する場合はexecutorConcurrencyLimit
+     * </pre>
+     * @param executorAdaptiveLimit 調整する場合はtrue
+     */
+    public final void setExecutorAdaptiveLimit(final boolean executorAdaptiveLimit) {
+        this.executorAdaptiveLimit = executorAdaptiveLimit;
+    }
+
+    /**
+     * 調整する場合の同時実行数の上限の最小値.
+     * @param executorMinLimit 最小値
+     */
+    public final void setExecutorMinLimit(final int executorMinLimit) {
+        this.executorMinLimit = executorMinLimit;
+    }
+
+    /**
+     * 調整する場合のキュー待ち時間の目標.
+     * @param executorQueueDelayTarget 目標(ミリ秒)
+     */
+    public final void setExecutorQueueDelayTarget(final long executorQueueDelayTarget) {
+        this.executorQueueDelayTarget = executorQueueDelayTarget;
+    }
+
+    /**
+     * キュー待ち時間で破棄するキュー(CoDel)を使用する.
+     * <pre>
+     * キュー待ち時間がexecutorCoDelInterval以上続けてexecutorCoDelTargetを超えた場合に
+     * キューの先頭から破棄してリジェクトハンドラに渡す
+     * </pre>
+     * @param executorQueueCoDel 使用する場合はtrue
+     */
+    public final void setExecutorQueueCoDel(final boolean executorQueueCoDel) {
+        this.executorQueueCoDel = executorQueueCoDel;
+    }
+
+    /**
+     * CoDelの目標のキュー待ち時間.
+     * @param executorCoDelTarget 目標(ミリ秒)
+     */
+    public final void setExecutorCoDelTarget(final long executorCoDelTarget) {
+        this.executorCoDelTarget = executorCoDelTarget;
+    }
+
+    /**
+     * CoDelの判定期間.
+     * @param executorCoDelInterval 判定期間(ミリ秒)
+     */
+    public final void setExecutorCoDelInterval(final long executorCoDelInterval) {
+        this.executorCoDelInterval = executorCoDelInterval;
+    }
+
     /**
      * キュー待ちタイムアウト値
      * @param executorKeepAliveTime タイムアウト
@@ -166,6 +359,9 @@ public class ServerSocketExecutorFactory {
      * @return インスタンス
      */
     protected BlockingQueue<Runnable> createQueue(final int capacity) {
+        if (executorQueueCoDel) {
+            return new CoDelBlockingQueue(capacity, executorCoDelTarget, executorCoDelInterval);
+        }
         return new ArrayBlockingQueue<Runnable>(capacity);
     }
 
@@ -177,6 +373,36 @@ public class ServerSocketExecutorFactory {
         return new ServerSocketPoolThreadFactoryImpl(tg);
     }
 
+    /**
+     * 仮想スレッド生成の実装を戻す.
+     * <pre>
+     * Thread.ofVirtualはJava21からなのでリフレクションで取得する
+     * 取得できない場合はcreateThreadFactoryの実装を戻す
+     * 仮想スレッドはスレッドグループを指定できないので
+     * 障害ハンドラにスレッドグループを設定する
+     * </pre>
+     * @param tg インスタンス
+     * @return インスタンス
+     */
+    protected ThreadFactory createVirtualThreadFactory(final ThreadGroup tg) {
+
+        try {
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                .invoke(builder, "ServerSocketVirtualThread-", Long.valueOf(0L));
+            builder = builderClass.getMethod("uncaughtExceptionHandler", UncaughtExceptionHandler.class)
+                .invoke(builder, tg);
+            return ThreadFactory.class.cast(builderClass.getMethod("factory").invoke(builder));
+        } catch (Exception e) {
+            // 仮想スレッドが使用できません 通常のスレッドで実行します
+            log.warn("virtual thread unsupported:" + e);
+        }
+
+        return createThreadFactory(tg);
+    }
+
     /**
      * RejectedExecutionHandlerのインスタンスを戻す.
      * @return インスタンス
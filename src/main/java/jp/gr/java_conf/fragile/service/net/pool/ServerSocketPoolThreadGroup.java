@@ -45,8 +45,8 @@ class ServerSocketPoolThreadGroup extends ThreadGroup {
         try {
 
             if (!(thread instanceof ServerSocketPoolThread)) {
-                // スレッドクラスのインスタンスが不正です [{0}]
-                log.warn("not ServerSocketPoolThread");
+                // 仮想スレッドの障害ハンドラとしても呼ばれる
+                log.error("APP error", thr);
                 return;
             }
 
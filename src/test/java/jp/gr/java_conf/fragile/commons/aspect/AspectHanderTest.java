@@ -0,0 +1,99 @@
+package jp.gr.java_conf.fragile.commons.aspect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import jp.gr.java_conf.fragile.commons.reflect.DynamicBeanFactory;
+
+import org.junit.Test;
+
+/**
+ * アスペクトの試験.
+ * @author syuu256\gmail.com
+ */
+public class AspectHanderTest {
+
+    /**
+     * プリミティブ、void、引数なしのメソッドを呼び出す.
+     */
+    @Test
+    public void testInvoke() {
+
+        final CounterImpl impl = new CounterImpl();
+        final Counter counter = Counter.class.cast(DynamicBeanFactory.proxyWrap(impl, new AspectHander(impl)));
+
+        counter.reset();
+        assertEquals(3, counter.add(3));
+        assertEquals(5L, counter.addLong(2L));
+        assertEquals("5", counter.text());
+    }
+
+    /**
+     * インターセプターで引数と戻り値を置き換える.
+     */
+    @Test
+    public void testInterceptor() {
+
+        final CounterImpl impl = new CounterImpl();
+        final AspectHander hander = new AspectHander(impl);
+        final Counter counter = Counter.class.cast(DynamicBeanFactory.proxyWrap(impl, hander));
+        assertEquals(1, counter.add(1));
+
+        // 呼び出し後に追加しても反映される
+        hander.addInterceptor("add", new Interceptor() {
+            public Object[] before(final Object instance, final Object[] param) {
+                return new Object[] {Integer.valueOf(Integer.class.cast(param[0]).intValue() * 10)};
+            }
+            public Object after(final Object instance, final Object returnValue) {
+                return Integer.valueOf(Integer.class.cast(returnValue).intValue() + 1000);
+            }
+        });
+        assertEquals(1021, counter.add(2));
+        assertEquals("21", counter.text());
+    }
+
+    /**
+     * 実装の例外はそのまま投げられる.
+     */
+    @Test
+    public void testException() {
+
+        final CounterImpl impl = new CounterImpl();
+        final Counter counter = Counter.class.cast(DynamicBeanFactory.proxyWrap(impl, new AspectHander(impl)));
+        try {
+            counter.fail(null);
+            fail();
+        } catch (IllegalStateException e) {
+            assertNull(e.getMessage());
+        }
+    }
+}
+
+interface Counter {
+    void reset();
+    int add(int value);
+    long addLong(long value);
+    String text();
+    void fail(String message);
+}
+class CounterImpl implements Counter {
+    private long count = 0L;
+    public void reset() {
+        count = 0L;
+    }
+    public int add(final int value) {
+        count += value;
+        return (int) count;
+    }
+    public long addLong(final long value) {
+        count += value;
+        return count;
+    }
+    public String text() {
+        return String.valueOf(count);
+    }
+    public void fail(final String message) {
+        throw new IllegalStateException(message);
+    }
+}
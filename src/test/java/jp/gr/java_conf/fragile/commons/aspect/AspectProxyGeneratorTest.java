@@ -0,0 +1,173 @@
+package jp.gr.java_conf.fragile.commons.aspect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+/**
+ * アスペクトのプロキシクラス生成の試験.
+ * @author syuu256\gmail.com
+ */
+public class AspectProxyGeneratorTest {
+
+    /**
+     * インターセプターなしで本体を直接呼び出す.
+     */
+    @Test
+    public void testInvoke() {
+
+        final CounterImpl impl = new CounterImpl();
+        final Object proxy = new AspectHander(impl).newGeneratedProxy();
+        assertFalse(Proxy.isProxyClass(proxy.getClass()));
+
+        final Counter counter = Counter.class.cast(proxy);
+        counter.reset();
+        assertEquals(3, counter.add(3));
+        assertEquals(5L, counter.addLong(2L));
+        assertEquals("5", counter.text());
+    }
+
+    /**
+     * インターセプターで引数と戻り値を置き換える.
+     */
+    @Test
+    public void testInterceptor() {
+
+        final CounterImpl impl = new CounterImpl();
+        final AspectHander hander = new AspectHander(impl);
+        hander.addInterceptor("addLong", new Interceptor() {
+            public Object[] before(final Object instance, final Object[] param) {
+                return new Object[] {Long.valueOf(Long.class.cast(param[0]).longValue() * 10)};
+            }
+            public Object after(final Object instance, final Object returnValue) {
+                return Long.valueOf(Long.class.cast(returnValue).longValue() + 1000);
+            }
+        });
+        final int[] calls = new int[1];
+        hander.addInterceptor("reset", new Interceptor() {
+            public Object[] before(final Object instance, final Object[] param) {
+                assertNull(param);
+                calls[0]++;
+                return param;
+            }
+            public Object after(final Object instance, final Object returnValue) {
+                assertNull(returnValue);
+                calls[0]++;
+                return returnValue;
+            }
+        });
+
+        final Counter counter = Counter.class.cast(hander.newGeneratedProxy());
+        assertEquals(1, counter.add(1));
+        assertEquals(1021L, counter.addLong(2L));
+        counter.reset();
+        assertEquals(2, calls[0]);
+        assertEquals("0", counter.text());
+
+        // インターセプターのあるメソッドが同じ場合は生成したクラスを再利用する
+        final Interceptor through = new Interceptor() {
+            public Object[] before(final Object instance, final Object[] param) {
+                return param;
+            }
+            public Object after(final Object instance, final Object returnValue) {
+                return returnValue;
+            }
+        };
+        final AspectHander otherHander = new AspectHander(new CounterImpl())
+            .addInterceptor("addLong", through)
+            .addInterceptor("reset", through);
+        final Counter otherCounter = Counter.class.cast(otherHander.newGeneratedProxy());
+        assertSame(counter.getClass(), otherCounter.getClass());
+        assertEquals(2L, otherCounter.addLong(2L));
+    }
+
+    /**
+     * 実装の例外はそのまま投げられる.
+     */
+    @Test
+    public void testException() {
+
+        final CounterImpl impl = new CounterImpl();
+        final Counter counter = Counter.class.cast(new AspectHander(impl).newGeneratedProxy());
+        try {
+            counter.fail(null);
+            fail();
+        } catch (IllegalStateException e) {
+            assertNull(e.getMessage());
+        }
+    }
+
+    /**
+     * 同じパッケージに定義できないインターフェース.
+     * @throws Exception 例外
+     */
+    @Test
+    public void testPublicInterface() throws Exception {
+
+        final Callable<String> impl = new CallableImpl();
+        final AspectHander hander = new AspectHander(impl);
+        hander.addInterceptor("call", new Interceptor() {
+            public Object[] before(final Object instance, final Object[] param) {
+                return param;
+            }
+            public Object after(final Object instance, final Object returnValue) {
+                return returnValue + "!";
+            }
+        });
+
+        @SuppressWarnings("unchecked")
+        final Callable<String> callable = Callable.class.cast(hander.newGeneratedProxy());
+        assertEquals("call!", callable.call());
+    }
+
+    /**
+     * 呼び出し用.
+     */
+    interface Counter {
+        void reset();
+        int add(int value);
+        long addLong(long value);
+        String text();
+        void fail(String message);
+    }
+
+    /**
+     * 呼び出し用.
+     */
+    static class CounterImpl implements Counter {
+        private long count = 0L;
+        public void reset() {
+            count = 0L;
+        }
+        public int add(final int value) {
+            count += value;
+            return (int) count;
+        }
+        public long addLong(final long value) {
+            count += value;
+            return count;
+        }
+        public String text() {
+            return String.valueOf(count);
+        }
+        public void fail(final String message) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /**
+     * 呼び出し用.
+     */
+    static class CallableImpl implements Callable<String> {
+        public String call() {
+            return "call";
+        }
+    }
+}
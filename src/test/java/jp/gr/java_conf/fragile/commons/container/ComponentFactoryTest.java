@@ -3,7 +3,22 @@
  */
 package jp.gr.java_conf.fragile.commons.container;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import jp.gr.java_conf.fragile.commons.aspect.Interceptor;
+import jp.gr.java_conf.fragile.commons.exceptions.FGRuntimeException;
 
 import org.junit.Test;
 
@@ -25,6 +40,145 @@ public class ComponentFactoryTest {
         foo.executeEx();
 
     }
+
+    /**
+     * 毎回生成するBeanは生成手順を再利用して別のインスタンスを生成する.
+     */
+    @Test
+    public void testGetComponentCreate() {
+
+        final ComponentFactory<FooMock> factory = ComponentFactory.createFactory(FooMock.class);
+        final FooMock foo1 = factory.getComponent(BeanNames.FOO_MOCK);
+        final FooMock foo2 = factory.getComponent(BeanNames.FOO_MOCK);
+
+        assertNotSame(foo1, foo2);
+        assertEquals("hoge", foo1.execute("1", Long.valueOf(1L)));
+        assertEquals("hoge", foo2.execute("2", Long.valueOf(2L)));
+    }
+
+    /**
+     * シングルトンは複数スレッドから取得しても同じインスタンス.
+     * @throws Exception 例外
+     */
+    @Test
+    public void testGetComponentSingleton() throws Exception {
+
+        final ComponentFactory<BarMock> factory = ComponentFactory.createFactory(BarMock.class);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Callable<BarMock> task = new Callable<BarMock>() {
+                @SuppressWarnings("deprecation")
+                public BarMock call() {
+                    return factory.getComponent("BAR_MOCK");
+                }
+            };
+            final Future<BarMock> first = executor.submit(task);
+            for (int i = 0; i < 16; i++) {
+                assertSame(first.get(), executor.submit(task).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testReload() {
+        final ComponentFactory<BarMock> factory = ComponentFactory.createFactory(BarMock.class);
+        final BarMock barMock = factory.getComponent("BAR_MOCK");
+        final long version = ComponentFactory.reload();
+        assertEquals(version, ComponentFactory.getSnapshotVersion());
+        // 定義が変わっていないシングルトンは引き継ぐ
+        assertSame(barMock, ComponentFactory.createFactory(BarMock.class).getComponent("BAR_MOCK"));
+        assertSame(barMock, factory.getComponent("BAR_MOCK"));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testGetComponentRequestScope() {
+        final ComponentFactory<BarMock> factory = ComponentFactory.createFactory(BarMock.class);
+        try {
+            factory.getComponent("REQUEST_MOCK");
+            fail();
+        } catch (FGRuntimeException e) {
+            // スコープの外
+        }
+
+        ComponentScope.beginRequest(null);
+        final RequestMockImpl first = (RequestMockImpl) factory.getComponent("REQUEST_MOCK");
+        assertSame(first, factory.getComponent("REQUEST_MOCK"));
+        assertSame(factory.getComponent("BAR_MOCK"), first.barMock);
+        ComponentScope.endRequest();
+        assertEquals(1, first.resets);
+
+        // resetしてプールから再利用する
+        ComponentScope.beginRequest(null);
+        assertSame(first, factory.getComponent("REQUEST_MOCK"));
+        assertSame(factory.getComponent("BAR_MOCK"), first.barMock);
+        ComponentScope.endRequest();
+        assertEquals(2, first.resets);
+    }
+
+    @Test
+    public void testEndThread() throws Exception {
+        final ComponentFactory<BarMock> factory = ComponentFactory.createFactory(BarMock.class);
+        final RequestMockImpl first = (RequestMockImpl) factory.getComponent("THREAD_MOCK");
+        assertSame(first, factory.getComponent("THREAD_MOCK"));
+        ComponentScope.endThread();
+        assertEquals(1, first.resets);
+
+        // 終了したスレッドのインスタンスは別のスレッドで再利用する
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<BarMock> future = executor.submit(new Callable<BarMock>() {
+                public BarMock call() {
+                    return factory.getComponent("THREAD_MOCK");
+                }
+            });
+            assertSame(first, future.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 別スレッドで互いに依存するシングルトンを生成してもデッドロックせず循環参照になる.
+     * @throws Exception 例外
+     */
+    @Test(timeout = 10000L)
+    public void testCircularSingletonOnTwoThreads() throws Exception {
+        final ComponentFactory<BarMock> factory = ComponentFactory.createFactory(BarMock.class);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<BarMock> a = executor.submit(new Callable<BarMock>() {
+                public BarMock call() {
+                    return factory.getComponent("CIRCULAR_A");
+                }
+            });
+            final Future<BarMock> b = executor.submit(new Callable<BarMock>() {
+                public BarMock call() {
+                    return factory.getComponent("CIRCULAR_B");
+                }
+            });
+            assertCircular(a);
+            assertCircular(b);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void assertCircular(final Future<BarMock> future) throws Exception {
+        try {
+            future.get(5L, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            boolean circular = false;
+            for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+                circular |= t instanceof FGRuntimeException && String.valueOf(t.getMessage()).startsWith("Circular reference");
+            }
+            assertTrue(String.valueOf(e.getCause()), circular);
+        }
+    }
 }
 
 enum BeanNames implements ComponentNameable {
@@ -56,6 +210,28 @@ interface BarMock {
 }
 class BarMockImpl implements BarMock {
 }
+class RequestMockImpl implements BarMock, ScopedComponent {
+    BarMock barMock = null;
+    int resets = 0;
+    public void setBarMock(BarMock barMock) {
+        this.barMock = barMock;
+    }
+    public void reset() {
+        resets++;
+    }
+}
+class CircularMockImpl implements BarMock {
+    /** 両方のスレッドが生成を始めてから依存Beanを解決する */
+    static final CountDownLatch STARTED = new CountDownLatch(2);
+    BarMock barMock = null;
+    CircularMockImpl() throws InterruptedException {
+        STARTED.countDown();
+        STARTED.await(1L, TimeUnit.SECONDS);
+    }
+    public void setBarMock(BarMock barMock) {
+        this.barMock = barMock;
+    }
+}
 class InterceptorImpl implements Interceptor {
     public Object[] before(final Object instance, final Object[] param) {
         System.out.println("before:" + param);
@@ -0,0 +1,30 @@
+package jp.gr.java_conf.fragile.commons.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * コンテナの事前初期化の試験.
+ * @author syuu256\gmail.com
+ */
+public class ComponentWarmUpTest {
+
+    /**
+     * キャッシュするBeanのみ生成する.
+     */
+    @Test
+    public void testExecute() {
+
+        final ComponentWarmUp warmUp = new ComponentWarmUp();
+        warmUp.setParallelism(2);
+        final Map<String, Long> times = warmUp.execute();
+
+        assertEquals(2, times.size());
+        assertTrue(times.containsKey("BAR_MOCK"));
+        assertTrue(times.containsKey("INTERCEPTOR"));
+    }
+}
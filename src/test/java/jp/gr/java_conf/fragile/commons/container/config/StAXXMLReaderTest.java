@@ -0,0 +1,66 @@
+package jp.gr.java_conf.fragile.commons.container.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * StAXでの読み出しの試験.
+ * @author syuu256\gmail.com
+ */
+public class StAXXMLReaderTest {
+
+    /**
+     * DOMと同じ解析結果となる.
+     */
+    @Test
+    public void testRead() {
+
+        final XMLProperties dom = read(new XMLReader(), XMLReader.class.getResourceAsStream(XMLReader.FILE_PATH));
+        final XMLProperties stax = read(new StAXXMLReader(), XMLReader.class.getResourceAsStream(XMLReader.FILE_PATH));
+
+        assertFalse(dom.getBeanIDs().isEmpty());
+        assertEquals(dom.getBeanIDs(), stax.getBeanIDs());
+        for (final String beanID : dom.getBeanIDs()) {
+            assertEquals(dom.getBeanMetaData(beanID).toString(), stax.getBeanMetaData(beanID).toString());
+        }
+    }
+
+    /**
+     * コンテナ直下のコンポーネントのみ、コンポーネント直下のメソッドのみ対象とする.
+     */
+    @Test
+    public void testNested() {
+
+        final String xml = "<container>"
+            + "<component id='A' create='create' type='bean' src='a'>"
+            + "<injection><method name='setB' id='B'/><x><method name='setX' id='X'/></x></injection>"
+            + "<method name='setY' id='Y'/>"
+            + "</component>"
+            + "<x><component id='C' create='create' type='bean' src='c'/></x>"
+            + "</container>";
+
+        final XMLProperties dom = read(new XMLReader(), new ByteArrayInputStream(xml.getBytes()));
+        final XMLProperties stax = read(new StAXXMLReader(), new ByteArrayInputStream(xml.getBytes()));
+
+        assertEquals(1, stax.getBeanIDs().size());
+        assertEquals(1, stax.getBeanMetaData("A").getInjections().size());
+        assertEquals(dom.getBeanMetaData("A").toString(), stax.getBeanMetaData("A").toString());
+    }
+
+    /**
+     * 読み込む.
+     * @param reader 読み出しクラス
+     * @param inputStream XML
+     * @return 値オブジェクト
+     */
+    private static XMLProperties read(final XMLReader reader, final InputStream inputStream) {
+        final XMLProperties properties = new XMLProperties();
+        reader.read(properties, inputStream);
+        return properties;
+    }
+}
@@ -0,0 +1,71 @@
+package jp.gr.java_conf.fragile.commons.container.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * XML定義値のバイナリキャッシュの試験.
+ * @author syuu256\gmail.com
+ */
+public class XMLPropertiesCacheTest {
+
+    /** キャッシュのディレクトリ */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 初回はXMLを解析して保存し、2回目はキャッシュから読み込む.
+     */
+    @Test
+    public void testRead() {
+
+        final File directory = new File(folder.getRoot(), "cache");
+        final XMLProperties parsed = new XMLProperties();
+        new XMLPropertiesCache(directory).read(new XMLReader(), parsed);
+        assertEquals(1, directory.listFiles().length);
+
+        // 解析しようとした場合は失敗する
+        final XMLProperties cached = new XMLProperties();
+        new XMLPropertiesCache(directory).read(new XMLReader() {
+            @Override
+            public void read(final XMLProperties xmlProperties, final InputStream inputStream) {
+                throw new IllegalStateException();
+            }
+        }, cached);
+
+        assertFalse(cached.getBeanIDs().isEmpty());
+        assertEquals(parsed.getBeanIDs(), cached.getBeanIDs());
+        for (final String beanID : parsed.getBeanIDs()) {
+            assertEquals(parsed.getBeanMetaData(beanID).toString(), cached.getBeanMetaData(beanID).toString());
+        }
+    }
+
+    /**
+     * 置き換えに失敗した場合は一時ファイルを残さない.
+     */
+    @Test
+    public void testSaveFailure() {
+
+        final File directory = new File(folder.getRoot(), "cache");
+        new XMLPropertiesCache(directory).read(new XMLReader(), new XMLProperties());
+        final File file = directory.listFiles()[0];
+
+        // 同じ名前の空でないディレクトリで置き換えを失敗させる
+        assertTrue(file.delete());
+        assertTrue(new File(file, "child").mkdirs());
+        final XMLProperties parsed = new XMLProperties();
+        new XMLPropertiesCache(directory).read(new XMLReader(), parsed);
+
+        assertFalse(parsed.getBeanIDs().isEmpty());
+        assertEquals(1, directory.listFiles().length);
+        assertTrue(file.isDirectory());
+    }
+}
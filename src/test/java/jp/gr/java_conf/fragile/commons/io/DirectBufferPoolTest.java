@@ -0,0 +1,135 @@
+package jp.gr.java_conf.fragile.commons.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+/**
+ * ダイレクトバッファのプールの試験.
+ * @author syuu256\gmail.com
+ */
+public class DirectBufferPoolTest {
+
+    /**
+     * サイズクラスに切り上げて返却したバッファを再利用する.
+     */
+    @Test
+    public void testAcquireRelease() {
+
+        final DirectBufferPool pool = new DirectBufferPool(512, 4096, 4, 2);
+
+        final ByteBuffer buffer = pool.acquire(1000);
+        assertTrue(buffer.isDirect());
+        assertEquals(1024, buffer.capacity());
+        assertEquals(0, buffer.position());
+        assertEquals(1024, buffer.limit());
+
+        // チャンク単位で確保する
+        assertEquals(65536L, pool.getAllocatedCapacity());
+
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        final ByteBuffer reused = pool.acquire(1024);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+
+        // 同じチャンクの別の領域
+        final ByteBuffer other = pool.acquire(700);
+        assertNotSame(buffer, other);
+        other.put(0, (byte) 2);
+        assertEquals(1, reused.get(0));
+
+        // 最大サイズを超える場合はプールしない
+        final ByteBuffer large = pool.acquire(8192);
+        assertEquals(8192, large.capacity());
+        pool.release(large);
+        assertEquals(65536L, pool.getAllocatedCapacity());
+    }
+
+    /**
+     * 終了したスレッドのキャッシュは共有領域が空になった時に再利用する.
+     * @throws Exception 例外
+     */
+    @Test
+    public void testReclaimDeadThread() throws Exception {
+
+        // 共有領域には1つしか入らない
+        final DirectBufferPool pool = new DirectBufferPool(4096, 4096, 1, 2);
+        final ByteBuffer[] cached = new ByteBuffer[2];
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                cached[0] = pool.acquire(4096);
+                cached[1] = pool.acquire(4096);
+                pool.release(cached[0]);
+                pool.release(cached[1]);
+            }
+        };
+        thread.start();
+        thread.join();
+
+        final ByteBuffer reused = pool.acquire(4096);
+        assertTrue(reused == cached[0] || reused == cached[1]);
+        assertEquals(65536L, pool.getAllocatedCapacity());
+    }
+
+    /**
+     * キャッシュしないスレッドの返却は別のスレッドで再利用する.
+     * @throws Exception 例外
+     */
+    @Test
+    public void testDisableThreadCache() throws Exception {
+
+        // 2つ目で共有領域を空にする
+        final DirectBufferPool pool = new DirectBufferPool(4096, 4096, 1, 2);
+        final ByteBuffer buffer = pool.acquire(4096);
+        pool.acquire(4096);
+        pool.disableThreadCache();
+        pool.release(buffer);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertSame(buffer, executor.submit(new Callable<ByteBuffer>() {
+                public ByteBuffer call() {
+                    return pool.acquire(4096);
+                }
+            }).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 返却されずに回収されたバッファを検出する.
+     * @throws Exception 例外
+     */
+    @Test
+    public void testLeakDetection() throws Exception {
+
+        final DirectBufferPool pool;
+        System.setProperty(DirectBufferPool.LEAK_DETECTION_KEY, "true");
+        try {
+            pool = new DirectBufferPool(512, 4096, 4, 2);
+        } finally {
+            System.clearProperty(DirectBufferPool.LEAK_DETECTION_KEY);
+        }
+
+        pool.release(pool.acquire(512));
+        pool.acquire(512);
+
+        for (int i = 0; i < 50 && pool.getLeakCount() == 0L; i++) {
+            System.gc();
+            Thread.sleep(20L);
+            pool.release(pool.acquire(512));
+        }
+        assertEquals(1L, pool.getLeakCount());
+    }
+}
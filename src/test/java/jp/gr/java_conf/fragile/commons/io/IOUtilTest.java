@@ -0,0 +1,171 @@
+package jp.gr.java_conf.fragile.commons.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.junit.Test;
+
+/**
+ * io関連のユーティリティーの試験.
+ * @author syuu256\gmail.com
+ */
+public class IOUtilTest {
+
+    /**
+     * availableの有無によらず終端まで読み込む.
+     * @throws Exception 例外
+     */
+    @Test
+    public void testReadAll() throws Exception {
+
+        for (final int size : new int[] {0, 1, 8192, 8193, 100000}) {
+            final byte[] data = data(size);
+            assertArrayEquals(data, IOUtil.readAll(new ByteArrayInputStream(data)));
+            assertArrayEquals(data, IOUtil.readAll(new FilterInputStream(new ByteArrayInputStream(data)) {
+                @Override
+                public int available() {
+                    return 0;
+                }
+            }));
+        }
+    }
+
+    /**
+     * 長さ指定の読み込みは不足した場合に例外.
+     * @throws Exception 例外
+     */
+    @Test
+    public void testReadFully() throws Exception {
+
+        final byte[] data = data(100);
+        assertArrayEquals(data, IOUtil.readFully(new ByteArrayInputStream(data), 100));
+        try {
+            IOUtil.readFully(new ByteArrayInputStream(data), 101);
+            fail();
+        } catch (EOFException e) {
+            assertEquals("expected:101 read:100", e.getMessage());
+        }
+
+        final byte[] b = new byte[10];
+        assertEquals(-1, IOUtil.read(new ByteArrayInputStream(new byte[0]), b, 0, b.length));
+    }
+
+    /**
+     * ストリームとファイルをチャネルに転送し、分散して読み込む.
+     * @throws Exception 例外
+     */
+    @Test
+    public void testTransferToAndScatter() throws Exception {
+
+        final byte[] data = data(200000);
+        final File file = File.createTempFile("IOUtilTest", ".bin");
+        try {
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                assertEquals(data.length, IOUtil.transferTo(new ByteArrayInputStream(data), out.getChannel()));
+            } finally {
+                out.close();
+            }
+
+            final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            final InputStream in = new FileInputStream(file);
+            try {
+                assertEquals(data.length, IOUtil.transferTo(in, Channels.newChannel(copy)));
+                assertEquals(-1, in.read());
+            } finally {
+                in.close();
+            }
+            assertArrayEquals(data, copy.toByteArray());
+
+            final FileChannel channel = new FileInputStream(file).getChannel();
+            try {
+                final ByteBuffer header = ByteBuffer.allocate(16);
+                final ByteBuffer body = ByteBuffer.allocateDirect(data.length);
+                assertEquals(data.length, IOUtil.read(channel, new ByteBuffer[] {header, body}));
+                assertEquals(data[15], header.get(15));
+                assertEquals(data[data.length - 1], body.get(data.length - 17));
+                assertEquals(-1L, IOUtil.read(channel, new ByteBuffer[] {ByteBuffer.allocate(1)}));
+            } finally {
+                channel.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * 転送中にファイルが短くなった場合は空回りせずにEOFExceptionにする.
+     * @throws Exception 異常
+     */
+    @Test(timeout = 5000L)
+    public void testTransferToTruncated() throws Exception {
+
+        final File file = File.createTempFile("IOUtilTest", ".bin");
+        try {
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(data(200000));
+            } finally {
+                out.close();
+            }
+
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            final InputStream in = new FileInputStream(file);
+            try {
+                // 最初の書き込みでファイルを切り詰める
+                final WritableByteChannel truncate = new WritableByteChannel() {
+                    public int write(final ByteBuffer src) throws IOException {
+                        raf.setLength(1000L);
+                        final int length = src.remaining();
+                        src.position(src.limit());
+                        return length;
+                    }
+                    public boolean isOpen() {
+                        return true;
+                    }
+                    public void close() {
+                    }
+                };
+                IOUtil.transferTo(in, truncate);
+                fail();
+            } catch (EOFException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("expected:200000 read:"));
+            } finally {
+                in.close();
+                raf.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * 試験データ.
+     * @param size 大きさ
+     * @return データ
+     */
+    private static byte[] data(final int size) {
+        final byte[] b = new byte[size];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) (i * 31);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,74 @@
+package jp.gr.java_conf.fragile.commons.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 応答時間の度数分布の試験.
+ * @author syuu256\gmail.com
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * 百分位の誤差が約3%以内.
+     */
+    @Test
+    public void testPercentile() {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100000L; i++) {
+            histogram.record(i);
+        }
+
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshotAndReset();
+        assertEquals(100000L, snapshot.getCount());
+        assertNear(50000L, snapshot.getValueAtPercentile(50D));
+        assertNear(99000L, snapshot.getValueAtPercentile(99D));
+        assertNear(99900L, snapshot.getValueAtPercentile(99.9D));
+        assertNear(100000L, snapshot.getMax());
+    }
+
+    /**
+     * 小さい値は正確に記録する.
+     */
+    @Test
+    public void testSmallValue() {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1L);
+        histogram.record(3L);
+        histogram.record(40L);
+
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshotAndReset();
+        assertEquals(0L, snapshot.getValueAtPercentile(0D));
+        assertEquals(3L, snapshot.getValueAtPercentile(50D));
+        assertEquals(40L, snapshot.getMax());
+    }
+
+    /**
+     * 集計すると0に戻る.
+     */
+    @Test
+    public void testReset() {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10L);
+        assertEquals(1L, histogram.getSnapshotAndReset().getCount());
+
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshotAndReset();
+        assertEquals(0L, snapshot.getCount());
+        assertEquals(0L, snapshot.getValueAtPercentile(99D));
+    }
+
+    /**
+     * 誤差の確認.
+     * @param expected 期待値
+     * @param actual 値
+     */
+    private static void assertNear(final long expected, final long actual) {
+        assertTrue("expected:" + expected + " actual:" + actual,
+            actual >= expected && actual <= expected + expected * 4 / 100);
+    }
+}
@@ -0,0 +1,156 @@
+package jp.gr.java_conf.fragile.service.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * コマンドの期限の試験.
+ * @author syuu256\gmail.com
+ */
+public class CommandDeadlineTest {
+
+    /**
+     * 監視スレッドが期限切れにした場合はCommandTimeoutExceptionになる.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testExpire() throws Exception {
+
+        final CommandTimeoutWheel wheel = new CommandTimeoutWheel(10L, 8, System.currentTimeMillis());
+        final SleepListenerCommand command = new SleepListenerCommand(50L, 5000L);
+        command.setExecutes(new CommandRegistry(1));
+        command.setTimeoutWheel(wheel, Long.MAX_VALUE);
+
+        // 監視スレッドの代わりに期限を過ぎた時刻で処理する
+        final Thread watcher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(200L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                wheel.expire(System.currentTimeMillis() + 100L);
+            }
+        });
+        watcher.start();
+
+        final long start = System.currentTimeMillis();
+        try {
+            command.run();
+            fail();
+        } catch (CommandTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start < 3000L);
+        } finally {
+            watcher.join();
+        }
+    }
+
+    /**
+     * 監視スレッドが期限切れにする前に終了した場合は期限を過ぎていても正常終了する.
+     */
+    @Test
+    public void testFinishNearDeadline() {
+
+        final CommandTimeoutWheel wheel = new CommandTimeoutWheel(10L, 8, System.currentTimeMillis());
+        final SleepListenerCommand command = new SleepListenerCommand(20L, 50L);
+        command.setExecutes(new CommandRegistry(1));
+        command.setTimeoutWheel(wheel, Long.MAX_VALUE);
+
+        command.run();
+
+        // 取り消した期限は期限切れにならない
+        wheel.expire(System.currentTimeMillis() + 100L);
+        assertTrue(command.deadline != Long.MAX_VALUE);
+    }
+
+    /**
+     * 期限切れにした実行が終了した後の停止要求は次の実行に割り込まない.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testInterruptAfterRun() throws Exception {
+
+        final CommandExecutionable[] scheduled = new CommandExecutionable[1];
+        final CommandTimeoutWheel wheel = new CommandTimeoutWheel(10L, 8, System.currentTimeMillis()) {
+            @Override
+            Timeout schedule(final CommandExecutionable command, final long deadline) {
+                scheduled[0] = command;
+                return super.schedule(command, deadline);
+            }
+        };
+        final SleepListenerCommand command = new SleepListenerCommand(Long.MAX_VALUE, 300L);
+        command.setExecutes(new CommandRegistry(1));
+        command.setTimeoutWheel(wheel, 10000L);
+
+        command.run();
+        final CommandExecutionable first = scheduled[0];
+
+        // keep-aliveの次の要求の実行中に前の実行の停止要求が遅れて届く
+        final Thread watcher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                first.interrupt();
+            }
+        });
+        watcher.start();
+        try {
+            command.run();
+        } finally {
+            watcher.join();
+        }
+        assertTrue(scheduled[0] != first);
+    }
+
+    /**
+     * 監視しない場合はリスナーの実行タイムアウトを適用しない.
+     */
+    @Test
+    public void testWatcherDisabled() {
+
+        final SleepListenerCommand command = new SleepListenerCommand(Long.MAX_VALUE, 50L);
+        command.setExecutes(new CommandRegistry(1));
+        command.setTimeoutWheel(null, 10L);
+
+        command.run();
+
+        assertEquals(Long.MAX_VALUE, command.deadline);
+        assertEquals(Long.MAX_VALUE, command.remaining);
+    }
+}
+
+/**
+ * 期限を設定して待つ.
+ */
+class SleepListenerCommand extends AbstractListenerCommand {
+    final long timeout;
+    final long sleep;
+    long deadline = 0L;
+    long remaining = 0L;
+    SleepListenerCommand(final long timeout, final long sleep) {
+        this.timeout = timeout;
+        this.sleep = sleep;
+    }
+    @Override
+    public void execute() {
+        if (timeout != Long.MAX_VALUE) {
+            setTimeout(timeout);
+        }
+        deadline = getDeadline();
+        try {
+            Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        remaining = getRemainingTime();
+    }
+    @Override
+    public void abort() {
+    }
+}
@@ -0,0 +1,176 @@
+package jp.gr.java_conf.fragile.service.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jp.gr.java_conf.fragile.commons.collect.Collect.EachFunction;
+
+import org.junit.Test;
+
+/**
+ * 実行中コマンド管理の試験.
+ * @author syuu256\gmail.com
+ */
+public class CommandRegistryTest {
+
+    /**
+     * 登録したスロット番号で削除する.
+     */
+    @Test
+    public void testRegisterUnregister() {
+
+        final CommandRegistry registry = new CommandRegistry(2);
+        final RegistryCommand first = new RegistryCommand();
+        final RegistryCommand second = new RegistryCommand();
+
+        final int firstSlot = registry.register(first);
+        final int secondSlot = registry.register(second);
+        assertTrue(firstSlot >= 0);
+        assertTrue(secondSlot >= 0);
+        assertTrue(firstSlot != secondSlot);
+        assertEquals(2, snapShot(registry).size());
+
+        registry.unregister(first, firstSlot);
+        final Set<CommandExecutionable> executes = snapShot(registry);
+        assertEquals(1, executes.size());
+        assertTrue(executes.contains(second));
+
+        // 空いたスロットは再利用される
+        assertEquals(firstSlot, registry.register(first));
+    }
+
+    /**
+     * スロットが全て埋まっている場合は並行Setに登録し、削除できる.
+     */
+    @Test
+    public void testOverflow() {
+
+        // スロット数は同時実行数の2倍
+        final CommandRegistry registry = new CommandRegistry(1);
+        final RegistryCommand[] commands = new RegistryCommand[4];
+        final int[] slots = new int[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = new RegistryCommand();
+            slots[i] = registry.register(commands[i]);
+        }
+        assertTrue(slots[0] >= 0);
+        assertTrue(slots[1] >= 0);
+        assertEquals(CommandRegistry.OVERFLOW, slots[2]);
+        assertEquals(CommandRegistry.OVERFLOW, slots[3]);
+        assertEquals(4, snapShot(registry).size());
+
+        registry.unregister(commands[2], slots[2]);
+        final Set<CommandExecutionable> executes = snapShot(registry);
+        assertEquals(3, executes.size());
+        assertTrue(executes.contains(commands[3]));
+
+        // スロットの番号で他のコマンドを削除しない
+        registry.unregister(commands[3], slots[0]);
+        assertEquals(3, snapShot(registry).size());
+
+        registry.unregister(commands[3], slots[3]);
+        registry.unregister(commands[0], slots[0]);
+        registry.unregister(commands[1], slots[1]);
+        assertEquals(0, snapShot(registry).size());
+    }
+
+    /**
+     * 登録、削除の最中に走査しても登録したままのコマンドは必ず含まれる.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testEachDuringChurn() throws Exception {
+
+        final CommandRegistry registry = new CommandRegistry(4);
+        final RegistryCommand[] stable = new RegistryCommand[4];
+        final int[] stableSlots = new int[stable.length];
+        for (int i = 0; i < stable.length; i++) {
+            stable[i] = new RegistryCommand();
+            stableSlots[i] = registry.register(stable[i]);
+        }
+
+        // スロット数を超える数で登録、削除を繰り返し並行Setも使わせる
+        final Thread[] threads = new Thread[8];
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final CountDownLatch started = new CountDownLatch(threads.length);
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    final RegistryCommand command = new RegistryCommand();
+                    started.countDown();
+                    try {
+                        while (running.get()) {
+                            final int slot = registry.register(command);
+                            registry.unregister(command, slot);
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        started.await();
+
+        try {
+            for (int i = 0; i < 2000; i++) {
+                final Set<CommandExecutionable> executes = snapShot(registry);
+                for (final RegistryCommand command : stable) {
+                    assertTrue(executes.contains(command));
+                }
+                assertTrue(executes.size() <= stable.length + threads.length);
+            }
+        } finally {
+            running.set(false);
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        assertEquals(null, error.get());
+        assertEquals(stable.length, snapShot(registry).size());
+        for (int i = 0; i < stable.length; i++) {
+            registry.unregister(stable[i], stableSlots[i]);
+        }
+        assertEquals(0, snapShot(registry).size());
+    }
+
+    /**
+     * 走査して登録中のコマンドを戻す.
+     * @param registry 実行中コマンド管理
+     * @return 登録中のコマンド
+     */
+    private static Set<CommandExecutionable> snapShot(final CommandRegistry registry) {
+
+        final Set<CommandExecutionable> executes = new HashSet<CommandExecutionable>();
+        registry.each(new EachFunction<CommandExecutionable>() {
+            public CommandExecutionable apply(final CommandExecutionable value) {
+                executes.add(value);
+                return value;
+            }
+        });
+        return executes;
+    }
+}
+
+/**
+ * 登録するだけのコマンド.
+ */
+class RegistryCommand implements CommandExecutionable {
+    public Socket getSocket() {
+        return null;
+    }
+    public long getStartTime() {
+        return 0L;
+    }
+    public void interrupt() {
+    }
+}
@@ -0,0 +1,91 @@
+package jp.gr.java_conf.fragile.service.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Socket;
+
+import org.junit.Test;
+
+/**
+ * タイミングホイールの試験.
+ * @author syuu256\gmail.com
+ */
+public class CommandTimeoutWheelTest {
+
+    /**
+     * 期限を過ぎたtickで停止要求される.
+     */
+    @Test
+    public void testExpire() {
+
+        final CommandTimeoutWheel wheel = new CommandTimeoutWheel(10L, 8, 0L);
+        final CountCommand command = new CountCommand();
+        final CommandTimeoutWheel.Timeout timeout = wheel.schedule(command, 25L);
+
+        wheel.expire(20L);
+        assertEquals(0, command.count);
+
+        wheel.expire(30L);
+        assertEquals(1, command.count);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+
+        wheel.expire(100L);
+        assertEquals(1, command.count);
+    }
+
+    /**
+     * 1周を超える期限は周回数で管理される.
+     */
+    @Test
+    public void testRounds() {
+
+        final CommandTimeoutWheel wheel = new CommandTimeoutWheel(10L, 8, 0L);
+        final CountCommand command = new CountCommand();
+        wheel.schedule(command, 205L);
+
+        wheel.expire(200L);
+        assertEquals(0, command.count);
+
+        wheel.expire(210L);
+        assertEquals(1, command.count);
+    }
+
+    /**
+     * 取り消した場合は停止要求されない.
+     */
+    @Test
+    public void testCancel() {
+
+        final CommandTimeoutWheel wheel = new CommandTimeoutWheel(10L, 8, 0L);
+        final CountCommand command = new CountCommand();
+        final CountCommand other = new CountCommand();
+        final CommandTimeoutWheel.Timeout timeout = wheel.schedule(command, 25L);
+        wheel.schedule(other, 25L);
+
+        wheel.expire(10L);
+        assertTrue(timeout.cancel());
+
+        wheel.expire(30L);
+        assertEquals(0, command.count);
+        assertEquals(1, other.count);
+    }
+}
+
+/**
+ * 停止要求を数える.
+ */
+class CountCommand implements CommandExecutionable {
+    int count = 0;
+    public Socket getSocket() {
+        return null;
+    }
+    public long getStartTime() {
+        return 0L;
+    }
+    public void interrupt() {
+        count++;
+    }
+}
@@ -0,0 +1,181 @@
+package jp.gr.java_conf.fragile.service.net;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import jp.gr.java_conf.fragile.service.net.pool.ServerSocketExecutorFactory;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * ファイルの送信の試験.
+ * @author syuu256\gmail.com
+ */
+public class FileRegionTest {
+
+    /** 送信するファイル */
+    static File file;
+
+    /** ファイルの内容 */
+    static byte[] content;
+
+    /**
+     * ソケットの送信バッファより大きいファイルを作成する.
+     * @throws Exception 異常
+     */
+    @BeforeClass
+    public static void createFile() throws Exception {
+
+        content = new byte[3 * 1024 * 1024 + 7];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        file = File.createTempFile("FileRegionTest", ".bin");
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * ファイルを削除する.
+     */
+    @AfterClass
+    public static void deleteFile() {
+        file.delete();
+    }
+
+    /**
+     * ブロッキングモードでファイル全体を送信する.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testBlocking() throws Exception {
+        assertArrayEquals(content, request(false));
+    }
+
+    /**
+     * リアクターモードで送信キューから送信する.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testReactor() throws Exception {
+        assertArrayEquals(content, request(true));
+    }
+
+    /**
+     * ファイルが終了位置より短い場合は空回りせずにEOFExceptionにする.
+     * @throws Exception 異常
+     */
+    @Test(timeout = 5000L, expected = EOFException.class)
+    public void testTruncated() throws Exception {
+
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            final SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+            final SocketChannel channel = server.accept();
+            try {
+                // ファイルの末尾の100バイトから200バイトを送信する
+                final FileRegion region = new FileRegion(raf.getChannel(), content.length - 100L, 200L);
+                region.writeFully(channel);
+            } finally {
+                channel.close();
+                client.close();
+            }
+        } finally {
+            raf.close();
+            server.close();
+        }
+    }
+
+    /**
+     * 1回接続して応答を全て受信する.
+     * @param reactor リアクターモード
+     * @return 応答
+     * @throws Exception 異常
+     */
+    private byte[] request(final boolean reactor) throws Exception {
+
+        final ServerSocketExecutorFactory factory = new ServerSocketExecutorFactory();
+        factory.setExecutorCorePoolSize(1);
+        factory.setExecutorMaximumPoolSize(1);
+        factory.setExecutorPoolCapacity(10);
+
+        final FileServerSocketListener listener = new FileServerSocketListener();
+        listener.setBindAddress("127.0.0.1");
+        listener.setServerPort(0);
+        listener.setServerTimeout(1000);
+        listener.setBlocking(false);
+        listener.setReactor(reactor);
+        listener.setStatisticsMBean(false);
+        listener.setExecutorFactory(factory);
+        listener.initialize();
+
+        final Thread thread = new Thread(listener, "ServerSocketListener");
+        thread.start();
+        try {
+            final Socket socket = new Socket("127.0.0.1", listener.getLocalPort());
+            try {
+                socket.getOutputStream().write('?');
+                final InputStream in = socket.getInputStream();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] b = new byte[8192];
+                int length;
+                while ((length = in.read(b)) != -1) {
+                    out.write(b, 0, length);
+                }
+                return out.toByteArray();
+            } finally {
+                socket.close();
+            }
+        } finally {
+            listener.stop(thread);
+        }
+    }
+}
+
+/**
+ * ファイルを送信する.
+ */
+class FileServerSocketListener extends AbstractServerSocketListener {
+    @Override
+    protected AbstractListenerCommand createListenerCommand(final Socket socket) {
+        return new FileListenerCommand();
+    }
+}
+class FileListenerCommand extends AbstractListenerCommand {
+    @Override
+    public void execute() {
+        try {
+            if (getRequest() == null) {
+                // 未読のまま閉じるとRSTになる
+                getSocket().getInputStream().read();
+            }
+            sendFile(FileRegionTest.file);
+            if (getRequest() == null) {
+                getSocket().close();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+    @Override
+    public void abort() {
+    }
+}
@@ -0,0 +1,137 @@
+package jp.gr.java_conf.fragile.service.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.gr.java_conf.fragile.service.net.pool.ServerSocketExecutorFactory;
+
+import org.junit.Test;
+
+/**
+ * コマンドの再利用の試験.
+ * @author syuu256\gmail.com
+ */
+public class ListenerCommandPoolTest {
+
+    /**
+     * 最大数までプールする.
+     */
+    @Test
+    public void testAcquireRelease() {
+
+        final ListenerCommandPool pool = new ListenerCommandPool(2);
+        assertNull(pool.acquire());
+
+        final AbstractListenerCommand command = new RecycleListenerCommand();
+        assertTrue(pool.release(command));
+        assertTrue(pool.release(new RecycleListenerCommand()));
+        assertFalse(pool.release(new RecycleListenerCommand()));
+
+        final AbstractListenerCommand first = pool.acquire();
+        final AbstractListenerCommand second = pool.acquire();
+        assertTrue(first == command || second == command);
+        assertNull(pool.acquire());
+    }
+
+    /**
+     * ブロッキングモードで受付不可になったコマンドもプールに戻す.
+     */
+    @Test
+    public void testRejectRecycle() {
+
+        final ListenerCommandPool pool = new ListenerCommandPool(2);
+        final RecycleListenerCommand command = new RecycleListenerCommand();
+        command.setCommandPool(pool);
+        command.setSocket(new Socket());
+
+        command.reject();
+
+        assertTrue(command.getSocket() == null);
+        assertSame(command, pool.acquire());
+    }
+
+    /**
+     * 実行が終わったコマンドを次の接続で再利用する.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testRecycle() throws Exception {
+
+        final ServerSocketExecutorFactory factory = new ServerSocketExecutorFactory();
+        factory.setExecutorCorePoolSize(1);
+        factory.setExecutorMaximumPoolSize(1);
+        factory.setExecutorPoolCapacity(10);
+
+        final RecycleServerSocketListener listener = new RecycleServerSocketListener();
+        listener.setBindAddress("127.0.0.1");
+        listener.setServerPort(0);
+        listener.setServerTimeout(1000);
+        listener.setBlocking(false);
+        listener.setStatisticsMBean(false);
+        listener.setCommandPoolSize(4);
+        listener.setExecutorFactory(factory);
+        listener.initialize();
+
+        final Thread thread = new Thread(listener, "ServerSocketListener");
+        thread.start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                final Socket socket = new Socket("127.0.0.1", listener.getLocalPort());
+                try {
+                    final InputStream in = socket.getInputStream();
+                    assertEquals('!', in.read());
+                } finally {
+                    socket.close();
+                }
+            }
+        } finally {
+            listener.stop(thread);
+        }
+
+        assertTrue(listener.created.get() < 20);
+        assertTrue(RecycleListenerCommand.resets.get() > 0);
+    }
+}
+
+/**
+ * コマンドを再利用する.
+ */
+class RecycleServerSocketListener extends AbstractServerSocketListener {
+    final AtomicInteger created = new AtomicInteger();
+    @Override
+    protected AbstractListenerCommand createListenerCommand(final Socket socket) {
+        created.incrementAndGet();
+        return new RecycleListenerCommand();
+    }
+}
+class RecycleListenerCommand extends AbstractListenerCommand {
+    static final AtomicInteger resets = new AtomicInteger();
+    @Override
+    public void execute() {
+        try {
+            getSocket().getOutputStream().write('!');
+            getSocket().close();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+    @Override
+    public void abort() {
+        try {
+            getSocket().close();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+    @Override
+    protected void reset() {
+        resets.incrementAndGet();
+    }
+}
@@ -0,0 +1,62 @@
+package jp.gr.java_conf.fragile.service.net;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import jp.gr.java_conf.fragile.commons.container.ComponentFactory;
+import jp.gr.java_conf.fragile.commons.container.ScopedComponent;
+
+import org.junit.Test;
+
+/**
+ * コマンドのスコープの試験.
+ * @author syuu256\gmail.com
+ */
+public class ListenerCommandScopeTest {
+
+    /**
+     * プールのスレッド以外で実行した場合はthreadスコープをコマンド毎に終了してプールに戻す.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testThreadScopeOnDisposableThread() throws Exception {
+
+        final Object first = runOnNewThread();
+        assertNotNull(first);
+
+        // 終了したスレッドのインスタンスを次のスレッドで再利用する
+        assertSame(first, runOnNewThread());
+    }
+
+    /**
+     * 仮想スレッドと同じく使い捨てのスレッドでコマンドを実行する.
+     * @return コマンドが取得したthreadスコープのインスタンス
+     * @throws Exception 異常
+     */
+    private static Object runOnNewThread() throws Exception {
+
+        final ScopeListenerCommand command = new ScopeListenerCommand();
+        command.setExecutes(new CommandRegistry(1));
+        command.setTimeoutWheel(null, 0L);
+
+        final Thread thread = new Thread(command);
+        thread.start();
+        thread.join();
+
+        return command.component;
+    }
+}
+
+/**
+ * threadスコープのインスタンスを取得する.
+ */
+class ScopeListenerCommand extends AbstractListenerCommand {
+    volatile Object component = null;
+    @Override
+    public void execute() {
+        component = ComponentFactory.createFactory(ScopedComponent.class).getComponent("THREAD_MOCK");
+    }
+    @Override
+    public void abort() {
+    }
+}
@@ -0,0 +1,347 @@
+package jp.gr.java_conf.fragile.service.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jp.gr.java_conf.fragile.commons.io.DirectBufferPool;
+import jp.gr.java_conf.fragile.service.net.pool.ServerSocketExecutorFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * リアクターモードの試験.
+ * @author syuu256\gmail.com
+ */
+public class ReactorEchoTest {
+
+    /** ポート */
+    private int port;
+
+    /** リスナー */
+    private AbstractServerSocketListener listener;
+
+    /** リスナーのスレッド */
+    private Thread thread;
+
+    /**
+     * リアクターモードでリスナーを開始する.
+     * @throws Exception 異常
+     */
+    @Before
+    public void setUp() throws Exception {
+
+        port = freePort();
+        listener = createListener(port);
+        listener.setWatcherDelay(10L);
+        listener.setWatcherCommandTimeout(300L);
+        listener.initialize();
+
+        thread = new Thread(listener, "ServerSocketListener");
+        thread.start();
+    }
+
+    /**
+     * リスナーを停止する.
+     */
+    @After
+    public void tearDown() {
+        listener.stop(thread);
+    }
+
+    /**
+     * 1要求分が揃ってから実行し、応答後に閉じる.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testEcho() throws Exception {
+
+        for (int i = 0; i < 3; i++) {
+            final Socket socket = new Socket("127.0.0.1", port);
+            try {
+                socket.setSoTimeout(5000);
+                final OutputStream out = socket.getOutputStream();
+                final InputStream in = socket.getInputStream();
+
+                // 分割して送信しても改行まで待つ
+                out.write(("echo" + i).getBytes());
+                out.flush();
+                Thread.sleep(50L);
+                out.write("\n".getBytes());
+
+                assertEquals("echo" + i + "\n", read(in, 6));
+                assertEquals(-1, in.read());
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * 1要求分が揃わないまま期限を過ぎた接続は閉じる.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testReadTimeout() throws Exception {
+
+        final Socket socket = new Socket("127.0.0.1", port);
+        try {
+            socket.setSoTimeout(5000);
+            final OutputStream out = socket.getOutputStream();
+            final InputStream in = socket.getInputStream();
+
+            final long start = System.currentTimeMillis();
+            out.write("echo".getBytes());
+            out.flush();
+            Thread.sleep(200L);
+            // 受信の途中でも期限は延長しない
+            out.write("-".getBytes());
+            out.flush();
+
+            assertEquals(-1, in.read());
+            final long elapsed = System.currentTimeMillis() - start;
+            assertTrue("elapsed:" + elapsed, elapsed >= 400L && elapsed < 3000L);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * コマンドがタイムアウトして接続が閉じられても次の接続を処理する.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testCommandTimeout() throws Exception {
+
+        final Socket socket = new Socket("127.0.0.1", port);
+        try {
+            socket.setSoTimeout(5000);
+            final OutputStream out = socket.getOutputStream();
+            final InputStream in = socket.getInputStream();
+
+            final long start = System.currentTimeMillis();
+            out.write("sleep\n".getBytes());
+            out.flush();
+
+            assertEquals(-1, in.read());
+            final long elapsed = System.currentTimeMillis() - start;
+            assertTrue("elapsed:" + elapsed, elapsed < 3000L);
+        } finally {
+            socket.close();
+        }
+
+        // 監視スレッドが閉じたチャネルでリアクターが停止していない
+        for (int i = 0; i < 2; i++) {
+            final Socket next = new Socket("127.0.0.1", port);
+            try {
+                next.setSoTimeout(5000);
+                next.getOutputStream().write(("echo" + i + "\n").getBytes());
+                next.getOutputStream().flush();
+
+                final InputStream in = next.getInputStream();
+                assertEquals("echo" + i + "\n", read(in, 6));
+                assertEquals(-1, in.read());
+            } finally {
+                next.close();
+            }
+        }
+    }
+
+    /**
+     * 受信中にセレクションキーが取り消された場合は例外にせず接続を閉じる.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testCancelledKey() throws Exception {
+
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        final Selector selector = Selector.open();
+        try {
+            server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            final SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+            final SocketChannel channel = server.accept();
+            channel.configureBlocking(false);
+
+            final ReactorSelector reactor = new ReactorSelector(null, DirectBufferPool.getDefault(), 1000L, 500L, 0L);
+            final ReactorConnection connection = new ReactorConnection(
+                    reactor, channel, new EchoListenerCommand(), 16, 1024);
+            connection.register(selector);
+
+            // 監視スレッドによる切断と同じくキーだけが無効になった状態で受信する
+            channel.keyFor(selector).cancel();
+            client.write(ByteBuffer.wrap("echo".getBytes()));
+            Thread.sleep(50L);
+            connection.read();
+
+            assertFalse(channel.isOpen());
+            client.close();
+        } finally {
+            selector.close();
+            server.close();
+        }
+    }
+
+    /**
+     * 停止時に実行中のコマンドの接続はコマンドの終了後に閉じる.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testShutdownWhileRunning() throws Exception {
+
+        final int localPort = freePort();
+        final AbstractServerSocketListener running = createListener(localPort);
+        running.initialize();
+        final Thread runningThread = new Thread(running, "ServerSocketListener");
+        runningThread.start();
+
+        final Socket socket = new Socket("127.0.0.1", localPort);
+        try {
+            socket.getOutputStream().write("wait\n".getBytes());
+            socket.getOutputStream().flush();
+            assertTrue(EchoListenerCommand.RUNNING.await(5L, TimeUnit.SECONDS));
+
+            running.stop(runningThread);
+            Thread.sleep(200L);
+
+            // 実行中は閉じない
+            socket.setSoTimeout(200);
+            try {
+                socket.getInputStream().read();
+                fail();
+            } catch (SocketTimeoutException e) {
+                // 接続は維持されている
+            }
+
+            // 終了したら閉じる
+            EchoListenerCommand.RELEASE.countDown();
+            socket.setSoTimeout(5000);
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            EchoListenerCommand.RELEASE.countDown();
+            socket.close();
+        }
+    }
+
+    /**
+     * 空いているポートを戻す.
+     * @return ポート
+     * @throws Exception 異常
+     */
+    private static int freePort() throws Exception {
+
+        final ServerSocket serverSocket = new ServerSocket(0);
+        try {
+            return serverSocket.getLocalPort();
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * リアクターモードのリスナーを生成する.
+     * @param localPort ポート
+     * @return 初期化前のリスナー
+     */
+    private static AbstractServerSocketListener createListener(final int localPort) {
+
+        final ServerSocketExecutorFactory factory = new ServerSocketExecutorFactory();
+        factory.setExecutorCorePoolSize(1);
+        factory.setExecutorMaximumPoolSize(1);
+        factory.setExecutorPoolCapacity(10);
+
+        final AbstractServerSocketListener reactorListener = new AbstractServerSocketListener() {
+            @Override
+            protected AbstractListenerCommand createListenerCommand(final Socket socket) {
+                return new EchoListenerCommand();
+            }
+        };
+        reactorListener.setBindAddress("127.0.0.1");
+        reactorListener.setServerPort(localPort);
+        reactorListener.setServerTimeout(1000);
+        reactorListener.setBlocking(false);
+        reactorListener.setReactor(true);
+        reactorListener.setReactorReadTimeout(500L);
+        reactorListener.setExecutorFactory(factory);
+        return reactorListener;
+    }
+
+    /**
+     * 指定の長さを読み込む.
+     * @param in 入力
+     * @param length 長さ
+     * @return 文字列
+     * @throws Exception 異常
+     */
+    private static String read(final InputStream in, final int length) throws Exception {
+
+        final byte[] b = new byte[length];
+        int position = 0;
+        while (position < length) {
+            final int read = in.read(b, position, length - position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+        return new String(b, 0, position);
+    }
+}
+
+/**
+ * 改行までを1要求として返す.
+ * sleepの要求は応答せずに待機する
+ * waitの要求はRELEASEまで待機してから応答する
+ */
+class EchoListenerCommand extends AbstractListenerCommand {
+    /** waitの要求を実行中 */
+    static final CountDownLatch RUNNING = new CountDownLatch(1);
+    /** waitの要求を終了させる */
+    static final CountDownLatch RELEASE = new CountDownLatch(1);
+    @Override
+    public void execute() {
+        try {
+            if (getRequest().get(getRequest().position()) == 's') {
+                Thread.sleep(5000L);
+                return;
+            }
+            if (getRequest().get(getRequest().position()) == 'w') {
+                RUNNING.countDown();
+                RELEASE.await(5L, TimeUnit.SECONDS);
+            }
+            send(getRequest());
+        } catch (InterruptedException e) {
+            // 監視スレッドによる割り込み
+            return;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+    @Override
+    public void abort() {
+    }
+    @Override
+    protected int getRequestLength(final ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                return i - buffer.position() + 1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,173 @@
+package jp.gr.java_conf.fragile.service.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import jp.gr.java_conf.fragile.service.net.codec.DelimiterFrameCodec;
+import jp.gr.java_conf.fragile.service.net.codec.FrameCodec;
+import jp.gr.java_conf.fragile.service.net.pool.ServerSocketExecutorFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * リアクターモードのkeep-aliveの試験.
+ * @author syuu256\gmail.com
+ */
+public class ReactorKeepAliveTest {
+
+    /** リスナー */
+    private AbstractServerSocketListener listener;
+
+    /** リスナーのスレッド */
+    private Thread thread;
+
+    /**
+     * 要求待ち200ミリ秒でリスナーを開始する.
+     */
+    @Before
+    public void setUp() {
+
+        final ServerSocketExecutorFactory factory = new ServerSocketExecutorFactory();
+        factory.setExecutorCorePoolSize(2);
+        factory.setExecutorMaximumPoolSize(2);
+        factory.setExecutorPoolCapacity(10);
+
+        listener = new AbstractServerSocketListener() {
+            @Override
+            protected AbstractListenerCommand createListenerCommand(final Socket socket) {
+                return new LineListenerCommand();
+            }
+        };
+        listener.setBindAddress("127.0.0.1");
+        listener.setServerPort(0);
+        listener.setServerTimeout(1000);
+        listener.setBlocking(false);
+        listener.setReactor(true);
+        listener.setReactorKeepAliveTimeout(200L);
+        listener.setStatisticsMBean(false);
+        listener.setCommandPoolSize(2);
+        listener.setExecutorFactory(factory);
+        listener.initialize();
+
+        thread = new Thread(listener, "ServerSocketListener");
+        thread.start();
+    }
+
+    /**
+     * リスナーを停止する.
+     */
+    @After
+    public void tearDown() {
+        listener.stop(thread);
+    }
+
+    /**
+     * 1接続で順に送信した要求と、まとめて送信した要求に順番に応答する.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testPipelining() throws Exception {
+
+        final Socket socket = new Socket("127.0.0.1", listener.getLocalPort());
+        try {
+            final OutputStream out = socket.getOutputStream();
+            final InputStream in = socket.getInputStream();
+
+            out.write("a\r\n".getBytes());
+            assertEquals("A\r\n", read(in, 3));
+            out.write("b\r\n".getBytes());
+            assertEquals("B\r\n", read(in, 3));
+
+            out.write("c\r\nd\r\ne\r\nf".getBytes());
+            assertEquals("C\r\nD\r\nE\r\n", read(in, 9));
+            out.write("\r\nquit\r\nx\r\n".getBytes());
+            assertEquals("F\r\nQUIT\r\n", read(in, 9));
+
+            // quitで応答後に閉じる
+            assertEquals(-1, in.read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * 要求待ちの接続は期限を過ぎると閉じる.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testIdleTimeout() throws Exception {
+
+        final Socket socket = new Socket("127.0.0.1", listener.getLocalPort());
+        try {
+            socket.setSoTimeout(5000);
+            final OutputStream out = socket.getOutputStream();
+            final InputStream in = socket.getInputStream();
+
+            out.write("a\r\n".getBytes());
+            assertEquals("A\r\n", read(in, 3));
+
+            final long start = System.currentTimeMillis();
+            assertEquals(-1, in.read());
+            final long elapsed = System.currentTimeMillis() - start;
+            assertTrue("elapsed:" + elapsed, elapsed >= 150L && elapsed < 3000L);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * 指定の長さを読み込む.
+     * @param in 入力
+     * @param length 長さ
+     * @return 文字列
+     * @throws Exception 異常
+     */
+    private static String read(final InputStream in, final int length) throws Exception {
+
+        final byte[] b = new byte[length];
+        int position = 0;
+        while (position < length) {
+            final int read = in.read(b, position, length - position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+        return new String(b, 0, position);
+    }
+}
+
+/**
+ * 行を大文字にして返す quitの場合は応答後に閉じる.
+ */
+class LineListenerCommand extends AbstractListenerCommand {
+    @Override
+    protected FrameCodec createFrameCodec() {
+        return DelimiterFrameCodec.crlf(1024);
+    }
+    @Override
+    public void execute() {
+        try {
+            final ByteBuffer frame = readFrame();
+            final byte[] b = new byte[frame.remaining()];
+            frame.get(b);
+            final String line = new String(b);
+            sendFrame(ByteBuffer.wrap(line.toUpperCase().getBytes()));
+            if ("quit".equals(line)) {
+                closeAfterResponse();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+    @Override
+    public void abort() {
+    }
+}
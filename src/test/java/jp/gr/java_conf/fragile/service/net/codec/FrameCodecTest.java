@@ -0,0 +1,225 @@
+package jp.gr.java_conf.fragile.service.net.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import jp.gr.java_conf.fragile.service.net.AbstractListenerCommand;
+import jp.gr.java_conf.fragile.service.net.AbstractServerSocketListener;
+import jp.gr.java_conf.fragile.service.net.pool.ServerSocketExecutorFactory;
+
+import org.junit.Test;
+
+/**
+ * フレームの分割の試験.
+ * @author syuu256\gmail.com
+ */
+public class FrameCodecTest {
+
+    /**
+     * 区切り文字が分割して届いても続きから探索する.
+     */
+    @Test
+    public void testDelimiter() {
+
+        final DelimiterFrameCodec codec = DelimiterFrameCodec.crlf(8);
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        buffer.put("ab\r".getBytes()).flip();
+        assertEquals(-1, codec.decode(buffer));
+        buffer.compact().put("\ncd\r\n".getBytes()).flip();
+        assertEquals(4, codec.decode(buffer));
+        assertEquals("ab", payload(codec, buffer, 4));
+        assertEquals(4, codec.decode(buffer));
+        assertEquals("cd", payload(codec, buffer, 4));
+
+        // 終了時は区切り文字の無い残りも1フレーム
+        buffer.compact().put("ef".getBytes()).flip();
+        assertEquals(-1, codec.decode(buffer));
+        assertEquals(2, codec.decodeLast(buffer));
+        assertEquals("ef", payload(codec, buffer, 2));
+
+        buffer.compact().put("0123456789".getBytes()).flip();
+        try {
+            codec.decode(buffer);
+            fail();
+        } catch (FrameException e) {
+            assertEquals("frame too large:10", e.getMessage());
+        }
+    }
+
+    /**
+     * 長さヘッダと固定長.
+     */
+    @Test
+    public void testLengthFieldAndFixedLength() {
+
+        final LengthFieldFrameCodec codec = new LengthFieldFrameCodec(2, 100);
+        final ByteBuffer payload = ByteBuffer.wrap("hello".getBytes());
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(codec.header(payload)).put(payload).put((byte) 0).flip();
+        assertEquals(7, codec.decode(buffer));
+        assertEquals("hello", payload(codec, buffer, 7));
+        assertEquals(-1, codec.decode(buffer));
+
+        buffer.clear();
+        buffer.putShort((short) 101).flip();
+        try {
+            codec.decode(buffer);
+            fail();
+        } catch (FrameException e) {
+            assertEquals("frame too large:101", e.getMessage());
+        }
+
+        // 最大長を超える本文はヘッダを切り詰めずに例外にする
+        try {
+            codec.header(ByteBuffer.allocate(101));
+            fail();
+        } catch (FrameException e) {
+            assertEquals("frame too large:101", e.getMessage());
+        }
+
+        // 最大長はヘッダで表せる値までに切り詰める
+        final LengthFieldFrameCodec oneByte = new LengthFieldFrameCodec(1, 1000);
+        assertEquals(255, oneByte.header(ByteBuffer.allocate(255)).get(0) & 0xFF);
+        try {
+            oneByte.header(ByteBuffer.allocate(256));
+            fail();
+        } catch (FrameException e) {
+            assertEquals("frame too large:256", e.getMessage());
+        }
+        final LengthFieldFrameCodec twoBytes = new LengthFieldFrameCodec(2, Integer.MAX_VALUE);
+        assertEquals(65535, twoBytes.header(ByteBuffer.allocate(65535)).getShort(0) & 0xFFFF);
+        try {
+            twoBytes.header(ByteBuffer.allocate(65536));
+            fail();
+        } catch (FrameException e) {
+            assertEquals("frame too large:65536", e.getMessage());
+        }
+
+        final FixedLengthFrameCodec fixed = new FixedLengthFrameCodec(3);
+        assertEquals(-1, fixed.decode(ByteBuffer.wrap(new byte[2])));
+        assertEquals(3, fixed.decode(ByteBuffer.wrap(new byte[5])));
+    }
+
+    /**
+     * 1接続で連続して送信したフレームをブロッキングモード、リアクターモードで処理する.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testListener() throws Exception {
+        assertEquals("ONE,TWO,", echo(false));
+        assertEquals("ONE,", echo(true));
+    }
+
+    /**
+     * 2フレームを1回で送信して応答を受信する.
+     * <pre>
+     * リアクターモードは1要求毎に接続を閉じるので最初のフレームのみ応答する
+     * </pre>
+     * @param reactor リアクターモード
+     * @return 応答
+     * @throws Exception 異常
+     */
+    private String echo(final boolean reactor) throws Exception {
+
+        final ServerSocketExecutorFactory factory = new ServerSocketExecutorFactory();
+        factory.setExecutorCorePoolSize(1);
+        factory.setExecutorMaximumPoolSize(1);
+        factory.setExecutorPoolCapacity(10);
+
+        final AbstractServerSocketListener listener = new AbstractServerSocketListener() {
+            @Override
+            protected AbstractListenerCommand createListenerCommand(final Socket socket) {
+                return new UpperCaseListenerCommand();
+            }
+        };
+        listener.setBindAddress("127.0.0.1");
+        listener.setServerPort(0);
+        listener.setServerTimeout(1000);
+        listener.setBlocking(false);
+        listener.setReactor(reactor);
+        listener.setStatisticsMBean(false);
+        listener.setExecutorFactory(factory);
+        listener.initialize();
+
+        final Thread thread = new Thread(listener, "ServerSocketListener");
+        thread.start();
+        try {
+            final Socket socket = new Socket("127.0.0.1", listener.getLocalPort());
+            try {
+                final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.write(new byte[] {0, 0, 0, 3, 'o', 'n', 'e', 0, 0, 0, 3, 't', 'w', 'o'});
+                out.flush();
+                socket.shutdownOutput();
+
+                final DataInputStream in = new DataInputStream(socket.getInputStream());
+                final StringBuilder sb = new StringBuilder();
+                int length;
+                while ((length = in.read()) != -1) {
+                    length = (length << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8)
+                        | in.readUnsignedByte();
+                    final byte[] b = new byte[length];
+                    in.readFully(b);
+                    sb.append(new String(b)).append(',');
+                }
+                return sb.toString();
+            } finally {
+                socket.close();
+            }
+        } finally {
+            listener.stop(thread);
+        }
+    }
+
+    /**
+     * 本文を文字列で取り出してフレームを読み進める.
+     * @param codec フレームの分割
+     * @param buffer 受信済みデータ
+     * @param length フレームの長さ
+     * @return 本文
+     */
+    private static String payload(final FrameCodec codec, final ByteBuffer buffer, final int length) {
+
+        final ByteBuffer frame = buffer.duplicate();
+        frame.limit(frame.position() + length);
+        buffer.position(frame.limit());
+        final ByteBuffer payload = codec.payload(frame.slice());
+        final byte[] b = new byte[payload.remaining()];
+        payload.get(b);
+        return new String(b);
+    }
+}
+
+/**
+ * 大文字にして返す.
+ */
+class UpperCaseListenerCommand extends AbstractListenerCommand {
+    @Override
+    protected FrameCodec createFrameCodec() {
+        return new LengthFieldFrameCodec(4, 1024);
+    }
+    @Override
+    public void execute() {
+        try {
+            ByteBuffer frame;
+            while ((frame = readFrame()) != null) {
+                final byte[] b = new byte[frame.remaining()];
+                frame.get(b);
+                sendFrame(ByteBuffer.wrap(new String(b).toUpperCase().getBytes()));
+            }
+            if (getRequest() == null) {
+                getSocket().close();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+    @Override
+    public void abort() {
+    }
+}
@@ -0,0 +1,99 @@
+package jp.gr.java_conf.fragile.service.net.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 適応型の同時実行数の制限の試験.
+ * @author syuu256\gmail.com
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+    /**
+     * 上限まで許可する.
+     */
+    @Test
+    public void testAcquire() {
+
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 3, 10L);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(3, limiter.getInFlight());
+
+        limiter.cancel();
+        assertTrue(limiter.tryAcquire());
+    }
+
+    /**
+     * キュー待ちが目標を超えると減らし、目標時間内は1回だけ減らす.
+     */
+    @Test
+    public void testBackoff() {
+
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 100, 10000L);
+        limiter.onStart(5L);
+        assertEquals(100, limiter.getLimit());
+
+        limiter.onStart(20000L);
+        assertEquals(90, limiter.getLimit());
+
+        limiter.onStart(20000L);
+        assertEquals(90, limiter.getLimit());
+    }
+
+    /**
+     * 上限近くまで使われている場合は増やす.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testIncrease() throws Exception {
+
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 10, 1L);
+        limiter.onStart(2L);
+        assertEquals(9, limiter.getLimit());
+        Thread.sleep(5L);
+
+        for (int i = 0; i < 9; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        for (int i = 0; i < 20; i++) {
+            limiter.tryAcquire();
+            limiter.release(0L);
+        }
+        assertEquals(10, limiter.getLimit());
+    }
+
+    /**
+     * 応答時間が最小の応答時間から伸びた場合は減らし、伸びていない場合は減らさない.
+     */
+    @Test
+    public void testLatencyBackoff() {
+
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 100, 10L);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(5L);
+        }
+        assertEquals(100, limiter.getLimit());
+
+        // 目標時間以内の伸びは許容する
+        assertTrue(limiter.tryAcquire());
+        limiter.release(14L);
+        assertEquals(100, limiter.getLimit());
+
+        assertTrue(limiter.tryAcquire());
+        limiter.release(100L);
+        assertEquals(90, limiter.getLimit());
+
+        // 目標時間内は1回だけ減らす
+        assertTrue(limiter.tryAcquire());
+        limiter.release(100L);
+        assertEquals(90, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+}
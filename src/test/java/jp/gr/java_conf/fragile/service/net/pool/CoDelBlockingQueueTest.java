@@ -0,0 +1,90 @@
+package jp.gr.java_conf.fragile.service.net.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * キュー待ち時間で破棄する実行キューの試験.
+ * @author syuu256\gmail.com
+ */
+public class CoDelBlockingQueueTest {
+
+    /**
+     * 目標以内であれば破棄しない.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testNoDrop() throws Exception {
+
+        final CoDelBlockingQueue queue = new CoDelBlockingQueue(10, 1000L, 10L);
+        final Runnable r1 = new NopRunnable();
+        final Runnable r2 = new NopRunnable();
+        queue.offer(r1);
+        queue.offer(r2);
+        Thread.sleep(20L);
+
+        assertSame(r1, queue.poll());
+        assertSame(r2, queue.take());
+        assertEquals(0L, queue.getDropCount());
+
+        // 20ミリ秒以上待っている
+        long count = 0L;
+        final long[] histogram = queue.getSojournHistogram();
+        for (int i = 5; i < histogram.length; i++) {
+            count += histogram[i];
+        }
+        assertEquals(2L, count);
+    }
+
+    /**
+     * 判定期間以上目標を超え続けた場合は先頭から破棄してハンドラに渡す.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testDrop() throws Exception {
+
+        final AtomicInteger rejected = new AtomicInteger();
+        final CoDelBlockingQueue queue = new CoDelBlockingQueue(10, 1L, 20L);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue,
+            new RejectedExecutionHandler() {
+                public void rejectedExecution(final Runnable r, final ThreadPoolExecutor e) {
+                    rejected.incrementAndGet();
+                }
+            });
+        queue.setExecutor(executor);
+
+        for (int i = 0; i < 5; i++) {
+            queue.offer(new NopRunnable());
+        }
+        Thread.sleep(5L);
+
+        // 超えはじめ
+        assertNotNull(queue.poll());
+        assertEquals(0, rejected.get());
+        Thread.sleep(30L);
+
+        // 1件破棄して次を戻す
+        assertNotNull(queue.poll(10L, TimeUnit.MILLISECONDS));
+        assertEquals(1, rejected.get());
+        assertEquals(1L, queue.getDropCount());
+        assertEquals(2, queue.size());
+
+        executor.shutdown();
+    }
+
+    /**
+     * 何もしない.
+     */
+    static class NopRunnable implements Runnable {
+        public void run() {
+        }
+    }
+}
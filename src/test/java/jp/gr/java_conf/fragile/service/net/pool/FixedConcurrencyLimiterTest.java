@@ -0,0 +1,39 @@
+package jp.gr.java_conf.fragile.service.net.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 固定の同時実行数の制限の試験.
+ * @author syuu256\gmail.com
+ */
+public class FixedConcurrencyLimiterTest {
+
+    /**
+     * 上限まで許可し、終了または取り消しで許可を戻す.
+     */
+    @Test
+    public void testAcquireRelease() {
+
+        final FixedConcurrencyLimiter limiter = new FixedConcurrencyLimiter(2);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+
+        // 開始の通知では変わらない
+        limiter.onStart(1000L);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(2, limiter.getInFlight());
+
+        limiter.release(10L);
+        assertEquals(1, limiter.getInFlight());
+        limiter.cancel();
+        assertEquals(0, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire());
+        assertEquals(2, limiter.getLimit());
+    }
+}
@@ -0,0 +1,78 @@
+package jp.gr.java_conf.fragile.service.net.pool;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jp.gr.java_conf.fragile.service.net.AbstractListenerCommand;
+
+import org.junit.Test;
+
+/**
+ * 同時実行数を制限する実行キューの試験.
+ * @author syuu256\gmail.com
+ */
+public class LimitedThreadPoolExecutorTest {
+
+    /**
+     * 実行中にコマンドが再利用されて受付時間が変わっても開始時の受付時間で通知する.
+     */
+    @Test
+    public void testLatencyAfterRecycle() {
+
+        final LatencyLimiter limiter = new LatencyLimiter();
+        final LimitedThreadPoolExecutor executor = new LimitedThreadPoolExecutor(1, 1, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), Executors.defaultThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy(), limiter);
+        try {
+            final NopListenerCommand command = new NopListenerCommand();
+            command.setSubmitTime(System.currentTimeMillis() - 1000L);
+            executor.beforeExecute(Thread.currentThread(), command);
+
+            // 終了時にプールに戻り、別の接続で受け付けられた
+            command.setSubmitTime(System.currentTimeMillis());
+            executor.afterExecute(command, null);
+
+            assertTrue("queueDelay:" + limiter.queueDelay, limiter.queueDelay >= 1000L);
+            assertTrue("latency:" + limiter.latency, limiter.latency >= 1000L);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
+
+/**
+ * 通知された時間を記録する.
+ */
+class LatencyLimiter extends FixedConcurrencyLimiter {
+    long queueDelay = -1L;
+    long latency = -1L;
+    LatencyLimiter() {
+        super(10);
+    }
+    @Override
+    public void onStart(final long queueDelay) {
+        super.onStart(queueDelay);
+        this.queueDelay = queueDelay;
+    }
+    @Override
+    public void release(final long latency) {
+        super.release(latency);
+        this.latency = latency;
+    }
+}
+
+/**
+ * 何もしない.
+ */
+class NopListenerCommand extends AbstractListenerCommand {
+    @Override
+    public void execute() {
+    }
+    @Override
+    public void abort() {
+    }
+}
@@ -0,0 +1,142 @@
+package jp.gr.java_conf.fragile.service.net.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * スレッドプールの生成の試験.
+ * @author syuu256\gmail.com
+ */
+public class ServerSocketExecutorFactoryTest {
+
+    /**
+     * 仮想スレッドで実行する場合はコマンド毎にスレッドを生成して再利用しない.
+     * <pre>
+     * 仮想スレッドが使用できないJVMではプールのスレッドをコマンド毎に生成する
+     * </pre>
+     * @throws Exception 異常
+     */
+    @Test
+    public void testThreadPerCommand() throws Exception {
+
+        final ServerSocketExecutorFactory factory = new ServerSocketExecutorFactory();
+        factory.setExecutorVirtualThread(true);
+        final ThreadPoolExecutor executor = factory.createExecutor();
+        try {
+            final Thread[] threads = new Thread[3];
+            for (int i = 0; i < threads.length; i++) {
+                final int index = i;
+                final CountDownLatch done = new CountDownLatch(1);
+                executor.execute(new Runnable() {
+                    public void run() {
+                        threads[index] = Thread.currentThread();
+                        done.countDown();
+                    }
+                });
+                assertTrue(done.await(5L, TimeUnit.SECONDS));
+                threads[i].join(5000L);
+            }
+            assertTrue(threads[0] != threads[1] && threads[1] != threads[2] && threads[0] != threads[2]);
+            assertEquals(!isVirtualThreadSupported(), threads[0] instanceof ServerSocketPoolThread);
+
+            // 待機するスレッドは残らない
+            assertTrue(waitFor(executor, 0));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 同時実行数を超えた場合はリジェクトハンドラに渡し、終了したら再び受け付ける.
+     * @throws Exception 異常
+     */
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+
+        final AtomicInteger rejected = new AtomicInteger();
+        final ServerSocketExecutorFactory factory = new ServerSocketExecutorFactory();
+        factory.setExecutorVirtualThread(true);
+        factory.setExecutorConcurrencyLimit(1);
+        factory.setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+                rejected.incrementAndGet();
+            }
+        });
+        final LimitedThreadPoolExecutor executor = (LimitedThreadPoolExecutor) factory.createExecutor();
+        try {
+            final CountDownLatch blocked = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            assertEquals(1, executor.getInFlightCount());
+
+            final CountDownLatch second = new CountDownLatch(1);
+            final Runnable countDown = new Runnable() {
+                public void run() {
+                    second.countDown();
+                }
+            };
+            executor.execute(countDown);
+            assertEquals(1, rejected.get());
+            assertEquals(1L, executor.getLimitRejectedCount());
+
+            blocked.countDown();
+            assertTrue(waitFor(executor, 0));
+            executor.execute(countDown);
+            assertTrue(second.await(5L, TimeUnit.SECONDS));
+            assertEquals(1, rejected.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Thread.ofVirtualがあるか判定する.
+     * @return ある場合はtrue
+     */
+    private static boolean isVirtualThreadSupported() {
+
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * スレッド数と実行中の数が指定の数になるまで待つ.
+     * @param executor 実行キュー
+     * @param count 数
+     * @return 5秒以内になった場合はtrue
+     * @throws InterruptedException 割り込み
+     */
+    private static boolean waitFor(final ThreadPoolExecutor executor, final int count)
+        throws InterruptedException {
+
+        final long limit = System.currentTimeMillis() + 5000L;
+        while (System.currentTimeMillis() < limit) {
+            final boolean inFlight = !(executor instanceof LimitedThreadPoolExecutor)
+                || ((LimitedThreadPoolExecutor) executor).getInFlightCount() == count;
+            if (inFlight && executor.getPoolSize() == count) {
+                return true;
+            }
+            Thread.sleep(10L);
+        }
+        return false;
+    }
+}